@@ -2769,18 +2769,21 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 	}
 
 	String getFFTLocation(int x, int y, Calibration cal) {
-		double center = width/2.0;
-		double r = Math.sqrt((x-center)*(x-center) + (y-center)*(y-center));
-		double theta = Math.atan2(y-center, x-center);
+		double dx = x - width/2.0;
+		double dy = y - height/2.0;
+		double r = Math.sqrt(dx*dx + dy*dy);
+		double theta = Math.atan2(dy, dx);
 		theta = theta*180.0/Math.PI;
 		if (theta<0) theta=360.0+theta;
 		String s = "r=";
 		if (r<1.0)
 			return s+"Infinity/c (0)"; //origin ('DC offset'), no angle
-		else if (cal.scaled())
-			s += IJ.d2s((width/r)*cal.pixelWidth,2) + " " + cal.getUnit() + "/c (" + IJ.d2s(r,0) + ")";
+		// spectra of non-square images have different frequency steps along x and y
+		double period = 1.0/Math.sqrt((dx/width)*(dx/width) + (dy/height)*(dy/height));
+		if (cal.scaled())
+			s += IJ.d2s(period*cal.pixelWidth,2) + " " + cal.getUnit() + "/c (" + IJ.d2s(r,0) + ")";
 		else
-			s += IJ.d2s(width/r,2) + " p/c (" + IJ.d2s(r,0) + ")";
+			s += IJ.d2s(period,2) + " p/c (" + IJ.d2s(r,0) + ")";
 		s += ", theta= " + IJ.d2s(theta,2) + IJ.degreeSymbol;
 		return s;
 	}
@@ -7,6 +7,9 @@ import java.io.*;
 import java.awt.*;
 import java.awt.image.ColorModel;
 import java.util.Properties;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** This class represents an array of disk-resident images. */
 public class VirtualStack extends ImageStack {
@@ -20,6 +23,15 @@ public class VirtualStack extends ImageStack {
 	private Properties properties;
 	private boolean generateData;
 	private int[] indexes;  // used to translate non-CZT hyperstack slice numbers
+	private LinkedHashMap<String,CachedSlice> cache;  // decoded slices, in LRU order
+	private long cacheSize;  // maximum size of the cache in bytes; 0 disables caching
+	private long cachedBytes;
+	private int readAhead;
+	private int lastSlice;
+	private int cacheHits, cacheMisses;
+	private volatile int prefetchGeneration;
+	private Thread prefetchThread;
+	private String[] prefetchNames;  // files to read ahead, in order
 
 	
 	/** Default constructor. */
@@ -172,7 +184,47 @@ public class VirtualStack extends ImageStack {
 				IJ.wait(delay);
 			return ip;
 		}
-		n = translate(n);  // update n for hyperstacks not in the default CZT order
+		if (cacheSize<=0)
+			return openSlice(translate(n));
+		int n2 = translate(n);
+		String name = names[n2-1];
+		CachedSlice slice = getCachedSlice(name);
+		if (slice!=null) {
+			synchronized(this) {cacheHits++;}
+			if (slice.label!=null)
+				labels[n2-1] = slice.label;
+			properties = slice.properties;
+		} else {
+			synchronized(this) {cacheMisses++;}
+			ImageProcessor ip = tryOpenSlice(n2);
+			if (ip==null) { // not cached, the file may still be being written
+				prefetch(n);
+				return getErrorSlice(n2);
+			}
+			slice = new CachedSlice(ip, labels[n2-1], properties);
+			putCachedSlice(name, slice);
+		}
+		prefetch(n);
+		ImageProcessor ip = slice.ip;
+		ImageProcessor ip2 = ip.duplicate();
+		if (bitDepth==16 || bitDepth==32)
+			ip2.setMinAndMax(ip.getMin(), ip.getMax());
+		ip2.setOverlay(ip.getOverlay());
+		if (cTable!=null)
+			ip2.setCalibrationTable(cTable);
+		return ip2;
+	}
+
+	/** Opens slice 'n' (already translated to CZT order) from disk. If it
+		cannot be opened, returns a white slice with an error message. */
+	private ImageProcessor openSlice(int n) {
+		ImageProcessor ip = tryOpenSlice(n);
+		return ip!=null?ip:getErrorSlice(n);
+	}
+
+	/** Opens slice 'n' (already translated to CZT order) from disk,
+		or returns null if it cannot be opened. */
+	private ImageProcessor tryOpenSlice(int n) {
 		Opener opener = new Opener();
 		opener.setSilentMode(true);
 		IJ.redirectErrorMessages(true);
@@ -185,27 +237,30 @@ public class VirtualStack extends ImageStack {
 			int h = imp.getHeight();
 			int type = imp.getType();
 			ColorModel cm = imp.getProcessor().getColorModel();
-			String info = (String)imp.getProperty("Info");
-			if (info!=null) {
-				if (FolderOpener.useInfo(info))
-					labels[n-1] = info;
-			} else {
-				String sliceLabel = imp.getStack().getSliceLabel(1);
-				if (FolderOpener.useInfo(sliceLabel))
-					labels[n-1] = "Label: "+sliceLabel;
-			}
+			String label = getLabel(imp);
+			if (label!=null)
+				labels[n-1] = label;
 			depthThisImage = imp.getBitDepth();
 			ip = imp.getProcessor();
 			ip.setOverlay(imp.getOverlay());
 			properties = imp.getProperty("FHT")!=null?imp.getProperties():null;
-		} else {
-			File f = new File(path, names[n-1]);
-			String msg = f.exists()?"Error opening ":"File not found: ";
-			ip = new ByteProcessor(getWidth(), getHeight());
-			ip.invert();
-			label(ip, msg+names[n-1], Color.black);
-			depthThisImage = 8;
-		}
+		} else
+			return null;
+		return convert(ip, depthThisImage);
+	}
+
+	/** Returns a white slice with a message saying that slice 'n' could not be opened. */
+	private ImageProcessor getErrorSlice(int n) {
+		File f = new File(path, names[n-1]);
+		String msg = f.exists()?"Error opening ":"File not found: ";
+		ImageProcessor ip = new ByteProcessor(getWidth(), getHeight());
+		ip.invert();
+		label(ip, msg+names[n-1], Color.black);
+		return convert(ip, 8);
+	}
+
+	/** Converts a slice that has been read to the bit depth and size of this stack. */
+	private ImageProcessor convert(ImageProcessor ip, int depthThisImage) {
 		if (depthThisImage!=bitDepth) {
 			switch (bitDepth) {
 				case 8: ip=ip.convertToByte(true); break;
@@ -223,6 +278,229 @@ public class VirtualStack extends ImageStack {
 			ip.setCalibrationTable(cTable);
 		return ip;
 	 }
+
+	/** Returns the label of a slice read from 'imp', as stored in 'labels', or null. */
+	private static String getLabel(ImagePlus imp) {
+		String info = (String)imp.getProperty("Info");
+		if (info!=null)
+			return FolderOpener.useInfo(info)?info:null;
+		String sliceLabel = imp.getStack().getSliceLabel(1);
+		return FolderOpener.useInfo(sliceLabel)?"Label: "+sliceLabel:null;
+	}
+
+	/** Reads a slice for the prefetch thread. Unlike openSlice(), this method
+	 * has no side effects: it does not change the error redirection, the slice
+	 * labels or the properties of this stack, and it does not show messages.
+	 * Only uncompressed or compressed TIFF files holding a single grayscale or
+	 * RGB image are read; null is returned for other files and for files that
+	 * cannot be read, which are then opened by getProcessor().
+	*/
+	private CachedSlice readSlice(String name) {
+		try {
+			File f = new File(path, name);
+			if (new Opener().getFileType(f.getPath())!=Opener.TIFF)
+				return null;
+			FileInfo[] info = new TiffDecoder(path, name).getTiffInfo();
+			if (info==null || info.length!=1 || info[0].nImages>1)
+				return null;
+			FileInfo fi = info[0];
+			if (fi.fileType==FileInfo.RGB48 || fi.fileType==FileInfo.RGB48_PLANAR || fi.whiteIsZero)
+				return null;
+			if (!isComplete(fi, f.length()))
+				return null;
+			ImagePlus imp = new FileOpener(fi).open(false); // openImage() toggles Recorder.record
+			if (imp==null || imp.getTitle().startsWith("FFT of"))
+				return null;
+			ImageProcessor ip = imp.getProcessor();
+			ip.setOverlay(imp.getOverlay());
+			return new CachedSlice(convert(ip, imp.getBitDepth()), getLabel(imp), null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/** Returns true if the file contains all the image data of 'fi', with
+	 * the strips stored from top to bottom, so that it can be read without
+	 * error messages. */
+	private static boolean isComplete(FileInfo fi, long length) {
+		if (fi.tileOffsets!=null) {
+			if (fi.tileLengths==null || fi.tileLengths.length<fi.tileOffsets.length)
+				return false;
+			for (int i=0; i<fi.tileOffsets.length; i++) {
+				if (fi.tileOffsets[i]+fi.tileLengths[i]>length)
+					return false;
+			}
+			return true;
+		}
+		int[] offsets = fi.stripOffsets;
+		int[] lengths = fi.stripLengths;
+		if (offsets==null || lengths==null || lengths.length<offsets.length)
+			return fi.getOffset()+(long)fi.width*fi.height*fi.getBytesPerPixel()<=length;
+		for (int i=0; i<offsets.length; i++) {
+			long offset = (long)offsets[i]&0xffffffffL;
+			if (i>0 && offset<((long)offsets[i-1]&0xffffffffL))
+				return false;
+			if (offset+((long)lengths[i]&0xffffffffL)>length)
+				return false;
+		}
+		return true;
+	}
+
+	private synchronized CachedSlice getCachedSlice(String name) {
+		return cache!=null?cache.get(name):null;
+	}
+
+	private synchronized boolean isCached(String name) {
+		return cache!=null && cache.containsKey(name);
+	}
+
+	/** Adds a slice to the cache, evicting the least recently used slices as needed. */
+	private synchronized void putCachedSlice(String name, CachedSlice slice) {
+		if (cacheSize<=0 || slice==null || slice.ip==null)
+			return;
+		if (cache==null)
+			cache = new LinkedHashMap<String,CachedSlice>(16, 0.75f, true);
+		CachedSlice old = cache.put(name, slice);
+		if (old!=null)
+			cachedBytes -= getBytes(old);
+		cachedBytes += getBytes(slice);
+		Iterator<Map.Entry<String,CachedSlice>> iter = cache.entrySet().iterator();
+		while (cachedBytes>cacheSize && iter.hasNext()) {
+			Map.Entry<String,CachedSlice> entry = iter.next();
+			if (entry.getValue()==slice && cache.size()>1)
+				continue;
+			cachedBytes -= getBytes(entry.getValue());
+			iter.remove();
+		}
+	}
+
+	private static long getBytes(CachedSlice slice) {
+		ImageProcessor ip = slice.ip;
+		int bytesPerPixel = ip.getBitDepth()==24?4:ip.getBitDepth()/8;
+		return (long)ip.getPixelCount()*bytesPerPixel;
+	}
+
+	/** Loads, in a background thread, the next 'readAhead' slices
+	 * in the direction the user is moving through the stack.
+	*/
+	private void prefetch(int n) {
+		synchronized(this) {
+			int direction = n>=lastSlice?1:-1;
+			lastSlice = n;
+			if (readAhead<=0)
+				return;
+			// the prefetch thread only uses this copy of the file names
+			String[] list = new String[readAhead];
+			int count = 0;
+			for (int i=1; i<=readAhead; i++) {
+				int n2 = n + direction*i;
+				if (n2<1 || n2>nSlices)
+					break;
+				list[count++] = names[translate(n2)-1];
+			}
+			prefetchNames = list;
+			prefetchGeneration++;
+			if (prefetchThread!=null && prefetchThread.isAlive()) {
+				notifyAll();
+				return;
+			}
+			prefetchThread = new Thread(new Runnable() {
+				public void run() {runPrefetcher();}
+			}, "VirtualStack prefetcher");
+			prefetchThread.setDaemon(true);
+			prefetchThread.setPriority(Thread.MIN_PRIORITY);
+			prefetchThread.start();
+		}
+	}
+
+	private void runPrefetcher() {
+		while (true) {
+			int generation;
+			String[] list;
+			synchronized(this) {
+				generation = prefetchGeneration;
+				list = prefetchNames;
+			}
+			for (int i=0; i<list.length && generation==prefetchGeneration && cacheSize>0; i++) {
+				String name = list[i];
+				if (name==null || isCached(name))
+					continue;
+				putCachedSlice(name, readSlice(name));
+			}
+			synchronized(this) {
+				if (generation==prefetchGeneration) {
+					try {
+						wait(30000L);
+					} catch (InterruptedException e) {}
+					if (generation==prefetchGeneration) {
+						prefetchThread = null;
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/** Sets the maximum amount of memory, in bytes, used to cache
+	 * decoded slices. Slices are discarded in least recently used
+	 * order when the cache is full. The default is 0 (no cache).
+	 * @see #setReadAhead
+	 * @see #getCacheHits
+	*/
+	public synchronized void setCacheSize(long bytes) {
+		cacheSize = bytes;
+		if (cacheSize<=0)
+			clearCache();
+		else if (cache!=null && cachedBytes>cacheSize) {
+			Iterator<CachedSlice> iter = cache.values().iterator();
+			while (cachedBytes>cacheSize && iter.hasNext()) {
+				cachedBytes -= getBytes(iter.next());
+				iter.remove();
+			}
+		}
+	}
+
+	/** Returns the maximum size of the slice cache in bytes. */
+	public long getCacheSize() {
+		return cacheSize;
+	}
+
+	/** Sets the number of slices, following the last requested slice in the
+	 * direction of movement through the stack, that are loaded into the
+	 * cache by a background thread. Has no effect unless the cache is enabled.
+	 * @see #setCacheSize
+	*/
+	public void setReadAhead(int slices) {
+		readAhead = slices<0?0:slices;
+	}
+
+	/** Returns the number of read-ahead slices. */
+	public int getReadAhead() {
+		return readAhead;
+	}
+
+	/** Returns the number of getProcessor() calls that were served from the cache. */
+	public synchronized int getCacheHits() {
+		return cacheHits;
+	}
+
+	/** Returns the number of getProcessor() calls that required reading a file. */
+	public synchronized int getCacheMisses() {
+		return cacheMisses;
+	}
+
+	/** Resets the cache hit and miss counters to zero. */
+	public synchronized void resetCacheStatistics() {
+		cacheHits = cacheMisses = 0;
+	}
+
+	/** Discards all cached slices. */
+	public synchronized void clearCache() {
+		if (cache!=null)
+			cache.clear();
+		cachedBytes = 0L;
+		prefetchGeneration++;
+	}
 	 	 
 	 private void label(ImageProcessor ip, String msg, Color color) {
 		int size = getHeight()/20;
@@ -348,5 +626,18 @@ public class VirtualStack extends ImageStack {
 		}
 	}
 
+	/** A decoded slice in the cache, with the label and properties read with it. */
+	private static class CachedSlice {
+		ImageProcessor ip;
+		String label;
+		Properties properties;
+
+		CachedSlice(ImageProcessor ip, String label, Properties properties) {
+			this.ip = ip;
+			this.label = label;
+			this.properties = properties;
+		}
+	}
+
 } 
 
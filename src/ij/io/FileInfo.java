@@ -90,6 +90,7 @@ public class FileInfo implements Cloneable {
 	public static final int JPEG = 4;
 	public static final int PACK_BITS = 5;
 	public static final int ZIP = 6;
+	public static final int ZIP_WITH_DIFFERENCING = 7;
 	
 	/* File format (TIFF, GIF_OR_JPG, BMP, etc.). Used by the File/Revert command */
 	public int fileFormat;
@@ -110,6 +111,10 @@ public class FileInfo implements Cloneable {
     public int[] stripOffsets;  
     public int[] stripLengths;
     public int rowsPerStrip;
+    // Tiled TIFFs, and BigTIFF strips with offsets beyond 4GB (stored as full-width tiles)
+    public int tileWidth, tileHeight;
+    public long[] tileOffsets;
+    public long[] tileLengths;
 	public int lutSize;
 	public byte[] reds;
 	public byte[] greens;
@@ -36,6 +36,8 @@ public class FileOpener {
 	private static boolean showConflictMessage = true;
 	private double minValue, maxValue;
 	private static boolean silentMode;
+	private boolean memoryMapped;
+	private Rectangle region;
 
 	public FileOpener(FileInfo fi) {
 		this.fi = fi;
@@ -242,11 +244,12 @@ public class FileOpener {
 
 	/** Opens a stack of images. */
 	ImagePlus openStack(ColorModel cm, boolean show) {
-		ImageStack stack = new ImageStack(fi.width, fi.height, cm);
+		ImageStack stack = new ImageStack(width, height, cm);
 		long skip = fi.getOffset();
 		Object pixels;
 		try {
 			ImageReader reader = new ImageReader(fi);
+			reader.setRegion(region);
 			InputStream is = createInputStream(fi);
 			if (is==null)
 				return null;
@@ -525,6 +528,8 @@ public class FileOpener {
 		    if (gzip) fi.compression = FileInfo.COMPRESSION_UNKNOWN;
 		    if (f==null || !f.exists() || f.isDirectory() || !validateFileInfo(f, fi))
 		    	is = null;
+		    else if (!gzip && (fi.tileOffsets!=null || region!=null))
+				return new RandomAccessStream(new RandomAccessFile(f, "r"));  // seeks to tiles or strips
 		    else
 				is = new FileInputStream(f);
 		}
@@ -582,11 +587,17 @@ public class FileOpener {
 	/** Reads the pixel data from an image described by a FileInfo object. */
 	Object readPixels(FileInfo fi) {
 		Object pixels = null;
+		if (memoryMapped && region==null && ImageReader.canMap(fi)) {
+			pixels = readMappedPixels(fi);
+			if (pixels!=null)
+				return pixels;
+		}
 		try {
 			InputStream is = createInputStream(fi);
 			if (is==null)
 				return null;
 			ImageReader reader = new ImageReader(fi);
+			reader.setRegion(region);
 			pixels = reader.readPixels(is);
 			minValue = reader.min;
 			maxValue = reader.max;
@@ -599,6 +610,51 @@ public class FileOpener {
 		return pixels;
 	}
 
+	/** Reads the pixel data of an uncompressed image using a memory-mapped
+		file region. Returns null if the file cannot be mapped. */
+	private Object readMappedPixels(FileInfo fi) {
+		if (fi.directory.length()>0 && !(fi.directory.endsWith(Prefs.separator)||fi.directory.endsWith("/")))
+			fi.directory += Prefs.separator;
+		File f = new File(fi.getFilePath());
+		if (!f.exists() || f.isDirectory() || !validateFileInfo(f, fi))
+			return null;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "r");
+			return new ImageReader(fi).readMappedPixels(raf.getChannel(), 0);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (raf!=null) {
+				try {raf.close();} catch (IOException e) {}
+			}
+		}
+	}
+
+	/** Restricts opening to the specified rectangle. With tiled TIFFs
+		and multi-strip TIFFs, only the tiles or strips that overlap the
+		rectangle are read, so opening a small region of a huge image
+		is fast. Must be called before openImage() or openProcessor().
+	*/
+	public void setRegion(Rectangle region) {
+		if (region!=null) {
+			region = region.intersection(new Rectangle(0, 0, fi.width, fi.height));
+			if (region.isEmpty())
+				region = null;
+		}
+		this.region = region;
+		width = region!=null?region.width:fi.width;
+		height = region!=null?region.height:fi.height;
+	}
+
+	/** Causes uncompressed images stored in local files to be read from
+		memory-mapped file regions rather than through an InputStream,
+		which avoids intermediate buffers. Used by FileInfoVirtualStack.
+	*/
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
 	public Properties decodeDescriptionString(FileInfo fi) {
 		if (fi.description==null || fi.description.length()<7)
 			return null;
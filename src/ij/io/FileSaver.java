@@ -20,6 +20,7 @@ public class FileSaver {
 	public static final int DEFAULT_JPEG_QUALITY = 85;
 	private static int jpegQuality;
 	private static int bsize = 32768; // 32K default buffer size
+	private static int tiffCompression = FileInfo.COMPRESSION_NONE;
 	
     static {setJpegQuality(ij.Prefs.getInt(ij.Prefs.JPEG, DEFAULT_JPEG_QUALITY));}
 
@@ -117,6 +118,7 @@ public class FileSaver {
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
+			file.setCompression(tiffCompression);
 			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path),bsize));
 			file.write(out);
 			out.close();
@@ -209,6 +211,7 @@ public class FileSaver {
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
+			file.setCompression(tiffCompression);
 			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path),bsize));
 			file.write(out);
 			out.close();
@@ -828,6 +831,23 @@ public class FileSaver {
         return jpegQuality;
     }
     
+    /** Sets the compression used by saveAsTiff() and saveAsTiffStack():
+    	FileInfo.COMPRESSION_NONE (the default), FileInfo.LZW, FileInfo.ZIP (Deflate),
+    	FileInfo.LZW_WITH_DIFFERENCING or FileInfo.ZIP_WITH_DIFFERENCING.
+    	The "WITH_DIFFERENCING" modes use horizontal differencing (TIFF predictor 2),
+    	which typically makes 16-bit images 2-4 times smaller. Strips are
+    	compressed in parallel. 32-bit float images are compressed without
+    	differencing, and other types (e.g., RGB48) are saved uncompressed.
+    */
+    public static void setTiffCompression(int compression) {
+    	tiffCompression = compression;
+    }
+
+    /** Returns the compression used by saveAsTiff() and saveAsTiffStack(). */
+    public static int getTiffCompression() {
+    	return tiffCompression;
+    }
+
     /** Sets the BufferedOutputStream buffer size in bytes (default is 32K). */
     public static void setBufferSize(int bufferSize) {
         bsize = bufferSize;
@@ -3,10 +3,16 @@ import ij.*;
 import ij.process.*;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.util.zip.Inflater;
 import java.util.zip.DataFormatException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.util.ThreadUtil;
 
 
 /** Reads raw 8-bit, 16-bit or 32-bit (float or RGB)
@@ -26,6 +32,7 @@ public class ImageReader {
 	private int imageCount;
 	private long startTime;
 	public double min, max; // readRGB48() calculates min/max pixel values
+	private Rectangle region;
 
 	/**
 	Constructs a new ImageReader using a FileInfo object to describe the file to be read.
@@ -38,6 +45,21 @@ public class ImageReader {
 	    skipCount = fi.getOffset();
 	}
 	
+	/** Restricts reading to the specified rectangle. With tiled TIFFs,
+		and TIFFs with multiple strips, only the tiles or strips that
+		overlap the rectangle are read and decompressed. The pixel
+		arrays returned by readPixels() are region.width*region.height
+		in size. Pass null to read the whole image.
+	*/
+	public void setRegion(Rectangle region) {
+		if (region!=null) {
+			region = region.intersection(new Rectangle(0, 0, fi.width, fi.height));
+			if (region.isEmpty() || (region.width==fi.width && region.height==fi.height))
+				region = null;
+		}
+		this.region = region;
+	}
+
 	void eofError() {
 		eofErrorCount++;
 	}
@@ -64,38 +86,7 @@ public class ImageReader {
 	
 	byte[] readCompressed8bitImage(InputStream in) throws IOException {
 		byte[] pixels = new byte[nPixels];
-		int current = 0;
-		byte last = 0;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			int length = byteArray.length;
-			length = length - (length%fi.width);
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=0; b<length; b++) {
-					byteArray[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : byteArray[b];
-				}
-			}
-			if (current+length>pixels.length)
-				length = pixels.length-current;
-			System.arraycopy(byteArray, 0, pixels, current, length);
-			current += length;
-			showProgress(i+1, fi.stripOffsets.length);
-		}
+		readStrips(in, pixels);
 		return pixels;
 	}
 	
@@ -151,45 +142,7 @@ public class ImageReader {
 	short[] readCompressed16bitImage(InputStream in) throws IOException {
 		if (IJ.debugMode) IJ.log("ImageReader.read16bit, offset="+fi.stripOffsets[0]);
 		short[] pixels = new short[nPixels];
-		int base = 0;
-		short last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			//IJ.log("seek: "+k+" "+fi.stripOffsets[k]+" "+fi.stripLengths[k]+"  "+(in instanceof RandomAccessStream));
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			int pixelsRead = byteArray.length/bytesPerPixel;
-			pixelsRead = pixelsRead - (pixelsRead%fi.width);
-			int pmax = base+pixelsRead;
-			if (pmax > nPixels) pmax = nPixels;
-			if (fi.intelByteOrder) {
-				for (int i=base,j=0; i<pmax; i++,j+=2)
-					pixels[i] = (short)(((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
-			} else {
-				for (int i=base,j=0; i<pmax; i++,j+=2)
-					pixels[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
-			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=base; b<pmax; b++) {
-					pixels[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
-				}
-			}
-			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
-		}
+		readStrips(in, pixels);
 		if (fi.fileType==FileInfo.GRAY16_SIGNED) {
 			// convert to unsigned
 			for (int i=0; i<nPixels; i++)
@@ -259,59 +212,7 @@ public class ImageReader {
 	
 	float[] readCompressed32bitImage(InputStream in) throws IOException {
 		float[] pixels = new float[nPixels];
-		int base = 0;
-		float last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			int pixelsRead = byteArray.length/bytesPerPixel;
-			pixelsRead = pixelsRead - (pixelsRead%fi.width);
-			int pmax = base+pixelsRead;
-			if (pmax > nPixels) pmax = nPixels;
-			int tmp;
-			if (fi.intelByteOrder) {
-				for (int i=base,j=0; i<pmax; i++,j+=4) {
-					tmp = (int)(((byteArray[j+3]&0xff)<<24) | ((byteArray[j+2]&0xff)<<16) | ((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-				}
-			} else {
-				for (int i=base,j=0; i<pmax; i++,j+=4) {
-					tmp = (int)(((byteArray[j]&0xff)<<24) | ((byteArray[j+1]&0xff)<<16) | ((byteArray[j+2]&0xff)<<8) | (byteArray[j+3]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-				}
-			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=base; b<pmax; b++) {
-					pixels[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
-				}
-			}
-			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
-		}
+		readStrips(in, pixels);
 		return pixels;
 	}
 
@@ -438,14 +339,32 @@ public class ImageReader {
 
 	int[] readCompressedChunkyRGB(InputStream in) throws IOException {
 		int[] pixels = new int[nPixels];
-		int base = 0;
-		int lastRed=0, lastGreen=0, lastBlue=0;
-		int nextByte;
-		int red=0, green=0, blue=0, alpha = 0;
-		boolean bgr = fi.fileType==FileInfo.BGR;
-		boolean cmyk = fi.fileType==FileInfo.CMYK;
-		boolean differencing = fi.compression == FileInfo.LZW_WITH_DIFFERENCING;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
+		readStrips(in, pixels);
+		return pixels;
+	}
+	
+	/** Reads the strips of an image stored as compressed or multiple strips
+		and decodes them into 'pixels'. The strips are read one after another,
+		then decompressed and converted in parallel, each into its final
+		position in the pixel array. */
+	private void readStrips(InputStream in, Object pixels) throws IOException {
+		byte[][] strips = readStripBytes(in);
+		uncompressStrips(strips);
+		int bytesPerSample = pixels instanceof byte[]?1:bytesPerPixel;
+		int length = java.lang.reflect.Array.getLength(pixels);
+		int[] bases = new int[strips.length+1];
+		for (int i=0; i<strips.length; i++) {
+			int pixelsRead = strips[i].length/bytesPerSample;
+			pixelsRead = pixelsRead - (pixelsRead%fi.width);
+			bases[i+1] = Math.min(bases[i]+pixelsRead, length);
+		}
+		decodeStrips(strips, bases, pixels);
+	}
+
+	/** Reads the (compressed) bytes of each strip. */
+	private byte[][] readStripBytes(InputStream in) throws IOException {
+		byte[][] strips = new byte[fi.stripOffsets.length][];
+		for (int i=0; i<strips.length; i++) {
 			if (in instanceof RandomAccessStream)
 				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
 			else if (i > 0) {
@@ -460,18 +379,114 @@ public class ImageReader {
 				read += r;
 				left -= r;
 			}
-			byteArray = uncompress(byteArray);
-			if (differencing) {
+			strips[i] = byteArray;
+			showProgress(i+1, strips.length);
+		}
+		return strips;
+	}
+
+	/** Decompresses the strips in place, using Prefs.getThreads() threads. */
+	private void uncompressStrips(byte[][] strips) {
+		if (fi.compression>FileInfo.COMPRESSION_NONE)
+			decodeStrips(strips, null, null);
+	}
+
+	/** Decompresses the strips (if 'pixels' is null) or converts the
+		decompressed strips to pixel values, strip 'i' going to pixels
+		bases[i] to bases[i+1]-1. Strips are processed in parallel. */
+	private void decodeStrips(final byte[][] strips, final int[] bases, final Object pixels) {
+		final AtomicInteger nextStrip = new AtomicInteger(0);
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), strips.length));
+		Callable<?>[] callables = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					while (!Thread.currentThread().isInterrupted()) {
+						int i = nextStrip.getAndIncrement();
+						if (i>=strips.length) break;
+						if (pixels==null)
+							strips[i] = uncompress(strips[i]);
+						else {
+							decodeStrip(strips[i], pixels, bases[i], bases[i+1]);
+							strips[i] = null;
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoinInPool(callables);
+	}
+
+	/** Converts the uncompressed bytes of a strip to pixels 'base' to 'pmax'-1,
+		undoing horizontal differencing. Strips always contain whole rows. */
+	private void decodeStrip(byte[] byteArray, Object pixelArray, int base, int pmax) {
+		if (pixelArray instanceof byte[]) {
+			byte[] pixels = (byte[])pixelArray;
+			System.arraycopy(byteArray, 0, pixels, base, pmax-base);
+			if (differencing()) {
+				for (int b=base; b<pmax; b++) {
+					if ((b-base)%fi.width!=0)
+						pixels[b] += pixels[b-1];
+				}
+			}
+		} else if (pixelArray instanceof short[]) {
+			short[] pixels = (short[])pixelArray;
+			if (fi.intelByteOrder) {
+				for (int i=base,j=0; i<pmax; i++,j+=2)
+					pixels[i] = (short)(((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
+			} else {
+				for (int i=base,j=0; i<pmax; i++,j+=2)
+					pixels[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
+			}
+			if (differencing()) {
+				for (int b=base; b<pmax; b++) {
+					if (b%fi.width!=0)
+						pixels[b] += pixels[b-1];
+				}
+			}
+		} else if (pixelArray instanceof float[]) {
+			float[] pixels = (float[])pixelArray;
+			int tmp;
+			if (fi.intelByteOrder) {
+				for (int i=base,j=0; i<pmax; i++,j+=4) {
+					tmp = (int)(((byteArray[j+3]&0xff)<<24) | ((byteArray[j+2]&0xff)<<16) | ((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
+					if (fi.fileType==FileInfo.GRAY32_FLOAT)
+						pixels[i] = Float.intBitsToFloat(tmp);
+					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+						pixels[i] = (float)(tmp&0xffffffffL);
+					else
+						pixels[i] = tmp;
+				}
+			} else {
+				for (int i=base,j=0; i<pmax; i++,j+=4) {
+					tmp = (int)(((byteArray[j]&0xff)<<24) | ((byteArray[j+1]&0xff)<<16) | ((byteArray[j+2]&0xff)<<8) | (byteArray[j+3]&0xff));
+					if (fi.fileType==FileInfo.GRAY32_FLOAT)
+						pixels[i] = Float.intBitsToFloat(tmp);
+					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+						pixels[i] = (float)(tmp&0xffffffffL);
+					else
+						pixels[i] = tmp;
+				}
+			}
+			if (differencing()) {
+				for (int b=base; b<pmax; b++) {
+					if (b%fi.width!=0)
+						pixels[b] += pixels[b-1];
+				}
+			}
+		} else {
+			int[] pixels = (int[])pixelArray;
+			boolean bgr = fi.fileType==FileInfo.BGR;
+			boolean cmyk = fi.fileType==FileInfo.CMYK;
+			int red, green, blue, alpha;
+			if (differencing()) {
 				for (int b=0; b<byteArray.length; b++) {
 					if (b / bytesPerPixel % fi.width == 0) continue;
 					byteArray[b] += byteArray[b - bytesPerPixel];
 				}
 			}
 			int k = 0;
-			int pixelsRead = byteArray.length/bytesPerPixel;
-			pixelsRead = pixelsRead - (pixelsRead%fi.width);
-			int pmax = base+pixelsRead;
-			if (pmax > nPixels) pmax = nPixels;
 			for (int j=base; j<pmax; j++) {
 				if (bytesPerPixel==4) {
 					red = byteArray[k++]&0xff;
@@ -493,12 +508,9 @@ public class ImageReader {
 				else
 					pixels[j] = 0xff000000 | (red<<16) | (green<<8) | blue;
 			}
-			base += pixelsRead;
-			showProgress(i+1, fi.stripOffsets.length);
 		}
-		return pixels;
 	}
-	
+
 	int[] readJPEG(InputStream in) throws IOException {
 		BufferedImage bi = ImageIO.read(in);
 		ImageProcessor ip =  new ColorProcessor(bi);
@@ -619,23 +631,17 @@ public class ImageReader {
 	}
 
 	Object readCompressedRGB48(InputStream in) throws IOException {
-		if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
-			throw new IOException("ImageJ cannot open 48-bit LZW compressed TIFFs with predictor");
+		if (differencing())
+			throw new IOException("ImageJ cannot open 48-bit compressed TIFFs with predictor");
 		int channels = 3;
 		short[][] stack = new short[channels][nPixels];
-		DataInputStream dis = new DataInputStream(in);
 		int pixel = 0;
 		int min=65535, max=0;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip>0L) dis.skip(skip);
-			}
-			int len = fi.stripLengths[i];
-			byte[] buffer = new byte[len];
-			dis.readFully(buffer);
-			buffer = uncompress(buffer);
-			len = buffer.length;
+		byte[][] strips = readStripBytes(in);
+		uncompressStrips(strips);
+		for (int i=0; i<strips.length; i++) {
+			byte[] buffer = strips[i];
+			int len = buffer.length;
 			if (len % 2 != 0) len--;
 			int value;
 			int channel=0;
@@ -770,6 +776,19 @@ public class ImageReader {
 	public Object readPixels(InputStream in) {
 		Object pixels;
 		startTime = System.currentTimeMillis();
+		if (fi.tileOffsets!=null || (region!=null && canReadStripsAsTiles())) {
+			try {
+				if (!(in instanceof RandomAccessStream))
+					in = new RandomAccessStream(in);
+				pixels = readTiledImage((RandomAccessStream)in, region!=null?region:new Rectangle(0,0,width,height));
+				showProgress(1, 1);
+				imageCount++;
+				return pixels;
+			} catch (IOException e) {
+				IJ.log("" + e);
+				return null;
+			}
+		}
 		try {
 			switch (fi.fileType) {
 				case FileInfo.GRAY8:
@@ -842,6 +861,8 @@ public class ImageReader {
 			}
 			showProgress(1, 1);
 			imageCount++;
+			if (region!=null)
+				pixels = crop(pixels);
 			return pixels;
 		}
 		catch (IOException e) {
@@ -850,6 +871,301 @@ public class ImageReader {
 		}
 	}
 	
+	/** Returns true if an image stored in multiple strips can be read 
+		using readTiledImage(), by treating the strips as full-width tiles. */
+	private boolean canReadStripsAsTiles() {
+		if (fi.stripOffsets==null || fi.stripOffsets.length<2 || fi.stripLengths==null || fi.nImages>1)
+			return false;
+		if (fi.stripLengths.length!=fi.stripOffsets.length || fi.rowsPerStrip<=0)
+			return false;
+		if (fi.stripOffsets.length!=(fi.height+fi.rowsPerStrip-1)/fi.rowsPerStrip)
+			return false;
+		if (fi.compression==FileInfo.JPEG || fi.compression==FileInfo.COMPRESSION_UNKNOWN)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB: case FileInfo.ARGB: case FileInfo.CMYK:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** Reads the part of a tiled image given by 'r'. Only the tiles
+		that overlap 'r' are read and decompressed. Images stored as
+		multiple strips are read as tiles that are 'rowsPerStrip' high.
+	*/
+	Object readTiledImage(RandomAccessStream in, Rectangle r) throws IOException {
+		int tileWidth=fi.tileWidth, tileHeight=fi.tileHeight;
+		long[] offsets=fi.tileOffsets, lengths=fi.tileLengths;
+		if (offsets==null) {
+			tileWidth = fi.width;
+			tileHeight = fi.rowsPerStrip;
+			offsets = new long[fi.stripOffsets.length];
+			lengths = new long[fi.stripOffsets.length];
+			for (int i=0; i<offsets.length; i++) {
+				offsets[i] = fi.stripOffsets[i]&0xffffffffL;
+				lengths[i] = fi.stripLengths[i];
+			}
+		}
+		bytesPerPixel = fi.getBytesPerPixel();
+		int tileBytes = tileWidth*tileHeight*bytesPerPixel;
+		byteCount = tileBytes;  // limits LZW decoding to one tile
+		int tilesAcross = (fi.width+tileWidth-1)/tileWidth;
+		int size = r.width*r.height;
+		Object pixels, tilePixels;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+				pixels = new byte[size]; tilePixels = new byte[tileWidth*tileHeight]; break;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+				pixels = new short[size]; tilePixels = new short[tileWidth*tileHeight]; break;
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+				pixels = new float[size]; tilePixels = new float[tileWidth*tileHeight]; break;
+			default:
+				pixels = new int[size]; tilePixels = new int[tileWidth*tileHeight]; break;
+		}
+		int tx1=r.x/tileWidth, tx2=(r.x+r.width-1)/tileWidth;
+		int ty1=r.y/tileHeight, ty2=(r.y+r.height-1)/tileHeight;
+		int nTiles = (tx2-tx1+1)*(ty2-ty1+1);
+		int count = 0;
+		for (int ty=ty1; ty<=ty2; ty++) {
+			for (int tx=tx1; tx<=tx2; tx++) {
+				int index = ty*tilesAcross + tx;
+				if (index>=offsets.length)
+					continue;
+				int length = lengths!=null&&index<lengths.length?(int)lengths[index]:tileBytes;
+				byte[] bytes = new byte[length];
+				in.seek(offsets[index]);
+				int read = 0;
+				while (read<length) {
+					int n = in.read(bytes, read, length-read);
+					if (n==-1) {eofError(); break;}
+					read += n;
+				}
+				if (fi.compression==FileInfo.PACK_BITS)
+					bytes = packBitsUncompress(bytes, tileBytes);
+				else
+					bytes = uncompress(bytes);
+				if (bytes.length<tileBytes) {
+					byte[] bytes2 = new byte[tileBytes];
+					System.arraycopy(bytes, 0, bytes2, 0, bytes.length);
+					bytes = bytes2;
+				}
+				decodeTile(bytes, tilePixels, tileWidth, tileHeight);
+				int xstart = Math.max(r.x, tx*tileWidth);
+				int xend = Math.min(r.x+r.width, (tx+1)*tileWidth);
+				int ystart = Math.max(r.y, ty*tileHeight);
+				int yend = Math.min(r.y+r.height, (ty+1)*tileHeight);
+				for (int y=ystart; y<yend; y++)
+					System.arraycopy(tilePixels, (y-ty*tileHeight)*tileWidth+xstart-tx*tileWidth, pixels, (y-r.y)*r.width+xstart-r.x, xend-xstart);
+				showProgress(++count, nTiles);
+			}
+		}
+		return pixels;
+	}
+
+	/** Converts the uncompressed bytes of a tile to pixel values, undoing horizontal differencing. */
+	private void decodeTile(byte[] bytes, Object tilePixels, int tileWidth, int tileHeight) {
+		boolean differencing = differencing();
+		boolean intel = fi.intelByteOrder;
+		int n = tileWidth*tileHeight;
+		if (tilePixels instanceof byte[]) {
+			byte[] pixels = (byte[])tilePixels;
+			System.arraycopy(bytes, 0, pixels, 0, n);
+			if (differencing) {
+				for (int i=0; i<n; i++) {
+					if (i%tileWidth!=0)
+						pixels[i] += pixels[i-1];
+				}
+			}
+		} else if (tilePixels instanceof short[]) {
+			short[] pixels = (short[])tilePixels;
+			for (int i=0,j=0; i<n; i++,j+=2) {
+				if (intel)
+					pixels[i] = (short)(((bytes[j+1]&0xff)<<8) | (bytes[j]&0xff));
+				else
+					pixels[i] = (short)(((bytes[j]&0xff)<<8) | (bytes[j+1]&0xff));
+				if (differencing && i%tileWidth!=0)
+					pixels[i] += pixels[i-1];
+			}
+			if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+				for (int i=0; i<n; i++)
+					pixels[i] = (short)(pixels[i]+32768);
+			}
+		} else if (tilePixels instanceof float[]) {
+			float[] pixels = (float[])tilePixels;
+			int tmp, last=0;
+			for (int i=0,j=0; i<n; i++,j+=4) {
+				if (intel)
+					tmp = ((bytes[j+3]&0xff)<<24) | ((bytes[j+2]&0xff)<<16) | ((bytes[j+1]&0xff)<<8) | (bytes[j]&0xff);
+				else
+					tmp = ((bytes[j]&0xff)<<24) | ((bytes[j+1]&0xff)<<16) | ((bytes[j+2]&0xff)<<8) | (bytes[j+3]&0xff);
+				if (differencing) {
+					if (i%tileWidth!=0)
+						tmp += last;
+					last = tmp;
+				}
+				if (fi.fileType==FileInfo.GRAY32_FLOAT)
+					pixels[i] = Float.intBitsToFloat(tmp);
+				else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+					pixels[i] = (float)(tmp&0xffffffffL);
+				else
+					pixels[i] = tmp;
+			}
+		} else {
+			int[] pixels = (int[])tilePixels;
+			int bpp = bytesPerPixel;
+			if (differencing) {
+				int rowBytes = tileWidth*bpp;
+				for (int b=0; b<n*bpp; b++) {
+					if (b%rowBytes>=bpp)
+						bytes[b] += bytes[b-bpp];
+				}
+			}
+			boolean cmyk = fi.fileType==FileInfo.CMYK;
+			int red, green, blue, alpha;
+			for (int i=0,k=0; i<n; i++) {
+				red = bytes[k++]&0xff;
+				green = bytes[k++]&0xff;
+				blue = bytes[k++]&0xff;
+				if (bpp==4) {
+					alpha = bytes[k++]&0xff;
+					if (cmyk && alpha>0) {
+						red = ((red*(256-alpha))>>8) + alpha;
+						green = ((green*(256-alpha))>>8) + alpha;
+						blue = ((blue*(256-alpha))>>8) + alpha;
+					}
+				}
+				pixels[i] = 0xff000000 | (red<<16) | (green<<8) | blue;
+			}
+		}
+	}
+
+	/** Crops a pixel array, or an array of pixel arrays, to 'region'. */
+	private Object crop(Object pixels) {
+		if (pixels==null || region==null)
+			return pixels;
+		if (pixels instanceof Object[]) {
+			Object[] channels = (Object[])pixels;
+			Object[] channels2 = new Object[channels.length];
+			for (int i=0; i<channels.length; i++)
+				channels2[i] = crop(channels[i]);
+			return channels2;
+		}
+		Object pixels2 = java.lang.reflect.Array.newInstance(pixels.getClass().getComponentType(), region.width*region.height);
+		for (int y=0; y<region.height; y++)
+			System.arraycopy(pixels, (region.y+y)*width+region.x, pixels2, y*region.width, region.width);
+		return pixels2;
+	}
+
+	/** Returns true if the image described by 'fi' is an uncompressed 8-bit,
+		16-bit, 32-bit or RGB image stored contiguously in a local file, so that
+		it can be read using readMappedPixels().
+	*/
+	public static boolean canMap(FileInfo fi) {
+		if (fi==null || fi.compression!=FileInfo.COMPRESSION_NONE || fi.inputStream!=null || fi.tileOffsets!=null)
+			return false;
+		if ((fi.url!=null && !fi.url.equals("")) || fi.directory==null || fi.fileName==null)
+			return false;
+		if (fi.fileName.endsWith(".gz") || fi.fileName.endsWith(".GZ"))
+			return false;
+		if (fi.stripOffsets!=null && fi.stripOffsets.length>1) {
+			if (fi.stripLengths==null || fi.stripLengths.length!=fi.stripOffsets.length)
+				return false;
+			for (int i=1; i<fi.stripOffsets.length; i++) {
+				if ((fi.stripOffsets[i]&0xffffffffL)!=(fi.stripOffsets[i-1]&0xffffffffL)+fi.stripLengths[i-1])
+					return false;
+			}
+		}
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB: case FileInfo.BGR:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** 
+	Reads image number 'n' (0-based) of an uncompressed image or raw stack
+	directly from a memory-mapped region of the file, without intermediate
+	byte buffers. The image starts at fi.getOffset()+n*(imageSize+fi.getGap()).
+	Returns the pixel array (byte, short, int or float), or null if the image
+	cannot be mapped (see canMap()) or the file is too short.
+	Does not close the FileChannel.
+	*/
+	public Object readMappedPixels(FileChannel channel, int n) throws IOException {
+		if (!canMap(fi))
+			return null;
+		bytesPerPixel = fi.getBytesPerPixel();
+		nPixels = width*height;
+		byteCount = ((long)width)*height*bytesPerPixel;
+		long offset = fi.getOffset() + n*(byteCount+fi.getGap());
+		if (byteCount>Integer.MAX_VALUE || offset<0L || offset+byteCount>channel.size())
+			return null;
+		MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, offset, byteCount);
+		ByteBuffer buffer = mbb.order(fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+		Object pixels = null;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8:
+			case FileInfo.COLOR8:
+				byte[] bytes = new byte[nPixels];
+				buffer.get(bytes);
+				pixels = bytes;
+				break;
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED:
+				short[] shorts = new short[nPixels];
+				buffer.asShortBuffer().get(shorts);
+				if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+					for (int i=0; i<nPixels; i++)
+						shorts[i] = (short)(shorts[i]+32768);
+				}
+				pixels = shorts;
+				break;
+			case FileInfo.GRAY32_FLOAT:
+				float[] floats = new float[nPixels];
+				buffer.asFloatBuffer().get(floats);
+				pixels = floats;
+				break;
+			case FileInfo.GRAY32_INT:
+			case FileInfo.GRAY32_UNSIGNED:
+				float[] values = new float[nPixels];
+				IntBuffer ints = buffer.asIntBuffer();
+				if (fi.fileType==FileInfo.GRAY32_UNSIGNED) {
+					for (int i=0; i<nPixels; i++)
+						values[i] = (float)(ints.get(i)&0xffffffffL);
+				} else {
+					for (int i=0; i<nPixels; i++)
+						values[i] = ints.get(i);
+				}
+				pixels = values;
+				break;
+			case FileInfo.RGB:
+			case FileInfo.BGR:
+				int[] rgb = new int[nPixels];
+				boolean bgr = fi.fileType==FileInfo.BGR;
+				int r, g, b;
+				for (int i=0, j=0; i<nPixels; i++) {
+					r = buffer.get(j++)&0xff;
+					g = buffer.get(j++)&0xff;
+					b = buffer.get(j++)&0xff;
+					if (bgr)
+						rgb[i] = 0xff000000 | (b<<16) | (g<<8) | r;
+					else
+						rgb[i] = 0xff000000 | (r<<16) | (g<<8) | b;
+				}
+				pixels = rgb;
+				break;
+		}
+		imageCount++;
+		return pixels;
+	}
+
 	/** 
 	Skips the specified number of bytes, then reads an image and 
 	returns the pixel array (byte, short, int or float). Returns
@@ -879,12 +1195,17 @@ public class ImageReader {
 		return readPixels(is);
 	}
 	
+	/** Returns true if the image was compressed with horizontal differencing (TIFF predictor 2). */
+	private boolean differencing() {
+		return fi.compression==FileInfo.LZW_WITH_DIFFERENCING || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
+	}
+
 	private byte[] uncompress(byte[] input) {
 		if (fi.compression==FileInfo.PACK_BITS)
 			return packBitsUncompress(input, fi.rowsPerStrip*fi.width*fi.getBytesPerPixel());
 		else if (fi.compression==FileInfo.LZW || fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
 			return lzwUncompress(input);
-		else if (fi.compression==FileInfo.ZIP)
+		else if (fi.compression==FileInfo.ZIP || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING)
 			return zipUncompress(input);
 		else
 			return input;
@@ -1,7 +1,11 @@
 package ij.io;
 import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 import ij.*;  //??
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
 
 /** Writes a raw image described by a FileInfo object to an OutputStream. */
 public class ImageWriter {
@@ -319,5 +323,195 @@ public class ImageWriter {
 		savingStack = false;
 	}
 	
+
+	/** Converts an 8-bit, 16-bit, float or RGB pixel array to TIFF strips of 'rowsPerStrip'
+		rows, in the byte order given by fi.intelByteOrder, and compresses them using
+		LZW or Deflate (fi.compression is LZW, LZW_WITH_DIFFERENCING, ZIP or
+		ZIP_WITH_DIFFERENCING). With the "WITH_DIFFERENCING" modes, 8-bit, 16-bit and RGB
+		samples are stored as horizontal differences (TIFF predictor 2).
+		The strips are compressed in parallel using Prefs.getThreads() threads.
+	*/
+	byte[][] compressStrips(final Object pixels, final int rowsPerStrip) {
+		int nStrips = (fi.height+rowsPerStrip-1)/rowsPerStrip;
+		final byte[][] strips = new byte[nStrips][];
+		final AtomicInteger nextStrip = new AtomicInteger(0);
+		int nThreads = Math.min(Prefs.getThreads(), nStrips);
+		Callable<?>[] callables = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					while (!Thread.currentThread().isInterrupted()) {
+						int strip = nextStrip.getAndIncrement();
+						if (strip>=strips.length) break;
+						int y1 = strip*rowsPerStrip;
+						int y2 = Math.min(y1+rowsPerStrip, fi.height);
+						byte[] bytes = getStripBytes(pixels, y1, y2);
+						if (fi.compression==FileInfo.ZIP || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING)
+							strips[strip] = zipCompress(bytes);
+						else
+							strips[strip] = lzwCompress(bytes);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoinInPool(callables);
+		return strips;
+	}
+
+	/** Returns rows y1 to y2-1 of an image as uncompressed TIFF bytes. */
+	private byte[] getStripBytes(Object pixels, int y1, int y2) {
+		int width = fi.width;
+		boolean differencing = fi.compression==FileInfo.LZW_WITH_DIFFERENCING
+			|| fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
+		boolean intel = fi.intelByteOrder;
+		int bytesPerPixel = fi.getBytesPerPixel();
+		byte[] bytes = new byte[(y2-y1)*width*bytesPerPixel];
+		int j = 0;
+		for (int y=y1; y<y2; y++) {
+			int offset = y*width;
+			if (pixels instanceof byte[]) {
+				byte[] bpixels = (byte[])pixels;
+				byte last = 0;
+				for (int x=0; x<width; x++) {
+					byte value = bpixels[offset+x];
+					bytes[j++] = differencing?(byte)(value-last):value;
+					last = value;
+				}
+			} else if (pixels instanceof short[]) {
+				short[] spixels = (short[])pixels;
+				int last = 0;
+				for (int x=0; x<width; x++) {
+					int value = spixels[offset+x];
+					int v = differencing?value-last:value;
+					last = value;
+					if (intel) {
+						bytes[j++] = (byte)v;
+						bytes[j++] = (byte)(v>>>8);
+					} else {
+						bytes[j++] = (byte)(v>>>8);
+						bytes[j++] = (byte)v;
+					}
+				}
+			} else if (pixels instanceof float[]) {
+				float[] fpixels = (float[])pixels;
+				for (int x=0; x<width; x++) {
+					int v = Float.floatToRawIntBits(fpixels[offset+x]);
+					if (intel) {
+						bytes[j++] = (byte)v;
+						bytes[j++] = (byte)(v>>>8);
+						bytes[j++] = (byte)(v>>>16);
+						bytes[j++] = (byte)(v>>>24);
+					} else {
+						bytes[j++] = (byte)(v>>>24);
+						bytes[j++] = (byte)(v>>>16);
+						bytes[j++] = (byte)(v>>>8);
+						bytes[j++] = (byte)v;
+					}
+				}
+			} else {
+				int[] ipixels = (int[])pixels;
+				int lastR=0, lastG=0, lastB=0;
+				for (int x=0; x<width; x++) {
+					int c = ipixels[offset+x];
+					int r=(c&0xff0000)>>16, g=(c&0xff00)>>8, b=c&0xff;
+					if (differencing) {
+						bytes[j++] = (byte)(r-lastR);
+						bytes[j++] = (byte)(g-lastG);
+						bytes[j++] = (byte)(b-lastB);
+						lastR=r; lastG=g; lastB=b;
+					} else {
+						bytes[j++] = (byte)r;
+						bytes[j++] = (byte)g;
+						bytes[j++] = (byte)b;
+					}
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/** Compresses a TIFF strip using Deflate (Adobe ZIP). */
+	public byte[] zipCompress(byte[] input) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		deflater.setInput(input);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length/2+64);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			out.write(buffer, 0, n);
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	/** Compresses a TIFF strip using LZW, with 9 to 12 bit codes and
+		the "early change" used by TIFF. This is the inverse of 
+		ImageReader.lzwUncompress().
+	*/
+	public byte[] lzwCompress(byte[] input) {
+		final int CLEAR_CODE=256, EOI_CODE=257, HASH_SIZE=8192;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length/2+64);
+		int[] hashKeys = new int[HASH_SIZE];  // (prefix<<8|byte)+1, 0 if empty
+		int[] hashCodes = new int[HASH_SIZE];
+		int codeSize = 9;
+		int nextCode = 258;
+		int[] pending = {0, 0};  // bit buffer, number of bits
+		int prefix = -1;
+		putCode(out, pending, CLEAR_CODE, codeSize);
+		for (int i=0; i<input.length; i++) {
+			int c = input[i]&0xff;
+			if (prefix==-1) {
+				prefix = c;
+				continue;
+			}
+			int key = ((prefix<<8)|c) + 1;
+			int h = (key*0x9E3779B1>>>19)&(HASH_SIZE-1);
+			while (hashKeys[h]!=0 && hashKeys[h]!=key)
+				h = (h+1)&(HASH_SIZE-1);
+			if (hashKeys[h]==key) {
+				prefix = hashCodes[h];
+				continue;
+			}
+			putCode(out, pending, prefix, codeSize);
+			hashKeys[h] = key;
+			hashCodes[h] = nextCode++;
+			if (nextCode==4094) {
+				putCode(out, pending, CLEAR_CODE, codeSize);
+				java.util.Arrays.fill(hashKeys, 0);
+				nextCode = 258;
+				codeSize = 9;
+			} else if (nextCode>(1<<codeSize)-1)
+				codeSize++;
+			prefix = c;
+		}
+		if (prefix!=-1) {
+			putCode(out, pending, prefix, codeSize);
+			nextCode++;
+			if (nextCode==4094) {
+				putCode(out, pending, CLEAR_CODE, codeSize);
+				codeSize = 9;
+			} else if (nextCode>(1<<codeSize)-1)
+				codeSize++;
+		}
+		putCode(out, pending, EOI_CODE, codeSize);
+		if (pending[1]>0)
+			out.write((pending[0]<<(8-pending[1]))&0xff);
+		return out.toByteArray();
+	}
+
+	/** Appends a code, most significant bit first. */
+	private static void putCode(ByteArrayOutputStream out, int[] pending, int code, int codeSize) {
+		int buffer = (pending[0]<<codeSize) | code;
+		int bits = pending[1] + codeSize;
+		while (bits>=8) {
+			bits -= 8;
+			out.write((buffer>>>bits)&0xff);
+		}
+		pending[0] = buffer&((1<<bits)-1);
+		pending[1] = bits;
+	}
+
 }
 
@@ -824,6 +824,8 @@ public class Opener {
 					}
 					fi.stripOffsets = info[i].stripOffsets;
 					fi.stripLengths = info[i].stripLengths;
+					fi.tileOffsets = info[i].tileOffsets;
+					fi.tileLengths = info[i].tileLengths;
 					int bpp = info[i].getBytesPerPixel();
 					if (info[i].samplesPerPixel>1 && !(bpp==3||bpp==4||bpp==6)) {
 						nChannels = fi.samplesPerPixel;
@@ -838,7 +840,7 @@ public class Opener {
 					loc += imageSize*nChannels+skip;
 					if (i<(info.length-1)) {
 						skip = info[i+1].getOffset()-loc;
-						if (info[i+1].compression>=FileInfo.LZW) skip = 0;
+						if (info[i+1].compression>=FileInfo.LZW || info[i+1].tileOffsets!=null) skip = 0;
 						if (skip<0L) {
 							IJ.error("Opener", "Unexpected image offset");
 							break;
@@ -880,6 +882,10 @@ public class Opener {
 			}
 			//if (fi.whiteIsZero)
 			//	new StackProcessor(stack, stack.getProcessor(1)).invert();
+			if (fi.sliceLabels!=null && fi.sliceLabels.length<=stack.size()) {
+				for (int i=0; i<fi.sliceLabels.length; i++)
+					stack.setSliceLabel(fi.sliceLabels[i], i+1);
+			}
 			ImagePlus imp = new ImagePlus(fi.fileName, stack);
 			new FileOpener(fi).setCalibration(imp);
 			imp.setFileInfo(fi);
@@ -919,6 +925,15 @@ public class Opener {
 	
 	/** Opens the nth image of the specified TIFF stack. */
 	public ImagePlus openTiff(String path, int n) {
+		return openTiff(path, n, null);
+	}
+
+	/** Opens the specified rectangular region of the nth image of a TIFF
+		file. With tiled TIFFs (including BigTIFFs), only the tiles that
+		overlap the region are read. The whole image is opened if 'region'
+		is null.
+	*/
+	public ImagePlus openTiff(String path, int n, Rectangle region) {
 		TiffDecoder td = new TiffDecoder(getDir(path), getName(path));
 		if (IJ.debugMode) td.enableDebugging();
 		FileInfo[] info=null;
@@ -946,8 +961,11 @@ public class Opener {
 			fi.offset = 0;
 			fi.stripOffsets = info[n-1].stripOffsets; 
 			fi.stripLengths = info[n-1].stripLengths; 
+			fi.tileOffsets = info[n-1].tileOffsets; 
+			fi.tileLengths = info[n-1].tileLengths; 
 		}
 		FileOpener fo = new FileOpener(fi);
+		fo.setRegion(region);
 		return fo.openImage();
 	}
 
@@ -1302,6 +1320,10 @@ public class Opener {
 		if (b0==77 && b1==77 && b2==0 && b3==42)
 			return TIFF;
 
+		 // BigTIFF
+		if ((b0==73 && b1==73 && b2==43 && b3==0) || (b0==77 && b1==77 && b2==0 && b3==43))
+			return TIFF;
+
 		 // JPEG
 		if (b0==255 && b1==216 && b2==255)
 			return JPEG;
@@ -1354,8 +1376,8 @@ public class Opener {
 		if ((b0=='o' && b1=='j' && b2=='j' && b3==0) || name.endsWith(".ojj") )
 			return OJJ;
 
-		// Results table (tab-delimited or comma-separated tabular text)
-		if (name.endsWith(".xls") || name.endsWith(".csv") || name.endsWith(".tsv")) 
+		// Results table (tab-delimited or comma-separated tabular text, or binary)
+		if (name.endsWith(".xls") || name.endsWith(".csv") || name.endsWith(".tsv") || name.endsWith(".ijt"))
 			return TABLE;
 
 		// AVI
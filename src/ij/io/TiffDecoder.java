@@ -35,6 +35,9 @@ public class TiffDecoder {
 	public static final int PREDICTOR = 317;
 	public static final int COLOR_MAP = 320;
 	public static final int TILE_WIDTH = 322;
+	public static final int TILE_LENGTH = 323;
+	public static final int TILE_OFFSETS = 324;
+	public static final int TILE_BYTE_COUNTS = 325;
 	public static final int SAMPLE_FORMAT = 339;
 	public static final int JPEG_TABLES = 347;
 	public static final int METAMORPH1 = 33628;
@@ -52,6 +55,7 @@ public class TiffDecoder {
 	//field types
 	static final int SHORT = 3;
 	static final int LONG = 4;
+	static final int LONG8 = 16;  // BigTIFF
 
 	// metadata types
 	static final int MAGIC_NUMBER = 0x494a494a;  // "IJIJ"
@@ -75,6 +79,7 @@ public class TiffDecoder {
 	private int[] metaDataCounts;
 	private String tiffMetadata;
 	private int photoInterp;
+	private boolean bigTiff;
 		
 	public TiffDecoder(String directory, String name) {
 		if (directory==null)
@@ -140,7 +145,17 @@ public class TiffDecoder {
 			in.close();
 			return -1;
 		}
-		int magicNumber = getShort(); // 42
+		int magicNumber = getShort(); // 42, or 43 for BigTIFF
+		if (magicNumber==43) {
+			bigTiff = true;
+			int offsetSize = getShort();
+			getShort();
+			if (offsetSize!=8) {
+				in.close();
+				return -1;
+			}
+			return readLong();
+		}
 		long offset = ((long)getInt())&0xffffffffL;
 		return offset;
 	}
@@ -155,6 +170,42 @@ public class TiffDecoder {
 			value = getInt();
 		return value;
 	}	
+
+	/** Reads the 8-byte value field of a BigTIFF IFD entry. For single SHORT
+		or LONG values, returns the value, otherwise the contents of the field as
+		a LONG8, i.e., the offset of the values if they do not fit into the field.
+		Use getArray() for tags that may have more than one value. */
+	long getBigTiffValue(int fieldType, int count) throws IOException {
+		long loc = in.getLongFilePointer();
+		long value;
+		if (fieldType==SHORT && count==1)
+			value = getShort();
+		else if (fieldType==LONG && count==1)
+			value = getUnsignedInt();
+		else
+			value = readLong();
+		in.seek(loc+8);
+		return value;
+	}
+
+	/** Reads 'count' SHORT, LONG or LONG8 values, which are stored in the IFD entry 
+		at 'valueLoc' if they fit, otherwise at 'offset'. */
+	long[] getArray(int fieldType, int count, long valueLoc, long offset) throws IOException {
+		int size = fieldType==SHORT?2:(fieldType==LONG8?8:4);
+		long saveLoc = in.getLongFilePointer();
+		in.seek((long)count*size<=(bigTiff?8:4)?valueLoc:offset);
+		long[] values = new long[count];
+		for (int i=0; i<count; i++) {
+			if (size==2)
+				values[i] = getShort();
+			else if (size==8)
+				values[i] = readLong();
+			else
+				values[i] = getUnsignedInt();
+		}
+		in.seek(saveLoc);
+		return values;
+	}
 	
 	void getColorMap(long offset, FileInfo fi) throws IOException {
 		byte[] colorTable16 = new byte[768*2];
@@ -339,6 +390,10 @@ public class TiffDecoder {
 			case COMPRESSION: name="Compression"; break; 
 			case PREDICTOR: name="Predictor"; break; 
 			case COLOR_MAP: name="ColorMap"; break; 
+			case TILE_WIDTH: name="TileWidth"; break; 
+			case TILE_LENGTH: name="TileLength"; break; 
+			case TILE_OFFSETS: name="TileOffsets"; break; 
+			case TILE_BYTE_COUNTS: name="TileByteCounts"; break; 
 			case SAMPLE_FORMAT: name="SampleFormat"; break; 
 			case JPEG_TABLES: name="JPEGTables"; break; 
 			case NIH_IMAGE_HDR: name="NIHImageHeader"; break; 
@@ -364,9 +419,10 @@ public class TiffDecoder {
 	FileInfo OpenIFD() throws IOException {
 	// Get Image File Directory data
 		int tag, fieldType, count, value;
-		int nEntries = getShort();
+		long nEntries = bigTiff?readLong():getShort();
 		if (nEntries<1 || nEntries>1000)
 			return null;
+		long[] offsets64=null, lengths64=null;
 		ifdCount++;
 		if ((ifdCount%50)==0 && ifdCount>0)
 			ij.IJ.showStatus("Opening IFDs: "+ifdCount);
@@ -375,9 +431,16 @@ public class TiffDecoder {
 		for (int i=0; i<nEntries; i++) {
 			tag = getShort();
 			fieldType = getShort();
-			count = getInt();
-			value = getValue(fieldType, count);
-			long lvalue = ((long)value)&0xffffffffL;
+			count = bigTiff?(int)readLong():getInt();
+			long valueLoc = in.getLongFilePointer();
+			long lvalue;
+			if (bigTiff) {
+				lvalue = getBigTiffValue(fieldType, count);
+				value = (int)lvalue;
+			} else {
+				value = getValue(fieldType, count);
+				lvalue = ((long)value)&0xffffffffL;
+			}
 			if (debugMode && ifdCount<10) dumpTag(tag, count, value, fi);
 			switch (tag) {
 				case IMAGE_WIDTH: 
@@ -388,6 +451,10 @@ public class TiffDecoder {
 					fi.height = value;
 					break;
  				case STRIP_OFFSETS:
+					if (bigTiff) {
+						offsets64 = getArray(fieldType, count, valueLoc, lvalue);
+						break;
+					}
 					if (count==1)
 						fi.stripOffsets = new int[] {value};
 					else {
@@ -403,6 +470,10 @@ public class TiffDecoder {
 						fi.offset = fi.stripOffsets[count-1];
 					break;
 				case STRIP_BYTE_COUNT:
+					if (bigTiff) {
+						lengths64 = getArray(fieldType, count, valueLoc, lvalue);
+						break;
+					}
 					if (count==1)
 						fi.stripLengths = new int[] {value};
 					else {
@@ -437,16 +508,13 @@ public class TiffDecoder {
 							else
 								error("Unsupported BitsPerSample: " + value);
 						} else if (count>1) {
-							long saveLoc = in.getLongFilePointer();
-							in.seek(lvalue);
-							int bitDepth = getShort();
+							int bitDepth = (int)getArray(fieldType, count, valueLoc, lvalue)[0];
 							if (bitDepth==8)
 								fi.fileType = FileInfo.GRAY8;
 							else if (bitDepth==16)
 								fi.fileType = FileInfo.GRAY16_UNSIGNED;
 							else
 								error("ImageJ cannot open interleaved "+bitDepth+"-bit images.");
-							in.seek(saveLoc);
 						}
 						break;
 				case SAMPLES_PER_PIXEL:
@@ -467,11 +535,11 @@ public class TiffDecoder {
 					fi.rowsPerStrip = value;
 					break;
 				case X_RESOLUTION:
-					double xScale = getRational(lvalue); 
+					double xScale = getRational(bigTiff?valueLoc:lvalue); 
 					if (xScale!=0.0) fi.pixelWidth = 1.0/xScale; 
 					break;
 				case Y_RESOLUTION:
-					double yScale = getRational(lvalue); 
+					double yScale = getRational(bigTiff?valueLoc:lvalue); 
 					if (yScale!=0.0) fi.pixelHeight = 1.0/yScale; 
 					break;
 				case RESOLUTION_UNIT:
@@ -515,7 +583,7 @@ public class TiffDecoder {
 					break;
 				case SOFTWARE: case DATE_TIME: case HOST_COMPUTER: case ARTIST:
 					if (ifdCount==1) {
-						byte[] bytes = getString(count, lvalue);
+						byte[] bytes = getString(count, count<=(bigTiff?8:4)?valueLoc:lvalue);
 						String s = bytes!=null?new String(bytes):null;
 						saveMetadata(getName(tag), s);
 					}
@@ -523,6 +591,8 @@ public class TiffDecoder {
 				case PREDICTOR:
 					if (value==2 && fi.compression==FileInfo.LZW)
 						fi.compression = FileInfo.LZW_WITH_DIFFERENCING;
+					else if (value==2 && fi.compression==FileInfo.ZIP)
+						fi.compression = FileInfo.ZIP_WITH_DIFFERENCING;
 					if (value==3)
 						IJ.log("TiffDecoder: unsupported predictor value of 3");
 					break;
@@ -531,9 +601,20 @@ public class TiffDecoder {
 						getColorMap(lvalue, fi);
 					break;
 				case TILE_WIDTH:
-					error("ImageJ cannot open tiled TIFFs.\nTry using the Bio-Formats plugin.");
+					fi.tileWidth = value;
+					break;
+				case TILE_LENGTH:
+					fi.tileHeight = value;
+					break;
+				case TILE_OFFSETS:
+					fi.tileOffsets = getArray(fieldType, count, valueLoc, lvalue);
+					break;
+				case TILE_BYTE_COUNTS:
+					fi.tileLengths = getArray(fieldType, count, valueLoc, lvalue);
 					break;
 				case SAMPLE_FORMAT:
+					if (count>1)
+						value = (int)getArray(fieldType, count, valueLoc, lvalue)[0];
 					if (fi.fileType==FileInfo.GRAY32_INT && value==FLOATING_POINT)
 						fi.fileType = FileInfo.GRAY32_FLOAT;
 					if (fi.fileType==FileInfo.GRAY16_UNSIGNED) {
@@ -549,7 +630,7 @@ public class TiffDecoder {
 					break;
 				case IMAGE_DESCRIPTION: 
 					if (ifdCount==1) {
-						byte[] s = getString(count, lvalue);
+						byte[] s = getString(count, count<=(bigTiff?8:4)?valueLoc:lvalue);
 						if (s!=null) saveImageDescription(s,fi);
 					}
 					break;
@@ -572,6 +653,13 @@ public class TiffDecoder {
 						decodeNIHImageHeader(value, fi);
 					break;
  				case META_DATA_BYTE_COUNTS: 
+					if (bigTiff) {
+						long[] counts = getArray(fieldType, count, valueLoc, lvalue);
+						metaDataCounts = new int[count];
+						for (int c=0; c<count; c++)
+							metaDataCounts[c] = (int)counts[c];
+						break;
+					}
 					long saveLoc = in.getLongFilePointer();
 					in.seek(lvalue);
 					metaDataCounts = new int[count];
@@ -580,13 +668,17 @@ public class TiffDecoder {
 					in.seek(saveLoc);
 					break;
  				case META_DATA: 
- 					getMetaData(value, fi);
+ 					getMetaData(lvalue, fi);
  					break;
 				default:
 					if (tag>10000 && tag<32768 && ifdCount>1)
 						return null;
 			}
 		}
+		if (offsets64!=null)
+			setStrips(fi, offsets64, lengths64);
+		if (fi.tileOffsets!=null)
+			checkTiles(fi);
 		fi.fileFormat = fi.TIFF;
 		fi.fileName = name;
 		fi.directory = directory;
@@ -595,7 +687,55 @@ public class TiffDecoder {
 		return fi;
 	}
 
-	void getMetaData(int loc, FileInfo fi) throws IOException {
+	/** Stores BigTIFF strip offsets as 32-bit strips if they all fit,
+		otherwise as full-width tiles, which support 64-bit offsets. */
+	void setStrips(FileInfo fi, long[] offsets, long[] lengths) throws IOException {
+		boolean fits = true;
+		for (int i=0; i<offsets.length; i++) {
+			if (offsets[i]>0xffffffffL || (lengths!=null && i<lengths.length && lengths[i]>Integer.MAX_VALUE))
+				fits = false;
+		}
+		if (fits) {
+			fi.stripOffsets = new int[offsets.length];
+			for (int i=0; i<offsets.length; i++)
+				fi.stripOffsets[i] = (int)offsets[i];
+			if (lengths!=null) {
+				fi.stripLengths = new int[lengths.length];
+				for (int i=0; i<lengths.length; i++)
+					fi.stripLengths[i] = (int)lengths[i];
+			}
+			fi.offset = offsets.length>0?fi.stripOffsets[0]:0;
+		} else {
+			fi.tileWidth = fi.width;
+			fi.tileHeight = fi.rowsPerStrip>0&&fi.rowsPerStrip<fi.height?fi.rowsPerStrip:fi.height;
+			fi.tileOffsets = offsets;
+			fi.tileLengths = lengths;
+		}
+	}
+
+	/** Validates the tile layout of a tiled image. */
+	void checkTiles(FileInfo fi) throws IOException {
+		if (fi.tileWidth<=0 || fi.tileHeight<=0 || fi.tileLengths==null)
+			error("Invalid tiled TIFF: missing TileWidth, TileLength or TileByteCounts");
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB: case FileInfo.ARGB: case FileInfo.CMYK:
+				break;
+			default:
+				error("ImageJ cannot open tiled TIFFs of this type.\nTry using the Bio-Formats plugin.");
+		}
+		if (fi.compression==FileInfo.JPEG || fi.compression==FileInfo.COMPRESSION_UNKNOWN)
+			error("ImageJ cannot open JPEG-compressed tiled TIFFs.\nTry using the Bio-Formats plugin.");
+		fi.stripOffsets = null;
+		fi.stripLengths = null;
+		fi.offset = 0;
+		fi.longOffset = fi.tileOffsets.length>0?fi.tileOffsets[0]:0L;
+		fi.nImages = 1;
+	}
+
+	void getMetaData(long loc, FileInfo fi) throws IOException {
 		if (metaDataCounts==null || metaDataCounts.length==0)
 			return;
 		int maxTypes = 10;
@@ -821,7 +961,7 @@ public class TiffDecoder {
 			FileInfo fi = OpenIFD();
 			if (fi!=null) {
 				list.add(fi);
-				ifdOffset = ((long)getInt())&0xffffffffL;
+				ifdOffset = bigTiff?readLong():((long)getInt())&0xffffffffL;
 			} else
 				ifdOffset = 0L;
 			if (debugMode && ifdCount<10) dInfo += "nextIFD=" + ifdOffset + "\n";
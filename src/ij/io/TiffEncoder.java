@@ -1,7 +1,8 @@
 package ij.io;
 import java.io.*;
 
-/**Saves an image described by a FileInfo object as an uncompressed TIFF file.*/
+/**Saves an image described by a FileInfo object as a TIFF file, 
+	uncompressed or, optionally, LZW or Deflate compressed.*/
 public class TiffEncoder {
 	static final int HDR_SIZE = 8;
 	static final int MAP_SIZE = 768; // in 16-bit words
@@ -27,6 +28,11 @@ public class TiffEncoder {
 	private boolean littleEndian = ij.Prefs.intelByteOrder;
 	private byte buffer[] = new byte[8];
 	private int colorMapSize = 0;
+	private int compression = FileInfo.COMPRESSION_NONE;
+	private int rowsPerStrip;
+	private int nStrips = 1;
+	private int[] stripOffsets, stripLengths;  // compressed strips of the current image
+	private long stripArraysOffset;
 
 		
 	public TiffEncoder (FileInfo fi) {
@@ -36,7 +42,6 @@ public class TiffEncoder {
 		samplesPerPixel = 1;
 		nEntries = 10;
 		int bytesPerPixel = 1;
-		int bpsSize = 0;
 
 		switch (fi.fileType) {
 			case FileInfo.GRAY8:
@@ -65,7 +70,6 @@ public class TiffEncoder {
 				photoInterp = 2;
 				samplesPerPixel = 3;
 				bytesPerPixel = 3;
-				bpsSize = BPS_DATA_SIZE;
 				break;
 			case FileInfo.RGB48:
 				bitsPerSample = 16;
@@ -73,7 +77,6 @@ public class TiffEncoder {
 				samplesPerPixel = 3;
 				bytesPerPixel = 6;
 				fi.nImages /= 3;
-				bpsSize = BPS_DATA_SIZE;
 				break;
 			case FileInfo.COLOR8:
 				photoInterp = 3;
@@ -97,9 +100,53 @@ public class TiffEncoder {
 		if (metaDataSize>0)
 			nEntries += 2; // MetaData & MetaDataCounts
 		ifdSize = 2 + nEntries*12 + 4;
+		computeImageOffset();
+	}
+
+	/** Sets the compression used by write(). 'compression' is FileInfo.COMPRESSION_NONE
+		(the default), FileInfo.LZW, FileInfo.ZIP (Deflate), or FileInfo.LZW_WITH_DIFFERENCING or
+		FileInfo.ZIP_WITH_DIFFERENCING, which use horizontal differencing (TIFF predictor 2)
+		and usually compress 8-bit, 16-bit and RGB images better. Only 8-bit, 16-bit, 32-bit
+		float and RGB images are compressed. Must be called before write().
+	*/
+	public void setCompression(int compression) {
+		boolean supported = fi.fileType==FileInfo.GRAY8 || fi.fileType==FileInfo.COLOR8
+			|| fi.fileType==FileInfo.GRAY16_UNSIGNED || fi.fileType==FileInfo.GRAY16_SIGNED
+			|| fi.fileType==FileInfo.GRAY32_FLOAT || fi.fileType==FileInfo.RGB;
+		if (!supported || compression<FileInfo.LZW || compression==FileInfo.JPEG || compression==FileInfo.PACK_BITS)
+			compression = FileInfo.COMPRESSION_NONE;
+		if (fi.fileType==FileInfo.GRAY32_FLOAT && compression==FileInfo.LZW_WITH_DIFFERENCING)
+			compression = FileInfo.LZW;  // predictor 2 is not useful with floats
+		if (fi.fileType==FileInfo.GRAY32_FLOAT && compression==FileInfo.ZIP_WITH_DIFFERENCING)
+			compression = FileInfo.ZIP;
+		if (compression==this.compression)
+			return;
+		if (differencing()) nEntries--;
+		this.compression = compression;
+		if (differencing()) nEntries++;  // Predictor tag
+		ifdSize = 2 + nEntries*12 + 4;
+		if (compression!=FileInfo.COMPRESSION_NONE) {
+			int bytesPerRow = fi.width*fi.getBytesPerPixel();
+			rowsPerStrip = Math.max(1, Math.min(fi.height, 65536/Math.max(1,bytesPerRow)));
+			nStrips = (fi.height+rowsPerStrip-1)/rowsPerStrip;
+		} else
+			nStrips = 1;
+		computeImageOffset();
+	}
+
+	private boolean differencing() {
+		return compression==FileInfo.LZW_WITH_DIFFERENCING || compression==FileInfo.ZIP_WITH_DIFFERENCING;
+	}
+
+	private void computeImageOffset() {
+		int bpsSize = fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48?BPS_DATA_SIZE:0;
 		int descriptionSize = description!=null?description.length:0;
 		scaleSize = fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0?SCALE_DATA_SIZE:0;
 		imageOffset = HDR_SIZE+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + nMetaDataEntries*4 + metaDataSize;
+		if (nStrips>1) {
+			stripArraysOffset = imageOffset;
+			imageOffset += nStrips*8;  // StripOffsets and StripByteCounts
+		}
 		fi.offset = (int)imageOffset;
 		//ij.IJ.log(imageOffset+", "+ifdSize+", "+bpsSize+", "+descriptionSize+", "+scaleSize+", "+colorMapSize+", "+nMetaDataEntries*4+", "+metaDataSize);
 	}
@@ -108,6 +155,10 @@ public class TiffEncoder {
 		The fi.pixels field must contain the image data. If fi.nImages>1
 		then fi.pixels must be a 2D array. The fi.offset field is ignored. */
 	public void write(OutputStream out) throws IOException {
+		if (compression!=FileInfo.COMPRESSION_NONE) {
+			writeCompressed(out);
+			return;
+		}
 		writeHeader(out);
 		long nextIFD = 0L;
 		if (fi.nImages>1)
@@ -146,6 +197,90 @@ public class TiffEncoder {
 				ij.IJ.log("Stack is larger than 4GB. Most TIFF readers will only open the first image. Use this information to open as raw:\n"+fi);
 	}
 	
+	/** Writes a compressed image or stack. Each image is compressed, in parallel
+		strips, before its IFD is written. The first IFD is followed by the tag
+		data and the first image, and each following image is preceded by its IFD. */
+	void writeCompressed(OutputStream out) throws IOException {
+		int oldCompression = fi.compression;
+		fi.compression = compression;
+		ImageWriter writer = new ImageWriter(fi);
+		byte[][] strips = writer.compressStrips(getPixels(1), rowsPerStrip);
+		long nextIFD = setStrips(strips, imageOffset);
+		if (fi.nImages==1)
+			nextIFD = 0L;
+		writeHeader(out);
+		writeIFD(out, stripOffsets[0], (int)nextIFD);
+		if (fi.fileType==FileInfo.RGB)
+			writeBitsPerPixel(out);
+		if (description!=null)
+			writeDescription(out);
+		if (scaleSize>0)
+			writeScale(out);
+		if (colorMapSize>0)
+			writeColorMap(out);
+		if (metaDataSize>0)
+			writeMetaData(out);
+		writeStrips(out, strips);
+		int ifdSize2 = ifdSize;
+		if (metaDataSize>0) {
+			metaDataSize = 0;
+			nEntries -= 2;
+			ifdSize2 -= 2*12;
+		}
+		for (int i=2; i<=fi.nImages; i++) {
+			ij.IJ.showStatus("Writing: " + i + "/" + fi.nImages);
+			strips = writer.compressStrips(getPixels(i), rowsPerStrip);
+			long ifdOffset = nextIFD;
+			stripArraysOffset = ifdOffset + ifdSize2;
+			nextIFD = setStrips(strips, stripArraysOffset+(nStrips>1?nStrips*8:0));
+			if (i==fi.nImages)
+				nextIFD = 0L;
+			writeIFD(out, stripOffsets[0], (int)nextIFD);
+			writeStrips(out, strips);
+			ij.IJ.showProgress(i, fi.nImages);
+		}
+		fi.compression = oldCompression;
+	}
+
+	/** Returns the pixel array of image 'n' (1-based). */
+	private Object getPixels(int n) {
+		if (fi.nImages>1 && fi.virtualStack!=null) {
+			ij.process.ImageProcessor ip = fi.virtualStack.getProcessor(n);
+			if ("FlipTheseImages".equals(fi.fileName))
+				ip.flipVertical();
+			return ip.getPixels();
+		} else if (fi.nImages>1)
+			return ((Object[])fi.pixels)[n-1];
+		else
+			return fi.pixels;
+	}
+
+	/** Records the offsets and lengths of the compressed strips of an image
+		that starts at 'offset' and returns the offset of the end of the image. */
+	private long setStrips(byte[][] strips, long offset) throws IOException {
+		stripOffsets = new int[strips.length];
+		stripLengths = new int[strips.length];
+		for (int i=0; i<strips.length; i++) {
+			stripOffsets[i] = (int)offset;
+			stripLengths[i] = strips[i].length;
+			offset += strips[i].length;
+		}
+		if (offset+ifdSize+nStrips*8>=0xffffffffL)
+			throw new IOException("Compressed TIFF would be larger than 4GB");
+		return offset;
+	}
+
+	private void writeStrips(OutputStream out, byte[][] strips) throws IOException {
+		if (nStrips>1) {
+			for (int i=0; i<nStrips; i++)
+				writeInt(out, stripOffsets[i]);
+			for (int i=0; i<nStrips; i++)
+				writeInt(out, stripLengths[i]);
+		}
+		for (int i=0; i<strips.length; i++)
+			out.write(strips[i]);
+	}
+
 	public void write(DataOutputStream out) throws IOException {
 		write((OutputStream)out);
 	}
@@ -289,16 +424,29 @@ public class TiffEncoder {
 			tagDataOffset += BPS_DATA_SIZE;
 		} else
 			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 1, bitsPerSample);
-		writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, 1);	//No Compression
+		int compressionTag = 1;	//No Compression
+		if (compression==FileInfo.LZW || compression==FileInfo.LZW_WITH_DIFFERENCING)
+			compressionTag = 5;
+		else if (compression==FileInfo.ZIP || compression==FileInfo.ZIP_WITH_DIFFERENCING)
+			compressionTag = 8;  // Adobe Deflate
+		writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, compressionTag);
 		writeEntry(out, TiffDecoder.PHOTO_INTERP, 3, 1, photoInterp);
 		if (description!=null) {
 			writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
 			tagDataOffset += description.length;
 		}
-		writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, 1, imageOffset);
-		writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
-		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, fi.height);
-		writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		if (compression!=FileInfo.COMPRESSION_NONE) {
+			int stripArrays = (int)stripArraysOffset;
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, nStrips, nStrips>1?stripArrays:stripOffsets[0]);
+			writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
+			writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, rowsPerStrip);
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, nStrips, nStrips>1?stripArrays+nStrips*4:stripLengths[0]);
+		} else {
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, 1, imageOffset);
+			writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
+			writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, fi.height);
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		}
 		if (fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0) {
 			writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
 			writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
@@ -310,6 +458,8 @@ public class TiffEncoder {
 				unit = 3;
 			writeEntry(out, TiffDecoder.RESOLUTION_UNIT, 3, 1, unit);
 		}
+		if (differencing())
+			writeEntry(out, TiffDecoder.PREDICTOR, 3, 1, 2);
 		if (fi.fileType==fi.GRAY32_FLOAT) {
 			int format = TiffDecoder.FLOATING_POINT;
 			writeEntry(out, TiffDecoder.SAMPLE_FORMAT, 3, 1, format);
@@ -0,0 +1,223 @@
+package ij.macro;
+
+/** A numeric expression of a tokenized macro, compiled into a compact
+	postfix form. Only expressions made of numbers, scalar variables,
+	parentheses and the arithmetic and bitwise operators handled by
+	Interpreter.getExpression() are compiled. Constant subexpressions are
+	folded, and variables are looked up once per evaluation. Evaluation
+	fails, and the Interpreter falls back to interpreting the tokens, if a
+	variable is undefined or does not contain a number. */
+final class CompiledExpression implements MacroConstants {
+	/** Marks program locations where no expression can be compiled. */
+	static final CompiledExpression NONE = new CompiledExpression();
+
+	private static final int CONSTANT=0, VARIABLE=1, NEGATE=2, COMPLEMENT=3,
+		ADD=4, SUBTRACT=5, MULTIPLY=6, DIVIDE=7, REMAINDER=8,
+		AND=9, OR=10, XOR=11, SHIFT_RIGHT_OP=12, SHIFT_LEFT_OP=13;
+
+	private int[] ops;
+	private int[] addresses;
+	private double[] values;
+	/** Location of the last token of the expression. */
+	int end;
+	/** Number of stack entries needed to evaluate the expression. */
+	int depth;
+
+	// used while compiling
+	private int[] code;
+	private Symbol[] table;
+	private int pc;
+
+	/** Compiles the expression starting after location 'pc', or returns null. */
+	static CompiledExpression compile(Program pgm, int pc) {
+		CompiledExpression expression = new CompiledExpression();
+		expression.code = pgm.code;
+		expression.table = pgm.table;
+		expression.pc = pc;
+		Node node = expression.expression();
+		if (node==null)
+			return null;
+		expression.end = expression.pc;
+		expression.code = null;
+		expression.table = null;
+		int n = node.size();
+		expression.ops = new int[n];
+		expression.addresses = new int[n];
+		expression.values = new double[n];
+		expression.depth = expression.emit(node, 0, 0);
+		return expression;
+	}
+
+	private int nextToken() {
+		return code[pc+1]&TOK_MASK;
+	}
+
+	// The following three methods accept the same syntax as
+	// getExpression(), getTerm() and getFactor() in the Interpreter.
+
+	private Node expression() {
+		Node node = term();
+		while (node!=null) {
+			int next = nextToken();
+			if (next=='+' || next=='-') {
+				pc++;
+				node = Node.binary(next=='+'?ADD:SUBTRACT, node, term());
+			} else
+				break;
+		}
+		return node;
+	}
+
+	private Node term() {
+		Node node = factor();
+		while (node!=null) {
+			int op;
+			switch (nextToken()) {
+				case '*': op = MULTIPLY; break;
+				case '/': op = DIVIDE; break;
+				case '%': op = REMAINDER; break;
+				case '&': op = AND; break;
+				case '|': op = OR; break;
+				case '^': op = XOR; break;
+				case SHIFT_RIGHT: op = SHIFT_RIGHT_OP; break;
+				case SHIFT_LEFT: op = SHIFT_LEFT_OP; break;
+				default: return node;
+			}
+			pc++;
+			node = Node.binary(op, node, factor());
+		}
+		return node;
+	}
+
+	private Node factor() {
+		int token = code[++pc];
+		int address = 0;
+		if (token>127) {
+			address = token>>TOK_SHIFT;
+			token = token&TOK_MASK;
+		}
+		switch (token) {
+			case NUMBER: return Node.constant(table[address].value);
+			case TRUE: return Node.constant(1.0);
+			case FALSE: return Node.constant(0.0);
+			case PI: return Node.constant(Math.PI);
+			case NaN: return Node.constant(Double.NaN);
+			case WORD:
+				int next = nextToken();
+				if (next=='[' || next=='.' || next=='(' || next==PLUS_PLUS || next==MINUS_MINUS)
+					return null;
+				Node node = new Node(VARIABLE);
+				node.address = address;
+				return node;
+			case '(':
+				Node inner = expression();
+				if (inner==null || nextToken()!=')')
+					return null;
+				pc++;
+				return inner;
+			case '-': return Node.unary(NEGATE, factor());
+			case '~': return Node.unary(COMPLEMENT, factor());
+			default: return null;
+		}
+	}
+
+	/** Stores the node in postfix order starting at 'index', and returns
+		the stack depth needed, given 'sp' entries already on the stack. */
+	private int emit(Node node, int index, int sp) {
+		int depth = sp+1;
+		if (node.a!=null)
+			depth = Math.max(depth, emit(node.a, index, sp));
+		if (node.b!=null)
+			depth = Math.max(depth, emit(node.b, index+node.a.size(), sp+1));
+		int i = index + node.size() - 1;
+		ops[i] = node.op;
+		addresses[i] = node.address;
+		values[i] = node.value;
+		return depth;
+	}
+
+	/** Evaluates the expression. Returns false, leaving the Interpreter to
+		evaluate it, if a variable is not defined or is not numeric. The
+		result is stored in stack[0]. */
+	boolean evaluate(Interpreter interp, double[] stack) {
+		int sp = -1;
+		for (int i=0; i<ops.length; i++) {
+			int op = ops[i];
+			if (op==CONSTANT)
+				stack[++sp] = values[i];
+			else if (op==VARIABLE) {
+				Variable v = interp.lookupVariable(addresses[i]);
+				if (v==null || v.getType()!=Variable.VALUE)
+					return false;
+				stack[++sp] = v.getValue();
+			} else if (op<=COMPLEMENT)
+				stack[sp] = apply(op, stack[sp], 0.0);
+			else {
+				sp--;
+				stack[sp] = apply(op, stack[sp], stack[sp+1]);
+			}
+		}
+		return true;
+	}
+
+	/** Applies an operator the same way as the Interpreter does. */
+	private static double apply(int op, double a, double b) {
+		switch (op) {
+			case NEGATE: return -a;
+			case COMPLEMENT: return ~(int)a;
+			case ADD: return a + b;
+			case SUBTRACT: return a - b;
+			case MULTIPLY: return a * b;
+			case DIVIDE: return a / b;
+			case REMAINDER: return a % b;
+			case AND: return (int)a&(int)b;
+			case OR: return (int)a|(int)b;
+			case XOR: return (int)a^(int)b;
+			case SHIFT_RIGHT_OP: return (int)a>>(int)b;
+			case SHIFT_LEFT_OP: return (int)a<<(int)b;
+			default: return Double.NaN;
+		}
+	}
+
+	private static class Node {
+		int op, address;
+		double value;
+		Node a, b;
+
+		Node(int op) {
+			this.op = op;
+		}
+
+		static Node constant(double value) {
+			Node node = new Node(CONSTANT);
+			node.value = value;
+			return node;
+		}
+
+		static Node unary(int op, Node a) {
+			if (a==null)
+				return null;
+			if (a.op==CONSTANT)
+				return constant(apply(op, a.value, 0.0));
+			Node node = new Node(op);
+			node.a = a;
+			return node;
+		}
+
+		static Node binary(int op, Node a, Node b) {
+			if (a==null || b==null)
+				return null;
+			if (a.op==CONSTANT && b.op==CONSTANT)
+				return constant(apply(op, a.value, b.value));
+			Node node = new Node(op);
+			node.a = a;
+			node.b = b;
+			return node;
+		}
+
+		int size() {
+			return 1 + (a!=null?a.size():0) + (b!=null?b.size():0);
+		}
+	}
+
+}
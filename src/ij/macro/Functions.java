@@ -361,6 +361,25 @@ public class Functions implements MacroConstants, Measurements {
 			double toLow = getNextArg();
 			double toHigh = getLastArg();
 			return (value-fromLow)*(toHigh-toLow)/(fromHigh-fromLow)+toLow;
+		} else if (name.equals("sum")) {
+			interp.getLeftParen();
+			double[] a = getNumericArray();
+			interp.getRightParen();
+			double sum = 0.0;
+			for (int i=0; i<a.length; i++)
+				sum += a[i];
+			return sum;
+		} else if (name.equals("count")) {
+			interp.getLeftParen();
+			double[] a = getNumericArray();
+			double lower = getNextArg();
+			double upper = getLastArg();
+			int count = 0;
+			for (int i=0; i<a.length; i++) {
+				if (a[i]>=lower && a[i]<=upper)
+					count++;
+			}
+			return count;
 		}
 		double arg = getArg();
 		if (name.equals("ceil"))
@@ -615,8 +634,8 @@ public class Functions implements MacroConstants, Measurements {
 
 	Variable[] getArray() {
 		interp.getToken();
-		if (interp.token==VARIABLE_FUNCTION && pgm.table[interp.tokenAddress].type==TABLE) {
-			Variable v = getVariableFunction(TABLE);
+		if (interp.token==VARIABLE_FUNCTION) {
+			Variable v = getVariableFunction(pgm.table[interp.tokenAddress].type);
 			if (v!=null) {
 				Variable[] a = v.getArray();
 				if (a!=null) return a;
@@ -6032,11 +6051,68 @@ public class Functions implements MacroConstants, Measurements {
 			return deleteArrayIndex();
 		else if (name.equals("filter"))
 			return filterArray();
+		else if (name.equals("add") || name.equals("multiply"))
+			return arrayArithmetic(name.equals("add"));
+		else if (name.equals("clamp"))
+			return clampArray();
+		else if (name.equals("threshold"))
+			return thresholdArray();
 		else
 			interp.error("Unrecognized Array function");
 		return null;
 	}
 
+	/** Adds or multiplies the elements of an array by a number or by
+		the elements of a second array of the same length. */
+	Variable[] arrayArithmetic(boolean add) {
+		interp.getLeftParen();
+		Variable[] a1 = getArray();
+		interp.getComma();
+		Variable[] a2 = null;
+		double value = 0.0;
+		if (isArrayArg()) {
+			a2 = getArray();
+			if (a2.length!=a1.length)
+				interp.error("Arrays must be the same length");
+		} else
+			value = interp.getExpression();
+		interp.getRightParen();
+		Variable[] a3 = new Variable[a1.length];
+		for (int i=0; i<a1.length; i++) {
+			double v1 = a1[i].getValue();
+			double v2 = a2!=null?a2[i].getValue():value;
+			a3[i] = new Variable(add?v1+v2:v1*v2);
+		}
+		return a3;
+	}
+
+	Variable[] clampArray() {
+		interp.getLeftParen();
+		Variable[] a1 = getArray();
+		double min = getNextArg();
+		double max = getLastArg();
+		Variable[] a2 = new Variable[a1.length];
+		for (int i=0; i<a1.length; i++) {
+			double v = a1[i].getValue();
+			a2[i] = new Variable(v<min?min:(v>max?max:v));
+		}
+		return a2;
+	}
+
+	/** Returns an array with 1 where the values are from 'lower' to 'upper', and 0 elsewhere. */
+	Variable[] thresholdArray() {
+		interp.getLeftParen();
+		Variable[] a1 = getArray();
+		double lower = getNextArg();
+		double upper = getLastArg();
+		Variable[] a2 = new Variable[a1.length];
+		for (int i=0; i<a1.length; i++) {
+			double v = a1[i].getValue();
+			a2[i] = new Variable(v>=lower&&v<=upper?1.0:0.0);
+		}
+		return a2;
+	}
+
 	Variable[] filterArray() {
 		ArrayList list = new ArrayList();
 		interp.getLeftParen();
@@ -8229,11 +8305,95 @@ public class Functions implements MacroConstants, Measurements {
 		} else if (name.equals("title") || name.equals("name")) {
 			interp.getParens();
 			return new Variable(imp.getTitle());
+		} else if (name.equals("getRow")) {
+			ImageProcessor ip = getProcessor();
+			int y = (int)getArg();
+			checkIndex(y, 0, ip.getHeight()-1);
+			return new Variable(getPixelArray(ip, new Rectangle(0, y, ip.getWidth(), 1)));
+		} else if (name.equals("getColumn")) {
+			ImageProcessor ip = getProcessor();
+			int x = (int)getArg();
+			checkIndex(x, 0, ip.getWidth()-1);
+			return new Variable(getPixelArray(ip, new Rectangle(x, 0, 1, ip.getHeight())));
+		} else if (name.equals("getPixels")) {
+			interp.getParens();
+			ImageProcessor ip = getProcessor();
+			return new Variable(getPixelArray(ip, getPixelArrayBounds(imp, ip)));
+		} else if (name.equals("setRow")) {
+			ImageProcessor ip = getProcessor();
+			interp.getLeftParen();
+			int y = (int)interp.getExpression();
+			checkIndex(y, 0, ip.getHeight()-1);
+			interp.getComma();
+			Variable[] a = getArray();
+			interp.getRightParen();
+			setPixelArray(ip, new Rectangle(0, y, ip.getWidth(), 1), a);
+			return null;
+		} else if (name.equals("setColumn")) {
+			ImageProcessor ip = getProcessor();
+			interp.getLeftParen();
+			int x = (int)interp.getExpression();
+			checkIndex(x, 0, ip.getWidth()-1);
+			interp.getComma();
+			Variable[] a = getArray();
+			interp.getRightParen();
+			setPixelArray(ip, new Rectangle(x, 0, 1, ip.getHeight()), a);
+			return null;
+		} else if (name.equals("setPixels")) {
+			ImageProcessor ip = getProcessor();
+			interp.getLeftParen();
+			Variable[] a = getArray();
+			interp.getRightParen();
+			setPixelArray(ip, getPixelArrayBounds(imp, ip), a);
+			return null;
 		} else
 			interp.error("Unrecognized Image function");
 		return null;
 	}
 
+	/** Returns the bounding rectangle of the area selection, or of the
+		image if there is no area selection. */
+	private Rectangle getPixelArrayBounds(ImagePlus imp, ImageProcessor ip) {
+		Rectangle r = new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
+		Roi roi = imp.getRoi();
+		if (roi!=null && roi.isArea())
+			r = r.intersection(roi.getBounds());
+		return r;
+	}
+
+	/** Returns the pixels in the rectangle, line by line, as getPixel(x,y) would. */
+	private Variable[] getPixelArray(ImageProcessor ip, Rectangle r) {
+		Variable[] a = new Variable[r.width*r.height];
+		int width = ip.getWidth();
+		boolean rgb = ip instanceof ColorProcessor;
+		int n = 0;
+		for (int y=r.y; y<r.y+r.height; y++) {
+			int i = y*width + r.x;
+			for (int x=0; x<r.width; x++, i++)
+				a[n++] = new Variable(rgb?ip.get(i):ip.getf(i));
+		}
+		return a;
+	}
+
+	/** Sets the pixels in the rectangle, line by line, as setPixel(x,y,value) would. */
+	private void setPixelArray(ImageProcessor ip, Rectangle r, Variable[] a) {
+		if (a.length!=r.width*r.height)
+			interp.error("Array length ("+a.length+") does not match number of pixels ("+r.width*r.height+")");
+		int width = ip.getWidth();
+		boolean isFloat = ip instanceof FloatProcessor;
+		int n = 0;
+		for (int y=r.y; y<r.y+r.height; y++) {
+			for (int x=r.x; x<r.x+r.width; x++) {
+				double v = a[n++].getValue();
+				if (isFloat)
+					ip.setf(y*width+x, (float)v);
+				else
+					ip.putPixel(x, y, (int)v);
+			}
+		}
+		updateNeeded = true;
+	}
+
 	private Variable doColor() {
 		interp.getToken();
 		if (interp.token!='.')
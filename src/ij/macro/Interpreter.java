@@ -36,6 +36,13 @@ public class Interpreter implements MacroConstants {
 	int topOfStack = -1;
 	int topOfGlobals = -1;
 	int startOfLocals = 0;
+	// variables already looked up, indexed by symbol table address and
+	// valid as long as 'stackVersion' has not changed
+	int stackVersion = 1;
+	private Program cacheProgram;
+	private Variable[] cachedVariables, cachedLocalVariables;
+	private int[] cachedVersions, cachedLocalVersions;
+	private double[] expressionStack;
 
 	static volatile Interpreter instance, previousInstance;
 	public static boolean batchMode;
@@ -167,6 +174,7 @@ public class Interpreter implements MacroConstants {
 	/** Runs an existing macro starting at the specified program counter location. */
 	public void run(int location) {
 		topOfStack = topOfGlobals;
+		stackVersion++;
 		done = false;
 		pc = location-1;
 		doStatements();
@@ -229,6 +237,7 @@ public class Interpreter implements MacroConstants {
 		pgm.saveGlobals(this);
 		pc = -1;
 		topOfStack = -1;
+		stackVersion++;
 		done = false;
 	}
 
@@ -391,6 +400,7 @@ public class Interpreter implements MacroConstants {
 		int newPC = (int)tokenValue;
 		int saveStartOfLocals = startOfLocals;
 		startOfLocals = topOfStack+1;
+		stackVersion++;
 		int saveTOS = topOfStack;		
 		int nArgs = pushArgs();
 		int savePC = pc;
@@ -513,6 +523,7 @@ public class Interpreter implements MacroConstants {
 			   getToken();
 			   if (i>=0)
 				  stack[i].symTabIndex = tokenAddress;
+			   stackVersion++;
 			   i--;
 			   count--;
 			   getToken();
@@ -880,7 +891,7 @@ public class Interpreter implements MacroConstants {
 				return Variable.STRING;
 			int token2 = pgm.code[pc+4];
 			String name = pgm.table[token2>>TOK_SHIFT].str;
-			if (name.equals("getColumn")||name.equals("toArray"))
+			if (name.equals("getColumn")||name.equals("toArray")||name.equals("getRow")||name.equals("getPixels"))
 				return Variable.ARRAY;			
 		}
 		if (tok!=WORD)
@@ -1581,6 +1592,16 @@ public class Interpreter implements MacroConstants {
 	}
 
 	final double getExpression() {
+		CompiledExpression expression = getCompiledExpression();
+		if (expression!=null) {
+			if (expressionStack==null || expressionStack.length<expression.depth)
+				expressionStack = new double[expression.depth];
+			if (expression.evaluate(this, expressionStack)) {
+				pc = expression.end - 1;
+				getToken();
+				return expressionStack[0];
+			}
+		}
 		double value = getTerm();
 		int next;
 		while (true) {
@@ -1597,6 +1618,24 @@ public class Interpreter implements MacroConstants {
 		return value;
 	}
 
+	/** Returns the compiled form of the expression that starts after the
+		current location, compiling it the first time, or null if it
+		contains anything other than numbers, scalar variables and
+		arithmetic or bitwise operators. */
+	private CompiledExpression getCompiledExpression() {
+		if (done)
+			return null;
+		CompiledExpression[] expressions = pgm.expressions;
+		if (expressions==null || expressions.length!=pgm.code.length)
+			expressions = pgm.expressions = new CompiledExpression[pgm.code.length];
+		CompiledExpression expression = expressions[pc+1];
+		if (expression==null) {
+			expression = CompiledExpression.compile(pgm, pc);
+			expressions[pc+1] = expression!=null?expression:CompiledExpression.NONE;
+		}
+		return expression!=CompiledExpression.NONE?expression:null;
+	}
+
 	final double getTerm() {
 		double value = getFactor();
 		boolean done = false;
@@ -1823,6 +1862,10 @@ public class Interpreter implements MacroConstants {
 		the specified variable. Returns null if it is not found. */
 	final Variable lookupLocalVariable(int symTabAddress) {
 		//IJ.log("lookupLocalVariable: "+topOfStack+" "+startOfLocals+" "+topOfGlobals);
+		if (cacheProgram!=pgm || symTabAddress>=cachedVersions.length)
+			resetVariableCache();
+		if (cachedLocalVersions[symTabAddress]==stackVersion)
+			return cachedLocalVariables[symTabAddress];
 		Variable v = null;
 		for (int i=topOfStack; i>=startOfLocals; i--) {
 			if (stack[i].symTabIndex==symTabAddress) {
@@ -1838,11 +1881,19 @@ public class Interpreter implements MacroConstants {
 				}
 			}
 		}
+		if (v!=null) {
+			cachedLocalVariables[symTabAddress] = v;
+			cachedLocalVersions[symTabAddress] = stackVersion;
+		}
 		return v;
 	}
 
 	/** Searches the entire stack for the specified variable. Returns null if it is not found. */
 	final Variable lookupVariable(int symTabAddress) {
+		if (cacheProgram!=pgm || symTabAddress>=cachedVersions.length)
+			resetVariableCache();
+		if (cachedVersions[symTabAddress]==stackVersion)
+			return cachedVariables[symTabAddress];
 		Variable v = null;
 		for (int i=topOfStack; i>=0; i--) {
 			if (stack[i].symTabIndex==symTabAddress) {
@@ -1850,9 +1901,24 @@ public class Interpreter implements MacroConstants {
 				break;
 			}
 		}
+		if (v!=null) {
+			cachedVariables[symTabAddress] = v;
+			cachedVersions[symTabAddress] = stackVersion;
+		}
 		return v;
 	}
 
+	/** Discards the variables found by previous lookups, for example
+		because the program or the size of its symbol table has changed. */
+	private void resetVariableCache() {
+		int size = pgm.table.length;
+		cachedVariables = new Variable[size];
+		cachedLocalVariables = new Variable[size];
+		cachedVersions = new int[size];
+		cachedLocalVersions = new int[size];
+		cacheProgram = pgm;
+	}
+
 	Variable push(Variable var, Interpreter interp) {
 		if (stack==null)
 			stack = new Variable[STACK_SIZE];
@@ -1861,6 +1927,7 @@ public class Interpreter implements MacroConstants {
 		else
 			topOfStack++;
 		stack[topOfStack] = var;
+		stackVersion++;
 		return var;
 	}
 
@@ -1874,6 +1941,7 @@ public class Interpreter implements MacroConstants {
 			stack[topOfStack] = pgm.globals[i];
 		}
 		topOfGlobals = topOfStack;
+		stackVersion++;
 	}
 
 	/** Creates a Variable and pushes it onto the stack. */
@@ -1886,6 +1954,7 @@ public class Interpreter implements MacroConstants {
 		else
 			topOfStack++;
 		stack[topOfStack] = var;
+		stackVersion++;
 		return var;
 	}
 
@@ -1894,6 +1963,7 @@ public class Interpreter implements MacroConstants {
 			stack[i] = null;
 		topOfStack = previousTOS;
 	    startOfLocals = previousStartOfLocals;
+		stackVersion++;
 	}
 	
 	/** Searches the entire stack for the variable associated with the 
@@ -1904,16 +1974,12 @@ public class Interpreter implements MacroConstants {
 			undefined();
 			return v;
 		}
-		boolean found = false;
-		for (int i=topOfStack; i>=0; i--) {
-			v = stack[i];
-			if (v.symTabIndex==tokenAddress) {
-				found = true;
-				break;
-			}
-		}
-		if (!found)
+		v = lookupVariable(tokenAddress);
+		if (v==null) {
 			undefined();
+			if (topOfStack>=0)
+				v = stack[0];
+		}
 		return v;
 	}
 
@@ -22,6 +22,8 @@ public class Program implements MacroConstants {
     // run keyboard shortcut macros on event dispatch thread?
 	boolean queueCommands; 
 	Hashtable extensionRegistry;
+	// compiled numeric expressions, indexed by program location
+	CompiledExpression[] expressions;
 			
 	public Program() {
 		if (systemTable!=null) {
@@ -3,6 +3,9 @@ import ij.*;
 import java.util.Random;
 import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import ij.util.ThreadUtil;
 
 /** Minimizer based on Nelder-Mead simplex method (also known as polytope method),
  *  including the 'outside contraction' as described in:
@@ -182,24 +185,21 @@ public class Minimizer {
         int maxLoopCount = maxRestarts+1;
         if (useSingleThread) maxLoopCount*=2;       // if we have only one thread, loop twice as many times
         for (int i=0; i<maxLoopCount; i++) {        // try several times, until we have twice the same result
-            Thread secondThread = null;
-            if (maxRestarts>0 && !useSingleThread) {  // set up 2nd thread to minimize
+            Future<?> secondTask = null;
+            if (maxRestarts>0 && !useSingleThread) {  // set up 2nd task to minimize, run by the thread pool
                 final int seed = randomSeed+1000000+i;
-                final Thread thread = new Thread(
-                    new Runnable() {
-                        final public void run() {
+                secondTask = ThreadUtil.submit(
+                    new Callable<Void>() {
+                        final public Void call() {
                             minimizeOnce(initialParams, initialParamVariations, seed);
+                            return null;
                         }
-                    }, "Minimizer-1"
+                    }
                 );
-                thread.setPriority( Thread.currentThread().getPriority() );
-                thread.start();
-                secondThread = thread;
             }
             minimizeOnce(initialParams, initialParamVariations, randomSeed+i); //minimize in main thread
-            if (secondThread != null) try {
-                secondThread.join();                // wait until send thread is done
-            } catch (InterruptedException e) {}
+            if (secondTask != null)
+                ThreadUtil.joinAll(new Future<?>[] {secondTask}); // wait until 2nd task is done
             if (resultsVector.size() == 0 && result==null)
                 return status;
             if (result==null)
@@ -0,0 +1,296 @@
+package ij.measure;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** A column of a ResultsTable. Values are stored in fixed-size chunks,
+	so adding rows never copies the existing values, as doubles, floats
+	or ints. Strings are only stored for the cells that have been set to
+	a string. Reading a cell beyond the last one written returns the
+	empty value (0 or NaN) of the column.
+*/
+class ResultsColumn implements Cloneable {
+	private static final int SHIFT = 12;
+	private static final int CHUNK_SIZE = 1<<SHIFT;
+	private static final int MASK = CHUNK_SIZE-1;
+	private static final int INT_NaN = Integer.MIN_VALUE;
+
+	private int type = ResultsTable.DOUBLE_COLUMN;
+	private double emptyValue;
+	private int nChunks;
+	private double[][] doubles = new double[4][];
+	private float[][] floats;
+	private int[][] ints;
+	private String[][] strings;
+	private int stringCount;
+
+	ResultsColumn(double emptyValue) {
+		this.emptyValue = emptyValue;
+	}
+
+	int getType() {
+		return type;
+	}
+
+	/** Changes how the values are stored, converting the existing values. */
+	void setType(int type) {
+		if (type==this.type)
+			return;
+		if (type<ResultsTable.DOUBLE_COLUMN || type>ResultsTable.INT_COLUMN)
+			throw new IllegalArgumentException("Invalid column type: "+type);
+		ResultsColumn old = (ResultsColumn)clone();
+		int n = nChunks;
+		this.type = type;
+		nChunks = 0;
+		doubles = null; floats = null; ints = null;
+		switch (type) {
+			case ResultsTable.FLOAT_COLUMN: floats = new float[Math.max(n,4)][]; break;
+			case ResultsTable.INT_COLUMN: ints = new int[Math.max(n,4)][]; break;
+			default: doubles = new double[Math.max(n,4)][]; break;
+		}
+		if (n>0)
+			addChunks(n);
+		for (int row=0; row<n*CHUNK_SIZE; row++)
+			set(row, old.get(row));
+	}
+
+	final double get(int row) {
+		int chunk = row>>SHIFT;
+		if (chunk>=nChunks)
+			return emptyValue;
+		switch (type) {
+			case ResultsTable.FLOAT_COLUMN:
+				return floats[chunk][row&MASK];
+			case ResultsTable.INT_COLUMN:
+				int value = ints[chunk][row&MASK];
+				return value==INT_NaN?Double.NaN:value;
+			default:
+				return doubles[chunk][row&MASK];
+		}
+	}
+
+	final void set(int row, double value) {
+		int chunk = row>>SHIFT;
+		if (chunk>=nChunks)
+			addChunks(chunk+1);
+		switch (type) {
+			case ResultsTable.FLOAT_COLUMN:
+				floats[chunk][row&MASK] = (float)value;
+				break;
+			case ResultsTable.INT_COLUMN:
+				ints[chunk][row&MASK] = Double.isNaN(value)?INT_NaN:(int)Math.rint(value);
+				break;
+			default:
+				doubles[chunk][row&MASK] = value;
+		}
+	}
+
+	/** Allocates chunks, filled with the empty value, up to 'n' chunks. */
+	private void addChunks(int n) {
+		int capacity = type==ResultsTable.FLOAT_COLUMN?floats.length:(type==ResultsTable.INT_COLUMN?ints.length:doubles.length);
+		if (n>capacity) {
+			capacity = Math.max(n, capacity*2);
+			if (doubles!=null) doubles = Arrays.copyOf(doubles, capacity);
+			if (floats!=null) floats = Arrays.copyOf(floats, capacity);
+			if (ints!=null) ints = Arrays.copyOf(ints, capacity);
+		}
+		for (int chunk=nChunks; chunk<n; chunk++) {
+			switch (type) {
+				case ResultsTable.FLOAT_COLUMN:
+					floats[chunk] = new float[CHUNK_SIZE];
+					if (emptyValue!=0.0)
+						Arrays.fill(floats[chunk], (float)emptyValue);
+					break;
+				case ResultsTable.INT_COLUMN:
+					ints[chunk] = new int[CHUNK_SIZE];
+					if (emptyValue!=0.0)
+						Arrays.fill(ints[chunk], Double.isNaN(emptyValue)?INT_NaN:(int)emptyValue);
+					break;
+				default:
+					doubles[chunk] = new double[CHUNK_SIZE];
+					if (emptyValue!=0.0)
+						Arrays.fill(doubles[chunk], emptyValue);
+			}
+		}
+		nChunks = n;
+	}
+
+	/** Returns 'true' if a string has been stored in this column. */
+	final boolean hasStrings() {
+		return strings!=null;
+	}
+
+	/** Returns the string stored in the specified row, or null. */
+	final String getString(int row) {
+		int chunk = row>>SHIFT;
+		if (strings==null || chunk>=strings.length || strings[chunk]==null)
+			return null;
+		return strings[chunk][row&MASK];
+	}
+
+	final void setString(int row, String value) {
+		int chunk = row>>SHIFT;
+		if (strings==null)
+			strings = new String[Math.max(chunk+1,4)][];
+		else if (chunk>=strings.length)
+			strings = Arrays.copyOf(strings, Math.max(chunk+1, strings.length*2));
+		if (strings[chunk]==null)
+			strings[chunk] = new String[CHUNK_SIZE];
+		strings[chunk][row&MASK] = value;
+		if (row>=stringCount)
+			stringCount = row+1;
+	}
+
+	/** Returns the index of the last row with a string, plus one. */
+	final int getStringCount() {
+		return stringCount;
+	}
+
+	/** Removes a row of a column with 'size' rows, moving the following rows up. */
+	void deleteRow(int row, int size) {
+		for (int i=row; i<size-1; i++)
+			set(i, get(i+1));
+		if (size-1<nChunks*CHUNK_SIZE)
+			set(size-1, emptyValue);
+		if (row<stringCount) {
+			for (int i=row; i<stringCount-1; i++)
+				setString(i, getString(i+1));
+			setString(stringCount-1, null);
+			stringCount--;
+		}
+	}
+
+	/** Returns the values of the first 'n' rows. */
+	double[] getDoubles(int n) {
+		double[] data = new double[n];
+		for (int i=0; i<n; i++)
+			data[i] = get(i);
+		return data;
+	}
+
+	/** Returns the values of the first 'n' rows as floats. */
+	float[] getFloats(int n) {
+		float[] data = new float[n];
+		for (int i=0; i<n; i++)
+			data[i] = (float)get(i);
+		return data;
+	}
+
+	/** Writes the type, the first 'n' values and the strings of this column.
+		Strings already listed in 'stringIndexes' are written as indexes. */
+	void write(DataOutputStream out, int n, HashMap<String,Integer> stringIndexes) throws IOException {
+		out.writeByte(type);
+		out.writeDouble(emptyValue);
+		int bytesPerValue = type==ResultsTable.DOUBLE_COLUMN?8:4;
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE*bytesPerValue);
+		for (int chunk=0; chunk*CHUNK_SIZE<n; chunk++) {
+			int length = Math.min(CHUNK_SIZE, n-chunk*CHUNK_SIZE);
+			buffer.clear();
+			if (chunk>=nChunks) {
+				for (int i=0; i<length; i++) {
+					switch (type) {
+						case ResultsTable.FLOAT_COLUMN: buffer.putFloat((float)emptyValue); break;
+						case ResultsTable.INT_COLUMN: buffer.putInt(Double.isNaN(emptyValue)?INT_NaN:(int)emptyValue); break;
+						default: buffer.putDouble(emptyValue);
+					}
+				}
+			} else {
+				switch (type) {
+					case ResultsTable.FLOAT_COLUMN: buffer.asFloatBuffer().put(floats[chunk], 0, length); break;
+					case ResultsTable.INT_COLUMN: buffer.asIntBuffer().put(ints[chunk], 0, length); break;
+					default: buffer.asDoubleBuffer().put(doubles[chunk], 0, length);
+				}
+			}
+			out.write(buffer.array(), 0, length*bytesPerValue);
+		}
+		int count = strings!=null?Math.min(stringCount,n):-1;
+		out.writeInt(count);
+		for (int row=0; row<count; row++) {
+			String str = getString(row);
+			Integer index = str!=null?stringIndexes.get(str):null;
+			if (str==null)
+				out.writeInt(-1);
+			else if (index!=null)
+				out.writeInt(index.intValue());
+			else {
+				stringIndexes.put(str, Integer.valueOf(stringIndexes.size()));
+				byte[] bytes = str.getBytes("UTF-8");
+				out.writeInt(-2);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+	}
+
+	/** Reads a column with 'n' rows written by write(). */
+	static ResultsColumn read(DataInputStream in, int n, ArrayList<String> strings) throws IOException {
+		int type = in.readByte();
+		if (type<ResultsTable.DOUBLE_COLUMN || type>ResultsTable.INT_COLUMN)
+			throw new IOException("Invalid column type: "+type);
+		ResultsColumn column = new ResultsColumn(in.readDouble());
+		column.setType(type);
+		int bytesPerValue = type==ResultsTable.DOUBLE_COLUMN?8:4;
+		byte[] bytes = new byte[CHUNK_SIZE*bytesPerValue];
+		if (n>0)
+			column.addChunks((n+CHUNK_SIZE-1)>>SHIFT);
+		for (int chunk=0; chunk*CHUNK_SIZE<n; chunk++) {
+			int length = Math.min(CHUNK_SIZE, n-chunk*CHUNK_SIZE);
+			in.readFully(bytes, 0, length*bytesPerValue);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			switch (type) {
+				case ResultsTable.FLOAT_COLUMN: buffer.asFloatBuffer().get(column.floats[chunk], 0, length); break;
+				case ResultsTable.INT_COLUMN: buffer.asIntBuffer().get(column.ints[chunk], 0, length); break;
+				default: buffer.asDoubleBuffer().get(column.doubles[chunk], 0, length);
+			}
+		}
+		int count = in.readInt();
+		if (count>n)
+			throw new IOException("Invalid string count: "+count);
+		for (int row=0; row<count; row++) {
+			int index = in.readInt();
+			String str = null;
+			if (index==-2) {
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				str = new String(b, "UTF-8");
+				strings.add(str);
+			} else if (index>=0 && index<strings.size())
+				str = strings.get(index);
+			else if (index!=-1)
+				throw new IOException("Invalid string index: "+index);
+			column.setString(row, str);
+		}
+		if (count==0)
+			column.strings = new String[4][];
+		return column;
+	}
+
+	/** Returns a copy of this column. */
+	public Object clone() {
+		try {
+			ResultsColumn c = (ResultsColumn)super.clone();
+			if (doubles!=null) {
+				c.doubles = new double[doubles.length][];
+				for (int i=0; i<nChunks; i++)
+					c.doubles[i] = doubles[i].clone();
+			}
+			if (floats!=null) {
+				c.floats = new float[floats.length][];
+				for (int i=0; i<nChunks; i++)
+					c.floats[i] = floats[i].clone();
+			}
+			if (ints!=null) {
+				c.ints = new int[ints.length][];
+				for (int i=0; i<nChunks; i++)
+					c.ints[i] = ints[i].clone();
+			}
+			if (strings!=null) {
+				c.strings = new String[strings.length][];
+				for (int i=0; i<strings.length; i++)
+					if (strings[i]!=null) c.strings[i] = strings[i].clone();
+			}
+			return c;
+		} catch (CloneNotSupportedException e) {return null;}
+	}
+
+}
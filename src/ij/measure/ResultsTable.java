@@ -30,6 +30,22 @@ public class ResultsTable implements Cloneable {
 	public static final int TABLE_FULL = -3; // no longer used
 	public static final short AUTO_FORMAT = Short.MIN_VALUE;
 	private static final char commaSubstitute = 0x08B3;
+	private static final int MAX_SHARED_STRINGS = 10000;
+	private static final String BINARY_EXTENSION = ".ijt";
+	private static final int BINARY_MAGIC = 0x494a5254; // "IJRT"
+	private static final int BINARY_VERSION = 1;
+	private static final double[] powersOf10 = new double[16]; // exact
+	private static final double[] minValues = new double[10];
+	static {
+		powersOf10[0] = 1.0;
+		for (int i=1; i<powersOf10.length; i++)
+			powersOf10[i] = powersOf10[i-1]*10.0;
+		for (int i=0; i<minValues.length; i++)
+			minValues[i] = 1.0/Math.pow(10,i);
+	}
+
+	/** Column types used by setColumnType(). */
+	public static final int DOUBLE_COLUMN=0, FLOAT_COLUMN=1, INT_COLUMN=2;
 	
 	public static final int AREA=0, MEAN=1, STD_DEV=2, MODE=3, MIN=4, MAX=5,
 		X_CENTROID=6, Y_CENTROID=7, X_CENTER_OF_MASS=8, Y_CENTER_OF_MASS=9,
@@ -44,14 +60,13 @@ public class ResultsTable implements Cloneable {
 		"Circ.", "Feret", "IntDen", "Median","Skew","Kurt", "%Area", "RawIntDen", "Ch", "Slice", "Frame", 
 		 "FeretX", "FeretY", "FeretAngle", "MinFeret", "AR", "Round", "Solidity", "MinThr", "MaxThr"};
 
-	private int maxRows = 100; // will be increased as needed
 	private int maxColumns = MAX_COLUMNS; // will be increased as needed
 	private String[] headings = new String[maxColumns];
 	private boolean[] keep = new boolean[maxColumns];
 	private short[] decimalPlaces = new short[maxColumns];
 	private int counter;
-	private double[][] columns = new double[maxColumns][];
-	private String[] rowLabels;
+	private ResultsColumn[] columns = new ResultsColumn[maxColumns];
+	private ResultsColumn rowLabels;
 	private int lastColumn = -1;
 	private	StringBuilder sb;
 	private short precision = 3;
@@ -61,7 +76,7 @@ public class ResultsTable implements Cloneable {
 	private boolean showRowNumbers;
 	private boolean showRowNumbersSet;
 	private int baseRowNumber = 1;
-	private Hashtable stringColumns;
+	private HashMap<String,String> sharedStrings;
 	private boolean NaNEmptyCells;
 	private boolean quoteCommas;
 	private String title;
@@ -135,23 +150,6 @@ public class ResultsTable implements Cloneable {
 	/** Adds a row to the table. */
 	public synchronized void incrementCounter() {
 		counter++;
-		if (counter==maxRows) {
-			if (rowLabels!=null) {
-				String[] s = new String[maxRows*2];
-				System.arraycopy(rowLabels, 0, s, 0, maxRows);
-				rowLabels = s;
-			}
-			for (int i=0; i<=lastColumn; i++) {
-				if (columns[i]!=null) {
-					double[] tmp = new double[maxRows*2];
-					if (NaNEmptyCells)
-						Arrays.fill(tmp, maxRows, tmp.length, Double.NaN);
-					System.arraycopy(columns[i], 0, tmp, 0, maxRows);
-					columns[i] = tmp;
-				}
-			}
-			maxRows *= 2;
-		}
 	}
 	
 	/** Obsolete; the addValue() method automatically adds columns as needed.
@@ -161,7 +159,7 @@ public class ResultsTable implements Cloneable {
 		String[] tmp1 = new String[maxColumns*2];
 		System.arraycopy(headings, 0, tmp1, 0, maxColumns);
 		headings = tmp1;
-		double[][] tmp2 = new double[maxColumns*2][];
+		ResultsColumn[] tmp2 = new ResultsColumn[maxColumns*2];
 		for (int i=0; i<maxColumns; i++)
 			tmp2[i] = columns[i];
 		columns = tmp2;
@@ -202,14 +200,12 @@ public class ResultsTable implements Cloneable {
 		if (counter==0)
 			incrementCounter();
 		if (columns[column]==null) {
-			columns[column] = new double[maxRows];
-			if (NaNEmptyCells)
-				Arrays.fill(columns[column], Double.NaN);
+			columns[column] = newColumn();
 			if (headings[column]==null)
 				headings[column] = "C"+(column+1);
 			if (column>lastColumn) lastColumn = column;
 		}
-		columns[column][counter-1] = value;
+		columns[column].set(counter-1, value);
 		if (counter<25) {
 			if ((int)value!=value && !Double.isNaN(value))
 				decimalPlaces[column] = (short)precision;
@@ -277,8 +273,8 @@ public class ResultsTable implements Cloneable {
 		if (counter==0)
 			throw new IllegalArgumentException("Counter==0");
 		if (rowLabels==null)
-			rowLabels = new String[maxRows];
-		rowLabels[counter-1] = label;
+			rowLabels = newColumn();
+		rowLabels.setString(counter-1, share(label));
 		if (columnHeading!=null)
 			rowLabelHeading = columnHeading;
 	}
@@ -291,10 +287,10 @@ public class ResultsTable implements Cloneable {
 		if (row<0||row>=counter)
 			throw new IllegalArgumentException("row>=counter");
 		if (rowLabels==null)
-			rowLabels = new String[maxRows];
+			rowLabels = newColumn();
 		if (rowLabelHeading.equals(""))
 			rowLabelHeading = "Label";
-		rowLabels[row] = label;
+		rowLabels.setString(row, share(label));
 	}
 	
 	/** Set the row label column to null if the column label is "Label". */
@@ -336,12 +332,8 @@ public class ResultsTable implements Cloneable {
 			throw new IllegalArgumentException("Index out of range: "+column);
 		if (columns[column]==null)
 			return null;
-		else {
-			float[] data = new float[counter];
-			for (int i=0; i<counter; i++)
-				data[i] = (float)columns[column][i];
-			return data;
-		}
+		else
+			return columns[column].getFloats(counter);
 	}
 	
 	/** Returns a copy of the given column as a double array,
@@ -351,12 +343,8 @@ public class ResultsTable implements Cloneable {
 			throw new IllegalArgumentException("Index out of range: "+column);
 		if (columns[column]==null)
 			return null;
-		else {
-			double[] data = new double[counter];
-			for (int i=0; i<counter; i++)
-				data[i] = columns[column][i];
-			return data;
-		}
+		else
+			return columns[column].getDoubles(counter);
 	}
 	
 	/** Returns the contents of this ResultsTable as a FloatProcessor. */
@@ -420,9 +408,7 @@ public class ResultsTable implements Cloneable {
 	public int getFreeColumn(String heading) {
 		for(int i=0; i<headings.length; i++) {
 			if (headings[i]==null) {
-				columns[i] = new double[maxRows];
-				if (NaNEmptyCells)
-					Arrays.fill(columns[i], Double.NaN);
+				columns[i] = newColumn();
 				headings[i] = heading;
 				if (i>lastColumn) lastColumn = i;
 				return i;
@@ -432,12 +418,54 @@ public class ResultsTable implements Cloneable {
 		}
 		addColumns();
 		lastColumn++;
-		columns[lastColumn] = new double[maxRows];
-		if (NaNEmptyCells)
-			Arrays.fill(columns[lastColumn], Double.NaN);
+		columns[lastColumn] = newColumn();
 		headings[lastColumn] = heading;
 		return lastColumn;
 	}
+
+	/** Creates a column, initially filled with zeros or, after
+		setNaNEmptyCells(true), with NaNs. */
+	private ResultsColumn newColumn() {
+		return new ResultsColumn(NaNEmptyCells?Double.NaN:0.0);
+	}
+
+	/** Returns an equal string that is already stored in this table, so
+		that repeated labels and string values are only stored once. */
+	private String share(String str) {
+		if (str==null)
+			return null;
+		if (sharedStrings==null)
+			sharedStrings = new HashMap<String,String>();
+		String shared = sharedStrings.get(str);
+		if (shared!=null)
+			return shared;
+		if (sharedStrings.size()<MAX_SHARED_STRINGS)
+			sharedStrings.put(str, str);
+		return str;
+	}
+
+	/** Sets how the values of a column are stored: as doubles
+		(DOUBLE_COLUMN, the default), floats (FLOAT_COLUMN) or ints
+		(INT_COLUMN). Float and int columns use less memory; int
+		columns round the values and store NaN, but not infinity.
+		The column is created if it does not exist. */
+	public synchronized void setColumnType(String column, int type) {
+		int col = getColumnIndex(column);
+		if (col==COLUMN_NOT_FOUND)
+			col = getFreeColumn(column);
+		if (col<0)
+			throw new IllegalArgumentException("\""+column+"\" column not found");
+		columns[col].setType(type);
+	}
+
+	/** Returns the type (DOUBLE_COLUMN, FLOAT_COLUMN or INT_COLUMN)
+		of the specified column. */
+	public int getColumnType(String column) {
+		int col = getColumnIndex(column);
+		if (col==COLUMN_NOT_FOUND || columns[col]==null)
+			throw new IllegalArgumentException("\""+column+"\" column not found");
+		return columns[col].getType();
+	}
 	
 	/**	Returns the value of the given column and row, where
 		column must be less than or equal the value returned by
@@ -448,7 +476,7 @@ public class ResultsTable implements Cloneable {
 			throw new IllegalArgumentException("Index out of range: "+column+","+row);
 		if (columns[column]==null)
 			throw new IllegalArgumentException("Column not defined: "+column);
-		return columns[column][row];
+		return columns[column].get(row);
 	}
 	
 	/**
@@ -519,8 +547,8 @@ public class ResultsTable implements Cloneable {
 		if (row<0 || row>=size())
 			throw new IllegalArgumentException("Row out of range");
 		String label = null;
-		if (rowLabels!=null && rowLabels[row]!=null)
-				label = rowLabels[row];
+		if (rowLabels!=null)
+			label = rowLabels.getString(row);
 		return label;
 	}
 
@@ -552,12 +580,10 @@ public class ResultsTable implements Cloneable {
 				throw new IllegalArgumentException("row>counter");
 		}
 		if (columns[column]==null) {
-			columns[column] = new double[maxRows];
-			if (NaNEmptyCells)
-				Arrays.fill(columns[column], Double.NaN);
+			columns[column] = newColumn();
 			if (column>lastColumn) lastColumn = column;
 		}
-		columns[column][row] = value;
+		columns[column].set(row, value);
 		if (headings[column]==null)
 			headings[column] = "C"+(column+1);
 		if ((int)value!=value && !Double.isNaN(value))
@@ -582,22 +608,10 @@ public class ResultsTable implements Cloneable {
 		where 0&lt;=column&lt;=(lastRow+1 and 0&lt;=row&lt;=size(). */
 	public void setValue(int column, int row, String value) {
 		setValue(column, row, Double.NaN);
-		if (stringColumns==null)
-			stringColumns = new Hashtable();
-		ArrayList stringColumn = (ArrayList)stringColumns.get(Integer.valueOf(column));
-		if (stringColumn==null) {
-			stringColumn = new ArrayList();
-			stringColumns.put(Integer.valueOf(column), stringColumn);
-		}
-		int size = stringColumn.size();
-		if (row>=size) {
-			for (int i=size; i<row; i++)
-				stringColumn.add(i, "");
-		}
-		if (row==stringColumn.size())
-			stringColumn.add(row, value);
-		else
-			stringColumn.set(row, value);
+		ResultsColumn stringColumn = columns[column];
+		for (int i=stringColumn.getStringCount(); i<row; i++)
+			stringColumn.setString(i, "");
+		stringColumn.setString(row, share(value));
 	}
 	
 	/** Sets the values of the given column to the values in the array.
@@ -680,32 +694,85 @@ public class ResultsTable implements Cloneable {
 			sb = new StringBuilder(200);
 		else
 			sb.setLength(0);
+		appendRow(sb, row);
+		return new String(sb);
+	}
+
+	/** Appends the specified row, formatted as by getRowAsString(),
+		to 'sb'. This method does not use a shared buffer, so it can be
+		used to draw rows of a table that is displayed. */
+	public void appendRowAsString(StringBuilder sb, int row) {
+		if ((row<0) || (row>=counter))
+			throw new IllegalArgumentException("Row out of range: "+row);
+		appendRow(sb, row);
+	}
+
+	/** Appends the row, as returned by getRowAsString(), to 'sb'. */
+	private void appendRow(StringBuilder sb, int row) {
 		if (showRowNumbers) {
-			sb.append(Integer.toString(row+baseRowNumber));
+			sb.append(row+baseRowNumber);
 			sb.append(delimiter);
 		}
 		if (rowLabels!=null) {
-			if (rowLabels[row]!=null) {
-				String label = rowLabels[row];
-				if (delimiter==',')
-					label = label.replaceAll(",", ";");
+			String label = rowLabels.getString(row);
+			if (label!=null) {
+				if (delimiter==',' && label.indexOf(',')>=0)
+					label = label.replace(',', ';');
 				sb.append(label);
 			}
 			sb.append(delimiter);
 		}
 		for (int i=0; i<=lastColumn; i++) {
 			if (columns[i]!=null) {
-				String value = getValueAsString(i,row);
-				if (quoteCommas) {
-					if (value!=null && value.contains(","))
-						value = "\""+value+"\"";
+				double value = columns[i].get(row);
+				if (Double.isNaN(value) && columns[i].hasStrings()) {
+					String str = getValueAsString(i,row);
+					if (quoteCommas && str!=null && str.contains(","))
+						sb.append('"').append(str).append('"');
+					else
+						sb.append(str);
+				} else {
+					int places = decimalPlaces[i];
+					if (places==AUTO_FORMAT)
+						places = (int)value==value && precision>=0?0:precision;
+					appendNumber(sb, value, places);
 				}
-				sb.append(value);
 				if (i!=lastColumn)
 					sb.append(delimiter);
 			}
 		}
-		return new String(sb);
+	}
+
+	/** Appends 'n' to 'sb', formatted as d2s(n, decimalPlaces) does. Numbers
+		that are not displayed in scientific notation, and that do not need
+		rounding of a value halfway between two results, are converted
+		without creating a String. */
+	private static void appendNumber(StringBuilder sb, double n, int decimalPlaces) {
+		double np = n<0.0?-n:n;
+		if (decimalPlaces>=0 && decimalPlaces<minValues.length && np<1e12
+		&& !(np<0.001 && np!=0.0 && np<minValues[decimalPlaces])) {
+			double scaled = np*powersOf10[decimalPlaces];
+			long integer = (long)scaled;
+			double fraction = scaled - integer;
+			if (scaled<1e12 && Math.abs(fraction-0.5)>1e-3) {
+				long rounded = fraction>0.5?integer+1:integer;
+				if (n>0.0 || (rounded==0 && Double.doubleToRawLongBits(n)==0L) || (n<0.0 && rounded!=0)) {
+					if (n<0.0)
+						sb.append('-');
+					long scale = (long)powersOf10[decimalPlaces];
+					sb.append(rounded/scale);
+					if (decimalPlaces>0) {
+						sb.append('.');
+						long digits = rounded%scale;
+						for (long d=scale/10; d>1 && digits<d; d/=10)
+							sb.append('0');
+						sb.append(digits);
+					}
+					return;
+				}
+			}
+		}
+		sb.append(d2s(n, decimalPlaces));
 	}
 	
 	/** Implements the Table.getColumn() macro function. */
@@ -725,17 +792,15 @@ public class ResultsTable implements Cloneable {
 		boolean firstValueNumeric = true;
 		int nValues = size();
 		Variable[] values = new Variable[nValues];
+		ResultsColumn column2 = columns[col];
 		for (int row=0; row<size(); row++) {
-			double value = columns[col][row];
+			double value = column2.get(row);
 			String str = null;
-			if (Double.isNaN(value) && stringColumns!=null) {
-				ArrayList stringColumn = (ArrayList)stringColumns.get(Integer.valueOf(col));
-				if (stringColumn!=null && row>=0 && row<stringColumn.size()) {
-						str = (String)stringColumn.get(row);
-						if (firstValueNumeric && "".equals(str)) {
-							nValues = row;
-							break;
-						}
+			if (Double.isNaN(value) && column2.hasStrings()) {
+				str = column2.getString(row);
+				if (firstValueNumeric && "".equals(str)) {
+					nValues = row;
+					break;
 				}
 			}
 			if (str!=null)
@@ -786,21 +851,15 @@ public class ResultsTable implements Cloneable {
 	}
 		
 	private String getValueAsString(int column, int row) { 
-		double value = columns[column][row];
-		//IJ.log("getValueAsString1: col="+column+ ", row= "+row+", value= "+value+", size="+stringColumns.size());
-		if (Double.isNaN(value) && stringColumns!=null) {
-			String string = "NaN";
-			ArrayList stringColumn = (ArrayList)stringColumns.get(Integer.valueOf(column));
-			if (stringColumn==null)
-				return string;
-			//IJ.log("getValueAsString2: "+column+ +row+" "+stringColumn.size());
-			if (row>=0 && row<stringColumn.size()) {
-				string = (String)stringColumn.get(row);
-				if (string!=null && string.contains("\n"))
-					string = string.replaceAll("\n", "\\\\n");
-				return string;
-			} else
-				return string;
+		ResultsColumn stringColumn = columns[column];
+		double value = stringColumn.get(row);
+		if (Double.isNaN(value) && stringColumn.hasStrings()) {
+			if (row>=stringColumn.getStringCount())
+				return "NaN";
+			String string = stringColumn.getString(row);
+			if (string!=null && string.contains("\n"))
+				string = string.replaceAll("\n", "\\\\n");
+			return string;
 		} else {
 			int places = decimalPlaces[column];
 			if (places==AUTO_FORMAT)
@@ -827,11 +886,8 @@ public class ResultsTable implements Cloneable {
 		if ((column<0) || (column>=headings.length))
 			throw new IllegalArgumentException("Column out of range: "+column);
 		headings[column] = heading;
-		if (columns[column]==null) {
-			columns[column] = new double[maxRows];
-			if (NaNEmptyCells)
-				Arrays.fill(columns[column], Double.NaN);
-		}
+		if (columns[column]==null)
+			columns[column] = newColumn();
 		if (column>lastColumn) lastColumn = column;
 		headingSet = true;
 	}
@@ -943,22 +999,11 @@ public class ResultsTable implements Cloneable {
 	public synchronized void deleteRow(int rowIndex) {
 		if (counter==0 || rowIndex<0 || rowIndex>counter-1)
 			return;
-		if (rowLabels!=null) {
-			rowLabels[rowIndex] = null;
-			for (int i=rowIndex; i<counter-1; i++)
-				rowLabels[i] = rowLabels[i+1];
-		}
+		if (rowLabels!=null)
+			rowLabels.deleteRow(rowIndex, counter);
 		for (int col=0; col<=lastColumn; col++) {
-			if (columns[col]!=null) {
-				for (int i=rowIndex; i<counter-1; i++)
-					columns[col][i] = columns[col][i+1];
-				ArrayList stringColumn = stringColumns!=null?(ArrayList)stringColumns.get(Integer.valueOf(col)):null;
-				if (stringColumn!=null && stringColumn.size()==counter) {
-					for (int i=rowIndex; i<counter-1; i++)
-						stringColumn.set(i,stringColumn.get(i+1));
-					stringColumn.remove(counter-1);
-				}
-			}
+			if (columns[col]!=null)
+				columns[col].deleteRow(rowIndex, counter);
 		}
 		counter--;
 	}
@@ -994,7 +1039,6 @@ public class ResultsTable implements Cloneable {
 
 	public synchronized void reset() {
 		counter = 0;
-		maxRows = 100;
 		for (int i=0; i<maxColumns; i++) {
 			columns[i] = null;
 			headings[i] = null;
@@ -1003,7 +1047,7 @@ public class ResultsTable implements Cloneable {
 		}
 		lastColumn = -1;
 		rowLabels = null;
-		stringColumns = null;
+		sharedStrings = null;
 		columnDeleted = false;
 	}
 	
@@ -1093,14 +1137,10 @@ public class ResultsTable implements Cloneable {
 			tp.setColumnHeadings(tableHeadings);
 			newWindow = tp.getLineCount()==0;
 		}
-		tp.setResultsTable(cloneNeeded?(ResultsTable)this.clone():this);
-		int n = size();
-		if (n>0) {
-			if (tp.getLineCount()>0) tp.clear();
-			for (int i=0; i<n; i++)
-				tp.appendWithoutUpdate(getRowAsString(i));
-			tp.updateDisplay();
-		}
+		ResultsTable rt = cloneNeeded?(ResultsTable)this.clone():this;
+		tp.setResultsTable(rt);
+		if (size()>0)
+			tp.displayTable(rt);
 		if (newWindow) tp.scrollToTop();
 	}
 	
@@ -1126,9 +1166,7 @@ public class ResultsTable implements Cloneable {
 		for (int i=0; i<=last; i++) {
 			//IJ.log(i+"  "+rt2.getColumn(i)+"  "+columns[i]+"  "+rt2.getColumnHeading(i)+"  "+getColumnHeading(i));
 			if (rt2.getColumn(i)!=null && columns[i]==null) {
-				columns[i] = new double[maxRows];
-				if (NaNEmptyCells)
-					Arrays.fill(columns[i], Double.NaN);
+				columns[i] = newColumn();
 				headings[i] = rt2.getColumnHeading(i);
 				if (i>lastColumn) lastColumn = i;
 			} else if (rt2.getColumn(i)==null && columns[i]!=null && !keep[i])
@@ -1137,7 +1175,7 @@ public class ResultsTable implements Cloneable {
 		if (rt2.getRowLabels()==null)
 			rowLabels = null;
 		else if (rt2.getRowLabels()!=null && rowLabels==null) {
-			rowLabels = new String[maxRows];
+			rowLabels = newColumn();
 			rowLabelHeading = "Label";
 		}
 		if (size()>0) show("Results");
@@ -1147,7 +1185,7 @@ public class ResultsTable implements Cloneable {
 		return maxColumns;
 	}
 	
-	String[] getRowLabels() {
+	ResultsColumn getRowLabels() {
 		return rowLabels;
 	}
 	
@@ -1166,12 +1204,13 @@ public class ResultsTable implements Cloneable {
 		return rt;
 	}
 	
-	/** Opens a tab or comma delimited text file and returns it as a 
-	* ResultsTable. Displays a file open dialog if 'path' is empty or null.
+	/** Opens a tab or comma delimited text file, or a table saved in
+	* binary form with a name ending with ".ijt", and returns it as a
+	* ResultsTable. The file is read line by line. Displays a file open
+	* dialog if 'path' is empty or null.
 	* @see #open2(String)
 	*/
 	public static ResultsTable open(String path) throws IOException {
-		final String lineSeparator =  "\n";
 		if (path==null || path.equals("")) {
 			OpenDialog od = new OpenDialog("Open Table", "");
 			String dir = od.getDirectory();
@@ -1180,25 +1219,31 @@ public class ResultsTable implements Cloneable {
 				return null;
 			path = dir+name;
 		}
-		String text = IJ.openAsString(path);
-		if (text==null)
-			return null;
-		if (text.length()==0)
-			return new ResultsTable();
-		if (text.startsWith("Error:"))
+		File file = new File(path);
+		if (!file.exists())
 			throw new IOException("Error opening "+path);
+		if (path.endsWith(BINARY_EXTENSION))
+			return openBinary(path);
+		if (file.length()==0)
+			return new ResultsTable();
 		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
-		String cellSeparator =  csv?",":"\t";
-		boolean commasReplaced = false;
-		if (csv && text.contains("\"")) {
-			text = replaceQuotedCommas(text);
-			commasReplaced = true;
+		LineReader reader = new LineReader(new BufferedReader(new FileReader(file), 65536), csv);
+		try {
+			return open(path, reader, csv);
+		} finally {
+			reader.close();
 		}
+	}
+
+	private static ResultsTable open(String path, LineReader reader, boolean csv) throws IOException {
+		String cellSeparator =  csv?",":"\t";
+		boolean commasReplaced = csv;
 		String commaSubstitute2 = ""+commaSubstitute;
-		String[] lines = text.split(lineSeparator);
-		if (lines.length==0 || (lines.length==1 && lines[0].length()==0))
+		String line0 = reader.readLine();
+		if (line0==null)
 			throw new IOException("Table is empty or invalid");
-		String[] headings = lines[0].split(cellSeparator);
+		String line1 = reader.readLine();
+		String[] headings = line0.split(cellSeparator);
 		if (headings.length<1)
 			throw new IOException("This is not a tab or comma delimited text file.");
 		String zeroWidthSpace = "\uFEFF";
@@ -1206,7 +1251,7 @@ public class ResultsTable implements Cloneable {
 			headings[0] = headings[0].substring(1, headings[0].length());
 		int numbersInHeadings = 0;
 		for (int i=0; i<headings.length; i++) {
-			if (headings[i].equals("NaN") || !Double.isNaN(Tools.parseDouble(headings[i])))
+			if (headings[i].equals("NaN") || !Double.isNaN(parseCell(headings[i], Double.NaN)))
 				numbersInHeadings++;
 		}
 		boolean allNumericHeadings = numbersInHeadings==headings.length;
@@ -1224,11 +1269,11 @@ public class ResultsTable implements Cloneable {
 		}
 		int firstRow = allNumericHeadings?0:1;
 		boolean labels = firstColumn==1 && headings[1].equals("Label");
-		int type=getTableType(path, lines, firstRow, cellSeparator);
+		int type=getTableType(path, line1, cellSeparator);
 		//if (!labels && (type==1||type==2))
 		//	labels = true;
 		int labelsIndex = (type==2)?0:1;
-		if (lines[0].startsWith("\t")) {
+		if (line0.startsWith("\t")) {
 			String[] headings2 = new String[headings.length+1];
 			headings2[0] = " ";
 			for (int i=0; i<headings.length; i++)
@@ -1237,7 +1282,7 @@ public class ResultsTable implements Cloneable {
 			firstColumn = 1;
 		}
 		ResultsTable rt = new ResultsTable();
-		if (firstRow>=lines.length) { //empty table?
+		if (firstRow==1 && line1==null) { //empty table?
 			for (int i=0; i<headings.length; i++) {
 				if (headings[i]==null) continue;
 				int col = rt.getColumnIndex(headings[i]);
@@ -1247,19 +1292,22 @@ public class ResultsTable implements Cloneable {
 			return rt;
 		}
 		rt.showRowNumbers(path.contains("Results"));
-		for (int i=firstRow; i<lines.length; i++) {
+		String line = firstRow==0?line0:line1;
+		String nextLine = firstRow==0?line1:null;
+		while (line!=null) {
 			rt.incrementCounter();
-			String[] items = lines[i].split(cellSeparator);
+			String[] items = line.split(cellSeparator);
 			for (int j=firstColumn; j<headings.length; j++) {
 				if (j==labelsIndex&&labels)
 					rt.addLabel(headings[labelsIndex], items[labelsIndex]);
 				else {
 					double defaultValue = -Double.MAX_VALUE;
-					double value = j<items.length?Tools.parseDouble(items[j], defaultValue):Double.NaN;
+					double value = j<items.length?parseCell(items[j], defaultValue):Double.NaN;
 					if (value==defaultValue) {
 						String item = j<items.length?items[j]:"";
 						if (commasReplaced) {
-							item = item.replaceAll(commaSubstitute2, ",");
+							if (item.indexOf(commaSubstitute)>=0)
+								item = item.replaceAll(commaSubstitute2, ",");
 							if (item.startsWith("\"") && item.endsWith("\""))
 								item = item.substring(1, item.length()-1);
 						}
@@ -1268,17 +1316,190 @@ public class ResultsTable implements Cloneable {
 						rt.addValue(headings[j], value);
 				}
 			}
+			line = nextLine!=null?nextLine:reader.readLine();
+			nextLine = null;
 		}
 		return rt;
 	}
-	
-	private static int getTableType(String path, String[] lines, int firstRow, String cellSeparator) {
-		if (lines.length<2) return 0;
-		String[] items=lines[1].split(cellSeparator);
+
+	/** Converts a cell to a number, like Tools.parseDouble(String,double), but
+		without using an exception for text and directly for decimal numbers
+		with up to 15 digits. */
+	private static double parseCell(String s, double defaultValue) {
+		int length = s.length();
+		int start = 0;
+		while (start<length && s.charAt(start)<=' ')
+			start++;
+		if (start==length)
+			return defaultValue;
+		char c = s.charAt(start);
+		if (!(c>='0'&&c<='9' || c=='-' || c=='+' || c=='.' || c=='N' || c=='I'))
+			return defaultValue;
+		int i = start;
+		boolean negative = c=='-';
+		if (c=='-' || c=='+')
+			i++;
+		long mantissa = 0;
+		int digits = 0, decimals = 0;
+		boolean point = false;
+		for (; i<length; i++) {
+			c = s.charAt(i);
+			if (c>='0' && c<='9') {
+				if (++digits>15)
+					break;
+				mantissa = mantissa*10 + (c-'0');
+				if (point) decimals++;
+			} else if (c=='.' && !point)
+				point = true;
+			else
+				break;
+		}
+		if (i==length && digits>0) {
+			double value = decimals==0?mantissa:mantissa/powersOf10[decimals];
+			return negative?-value:value;
+		}
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/** Reads the lines of a table the way splitting the whole text at
+		line breaks does, without empty lines at the end. In CSV files,
+		commas between quotes are replaced by 'commaSubstitute'. */
+	private static class LineReader {
+		private BufferedReader reader;
+		private boolean csv, inQuotes;
+		private int emptyLines;
+		private String next;
+
+		LineReader(BufferedReader reader, boolean csv) {
+			this.reader = reader;
+			this.csv = csv;
+		}
+
+		String readLine() throws IOException {
+			if (emptyLines>0) {
+				emptyLines--;
+				return "";
+			}
+			String line = next;
+			next = null;
+			if (line==null) {
+				line = reader.readLine();
+				if (line!=null && line.length()==0) {
+					int n = 1;
+					while ((line=reader.readLine())!=null && line.length()==0)
+						n++;
+					if (line==null)
+						return null;
+					next = line;
+					emptyLines = n - 1;
+					return "";
+				}
+			}
+			if (line!=null && csv && (inQuotes || line.indexOf('"')>=0))
+				line = replaceQuotedCommas(line);
+			return line;
+		}
+
+		private String replaceQuotedCommas(String line) {
+			char[] c = line.toCharArray();
+			for (int i=0; i<c.length; i++) {
+				if (c[i]=='"')
+					inQuotes = !inQuotes;
+				if (inQuotes && c[i]==',')
+					c[i] = commaSubstitute;
+			}
+			return new String(c);
+		}
+
+		void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	/** Reads a table saved by saveBinary(). */
+	private static ResultsTable openBinary(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 65536));
+		try {
+			if (in.readInt()!=BINARY_MAGIC)
+				throw new IOException("This is not an ImageJ table: "+path);
+			int version = in.readInt();
+			if (version>BINARY_VERSION)
+				throw new IOException("Unsupported table version: "+version);
+			ResultsTable rt = new ResultsTable();
+			int rows = in.readInt();
+			int nColumns = in.readInt();
+			rt.precision = in.readShort();
+			rt.showRowNumbers = in.readBoolean();
+			rt.showRowNumbersSet = in.readBoolean();
+			rt.baseRowNumber = in.readInt();
+			rt.NaNEmptyCells = in.readBoolean();
+			rt.rowLabelHeading = in.readUTF();
+			ArrayList<String> strings = new ArrayList<String>();
+			if (in.readBoolean())
+				rt.rowLabels = ResultsColumn.read(in, rows, strings);
+			while (rt.maxColumns<nColumns)
+				rt.addColumns();
+			for (int i=0; i<nColumns; i++) {
+				rt.headings[i] = in.readUTF();
+				rt.decimalPlaces[i] = in.readShort();
+				rt.keep[i] = in.readBoolean();
+				rt.columns[i] = ResultsColumn.read(in, rows, strings);
+			}
+			rt.lastColumn = nColumns - 1;
+			rt.counter = rows;
+			return rt;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Saves this table in a compact binary form, which stores the values
+		of each column as they are stored in memory. */
+	private void saveBinary(String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 65536));
+		try {
+			int nColumns = 0;
+			for (int i=0; i<=lastColumn; i++) {
+				if (columns[i]!=null) nColumns++;
+			}
+			out.writeInt(BINARY_MAGIC);
+			out.writeInt(BINARY_VERSION);
+			out.writeInt(counter);
+			out.writeInt(nColumns);
+			out.writeShort(precision);
+			out.writeBoolean(showRowNumbers);
+			out.writeBoolean(showRowNumbersSet);
+			out.writeInt(baseRowNumber);
+			out.writeBoolean(NaNEmptyCells);
+			out.writeUTF(rowLabelHeading);
+			HashMap<String,Integer> stringIndexes = new HashMap<String,Integer>();
+			out.writeBoolean(rowLabels!=null);
+			if (rowLabels!=null)
+				rowLabels.write(out, counter, stringIndexes);
+			for (int i=0; i<=lastColumn; i++) {
+				if (columns[i]==null)
+					continue;
+				out.writeUTF(headings[i]!=null?headings[i]:"C"+(i+1));
+				out.writeShort(decimalPlaces[i]);
+				out.writeBoolean(keep[i]);
+				columns[i].write(out, counter, stringIndexes);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int getTableType(String path, String line1, String cellSeparator) {
+		if (line1==null) return 0;
+		String[] items=line1.split(cellSeparator);
 		int nonNumericCount = 0;
 		int nonNumericIndex = 0;
 		for (int i=0; i<items.length; i++) {
-			if (!items[i].equals("NaN") && Double.isNaN(Tools.parseDouble(items[i]))) {
+			if (!items[i].equals("NaN") && Double.isNaN(parseCell(items[i], Double.NaN))) {
 				nonNumericCount++;
 				nonNumericIndex = i;
 			}
@@ -1293,20 +1514,9 @@ public class ResultsTable implements Cloneable {
 		return 3;
 	}
 	
-	private static String replaceQuotedCommas(String text) {
-		char[] c = text.toCharArray();
-		boolean inQuotes = false;
-		for (int i=0; i<c.length; i++) {
-			if (c[i]=='"')
-				inQuotes = !inQuotes;
-			if (inQuotes && c[i]==',')
-				c[i] = commaSubstitute;
-		}
-		return new String(c);
-	}
-	
 	/** Saves this ResultsTable as a tab or comma delimited text file. The table
-	     is saved as a CSV (comma-separated values) file if 'path' ends with ".csv".
+	     is saved as a CSV (comma-separated values) file if 'path' ends with ".csv",
+	     or in binary form, which open() reads back, if 'path' ends with ".ijt".
 	     Displays a file save dialog if 'path' is empty or null. Does nothing if the
 	     table is empty. Displays an error message and returns 'false' if there is
 	     an error. */
@@ -1338,11 +1548,17 @@ public class ResultsTable implements Cloneable {
 				return;
 			path = sd.getDirectory() + file;
 		}
+		if (path.endsWith(BINARY_EXTENSION)) {
+			saveBinary(path);
+			if (renameWhenSaving)
+				title = new File(path).getName();
+			return;
+		}
 		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
 		delimiter = csv?',':'\t';
 		PrintWriter pw = null;
 		FileOutputStream fos = new FileOutputStream(path);
-		BufferedOutputStream bos = new BufferedOutputStream(fos);
+		BufferedOutputStream bos = new BufferedOutputStream(fos, 65536);
 		pw = new PrintWriter(bos);
 		boolean saveShowRowNumbers = showRowNumbers;
 		if (Prefs.dontSaveRowNumbers)	
@@ -1352,8 +1568,18 @@ public class ResultsTable implements Cloneable {
 			pw.println(headings);
 		}
 		quoteCommas = csv?true:false;
-		for (int i=0; i<size(); i++)
-			pw.println(getRowAsString(i));
+		StringBuilder sb = new StringBuilder(200);
+		char[] chars = new char[200];
+		for (int i=0; i<size(); i++) {
+			sb.setLength(0);
+			appendRow(sb, i);
+			int length = sb.length();
+			if (length>chars.length)
+				chars = new char[length*2];
+			sb.getChars(0, length, chars, 0);
+			pw.write(chars, 0, length);
+			pw.println();
+		}
 		quoteCommas = false;
 		showRowNumbers = saveShowRowNumbers;
 		pw.close();
@@ -1383,29 +1609,14 @@ public class ResultsTable implements Cloneable {
 			rt2.headings = new String[headings.length];
 			for (int i=0; i<=lastColumn; i++)
 				rt2.headings[i] = headings[i];
-			rt2.columns = new double[columns.length][];
+			rt2.columns = new ResultsColumn[columns.length];
 			for (int i=0; i<=lastColumn; i++) {
-				if (columns[i]!=null) {
-					double[] data = new double[maxRows];
-					for (int j=0; j<counter; j++)
-						data[j] = columns[i][j];
-					rt2.columns[i] = data;
-				}
-			}
-			if (rowLabels!=null) {
-				rt2.rowLabels = new String[rowLabels.length];
-				for (int i=0; i<counter; i++)
-					rt2.rowLabels[i] = rowLabels[i];
-			}
-			if (stringColumns!=null) {
-				rt2.stringColumns = new Hashtable();
-				Set set = stringColumns.keySet();
-				for (Iterator i=set.iterator(); i.hasNext();) {
-					Integer column = (Integer)i.next();
-					ArrayList list = (ArrayList)stringColumns.get(column);
-					rt2.stringColumns.put(column, list.clone());
-				}
+				if (columns[i]!=null)
+					rt2.columns[i] = (ResultsColumn)columns[i].clone();
 			}
+			if (rowLabels!=null)
+				rt2.rowLabels = (ResultsColumn)rowLabels.clone();
+			rt2.sharedStrings = null;
 			return rt2;
 		}
 		catch (CloneNotSupportedException e) {return null;}
@@ -1435,7 +1646,7 @@ public class ResultsTable implements Cloneable {
 			sb.append(columnNames[i]);
 			sb.append('=');
 			if (columnIndices[i] < 0)
-				sb.append(rowLabels[0]==null ? "\"\"" : '"'+rowLabels[0]+'"');
+				sb.append(rowLabels.getString(0)==null ? "\"\"" : '"'+rowLabels.getString(0)+'"');
 			else
 				sb.append(Math.abs(getValueAsDouble(columnIndices[i], 0))); //avoid negative values since minus would be extra token
 			sb.append(',');
@@ -1475,7 +1686,7 @@ public class ResultsTable implements Cloneable {
 			for (int col=0; col<columnHeadings.length; col++) {
 				if (columnInUse[col]) {             // set variable values for used columns
 					if (columnIndices[col] < 0) {
-						String str = rowLabels[row];
+						String str = rowLabels.getString(row);
 						interp.setVariable(columnNames[col], str);
 					} else {
 						double v = getValueAsDouble(columnIndices[col], row);
@@ -1491,7 +1702,7 @@ public class ResultsTable implements Cloneable {
 				if (columnInUse[col]) {             // set new values for previous columns
 					if (columnIndices[col] < 0) {
 						String str = interp.getVariableAsString(columnNames[col]);
-						rowLabels[row] = str;
+						rowLabels.setString(row, share(str));
 					} else {
 						double v = interp.getVariable(columnNames[col]);
 						setValue(columnIndices[col], row, v);
@@ -1584,54 +1795,63 @@ public class ResultsTable implements Cloneable {
 	/** Sorts this table on the specified column, with string support.
 	 * Author: 'mountain_man', 8 April 2019
 	*/
-	public void sort(String column) {
+	public synchronized void sort(String column) {
 		int col = getColumnIndex(column);
 		if (col==COLUMN_NOT_FOUND)
 			throw new IllegalArgumentException("Column not found");
 
 		// pad short string columns with "NaN" to avoid "holes" after sorting
-		if (stringColumns!=null) {
-		    for (Object c : stringColumns.values()) {
-			ArrayList sc = (ArrayList) c;
-		        for (int i = sc.size(); i < size(); i++)  sc.add ("NaN");
-		    }
+		for (int i = 0; i <= getLastColumn(); i++) {
+			ResultsColumn sc = columns[i];
+			if (sc!=null && sc.hasStrings()) {
+				for (int j = sc.getStringCount(); j < size(); j++)  sc.setString(j, "NaN");
+			}
 		}
 		
 		ComparableEntry[] ces = new ComparableEntry[size()];
-		ArrayList stringColumn = null;
-		if (stringColumns!=null)
-		    stringColumn = (ArrayList) stringColumns.get (Integer.valueOf(col));
+		ResultsColumn stringColumn = columns[col];
 		for (int i = 0; i < size(); i++) {
 		    ComparableEntry ce = new ComparableEntry();
 		    ce.index = i;
-		    ce.dValue = columns[col][i];
-		    if (stringColumn != null)
-			ce.sValue = (String) stringColumn.get (i);
+		    ce.dValue = columns[col].get(i);
+		    if (stringColumn.hasStrings())
+			ce.sValue = stringColumn.getString(i);
 		    ces[i] = ce;
 		}
 		Arrays.sort(ces);
-		// copy sorted values back into rt from a duplicate
-		ResultsTable rt2 = (ResultsTable)clone();
+		int[] order = new int[ces.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = ces[i].index;
+		ces = null;
+		// reorder one column at a time instead of copying the whole table
+		double[] values = new double[order.length];
+		String[] strings = null;
 		for (int i = 0; i <= getLastColumn(); i++) {
 			if (columns[i]==null)
 				continue;
-		    for (int j = 0; j < size(); j++)
-				columns[i][j] = rt2.columns[i][ces[j].index];
-		    ArrayList sc = null;
-		    Map scs =  stringColumns;
-		    	if (scs != null)
-			sc = (ArrayList) scs.get (Integer.valueOf(i));
-		    if (sc != null) {
-				ArrayList sc2 = (ArrayList) rt2.stringColumns.get (Integer.valueOf(i));
-				for (int j = 0; j < size(); j++)
-			    	sc.set (j, sc2.get (ces[j].index));
-		    }
+			for (int j = 0; j < order.length; j++)
+				values[j] = columns[i].get(order[j]);
+			for (int j = 0; j < order.length; j++)
+				columns[i].set(j, values[j]);
+			if (columns[i].hasStrings()) {
+				if (strings==null)
+					strings = new String[order.length];
+				reorderStrings(columns[i], order, strings);
+			}
 		}
 		if (rowLabels != null) {
-			for (int i = 0; i < size(); i++)
-				rowLabels[i] =  rt2.rowLabels[ces[i].index];
+			if (strings==null)
+				strings = new String[order.length];
+			reorderStrings(rowLabels, order, strings);
 		}
 	}
+
+	private static void reorderStrings(ResultsColumn column, int[] order, String[] strings) {
+		for (int j = 0; j < order.length; j++)
+			strings[j] = column.getString(order[j]);
+		for (int j = 0; j < order.length; j++)
+			column.setString(j, strings[j]);
+	}
 	
 	class ComparableEntry implements Comparable<ComparableEntry>  {
 		int index;
@@ -67,12 +67,15 @@ public class CircularRoiMaker implements PlugIn, DialogListener {
 		String s = " radius = ";
 		if (imp.getProperty("FHT")!=null) {
 			int width = imp.getWidth();
+			int height = imp.getHeight();
+			double scale = cal.scaled()?cal.pixelWidth:1.0;
+			String unit = cal.scaled()?" "+units+"/c":" p/c";
 			if (radius<1.0)
 				s += "Infinity/c";
-			else if (cal.scaled()) 
-				s += IJ.d2s((width/radius)*cal.pixelWidth,2) + " " + units + "/c";
-		   else
-				s += IJ.d2s(width/radius,2) + " p/c";
+			else if (width==height)
+				s += IJ.d2s((width/radius)*scale,2) + unit;
+			else // non-square spectrum: the circle has a different period along x and y
+				s += IJ.d2s((width/radius)*scale,2) + " (x), " + IJ.d2s((height/radius)*scale,2) + " (y)" + unit;
 		} else {
 			int digits = cal.pixelWidth==1.0?0:2;
 			s +=  IJ.d2s(radius*cal.pixelWidth,digits)+" "+units;
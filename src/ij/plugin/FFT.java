@@ -61,11 +61,11 @@ public class FFT implements PlugIn, Measurements {
 			return;
 		}
 		if (arg.equals("swap"))	 {
-			if (imp.getWidth()==imp.getHeight()) {
+			if (imp.getWidth()%2==0 && imp.getHeight()%2==0) {
 				swapQuadrants(imp.getStack());
 				imp.updateAndDraw();
 			} else
-				IJ.error("Swap Quadrants","Image must be square");
+				IJ.error("Swap Quadrants","Image width and height must be even");
 			return;
 		}
 	   if (arg.equals("inverse")) {
@@ -139,11 +139,10 @@ public class FFT implements PlugIn, Measurements {
 		FHT fht = obj!=null&&(obj instanceof FHT)?(FHT)obj:null;
 		if (fht==null)
 			return;
-		int size = fht.getWidth();
 		boolean isFloat = filter.getBitDepth()==32;
 		if (!isFloat)
 			filter =  filter.convertToByte(true);					
-		filter = filter.resize(size, size);
+		filter = filter.resize(fht.getWidth(), fht.getHeight());
 		swapQuadrants(filter);
 		float[] fhtPixels = (float[])fht.getPixels();
 		for (int i=0; i<fhtPixels.length; i++) {
@@ -324,24 +323,25 @@ public class FFT implements PlugIn, Measurements {
 		return fht;
 	}
 	
+	/** Pads the image, with its mean value, to an even width and height that
+		only have prime factors 2, 3, 5 and 7, so that it can be transformed
+		efficiently. */
 	ImageProcessor pad(ImageProcessor ip) {
 		originalWidth = ip.getWidth();
 		originalHeight = ip.getHeight();
-		int maxN = Math.max(originalWidth, originalHeight);
-		int i = 2;
-		while(i<maxN) i *= 2;
-		if (i==maxN && originalWidth==originalHeight) {
+		int width = FHT.getFastSize(originalWidth);
+		int height = FHT.getFastSize(originalHeight);
+		if (width==originalWidth && height==originalHeight) {
 			padded = false;
 			return ip;
 		}
-		maxN = i;
-		showStatus("Padding to "+ maxN + "x" + maxN);
-		if (maxN>=65536) {
-			IJ.error("FFT", "Padded image is too large ("+maxN+"x"+maxN+")");
+		showStatus("Padding to "+ width + "x" + height);
+		if (width>=65536 || height>=65536) {
+			IJ.error("FFT", "Padded image is too large ("+width+"x"+height+")");
 			return null;
 		}
 		ImageStatistics stats = ImageStatistics.getStatistics(ip, MEAN, null);
-		ImageProcessor ip2 = ip.createProcessor(maxN, maxN);
+		ImageProcessor ip2 = ip.createProcessor(width, height);
 		ip2.setValue(stats.mean);
 		ip2.fill();
 		ip2.insert(ip, 0, 0);
@@ -393,41 +393,43 @@ public class FFT implements PlugIn, Measurements {
 
 	// Change pixels not equal to v1 to the new value v2.
 	// For pixels equal to v1, also the symmetry-equivalent pixel is set to v1
-	// Requires a quadratic 8-bit image.
+	// Requires an 8-bit image with even width and height.
 	void changeValuesAndSymmetrize(ImageProcessor ip, byte v1, byte v2) {
 		byte[] pixels = (byte[])ip.getPixels();
-		int n = ip.getWidth();
+		int w = ip.getWidth();
+		int h = ip.getHeight();
 		for (int i=0; i<pixels.length; i++) {
 			if (pixels[i] == v1) {	//pixel has been edited for pass or filter, set symmetry-equivalent
-				if (i%n==0) {		//left edge
-					if (i>0) pixels[n*n-i] = v1;
-				} else if (i<n)		//top edge
-					pixels[n-i] = v1;
-				else				//no edge
-					pixels[n*(n+1)-i] = v1;
+				int x = i%w, y = i/w;
+				pixels[((h-y)%h)*w + (w-x)%w] = v1;
 			} else
 				pixels[i] = v2;		//reset all other pixel values
 		}
 	}
 
-	// Smooth an 8-bit square image with periodic boundary conditions
+	// Smooth an 8-bit image with periodic boundary conditions
 	// by averaging over 3x3 pixels
-	// Requires a quadratic 8-bit image.
 	static void smooth(ImageProcessor ip) {
 		byte[] pixels = (byte[])ip.getPixels();
 		byte[] pixels2 = (byte[])pixels.clone();
-		int n = ip.getWidth();
-		int[] iMinus = new int[n];	//table of previous index modulo n
-		int[] iPlus = new int[n];	//table of next index modulo n
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		int n = Math.max(w, h);
+		int[] iMinus = new int[n];	//table of previous index modulo w
+		int[] iPlus = new int[n];	//table of next index modulo w
+		int[] yMinus = new int[n];	//table of previous index modulo h
+		int[] yPlus = new int[n];	//table of next index modulo h
 		for (int i=0; i<n; i++) {	//creating the tables in advance is faster calculating each time
-			iMinus[i] = (i-1+n)%n;
-			iPlus[i] = (i+1)%n;
+			iMinus[i] = (i-1+w)%w;
+			iPlus[i] = (i+1)%w;
+			yMinus[i] = (i-1+h)%h;
+			yPlus[i] = (i+1)%h;
 		}
-		for (int y=0; y<n; y++) {
-			int offset1 = n*iMinus[y];
-			int offset2 = n*y;
-			int offset3 = n*iPlus[y];
-			for (int x=0; x<n; x++) {
+		for (int y=0; y<h; y++) {
+			int offset1 = w*yMinus[y];
+			int offset2 = w*y;
+			int offset3 = w*yPlus[y];
+			for (int x=0; x<w; x++) {
 				int sum = (pixels2[offset1+iMinus[x]]&255)
 						+ (pixels2[offset1+x]&255)
 						+ (pixels2[offset1+iPlus[x]]&255)
@@ -450,25 +452,29 @@ public class FFT implements PlugIn, Measurements {
 		imp.setProcessor(null, ps);
 	}
 	
+	/** Swaps quadrants 1 and 3 and 2 and 4 of the image, so the origin of a
+		frequency domain image is at the center. The image is shifted circularly
+		by half its width and height; with an even width and height, this
+		operation is its own inverse. */
 	public static void swapQuadrants(ImageProcessor ip) {
- 		long time0 = System.currentTimeMillis();
- 		ImageProcessor t1, t2;
-		int size = ip.getWidth()/2;
-		ip.setRoi(size,0,size,size);
+ 		ImageProcessor t1, t2, t3, t4;
+ 		int width = ip.getWidth();
+ 		int height = ip.getHeight();
+		int w1 = width/2, h1 = height/2;
+		int w2 = width-w1, h2 = height-h1;
+		ip.setRoi(w2,0,w1,h2);
 		t1 = ip.crop();
-  		ip.setRoi(0,size,size,size);
+  		ip.setRoi(0,h2,w2,h1);
 		t2 = ip.crop();
-		ip.insert(t1,0,size);
-		ip.insert(t2,size,0);
-		ip.setRoi(0,0,size,size);
-		t1 = ip.crop();
-  		ip.setRoi(size,size,size,size);
-		t2 = ip.crop();
-		ip.insert(t1,size,size);
-		ip.insert(t2,0,0);
+		ip.setRoi(0,0,w2,h2);
+		t3 = ip.crop();
+  		ip.setRoi(w2,h2,w1,h1);
+		t4 = ip.crop();
+		ip.insert(t1,0,h1);
+		ip.insert(t2,w1,0);
+		ip.insert(t3,w1,h1);
+		ip.insert(t4,0,0);
 		ip.resetRoi();
-		long time1 = System.currentTimeMillis();
-		//IJ.log(""+(time1-time0)+" "+ip);
 	}
 
 	void swapQuadrants(ImageStack stack) {
@@ -534,14 +540,15 @@ public class FFT implements PlugIn, Measurements {
 		ImageStack stack = imp.getStack();
 		if (!stack.getSliceLabel(1).equals("Real"))
 			return;
-		int maxN = imp.getWidth();
+		int width = imp.getWidth();
+		int height = imp.getHeight();
 		swapQuadrants(stack);
 		float[] rein = (float[])stack.getPixels(1);
 		float[] imin = (float[])stack.getPixels(2);
-		float[] reout= new float[maxN*maxN];
-		float[] imout = new float[maxN*maxN];
-		c2c2DFFT(rein, imin, maxN, reout, imout);
-		ImageStack stack2 = new ImageStack(maxN, maxN);
+		float[] reout= new float[width*height];
+		float[] imout = new float[width*height];
+		c2c2DFFT(rein, imin, width, height, reout, imout);
+		ImageStack stack2 = new ImageStack(width, height);
 		swapQuadrants(stack);
 		stack2.addSlice("Real", reout);
 		stack2.addSlice("Imaginary", imout);
@@ -557,10 +564,6 @@ public class FFT implements PlugIn, Measurements {
 		int height = (int)imp.getNumericProp("Original height");
 		if (width==0 || height==0 || (width==img.getWidth()&&height==img.getHeight()))
 			return img;
-		int i=2;
-		while (i<width) i *= 2;
-		if (i==width && width==height)
-			return img;
 		img.setRoi(0, 0, width, height);
 		return img.crop("stack");
 	}
@@ -569,37 +572,41 @@ public class FFT implements PlugIn, Measurements {
 	*	Author: Joachim Wesner
 	*/
 	void c2c2DFFT(float[] rein, float[] imin, int maxN, float[] reout, float[] imout) {
-			FHT fht = new FHT(new FloatProcessor(maxN,maxN));
+			c2c2DFFT(rein, imin, maxN, maxN, reout, imout);
+	  }
+
+	void c2c2DFFT(float[] rein, float[] imin, int w, int h, float[] reout, float[] imout) {
+			FHT fht = new FHT(new FloatProcessor(w,h));
 			float[] fhtpixels = (float[])fht.getPixels();
 			// Real part of inverse transform
-			for (int iy = 0; iy < maxN; iy++)
-				  cplxFHT(iy, maxN, rein, imin, false, fhtpixels);
+			for (int iy = 0; iy < h; iy++)
+				  cplxFHT(iy, w, h, rein, imin, false, fhtpixels);
 			fht.inverseTransform();
 			// Save intermediate result, so we can do a "in-place" transform
-			float[] hlp = new float[maxN*maxN];
-			System.arraycopy(fhtpixels, 0, hlp, 0, maxN*maxN);
+			float[] hlp = new float[w*h];
+			System.arraycopy(fhtpixels, 0, hlp, 0, w*h);
 			// Imaginary part of inverse transform
-			for (int iy = 0; iy < maxN; iy++)
-				  cplxFHT(iy, maxN, rein, imin, true, fhtpixels);
+			for (int iy = 0; iy < h; iy++)
+				  cplxFHT(iy, w, h, rein, imin, true, fhtpixels);
 			fht.inverseTransform();
-			System.arraycopy(hlp, 0, reout, 0, maxN*maxN);
-			System.arraycopy(fhtpixels, 0, imout, 0, maxN*maxN);
+			System.arraycopy(hlp, 0, reout, 0, w*h);
+			System.arraycopy(fhtpixels, 0, imout, 0, w*h);
 	  }
 
 	/** Build FHT input for equivalent inverse FFT
 	*	Author: Joachim Wesner
 	*/
-	void cplxFHT(int row, int maxN, float[] re, float[] im, boolean reim, float[] fht) {
-			int base = row*maxN;
-			int offs = ((maxN-row)%maxN) * maxN;
+	void cplxFHT(int row, int w, int h, float[] re, float[] im, boolean reim, float[] fht) {
+			int base = row*w;
+			int offs = ((h-row)%h) * w;
 			if (!reim) {
-				  for (int c=0; c<maxN; c++) {
-						int l =	 offs + (maxN-c)%maxN;
+				  for (int c=0; c<w; c++) {
+						int l =	 offs + (w-c)%w;
 						fht[base+c] = ((re[base+c]+re[l]) - (im[base+c]-im[l]))*0.5f;
 				  }
 			} else {
-				  for (int c=0; c<maxN; c++) {
-						int l = offs + (maxN-c)%maxN;
+				  for (int c=0; c<w; c++) {
+						int l = offs + (w-c)%w;
 						fht[base+c] = ((im[base+c]+im[l]) + (re[base+c]-re[l]))*0.5f;
 				  }
 			}
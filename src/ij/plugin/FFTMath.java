@@ -16,6 +16,7 @@ public class FFTMath implements PlugIn {
     private static int index2;
     private static int operation = CONJUGATE_MULTIPLY;
     private static boolean doInverse = true;
+    private static boolean processStack;
     private static String title = "Result";
     private ImagePlus imp1, imp2;
             
@@ -31,21 +32,24 @@ public class FFTMath implements PlugIn {
             return false;
         }
         int nGoodImages = 0;
+        boolean stacks = false;
         for (int i=0; i<wList.length; i++) {
             ImagePlus imp = WindowManager.getImage(wList[i]);
-            if (imp == null || imp.getWidth() != imp.getHeight() || !FHT.isPowerOf2(imp.getWidth()))
-                wList[i] = 0;               //mark images that are not a power of 2
-            else
+            if (imp == null)
+                wList[i] = 0;
+            else {
                 nGoodImages++;
+                stacks |= imp.getStackSize()>1;
+            }
         }
         if (nGoodImages == 0) {
-        	IJ.error("FFT Math", "Images must be a power of 2 size (256x256, 512x512, etc.)");
+        	IJ.noImage();
         	return false;
         }
         int[] wList2 = new int[nGoodImages];
         String[] titles = new String[nGoodImages];
         for (int i=0, i2=0; i<wList.length; i++) {
-            if (wList[i] == 0) continue;    //ignore this image, not power of 2
+            if (wList[i] == 0) continue;
             wList2[i2] = wList[i];
             ImagePlus imp = WindowManager.getImage(wList2[i2]);
             if (imp!=null)
@@ -64,6 +68,8 @@ public class FFTMath implements PlugIn {
         gd.addChoice("Image2: ", titles, titles[index2]);
         gd.addStringField("Result:", title);
         gd.addCheckbox("Do inverse transform", doInverse);
+        if (stacks)
+            gd.addCheckbox("Process entire stack", processStack);
         gd.addHelp(IJ.URL+"/docs/menus/process.html#fft-math");
         gd.showDialog();
         if (gd.wasCanceled())
@@ -73,6 +79,8 @@ public class FFTMath implements PlugIn {
         index2 = gd.getNextChoiceIndex();
         title = gd.getNextString();
         doInverse = gd.getNextBoolean();
+        if (stacks)
+            processStack = gd.getNextBoolean();
         imp1 = WindowManager.getImage(wList2[index1]);
         imp2 = WindowManager.getImage(wList2[index2]);
         return true;
@@ -82,6 +90,10 @@ public class FFTMath implements PlugIn {
     	FHT h1, h2=null;
     	ImageProcessor fht1, fht2;
 		fht1  = (ImageProcessor)imp1.getProperty("FHT");
+		if (processStack && doInverse && imp1.getStackSize()>1 && fht1==null && imp2.getProperty("FHT")==null) {
+			doStackMath(imp1, imp2);
+			return;
+		}
 		if (fht1!=null)
 			h1 = new FHT(fht1);
 		else {
@@ -97,11 +109,7 @@ public class FFTMath implements PlugIn {
         	if (imp2!=imp1)
        	 		h2 = new FHT(ip2);
        	}
-        if (!h1.powerOf2Size()) {
-        	IJ.error("FFT Math", "Images must be a power of 2 size (256x256, 512x512, etc.)");
-        	return;
-        }
-        if (imp1.getWidth()!=imp2.getWidth()) {
+        if (h2!=null && (h1.getWidth()!=h2.getWidth() || h1.getHeight()!=h2.getHeight())) {
         	IJ.error("FFT Math", "Images must be the same size");
         	return;
         }
@@ -117,21 +125,7 @@ public class FFTMath implements PlugIn {
 					h2.transform();
 				}
 		}
-		FHT result=null;
-		switch (operation) {
-			case CONJUGATE_MULTIPLY: 
-				IJ.showStatus("Complex conjugate multiply");
-				result = h1.conjugateMultiply(h2); 
-				break;
-			case MULTIPLY: 
-				IJ.showStatus("Fourier domain multiply");
-				result = h1.multiply(h2); 
-				break;
-			case DIVIDE: 
-				IJ.showStatus("Fourier domain divide");
-				result = h1.divide(h2); 
-				break;
-		}
+		FHT result = doOperation(h1, h2);
 		ImagePlus imp3 = null;
 		if (doInverse) {
 			IJ.showStatus("Inverse transform");
@@ -148,6 +142,66 @@ public class FFTMath implements PlugIn {
 			result.quadrantSwapNeeded = true;
 			imp3.setProperty("FHT", result);
 		}
+		show(imp3, imp1, imp2);
+    }
+
+    /** Correlates, convolves or deconvolves all slices of the stack 'imp1' with
+    	the corresponding slices of 'imp2', or with 'imp2' if it is a single image.
+    	The slices are transformed in parallel. */
+    private void doStackMath(ImagePlus imp1, ImagePlus imp2) {
+		ImageStack stack1 = imp1.getStack();
+		ImageStack stack2 = imp2.getStack();
+		int n = stack1.size();
+		int n2 = stack2.size();
+		if (n2!=1 && n2!=n) {
+			IJ.error("FFT Math", "Image2 must be a single image or a stack with "+n+" slices");
+			return;
+		}
+		if (imp1.getWidth()!=imp2.getWidth() || imp1.getHeight()!=imp2.getHeight()) {
+			IJ.error("FFT Math", "Images must be the same size");
+			return;
+		}
+		IJ.showStatus("Transform image1");
+		FHT[] h1 = FHT.transform(stack1);
+		FHT[] h2 = h1;
+		if (imp2!=imp1) {
+			IJ.showStatus("Transform image2");
+			if (n2==1) {
+				h2 = new FHT[] {new FHT(imp2.getProcessor())};
+				FHT.transform(h2, false);
+			} else
+				h2 = FHT.transform(stack2);
+		}
+		FHT[] result = new FHT[n];
+		for (int i=0; i<n; i++)
+			result[i] = doOperation(h1[i], h2[n2==1?0:i]);
+		IJ.showStatus("Inverse transform");
+		ImageStack stack3 = FHT.inverseTransform(result);
+		for (int i=0; i<n; i++) {
+			result[i].swapQuadrants();
+			stack3.setSliceLabel(stack1.getSliceLabel(i+1), i+1);
+		}
+		ImagePlus imp3 = new ImagePlus(title, stack3);
+		imp3.getProcessor().resetMinAndMax();
+		show(imp3, imp1, imp2);
+    }
+
+    private FHT doOperation(FHT h1, FHT h2) {
+		switch (operation) {
+			case CONJUGATE_MULTIPLY: 
+				IJ.showStatus("Complex conjugate multiply");
+				return h1.conjugateMultiply(h2); 
+			case MULTIPLY: 
+				IJ.showStatus("Fourier domain multiply");
+				return h1.multiply(h2); 
+			case DIVIDE: 
+				IJ.showStatus("Fourier domain divide");
+				return h1.divide(h2); 
+		}
+		return null;
+    }
+
+    private void show(ImagePlus imp3, ImagePlus imp1, ImagePlus imp2) {
 		Calibration cal1 = imp1.getCalibration();
 		Calibration cal2 = imp2.getCalibration();
 		Calibration cal3 = cal1.scaled() ? cal1 : cal2;
@@ -201,10 +201,12 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 		if (IJ.debugMode) {
 			long t0 = System.currentTimeMillis();
 			FileOpener fo = new FileOpener(info[n-1]);
+			fo.setMemoryMapped(true);
 			ip = fo.openProcessor();
 			IJ.log("FileInfoVirtualStack: "+n+", offset="+info[n-1].getOffset()+", "+(System.currentTimeMillis()-t0)+"ms");
 		} else {
 			FileOpener fo = new FileOpener(info[n-1]);
+			fo.setMemoryMapped(true);
 			if (info[n-1].fileType==FileInfo.RGB48) {
 				ImagePlus imp = fo.openImage();
 				if (info[n-1].sliceNumber>0)
@@ -4,8 +4,11 @@ import ij.*;
 import ij.process.*;
 import ij.gui.GenericDialog;
 import ij.util.ThreadUtil;
+import ij.plugin.filter.RankFilters;
 import ij.plugin.RGBStackMerge;
 import ij.gui.*;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /*
@@ -93,29 +96,353 @@ public class Filters3D implements PlugIn {
 			else
 				res = ImageStack.create(width, height, depth, stackorig.getBitDepth());
 			IJ.showStatus("3D filtering...");
-			// PARALLEL 
+			// PARALLEL: each thread filters a slab of slices
 			final ImageStack out = res;
+			final int[] lineRadii = makeLineRadii(voisx, voisy, voisz);
 			final AtomicInteger ai = new AtomicInteger(0);
-			final int n_cpus = Prefs.getThreads();
-
+			final int n_cpus = Math.min(Prefs.getThreads(), depth);
 			final int f = filter;
-			final int dec = (int) Math.ceil((double) stack.size() / (double) n_cpus);
-			Thread[] threads = ThreadUtil.createThreadArray(n_cpus);
-			for (int ithread = 0; ithread < threads.length; ithread++) {
-				threads[ithread] = new Thread() {
-					public void run() {
-						StackProcessor processor = new StackProcessor(stack);
-						for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) {
-							processor.filter3D(out, voisx, voisy, voisz, dec * k, dec * (k + 1), f);
-						}
+			final int dec = (int) Math.ceil((double) depth / (double) n_cpus);
+			Callable<?>[] callables = new Callable<?>[n_cpus];
+			for (int ithread = 0; ithread < callables.length; ithread++) {
+				callables[ithread] = new Callable<Void>() {
+					final public Void call() {
+						for (int k = ai.getAndIncrement(); k < n_cpus && !Thread.currentThread().isInterrupted(); k = ai.getAndIncrement())
+							filterSlab(stack, out, f, lineRadii, dec * k, Math.min(dec * (k + 1), depth));
+						return null;
 					}
 				};
 			}
-			ThreadUtil.startAndJoin(threads);
+			ThreadUtil.startAndJoinInPool(callables);
+			IJ.showProgress(1.0);
 		}
 		return res;
 	}
 	
+	/** Returns the extent of the ellipsoid kernel along x for each of its lines,
+	 * with the same kernel as StackProcessor.filter3D. The line for offsets (dy, dz)
+	 * has index (dz+vz)*(2*vy+1)+(dy+vy) and extends from -r to r, or is empty if r<0.
+	 * The last three elements are vx, vy and vz. */
+	private static int[] makeLineRadii(float radx, float rady, float radz) {
+		int vx = (int) Math.ceil(radx);
+		int vy = (int) Math.ceil(rady);
+		int vz = (int) Math.ceil(radz);
+		double rx2 = radx!=0 ? 1.0/(radx*radx) : 0;
+		double ry2 = rady!=0 ? 1.0/(rady*rady) : 0;
+		double rz2 = radz!=0 ? 1.0/(radz*radz) : 0;
+		int nLines = (2*vy+1)*(2*vz+1);
+		int[] lineRadii = new int[nLines+3];
+		for (int k=-vz, line=0; k<=vz; k++) {
+			for (int j=-vy; j<=vy; j++, line++) {
+				lineRadii[line] = -1;
+				for (int i=0; i<=vx; i++)
+					if (((double)(i*i))*rx2 + ((double)(j*j))*ry2 + ((double)(k*k))*rz2 <= 1.0)
+						lineRadii[line] = i;
+			}
+		}
+		lineRadii[nLines] = vx;
+		lineRadii[nLines+1] = vy;
+		lineRadii[nLines+2] = vz;
+		return lineRadii;
+	}
+
+	/** Filters slices z0 to z1-1 (0-based) of 'stack' into 'out'. Only the input slices
+	 * within the kernel depth are kept, as float arrays, so virtual stacks are read slice
+	 * by slice. Along each line, the kernel state (sums, extremum or histogram) is updated
+	 * with the voxels entering and leaving the kernel, instead of visiting the whole kernel
+	 * for each voxel. Voxels outside the stack are not part of the neighborhood. */
+	private static void filterSlab(ImageStack stack, ImageStack out, int filter, int[] lineRadii, int z0, int z1) {
+		int width = stack.getWidth();
+		int height = stack.getHeight();
+		int depth = stack.size();
+		int nLines = lineRadii.length-3;
+		int vy = lineRadii[nLines+1];
+		int vz = lineRadii[nLines+2];
+		int kHeight = 2*vy+1;
+		float[][] slices = new float[2*vz+1][];	// ring buffer of input slices, slice z at z%(2*vz+1)
+		int[] sliceInCache = new int[2*vz+1];
+		Arrays.fill(sliceInCache, -1);
+		// current kernel lines within the stack
+		float[][] lineData = new float[nLines][];
+		int[] lineOffset = new int[nLines];
+		int[] lineRadius = new int[nLines];
+		int bitDepth = out.getBitDepth();
+		boolean histogramMedian = filter==MEDIAN && (bitDepth==8 || bitDepth==16);
+		int histogramShift = bitDepth==16 ? 8 : 4;
+		int[] histogram = histogramMedian ? new int[bitDepth==16 ? 65536 : 256] : null;
+		int[] coarseHistogram = histogramMedian ? new int[(histogram.length>>histogramShift)+1] : null;
+		int maxPoints = 0;
+		for (int line=0; line<nLines; line++)
+			if (lineRadii[line]>=0) maxPoints += 2*lineRadii[line]+1;
+		float[] buf = filter==MEDIAN && !histogramMedian ? new float[maxPoints] : null;
+		double[] values = new double[width];
+		for (int z=z0; z<z1; z++) {
+			if (Thread.currentThread().isInterrupted())
+				return;
+			if (z0==0) IJ.showProgress(z+1, z1);
+			for (int zz=Math.max(z-vz,0); zz<=Math.min(z+vz,depth-1); zz++) {
+				int slot = zz%slices.length;
+				if (sliceInCache[slot]!=zz) {
+					slices[slot] = getFloatPixels(stack, zz+1, slices[slot]);
+					sliceInCache[slot] = zz;
+				}
+			}
+			Object outPixels = out.getPixels(z+1);
+			for (int y=0; y<height; y++) {
+				int n = 0;
+				for (int line=0; line<nLines; line++) {
+					int yy = y + line%kHeight - vy;
+					int zz = z + line/kHeight - vz;
+					if (lineRadii[line]<0 || yy<0 || yy>=height || zz<0 || zz>=depth)
+						continue;
+					lineData[n] = slices[zz%slices.length];
+					lineOffset[n] = yy*width;
+					lineRadius[n] = lineRadii[line];
+					n++;
+				}
+				switch (filter) {
+					case MEAN: case VAR:
+						filterLineSums(values, width, lineData, lineOffset, lineRadius, n, filter==VAR);
+						break;
+					case MIN: case MAX:
+						filterLineMinMax(values, width, lineData, lineOffset, lineRadius, n, filter==MIN?-1f:1f);
+						break;
+					case MEDIAN:
+						if (histogramMedian)
+							filterLineMedianHistogram(values, width, lineData, lineOffset, lineRadius, n,
+									histogram, coarseHistogram, histogramShift);
+						else
+							filterLineMedian(values, width, lineData, lineOffset, lineRadius, n, buf);
+						break;
+				}
+				writeLine(values, outPixels, y*width, width);
+			}
+		}
+	}
+
+	/** Returns the pixels of slice n (1-based) as float array, reusing 'pixels' if possible.
+	 * Float pixels of stacks in memory are not copied. */
+	private static float[] getFloatPixels(ImageStack stack, int n, float[] pixels) {
+		Object data;
+		if (stack.isVirtual()) {
+			synchronized (stack) {
+				data = stack.getProcessor(n).getPixels();
+			}
+		} else
+			data = stack.getPixels(n);
+		if (data instanceof float[])
+			return (float[])data;
+		int size = stack.getWidth()*stack.getHeight();
+		if (pixels==null || pixels.length!=size)
+			pixels = new float[size];
+		if (data instanceof byte[]) {
+			byte[] bytes = (byte[])data;
+			for (int i=0; i<size; i++)
+				pixels[i] = bytes[i]&0xff;
+		} else if (data instanceof short[]) {
+			short[] shorts = (short[])data;
+			for (int i=0; i<size; i++)
+				pixels[i] = shorts[i]&0xffff;
+		}
+		return pixels;
+	}
+
+	/** Writes a line of filtered values, rounding and clipping like ImageStack.setVoxel. */
+	private static void writeLine(double[] values, Object pixels, int offset, int width) {
+		if (pixels instanceof float[]) {
+			float[] floats = (float[])pixels;
+			for (int x=0; x<width; x++)
+				floats[offset+x] = (float)values[x];
+		} else if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int x=0; x<width; x++) {
+				double value = values[x];
+				bytes[offset+x] = (byte)((value>255.0?255.0:(value<0.0?0.0:value))+0.5);
+			}
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int x=0; x<width; x++) {
+				double value = values[x];
+				shorts[offset+x] = (short)((value>65535.0?65535.0:(value<0.0?0.0:value))+0.5);
+			}
+		}
+	}
+
+	/** Mean or variance along a line, from the sum and sum of squares of the kernel voxels,
+	 * which are updated with the voxels entering and leaving the kernel. */
+	private static void filterLineSums(double[] values, int width, float[][] lineData, int[] lineOffset,
+			int[] lineRadius, int nLines, boolean variance) {
+		double sum = 0, sum2 = 0;
+		int count = 0;
+		for (int x=0; x<width; x++) {
+			if (x==0 || Double.isNaN(sum)) {		// full calculation; also avoids perpetuating NaNs
+				sum = 0; sum2 = 0; count = 0;
+				for (int line=0; line<nLines; line++) {
+					float[] data = lineData[line];
+					int r = lineRadius[line];
+					for (int i=Math.max(x-r,0), p=lineOffset[line]+i; i<=Math.min(x+r,width-1); i++, p++) {
+						float v = data[p];
+						sum += v;
+						sum2 += v*v;
+						count++;
+					}
+				}
+			} else {
+				for (int line=0; line<nLines; line++) {
+					float[] data = lineData[line];
+					int r = lineRadius[line];
+					if (x-r-1>=0) {				// this voxel is not in the kernel any more
+						float v = data[lineOffset[line]+x-r-1];
+						sum -= v;
+						sum2 -= v*v;
+						count--;
+					}
+					if (x+r<width) {				// this voxel comes into the kernel
+						float v = data[lineOffset[line]+x+r];
+						sum += v;
+						sum2 += v*v;
+						count++;
+					}
+				}
+			}
+			if (variance)
+				values[x] = count==1 ? 0.0 : (sum2 - sum*sum/count)/(count-1);
+			else
+				values[x] = sum/count;
+		}
+	}
+
+	/** Maximum (or minimum if sign=-1) along a line. The kernel is only searched if
+	 * the voxels leaving it may have contained the previous maximum. */
+	private static void filterLineMinMax(double[] values, int width, float[][] lineData, int[] lineOffset,
+			int[] lineRadius, int nLines, float sign) {
+		float max = -Float.MAX_VALUE;
+		for (int x=0; x<width; x++) {
+			boolean fullCalculation = x==0;
+			if (!fullCalculation) {
+				float newMax = -Float.MAX_VALUE, removedMax = -Float.MAX_VALUE;
+				for (int line=0; line<nLines; line++) {
+					int r = lineRadius[line];
+					if (x+r<width) {
+						float v = lineData[line][lineOffset[line]+x+r]*sign;
+						if (v>newMax) newMax = v;
+					}
+					if (x-r-1>=0) {
+						float v = lineData[line][lineOffset[line]+x-r-1]*sign;
+						if (v>removedMax) removedMax = v;
+					}
+				}
+				if (newMax>=max)
+					max = newMax;
+				else if (removedMax>=max)
+					fullCalculation = true;
+			}
+			if (fullCalculation) {
+				max = -Float.MAX_VALUE;
+				for (int line=0; line<nLines; line++) {
+					float[] data = lineData[line];
+					int r = lineRadius[line];
+					for (int i=Math.max(x-r,0), p=lineOffset[line]+i; i<=Math.min(x+r,width-1); i++, p++) {
+						float v = data[p]*sign;
+						if (v>max) max = v;
+					}
+				}
+			}
+			values[x] = max*sign;
+		}
+	}
+
+	/** Median along a line of 8-bit or 16-bit data, with a histogram of the kernel that
+	 * is updated with the voxels entering and leaving it. Empty blocks of (1<<shift) bins
+	 * are skipped using 'coarseHist'. For an even number of voxels (at the edges), the
+	 * mean of the two central values is used. The histograms are empty when done. */
+	private static void filterLineMedianHistogram(double[] values, int width, float[][] lineData, int[] lineOffset,
+			int[] lineRadius, int nLines, int[] hist, int[] coarseHist, int shift) {
+		int blockMask = (1<<shift) - 1;
+		int median = 0;
+		int nBelow = 0;								// number of values < median
+		int count = 0;
+		for (int x=0; x<width; x++) {
+			for (int line=0; line<nLines; line++) {
+				float[] data = lineData[line];
+				int r = lineRadius[line];
+				int iStart = x==0 ? 0 : x+r;			// at x=0, add the whole kernel
+				for (int i=iStart; i<=Math.min(x+r,width-1); i++) {
+					int v = (int)data[lineOffset[line]+i];
+					hist[v]++;
+					coarseHist[v>>shift]++;
+					if (v<median) nBelow++;
+					count++;
+				}
+				if (x-r-1>=0) {
+					int v = (int)data[lineOffset[line]+x-r-1];
+					hist[v]--;
+					coarseHist[v>>shift]--;
+					if (v<median) nBelow--;
+					count--;
+				}
+			}
+			int half = count/2;
+			while (nBelow>half) {						// median is lower
+				median--;
+				if (coarseHist[median>>shift]==0)
+					median &= ~blockMask;
+				nBelow -= hist[median];
+			}
+			while (nBelow+hist[median]<=half) {		// median is higher
+				nBelow += hist[median];
+				median++;
+				if ((median&blockMask)==0)
+					while (coarseHist[median>>shift]==0)
+						median += blockMask + 1;
+			}
+			if (count%2==1 || nBelow<half)
+				values[x] = median;
+			else {									// even count: also need the next lower value
+				int lower = median-1;
+				while (hist[lower]==0) {
+					if (coarseHist[lower>>shift]==0)
+						lower = (lower&~blockMask) - 1;
+					else
+						lower--;
+				}
+				values[x] = 0.5f*(lower+median);
+			}
+		}
+		for (int line=0; line<nLines; line++) {		// clear the histograms for the next line
+			float[] data = lineData[line];
+			int r = lineRadius[line];
+			for (int i=Math.max(width-1-r,0); i<width; i++) {
+				int v = (int)data[lineOffset[line]+i];
+				hist[v]--;
+				coarseHist[v>>shift]--;
+			}
+		}
+	}
+
+	/** Median along a line of float data, selecting from the voxels of each kernel. */
+	private static void filterLineMedian(double[] values, int width, float[][] lineData, int[] lineOffset,
+			int[] lineRadius, int nLines, float[] buf) {
+		for (int x=0; x<width; x++) {
+			int count = 0;
+			for (int line=0; line<nLines; line++) {
+				float[] data = lineData[line];
+				int r = lineRadius[line];
+				for (int i=Math.max(x-r,0), p=lineOffset[line]+i; i<=Math.min(x+r,width-1); i++, p++)
+					buf[count++] = data[p];
+			}
+			int half = count/2;
+			float median = RankFilters.findNthLowestNumber(buf, count, half);
+			if (count%2==0) {							// the values below 'half' are not higher than the median
+				float lower = buf[0];
+				for (int i=1; i<half; i++)
+					if (buf[i]>lower) lower = buf[i];
+				median = 0.5f*(lower+median);
+			}
+			values[x] = median;
+		}
+	}
+
 	private static void filterHyperstack(ImagePlus imp, int filter, float vx, float vy, float vz) {
 		if (imp.getNDimensions()>4) {
 			IJ.error("5D hyperstacks are currently not supported");
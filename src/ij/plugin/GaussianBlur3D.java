@@ -4,9 +4,14 @@ import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
 import ij.plugin.filter.*;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GaussianBlur3D implements PlugIn {
 	private static double xsigma=2, ysigma=2, zsigma=2;
+	private static final int BLOCK_BUFFER_SIZE = 1<<16; //number of floats per z-blurring buffer
+	private static final int MIN_BLOCK_SIZE = 16;       //minimum number of pixels per slice in a block
 
 	public void run(String arg) {
 		ImagePlus imp = IJ.getImage();
@@ -38,16 +43,8 @@ public class GaussianBlur3D implements PlugIn {
 	public static void blur(ImagePlus imp, double sigmaX, double sigmaY, double sigmaZ) {
 		imp.deleteRoi();
 		ImageStack stack = imp.getStack();
-		if (sigmaX>0.0 || sigmaY>0.0) {
-			GaussianBlur gb = new GaussianBlur();
-			int channels = stack.getProcessor(1).getNChannels();
-			gb.setNPasses(channels*imp.getStackSize());
-			for (int i=1; i<=imp.getStackSize(); i++) {
-				ImageProcessor ip = stack.getProcessor(i);
-				double accuracy = (imp.getBitDepth()==8||imp.getBitDepth()==24)?0.002:0.0002;
-				gb.blurGaussian(ip, sigmaX, sigmaY, accuracy);
-			}
-		}
+		if (sigmaX>0.0 || sigmaY>0.0)
+			blurXY(stack, sigmaX, sigmaY);
 		if (sigmaZ>0.0) {
 			if (imp.isHyperStack())
 				blurHyperStackZ(imp, sigmaZ);
@@ -57,29 +54,175 @@ public class GaussianBlur3D implements PlugIn {
 		}
 	}
 
-	private static void blurZ(ImageStack stack, double sigmaZ) {
-		GaussianBlur gb = new GaussianBlur();
-		double accuracy = (stack.getBitDepth()==8||stack.getBitDepth()==24)?0.002:0.0002;
-		int w=stack.getWidth(), h=stack.getHeight(), d=stack.size();
-		float[] zpixels = null;
-		FloatProcessor fp =null;
-		IJ.showStatus("Z blurring");
-		gb.showProgress(false);
-		int channels = stack.getProcessor(1).getNChannels();
-		for (int y=0; y<h; y++) {
-			IJ.showProgress(y, h-1);
-			for (int channel=0; channel<channels; channel++) {
-				zpixels = stack.getVoxels(0, y, 0, w, 1, d, zpixels, channel);
-				if (fp==null)
-					fp = new FloatProcessor(w, d, zpixels);
-				//if (y==h/2) new ImagePlus("before-"+h/2, fp.duplicate()).show();
-				gb.blur1Direction(fp, sigmaZ, accuracy, false, 0);
-				stack.setVoxels(0, y, 0, w, 1, d, zpixels, channel);
+	/** Blurs each slice in x and y. With more than one thread, the slices
+	 *  are distributed over the threads, each blurring whole slices. */
+	private static void blurXY(final ImageStack stack, final double sigmaX, final double sigmaY) {
+		final int n = stack.size();
+		final double accuracy = (stack.getBitDepth()==8||stack.getBitDepth()==24)?0.002:0.0002;
+		int numThreads = Math.min(Prefs.getThreads(), n);
+		if (numThreads<=1 || stack.isVirtual()) {
+			GaussianBlur gb = new GaussianBlur();
+			int channels = stack.getProcessor(1).getNChannels();
+			gb.setNPasses(channels*n);
+			for (int i=1; i<=n; i++) {
+				ImageProcessor ip = stack.getProcessor(i);
+				gb.blurGaussian(ip, sigmaX, sigmaY, accuracy);
 			}
+			return;
+		}
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final AtomicInteger slicesDone = new AtomicInteger();
+		Callable<?>[] callables = new Callable<?>[numThreads];
+		for (int t=0; t<numThreads; t++) {
+			final boolean showProgress = t==0;
+			callables[t] = new Callable<Void>() {
+				public Void call() {
+					GaussianBlur gb = new GaussianBlur();
+					gb.showProgress(false);
+					gb.setMultithreaded(false);
+					for (int i=nextSlice.getAndIncrement(); i<=n; i=nextSlice.getAndIncrement()) {
+						if (Thread.currentThread().isInterrupted())
+							break;
+						gb.blurGaussian(stack.getProcessor(i), sigmaX, sigmaY, accuracy);
+						int done = slicesDone.incrementAndGet();
+						if (showProgress)
+							IJ.showProgress(done, n);
+					}
+					return null;
+				}
+			};
 		}
+		ThreadUtil.startAndJoinInPool(callables);
+		IJ.showProgress(1.0);
+	}
+
+	/** Blurs the stack in z. The slices are divided into blocks of consecutive
+	 *  pixels; for each block, the data of all slices are copied into a buffer
+	 *  small enough to stay in the cache, where each column is one z line. The
+	 *  blocks are distributed over the threads, each with its own buffer.
+	 *  Large sigmas are handled by GaussianBlur.blur1Direction, which scales
+	 *  the lines down, blurs and scales them up again. */
+	private static void blurZ(final ImageStack stack, final double sigmaZ) {
+		final int bitDepth = stack.getBitDepth();
+		final double accuracy = (bitDepth==8||bitDepth==24)?0.002:0.0002;
+		final int w=stack.getWidth(), h=stack.getHeight(), d=stack.size();
+		final int nPixels = w*h;
+		final int channels = bitDepth==24?3:1;
+		final Object[] pixels = new Object[d];
+		for (int z=0; z<d; z++)
+			pixels[z] = stack.getPixels(z+1);
+		int numThreads = Math.min(Prefs.getThreads(), h);
+		int blockSize = Math.max(BLOCK_BUFFER_SIZE/d, MIN_BLOCK_SIZE);
+		blockSize = Math.min(blockSize, (nPixels+4*numThreads-1)/(4*numThreads)); //at least 4 blocks per thread
+		if (blockSize<1) blockSize = 1;
+		final int fullBlockSize = blockSize;
+		final int nBlocks = (nPixels+blockSize-1)/blockSize;
+		numThreads = Math.min(numThreads, nBlocks);
+		final AtomicInteger nextBlock = new AtomicInteger();
+		final AtomicInteger blocksDone = new AtomicInteger();
+		IJ.showStatus("Z blurring");
+		Callable<?>[] callables = new Callable<?>[numThreads];
+		for (int t=0; t<numThreads; t++) {
+			final boolean showProgress = t==0;
+			callables[t] = new Callable<Void>() {
+				public Void call() {
+					GaussianBlur gb = new GaussianBlur();
+					gb.showProgress(false);
+					gb.setMultithreaded(false);
+					FloatProcessor fp = new FloatProcessor(fullBlockSize, d);
+					for (int block=nextBlock.getAndIncrement(); block<nBlocks; block=nextBlock.getAndIncrement()) {
+						if (Thread.currentThread().isInterrupted())
+							break;
+						int offset = block*fullBlockSize;
+						int length = Math.min(fullBlockSize, nPixels-offset);
+						if (length!=fp.getWidth())
+							fp = new FloatProcessor(length, d);
+						float[] buffer = (float[])fp.getPixels();
+						for (int channel=0; channel<channels; channel++) {
+							readBlock(pixels, bitDepth, channel, offset, length, buffer);
+							gb.blur1Direction(fp, sigmaZ, accuracy, false, 0);
+							writeBlock(buffer, bitDepth, channel, offset, length, pixels);
+						}
+						int done = blocksDone.incrementAndGet();
+						if (showProgress)
+							IJ.showProgress(done, nBlocks);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoinInPool(callables);
+		IJ.showProgress(1.0);
 		IJ.showStatus("");
 	}
 
+	/** Copies 'length' pixels starting at 'offset' of each slice into
+	 *  row z of the buffer. For RGB, reads the given channel (0=red). */
+	private static void readBlock(Object[] pixels, int bitDepth, int channel, int offset, int length, float[] buffer) {
+		int shift = 16 - 8*channel;
+		for (int z=0, i=0; z<pixels.length; z++) {
+			switch (bitDepth) {
+				case 8:
+					byte[] bytes = (byte[])pixels[z];
+					for (int p=offset; p<offset+length; p++)
+						buffer[i++] = bytes[p]&0xff;
+					break;
+				case 16:
+					short[] shorts = (short[])pixels[z];
+					for (int p=offset; p<offset+length; p++)
+						buffer[i++] = shorts[p]&0xffff;
+					break;
+				case 24:
+					int[] ints = (int[])pixels[z];
+					for (int p=offset; p<offset+length; p++)
+						buffer[i++] = (ints[p]>>shift)&0xff;
+					break;
+				default:
+					System.arraycopy((float[])pixels[z], offset, buffer, i, length);
+					i += length;
+			}
+		}
+	}
+
+	/** Writes the buffer back to the slices, rounding and clamping as ImageStack.setVoxels. */
+	private static void writeBlock(float[] buffer, int bitDepth, int channel, int offset, int length, Object[] pixels) {
+		int shift = 16 - 8*channel;
+		for (int z=0, i=0; z<pixels.length; z++) {
+			switch (bitDepth) {
+				case 8:
+					byte[] bytes = (byte[])pixels[z];
+					for (int p=offset; p<offset+length; p++) {
+						float value = buffer[i++];
+						if (value>255f)
+							value = 255f;
+						else if (value<0f)
+							value = 0f;
+						bytes[p] = (byte)(value+0.5f);
+					}
+					break;
+				case 16:
+					short[] shorts = (short[])pixels[z];
+					for (int p=offset; p<offset+length; p++) {
+						float value = buffer[i++];
+						if (value>65535f)
+							value = 65535f;
+						else if (value<0f)
+							value = 0f;
+						shorts[p] = (short)(value+0.5f);
+					}
+					break;
+				case 24:
+					int[] ints = (int[])pixels[z];
+					for (int p=offset; p<offset+length; p++)
+						ints[p] = (ints[p]&~(0xff<<shift)) | ((((int)buffer[i++])&0xff)<<shift);
+					break;
+				default:
+					System.arraycopy(buffer, i, (float[])pixels[z], offset, length);
+					i += length;
+			}
+		}
+	}
+
 	private static void blurHyperStackZ(ImagePlus imp, double zsigma) {
 		int channels = imp.getNChannels();
 		int slices = imp.getNSlices();
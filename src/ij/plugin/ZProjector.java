@@ -9,6 +9,10 @@ import java.lang.*;
 import java.awt.*; 
 import java.awt.event.*; 
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.util.ThreadUtil;
 
 /** This plugin performs a z-projection of the input stack. Type of
     output image is same as type of input image.
@@ -258,6 +262,11 @@ public class ZProjector implements PlugIn {
         imp = blue;
 		color = "(blue)"; doProjection();
 		ImagePlus blue2 = projImage;
+		if (red2==null || green2==null || blue2==null) {
+			imp = saveImp;
+			projImage = null;
+			return;
+		}
         int w = red2.getWidth(), h = red2.getHeight(), d = red2.getStackSize();
         if (method==SD_METHOD || (method==SUM_METHOD&&!clip)) {
         	ImageProcessor r = red2.getProcessor();
@@ -346,14 +355,9 @@ public class ZProjector implements PlugIn {
 		}
 
 		// Do the projection
-		int sliceCount = 0;
-		for (int n=startSlice; n<=stopSlice; n+=increment) {
-			if (!isHyperstack) {
-	    		IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
-	    		IJ.showProgress(n-startSlice, stopSlice-startSlice);
-	    	}
-	    	projectSlice(stack.getPixels(n), rayFunc, ptype);
-	    	sliceCount++;
+		if (!projectSlices(stack, rayFunc, ptype)) {
+			projImage = null;
+			return;
 		}
 
 		// Finish up projection.
@@ -363,13 +367,10 @@ public class ZProjector implements PlugIn {
 			fp.resetMinAndMax();
 			projImage = new ImagePlus(makeTitle(), fp);
 		} else if (method==SD_METHOD) {
-			rayFunc.postProcess();
 			fp.resetMinAndMax();
 			projImage = new ImagePlus(makeTitle(), fp); 
-		} else {
-			rayFunc.postProcess(); 
+		} else
 			projImage = makeOutputImage(imp, fp, ptype);
-		}
 
 		if(projImage==null)
 	    	IJ.error("Z Project", "Error computing projection.");
@@ -387,7 +388,7 @@ public class ZProjector implements PlugIn {
 		else {
 			doProjection();
 			Overlay overlay = imp.getOverlay();
-			if (handleOverlay && overlay!=null)
+			if (handleOverlay && overlay!=null && projImage!=null)
 				projImage.setOverlay(projectStackRois(overlay));
 		}
 		if (projImage!=null)
@@ -438,6 +439,8 @@ public class ZProjector implements PlugIn {
 					doHSRGBProjection(imp);
 				else
 					doProjection();
+				if (projImage==null)
+					return;
 				stack.addSlice(null, projImage.getProcessor());
 			}
 		}
@@ -585,20 +588,84 @@ public class ZProjector implements PlugIn {
 		return new ImagePlus(makeTitle(), oip); 
     }
 
+	/** Projects the slices from startSlice to stopSlice. The image is divided
+		into bands of rows, one per thread; each thread projects all slices
+		of its band and post-processes it, so no merging is needed and the
+		result does not depend on the number of threads. Virtual stacks are
+		streamed, so each slice is only read once. Returns false if a slice
+		could not be read. */
+	private boolean projectSlices(final ImageStack stack, final RayFunction rayFunc, final int ptype) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final boolean postProcess = method!=SUM_METHOD;
+		if (stack.isVirtual())
+			return streamSlices(stack, rayFunc, ptype, postProcess);
+		int nThreads = Math.min(Prefs.getThreads(), height);
+		Callable<?>[] callables = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final int from = (int)((long)height*t/nThreads)*width;
+			final int to = (int)((long)height*(t+1)/nThreads)*width;
+			final boolean showProgress = t==0 && !isHyperstack;
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int n=startSlice; n<=stopSlice; n+=increment) {
+						if (showProgress) {
+							IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
+							IJ.showProgress(n-startSlice, stopSlice-startSlice);
+						}
+						projectSlice(stack.getPixels(n), rayFunc, ptype, from, to);
+					}
+					if (postProcess)
+						rayFunc.postProcess(from, to);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoinInPool(callables);
+		return true;
+	}
+
+	/** Projects a virtual stack in a single pass. The slices are read in
+		order by a background thread, which stays READ_AHEAD slices ahead of
+		the projection, so reading and accumulating overlap and at most
+		READ_AHEAD+2 slices are in memory. Returns false if a slice could
+		not be read. */
+	private boolean streamSlices(ImageStack stack, RayFunction rayFunc, int ptype, boolean postProcess) {
+		int len = stack.getWidth()*stack.getHeight();
+		SliceReader reader = new SliceReader(stack);
+		try {
+			Object pixels;
+			for (int n=startSlice; (pixels=reader.next())!=null; n+=increment) {
+				if (!isHyperstack) {
+					IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
+					IJ.showProgress(n-startSlice, stopSlice-startSlice);
+				}
+				projectSlice(pixels, rayFunc, ptype, 0, len);
+			}
+			if (reader.failed())
+				return false;
+		} finally {
+			reader.close();
+		}
+		if (postProcess)
+			rayFunc.postProcess(0, len);
+		return true;
+	}
+
     /** Handles mechanics of projection by selecting appropriate pixel
 	array type. We do this rather than using more general
 	ImageProcessor getPixelValue() and putPixel() methods because
 	direct manipulation of pixel arrays is much more efficient.  */
-	private void projectSlice(Object pixelArray, RayFunction rayFunc, int ptype) {
+	private void projectSlice(Object pixelArray, RayFunction rayFunc, int ptype, int from, int to) {
 		switch(ptype) {
 			case BYTE_TYPE:
-	    		rayFunc.projectSlice((byte[])pixelArray); 
+	    		rayFunc.projectSlice((byte[])pixelArray, from, to); 
 	    		break; 
 			case SHORT_TYPE:
-	    		rayFunc.projectSlice((short[])pixelArray); 
+	    		rayFunc.projectSlice((short[])pixelArray, from, to); 
 	    		break; 
 			case FLOAT_TYPE:
-	    		rayFunc.projectSlice((float[])pixelArray); 
+	    		rayFunc.projectSlice((float[])pixelArray, from, to); 
 	    		break; 
 		}
     }
@@ -618,37 +685,161 @@ public class ZProjector implements PlugIn {
 	ImagePlus doMedianProjection() {
 		IJ.showStatus("Calculating median...");
 		ImageStack stack = imp.getStack();
-		ImageProcessor[] slices = new ImageProcessor[sliceCount];
+		if (stack.isVirtual() && (long)sliceCount*stack.getWidth()*stack.getHeight()*4L>availableMemory())
+			return doHistogramProjection(50.0);
+		final ImageProcessor[] slices = new ImageProcessor[sliceCount];
 		int index = 0;
 		for (int slice=startSlice; slice<=stopSlice; slice+=increment)
 			slices[index++] = stack.getProcessor(slice);
 		ImageProcessor ip2 = slices[0].duplicate();
 		ip2 = ip2.convertToFloat();
-		float[] values = new float[sliceCount];
-		int width = ip2.getWidth();
-		int height = ip2.getHeight();
-		int inc = Math.max(height/30, 1);
-		for (int y=0; y<height; y++) {
-			if (y%inc==0) IJ.showProgress(y, height-1);
-			for (int x=0; x<width; x++) {
-				for (int i=0; i<sliceCount; i++)
-				values[i] = slices[i].getPixelValue(x, y);
-				ip2.putPixelValue(x, y, median(values));
-			}
+		final ImageProcessor ip3 = ip2;
+		final int width = ip2.getWidth();
+		final int height = ip2.getHeight();
+		final int inc = Math.max(height/30, 1);
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		int nThreads = Math.min(Prefs.getThreads(), height);
+		Callable<?>[] callables = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					float[] values = new float[sliceCount];
+					for (int y=nextRow.getAndIncrement(); y<height; y=nextRow.getAndIncrement()) {
+						if (y%inc==0) IJ.showProgress(y, height-1);
+						for (int x=0; x<width; x++) {
+							for (int i=0; i<sliceCount; i++)
+								values[i] = slices[i].getPixelValue(x, y);
+							ip3.putPixelValue(x, y, median(values));
+						}
+					}
+					return null;
+				}
+			};
 		}
+		ThreadUtil.startAndJoinInPool(callables);
 		if (imp.getBitDepth()==8)
 			ip2 = ip2.convertToByte(false);
 		IJ.showProgress(1, 1);
 		return new ImagePlus(makeTitle(), ip2);
 	}
 
+	/** Creates a projection with the given percentile (0-100) of each pixel's
+		values in slices startSlice to stopSlice, which are read only once.
+		The percentiles are found using a histogram for each pixel, with as many
+		bins as fit into half the free memory (at most 4096), which are widened
+		when a slice has values outside of their range. They are exact for 8-bit
+		and 16-bit stacks if the range of the values is not larger than the
+		number of bins, otherwise they are interpolated within a bin. Use
+		getProjection() to
+		retrieve the result.
+		@see #getProjection
+	*/
+	public void doPercentileProjection(double percentile) {
+		if (imp==null || imp.getBitDepth()==24)
+			return;
+		sliceCount = 0;
+		for (int slice=startSlice; slice<=stopSlice; slice+=increment)
+			sliceCount++;
+		projImage = doHistogramProjection(percentile);
+	}
+
+	private ImagePlus doHistogramProjection(double percentile) {
+		IJ.showStatus("Calculating percentile...");
+		ImageStack stack = imp.getStack();
+		int width = stack.getWidth();
+		int height = stack.getHeight();
+		int size = width*height;
+		int bitDepth = imp.getBitDepth();
+		SliceReader reader = new SliceReader(stack);
+		PixelHistograms histograms = null;
+		try {
+			Object pixels = reader.next();
+			if (pixels==null)
+				return null;
+			int bytesPerCount = sliceCount<65536?2:4;
+			long bins = availableMemory()/((long)size*bytesPerCount);
+			bins = Math.min(Math.min(bins, 4096), Integer.MAX_VALUE/size);
+			if (bitDepth==8)
+				bins = Math.min(bins, 256);
+			if (bins<2) {
+				IJ.outOfMemory("Z Project");
+				return null;
+			}
+			histograms = new PixelHistograms(size, (int)bins, bitDepth!=32, bytesPerCount==2);
+			for (int n=startSlice; pixels!=null; n+=increment) {
+				IJ.showProgress(n-startSlice, stopSlice-startSlice);
+				histograms.add(pixels);
+				pixels = reader.next();
+			}
+			if (reader.failed())
+				return null;
+		} finally {
+			reader.close();
+		}
+		FloatProcessor fp = new FloatProcessor(width, height, histograms.getPercentiles(percentile));
+		if (bitDepth==16 && imp.getCalibration().isSigned16Bit())
+			fp.subtract(32768.0);
+		ImageProcessor ip2 = fp;
+		if (bitDepth==8)
+			ip2 = fp.convertToByte(false);
+		else
+			fp.resetMinAndMax();
+		IJ.showProgress(1, 1);
+		return new ImagePlus(makeTitle(), ip2);
+	}
+
+	/** Returns half the memory that is currently available. */
+	private static long availableMemory() {
+		long max = IJ.maxMemory();
+		if (max==0L)
+			max = Runtime.getRuntime().maxMemory();
+		return (max-IJ.currentMemory())/2L;
+	}
+
+	/** Returns the median of the values in 'a', which is reordered.
+		The middle value(s) are found by selection, without sorting. */
 	float median(float[] a) {
-		Arrays.sort(a);
 		int middle = a.length/2;
-		if ((a.length&1)==0) //even
-			return (a[middle-1] + a[middle])/2f;
-		else
-			return a[middle];
+		for (int i=0; i<a.length; i++) {
+			if (Float.isNaN(a[i])) { // NaNs are sorted to the end
+				Arrays.sort(a);
+				if ((a.length&1)==0) //even
+					return (a[middle-1] + a[middle])/2f;
+				else
+					return a[middle];
+			}
+		}
+		float median = select(a, middle);
+		if ((a.length&1)==0) { //even; the lower middle value is the largest one below 'middle'
+			float lower = a[0];
+			for (int i=1; i<middle; i++)
+				if (a[i]>lower) lower = a[i];
+			return (lower + median)/2f;
+		} else
+			return median;
+	}
+
+	/** Returns the k-th smallest value of 'a' (Wirth's algorithm). On return,
+		no value in a[0..k-1] is larger than a[k]. */
+	private static float select(float[] a, int k) {
+		int left = 0, right = a.length-1;
+		while (right>left) {
+			float x = a[k];
+			int i = left, j = right;
+			do {
+				while (a[i]<x) i++;
+				while (x<a[j]) j--;
+				if (i<=j) {
+					float tmp = a[i];
+					a[i] = a[j];
+					a[j] = tmp;
+					i++; j--;
+				}
+			} while (i<=j);
+			if (j<k) left = i;
+			if (k<i) right = j;
+		}
+		return a[k];
 	}
 
 	// do average projection, ignoring NaNs
@@ -659,37 +850,282 @@ public class ZProjector implements PlugIn {
 		int d = stack.getSize();
 		ImagePlus projection = IJ.createImage(makeTitle(), "32-bit Black", w, h, 1);
 		ImageProcessor ip = projection.getProcessor();
-		for (int x=0; x<w; x++) {
-			for (int y=0; y<h; y++) {
-				double sum = 0.0;
-				int count = 0;
-				for (int z=startSlice-1; z<stopSlice-1; z++) {
-					double value = stack.getVoxel(x, y, z);
-					if (!Double.isNaN(value)) {
-						sum += value;
-						count++;
+		final float[] result = (float[])ip.getPixels();
+		final ImageStack stack2 = stack;
+		int nThreads = stack.isVirtual()?1:Math.min(Prefs.getThreads(), h);
+		Callable<?>[] callables = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final int from = (int)((long)h*t/nThreads)*w;
+			final int to = (int)((long)h*(t+1)/nThreads)*w;
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					double[] sum = new double[to-from];
+					int[] count = new int[to-from];
+					for (int z=startSlice-1; z<stopSlice-1; z++) {
+						float[] pixels = (float[])stack2.getPixels(z+1);
+						for (int i=from; i<to; i++) {
+							float value = pixels[i];
+							if (!Float.isNaN(value)) {
+								sum[i-from] += value;
+								count[i-from]++;
+							}
+						}
 					}
+					for (int i=from; i<to; i++)
+						result[i] = (float)(sum[i-from]/count[i-from]);
+					return null;
 				}
-				ip.setf(x, y, (float)(sum/count));
-			}
+			};
 		}
+		ThreadUtil.startAndJoinInPool(callables);
 		ip.resetMinAndMax();
 		return projection;
 	}
     
+	/** Reads slices startSlice, startSlice+increment, ..., stopSlice of a stack
+		in a background thread, staying at most READ_AHEAD slices ahead. If a
+		slice cannot be read, next() returns null and failed() returns true. */
+	class SliceReader implements Runnable {
+		private static final int READ_AHEAD = 2;
+		private final Object END = new Object();
+		private final Object FAILED = new Object();
+		private ImageStack stack;
+		private ArrayBlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(READ_AHEAD);
+		private java.util.concurrent.Future<?> future;
+		private volatile boolean closed;
+		private boolean failed;
+
+		SliceReader(ImageStack stack) {
+			this.stack = stack;
+			future = ThreadUtil.threadPoolExecutor.submit(this);
+		}
+
+		public void run() {
+			Object last = END;
+			try {
+				for (int n=startSlice; n<=stopSlice && !closed; n+=increment) {
+					Object pixels = stack.getPixels(n);
+					if (pixels==null) {
+						last = FAILED;
+						break;
+					}
+					queue.put(pixels);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable e) {
+				IJ.handleException(e);
+				last = FAILED;
+			}
+			try {
+				queue.put(last);
+			} catch (InterruptedException e) {}
+		}
+
+		/** Returns the pixels of the next slice, or null if there are no more slices. */
+		Object next() {
+			if (closed)
+				return null;
+			Object pixels = null;
+			try {
+				pixels = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (pixels==END || pixels==FAILED || pixels==null) {
+				failed = pixels!=END;
+				closed = true;
+				return null;
+			}
+			return pixels;
+		}
+
+		/** Returns true if reading was stopped before the last slice
+			because a slice could not be read or the current thread was
+			interrupted. */
+		boolean failed() {
+			return failed;
+		}
+
+		/** Stops reading. */
+		void close() {
+			closed = true;
+			future.cancel(true);
+		}
+	}
+
+	/** Histograms of the values of each pixel of a stack, used to find
+		percentiles without keeping all slices in memory. The slices are added
+		one at a time; the bins are placed on the range of the first slice and,
+		when a slice has values outside of the bins, adjacent bins are merged
+		so that the bins cover the new range. Integer data are binned with a
+		width of one gray level as long as the range fits into the bins. */
+	static class PixelHistograms {
+		private int size, nBins;
+		private double min, binWidth;
+		private double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE; // range of the finite values added
+		private boolean integer, binsSet, empty = true;
+		private char[] counts16;
+		private int[] counts32;
+
+		PixelHistograms(int size, int nBins, boolean integer, boolean shortCounts) {
+			this.size = size;
+			this.nBins = nBins;
+			this.integer = integer;
+			if (shortCounts)
+				counts16 = new char[size*nBins];
+			else
+				counts32 = new int[size*nBins];
+		}
+
+		void add(Object pixels) {
+			double sliceMin = Double.MAX_VALUE, sliceMax = -Double.MAX_VALUE;
+			for (int i=0; i<size; i++) {
+				double v = getPixelValue(pixels, i);
+				if (v<sliceMin && v!=Double.NEGATIVE_INFINITY) sliceMin = v;
+				if (v>sliceMax && v!=Double.POSITIVE_INFINITY) sliceMax = v;
+			}
+			if (sliceMin<=sliceMax)
+				setRange(Math.min(lo, sliceMin), Math.max(hi, sliceMax));
+			else if (!binsSet)
+				setRange(0.0, 0.0);
+			for (int i=0; i<size; i++) {
+				double v = getPixelValue(pixels, i);
+				if (Double.isNaN(v)) continue;
+				int bin = (int)((v-min)/binWidth);
+				if (bin<0) bin = 0;
+				if (bin>=nBins) bin = nBins-1;
+				if (counts16!=null)
+					counts16[i*nBins+bin]++;
+				else
+					counts32[i*nBins+bin]++;
+			}
+			empty = false;
+		}
+
+		private static double getPixelValue(Object pixels, int i) {
+			if (pixels instanceof byte[])
+				return ((byte[])pixels)[i]&0xff;
+			else if (pixels instanceof short[])
+				return ((short[])pixels)[i]&0xffff;
+			else
+				return ((float[])pixels)[i];
+		}
+
+		/** Makes the bins cover the finite values from 'lo' to 'hi'. If they
+			do not, the bin width is multiplied by the smallest power of two
+			that makes the range fit and the counts are merged into the new
+			bins, which start at a boundary of the old ones, so that each old
+			bin falls into exactly one new bin. */
+		private void setRange(double lo, double hi) {
+			if (!binsSet) {
+				min = integer?Math.floor(lo):lo;
+				binWidth = integer?1.0:(hi-lo)/nBins;
+				if (!(binWidth>0.0))
+					binWidth = Math.max(Math.ulp((float)lo), Float.MIN_NORMAL);
+				binsSet = true;
+			}
+			this.lo = lo;
+			this.hi = hi;
+			if (lo>=min && (hi-min)/binWidth<nBins)
+				return;
+			double start = min+Math.floor((lo-min)/binWidth)*binWidth;
+			double factor = 1.0;
+			double span = Math.floor((hi-start)/binWidth)+1.0;
+			while (span>nBins) {
+				factor *= 2.0;
+				span = Math.floor((hi-start)/(binWidth*factor))+1.0;
+			}
+			// leave the same number of empty bins below and above the values
+			double width = binWidth*factor;
+			start -= Math.floor((nBins-span)/2.0)*width;
+			if (!empty)
+				rebin(start, width, factor);
+			min = start;
+			binWidth = width;
+		}
+
+		private void rebin(double start, double width, double factor) {
+			int[] counts = new int[nBins];
+			for (int i=0; i<size; i++) {
+				int offset = i*nBins;
+				for (int b=0; b<nBins; b++) {
+					int count = count(offset+b);
+					if (count==0) continue;
+					int bin = (int)Math.floor((min+b*binWidth-start)/width+0.5/factor);
+					if (bin<0) bin = 0;
+					if (bin>=nBins) bin = nBins-1;
+					counts[bin] += count;
+				}
+				for (int b=0; b<nBins; b++) {
+					if (counts16!=null)
+						counts16[offset+b] = (char)counts[b];
+					else
+						counts32[offset+b] = counts[b];
+					counts[b] = 0;
+				}
+			}
+		}
+
+		private int count(int index) {
+			return counts16!=null?counts16[index]:counts32[index];
+		}
+
+		/** Returns the 'percentile' (0-100) of each pixel, interpolating
+			between ranks as for the median of an even number of values. */
+		float[] getPercentiles(double percentile) {
+			float[] result = new float[size];
+			for (int i=0; i<size; i++) {
+				int offset = i*nBins;
+				int n = 0;
+				for (int b=0; b<nBins; b++)
+					n += count(offset+b);
+				if (n==0) {
+					result[i] = Float.NaN;
+					continue;
+				}
+				double rank = percentile/100.0*(n-1);
+				int rank1 = (int)Math.floor(rank);
+				int rank2 = Math.min(rank1+1, n-1);
+				double v1 = getValue(offset, rank1);
+				double v2 = rank2==rank1?v1:getValue(offset, rank2);
+				result[i] = (float)(v1+(rank-rank1)*(v2-v1));
+			}
+			return result;
+		}
+
+		/** Returns the value with the given rank (0-based), assuming
+			the values are spread evenly within their bin. */
+		private double getValue(int offset, int rank) {
+			int cumulative = 0;
+			for (int b=0; b<nBins; b++) {
+				int count = count(offset+b);
+				if (cumulative+count>rank) {
+					if (integer && binWidth==1.0)
+						return min+b;
+					double value = min+(b+(rank-cumulative+0.5)/count)*binWidth;
+					return lo<=hi?Math.max(lo, Math.min(hi, value)):value;
+				}
+				cumulative += count;
+			}
+			return min+nBins*binWidth;
+		}
+	}
+
     /** Abstract class that specifies structure of ray
 	function. Preprocessing should be done in derived class
 	constructors.
 	*/
     abstract class RayFunction {
-		/** Do actual slice projection for specific data types. */
-		public abstract void projectSlice(byte[] pixels);
-		public abstract void projectSlice(short[] pixels);
-		public abstract void projectSlice(float[] pixels);
+		/** Do actual slice projection for specific data types,
+			for pixels 'from' to 'to'-1. */
+		public abstract void projectSlice(byte[] pixels, int from, int to);
+		public abstract void projectSlice(short[] pixels, int from, int to);
+		public abstract void projectSlice(float[] pixels, int from, int to);
 		
 		/** Perform any necessary post processing operations, e.g.
-	    	averging values. */
-		public void postProcess() {}
+	    	averging values, for pixels 'from' to 'to'-1. */
+		public void postProcess(int from, int to) {}
 
     } // end RayFunction
 
@@ -708,24 +1144,24 @@ public class ZProjector implements PlugIn {
 	    	this.num = num;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++)
 				fpixels[i] += (pixels[i]&0xff); 
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++)
 				fpixels[i] += pixels[i]&0xffff;
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++)
 				fpixels[i] += pixels[i]; 
 		}
 
-		public void postProcess() {
+		public void postProcess(int from, int to) {
 			float fnum = num;
-	    	for(int i=0; i<len; i++)
+	    	for (int i=from; i<to; i++)
 				fpixels[i] /= fnum;
 		}
 
@@ -745,22 +1181,22 @@ public class ZProjector implements PlugIn {
 				fpixels[i] = -Float.MAX_VALUE;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if ((pixels[i]&0xff)>fpixels[i])
 		    		fpixels[i] = (pixels[i]&0xff); 
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if ((pixels[i]&0xffff)>fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for (int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if (!Float.isNaN(pixels[i]) && pixels[i]>fpixels[i])
 		    		fpixels[i] = pixels[i]; 
 	    	}
@@ -781,22 +1217,22 @@ public class ZProjector implements PlugIn {
 				fpixels[i] = Float.MAX_VALUE;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if((pixels[i]&0xff)<fpixels[i])
 		    		fpixels[i] = (pixels[i]&0xff); 
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if((pixels[i]&0xffff)<fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if(pixels[i]<fpixels[i])
 		    		fpixels[i] = pixels[i]; 
 	    	}
@@ -819,37 +1255,37 @@ public class ZProjector implements PlugIn {
 			sum2 = new double[len];
 		}
 	
-		public void projectSlice(byte[] pixels) {
+		public void projectSlice(byte[] pixels, int from, int to) {
 			int v;
-		    for(int i=0; i<len; i++) {
+		    for (int i=from; i<to; i++) {
 		    	v = pixels[i]&0xff;
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void projectSlice(short[] pixels) {
+		public void projectSlice(short[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for (int i=from; i<to; i++) {
 		    	v = pixels[i]&0xffff;
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void projectSlice(float[] pixels) {
+		public void projectSlice(float[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for (int i=from; i<to; i++) {
 		    	v = pixels[i];
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void postProcess() {
+		public void postProcess(int from, int to) {
 			double stdDev;
 			double n = num;
-		    for(int i=0; i<len; i++) {
+		    for (int i=from; i<to; i++) {
 				if (num>1) {
 					stdDev = (n*sum2[i]-sum[i]*sum[i])/n;
 					if (stdDev>0.0)
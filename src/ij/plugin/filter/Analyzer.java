@@ -792,14 +792,17 @@ public class Analyzer implements PlugInFilter, Measurements {
 			rt.addValue("Count", info[1]);
 		}
 		if (imp.getProperty("FHT")!=null) {
-			double center = imp.getWidth()/2.0;
-			y = imp.getHeight()-y-1;
-			double r = Math.sqrt((x-center)*(x-center) + (y-center)*(y-center));
-			if (r<1.0) r = 1.0;
-			double theta = Math.atan2(y-center, x-center);
+			int w = imp.getWidth();
+			int h = imp.getHeight();
+			y = h-y-1;
+			double dx = x - w/2.0;
+			double dy = y - h/2.0;
+			double f = Math.sqrt((dx/w)*(dx/w) + (dy/h)*(dy/h));
+			if (f<1.0/Math.max(w,h)) f = 1.0/Math.max(w,h);
+			double theta = Math.atan2(dy, dx);
 			theta = theta*180.0/Math.PI;
 			if (theta<0) theta = 360.0+theta;
-			rt.addValue("R", (imp.getWidth()/r)*cal.pixelWidth);
+			rt.addValue("R", (1.0/f)*cal.pixelWidth);
 			rt.addValue("Theta", theta);
 		}
 	}
@@ -6,17 +6,21 @@ import ij.io.*;
 import ij.plugin.TextReader;
 import ij.plugin.frame.Recorder;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** This plugin convolves images using user user defined kernels. */
 public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionListener {
 
 	private ImagePlus imp;
 	private int kw, kh;
-	private boolean canceled;
+	private volatile boolean canceled;
 	private float[] kernel;
 	private boolean isLineRoi;
 	private Button open, save;
@@ -36,6 +40,8 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 	private static boolean lastNormalizeFlag = defaultNormalizeFlag;
 	private String kernelText = defaultKernelText;
 	private boolean normalizeFlag = defaultNormalizeFlag;
+	private static final int MIN_FHT_KERNEL_SIZE = 15*15;
+	private static final double FHT_COST = 8.0; // relative to one multiplication of a direct convolution
 
 	public int setup(String arg, ImagePlus imp) {
  		this.imp = imp;
@@ -51,10 +57,6 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		Roi roi = imp.getRoi();
 		isLineRoi= roi!=null && roi.isLine();
 		nSlices = imp.getStackSize();
-		if (imp.getStackSize()==1)
-			flags |= PARALLELIZE_IMAGES;
-		else
-			flags |= PARALLELIZE_STACKS;
 		imp.startTiming();
 		return flags;
 	}
@@ -224,7 +226,10 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 
 	/** Convolves the float image <code>ip</code> with a kernel of width
 		<code>kw</code> and height <code>kh</code>. Returns false if
-		the user cancels the operation by pressing 'Esc'. */
+		the user cancels the operation by pressing 'Esc'. Separable kernels
+		are applied as a horizontal and a vertical 1D kernel, and large
+		kernels are applied in the frequency domain if this is faster.
+		Lines are processed in parallel. */
 	public boolean convolveFloat(ImageProcessor ip, float[] kernel, int kw, int kh) {
 		if (!(ip instanceof FloatProcessor))
 			throw new IllegalArgumentException("FloatProcessor required");
@@ -232,64 +237,243 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		Rectangle r = ip.getRoi();
-		int x1 = r.x;
-		int y1 = r.y;
-		int x2 = x1 + r.width;
-		int y2 = y1 + r.height;
-		int uc = kw/2;
-		int vc = kh/2;
 		float[] pixels = (float[])ip.getPixels();
 		float[] pixels2 = (float[])ip.getSnapshotPixels();
 		if (pixels2==null)
 			pixels2 = (float[])ip.getPixelsCopy();
 		double scale = normalize?getScale(kernel):1.0;
-        Thread thread = Thread.currentThread();
-        boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
-        if (isMainThread) pass++;
-		double sum;
-		int offset, i;
-		boolean edgePixel;
-		int xedge = width-uc;
-		int yedge = height-vc;
-		long lastTime = System.currentTimeMillis();
-		for (int y=y1; y<y2; y++) {
-			long time = System.currentTimeMillis();
-			if (time-lastTime>100) {
-				lastTime = time;
-				if (thread.isInterrupted()) return false;
-				if (isMainThread) {
-					if (IJ.escapePressed()) {
-						canceled = true;
-						ip.reset();
-						ImageProcessor originalIp = imp.getProcessor();
-						if (originalIp.getNChannels() > 1)
-							originalIp.reset();
-						return false;
+		Thread thread = Thread.currentThread();
+		boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
+		if (isMainThread) pass++;
+		float[][] kernels = kw>1&&kh>1?getSeparableKernels(kernel, kw, kh):null;
+		boolean ok;
+		if (kernels!=null)
+			ok = convolveSeparable(pixels, pixels2, width, height, r, kernels[0], kernels[1], scale, isMainThread);
+		else if (useFHT(r.width, r.height, kw, kh))
+			ok = convolveFHT(pixels, pixels2, width, height, r, kernel, kw, kh, scale);
+		else
+			ok = convolveDirect(pixels, pixels2, width, height, r, kernel, kw, kh, scale, isMainThread);
+		if (!ok && canceled && isMainThread) {
+			ip.reset();
+			ImageProcessor originalIp = imp!=null?imp.getProcessor():null;
+			if (originalIp!=null && originalIp.getNChannels() > 1)
+				originalIp.reset();
+		}
+		return ok;
+	}
+
+	private boolean convolveDirect(final float[] pixels, final float[] pixels2, final int width, final int height,
+	Rectangle r, final float[] kernel, int kw, int kh, final double scale, boolean isMainThread) {
+		final int x1 = r.x;
+		final int x2 = x1 + r.width;
+		final int uc = kw/2;
+		final int vc = kh/2;
+		final int xedge = width-uc;
+		final int yedge = height-vc;
+		LineFilter filter = new LineFilter() {
+			public void filterLine(int y) {
+				double sum;
+				int offset, i;
+				boolean edgePixel;
+				for (int x=x1; x<x2; x++) {
+					sum = 0.0;
+					i = 0;
+					edgePixel = y<vc || y>=yedge || x<uc || x>=xedge;
+					for (int v=-vc; v <= vc; v++) {
+						offset = x+(y+v)*width;
+						for(int u = -uc; u <= uc; u++) {
+							if (edgePixel)
+								sum += getPixel(x+u, y+v, pixels2, width, height)*kernel[i++];
+							else
+								sum += pixels2[offset+u]*kernel[i++];
+						}
 					}
-					showProgress((y-y1)/(double)(y2-y1));
+					pixels[x+y*width] = (float)(sum*scale);
 				}
 			}
-			for (int x=x1; x<x2; x++) {
-				if (canceled) return false;
-				sum = 0.0;
-				i = 0;
-				edgePixel = y<vc || y>=yedge || x<uc || x>=xedge;
-				for (int v=-vc; v <= vc; v++) {
-					offset = x+(y+v)*width;
-					for(int u = -uc; u <= uc; u++) {
-						if (edgePixel) {
- 							if (i>=kernel.length) // work around for JIT compiler bug on Linux
- 								IJ.log("kernel index error: "+i);
-							sum += getPixel(x+u, y+v, pixels2, width, height)*kernel[i++];
-						} else
-							sum += pixels2[offset+u]*kernel[i++];
+		};
+		return filterLines(filter, r.y, r.y+r.height, (long)r.width*kw*kh, 0.0, 1.0, isMainThread);
+	}
+
+	/** Returns the horizontal and vertical 1D kernels whose product is the
+		specified kernel, or null if the kernel is not separable. */
+	static float[][] getSeparableKernels(float[] kernel, int kw, int kh) {
+		int pivot = 0;
+		for (int i=1; i<kernel.length; i++) {
+			if (Math.abs(kernel[i])>Math.abs(kernel[pivot]))
+				pivot = i;
+		}
+		double max = Math.abs(kernel[pivot]);
+		if (max==0.0)
+			return null;
+		int pu = pivot%kw, pv = pivot/kw;
+		float[] horizontal = new float[kw];
+		float[] vertical = new float[kh];
+		for (int u=0; u<kw; u++)
+			horizontal[u] = kernel[pv*kw+u];
+		for (int v=0; v<kh; v++)
+			vertical[v] = (float)(kernel[v*kw+pu]/(double)kernel[pivot]);
+		double tolerance = 1e-6*max;
+		for (int v=0, i=0; v<kh; v++) {
+			for (int u=0; u<kw; u++, i++) {
+				if (Math.abs(kernel[i]-vertical[v]*(double)horizontal[u])>tolerance)
+					return null;
+			}
+		}
+		return new float[][] {horizontal, vertical};
+	}
+
+	/** Convolves with the product of a horizontal and a vertical kernel, in
+		two passes. The lines above and below the roi that are needed for the
+		vertical pass are included in the horizontal pass. */
+	private boolean convolveSeparable(final float[] pixels, final float[] pixels2, final int width, final int height,
+	Rectangle r, final float[] horizontal, final float[] vertical, final double scale, boolean isMainThread) {
+		final int x1 = r.x;
+		final int rw = r.width;
+		final int uc = horizontal.length/2;
+		final int vc = vertical.length/2;
+		final int yFrom = Math.max(r.y-vc, 0);
+		int yTo = Math.min(r.y+r.height+vc, height);
+		final double[] lines = new double[rw*(yTo-yFrom)];
+		LineFilter horizontalFilter = new LineFilter() {
+			public void filterLine(int y) {
+				int offset = y*width;
+				int index = (y-yFrom)*rw;
+				for (int x=x1; x<x1+rw; x++) {
+					double sum = 0.0;
+					if (x<uc || x>=width-uc) {
+						for (int u=-uc, i=0; u<=uc; u++)
+							sum += getPixel(x+u, y, pixels2, width, height)*horizontal[i++];
+					} else {
+						for (int u=-uc, i=0; u<=uc; u++)
+							sum += pixels2[offset+x+u]*horizontal[i++];
 					}
-		    	}
-				pixels[x+y*width] = (float)(sum*scale);
+					lines[index++] = sum;
+				}
+			}
+		};
+		LineFilter verticalFilter = new LineFilter() {
+			public void filterLine(int y) {
+				for (int x=0; x<rw; x++) {
+					double sum = 0.0;
+					for (int v=-vc, i=0; v<=vc; v++) {
+						int yy = y+v;
+						if (yy<0) yy = 0;
+						if (yy>=height) yy = height-1;
+						sum += lines[(yy-yFrom)*rw+x]*vertical[i++];
+					}
+					pixels[x1+x+y*width] = (float)(sum*scale);
+				}
+			}
+		};
+		return filterLines(horizontalFilter, yFrom, yTo, (long)rw*horizontal.length, 0.0, 0.5, isMainThread)
+			&& filterLines(verticalFilter, r.y, r.y+r.height, (long)rw*vertical.length, 0.5, 0.5, isMainThread);
+	}
+
+	/** Returns true if convolving in the frequency domain is expected to be
+		faster than a direct convolution of a non-separable kernel. */
+	private static boolean useFHT(int rw, int rh, int kw, int kh) {
+		if (kw*kh<=MIN_FHT_KERNEL_SIZE)
+			return false;
+		int maxN = fhtSize(rw+kw-1, rh+kh-1);
+		int log2 = Integer.numberOfTrailingZeros(maxN);
+		double directCost = (double)rw*rh*kw*kh/Math.max(Math.min(Prefs.getThreads(), rh), 1);
+		double fhtCost = FHT_COST*maxN*(double)maxN*log2;
+		return fhtCost<directCost;
+	}
+
+	private static int fhtSize(int width, int height) {
+		int maxN = 2;
+		while (maxN<width || maxN<height)
+			maxN *= 2;
+		return maxN;
+	}
+
+	/** Convolves in the frequency domain. The roi, extended by the kernel
+		radius with edge pixels, is padded to a power of 2 size; the padding
+		is large enough for the circular convolution not to wrap around. */
+	private boolean convolveFHT(float[] pixels, float[] pixels2, int width, int height,
+	Rectangle r, float[] kernel, int kw, int kh, double scale) {
+		int uc = kw/2;
+		int vc = kh/2;
+		int maxN = fhtSize(r.width+kw-1, r.height+kh-1);
+		float[] data = new float[maxN*maxN];
+		for (int y=0; y<r.height+kh-1; y++) {
+			int yy = Math.min(Math.max(r.y-vc+y, 0), height-1);
+			for (int x=0; x<r.width+kw-1; x++) {
+				int xx = Math.min(Math.max(r.x-uc+x, 0), width-1);
+				data[y*maxN+x] = pixels2[yy*width+xx];
 			}
-    	}
-   		return true;
-   	 }
+		}
+		// the kernel is mirrored since it is applied as a correlation
+		float[] kdata = new float[maxN*maxN];
+		for (int v=-vc, i=0; v<=vc; v++) {
+			for (int u=-uc; u<=uc; u++)
+				kdata[((maxN-v)%maxN)*maxN+(maxN-u)%maxN] = kernel[i++];
+		}
+		FHT fht = new FHT(new FloatProcessor(maxN, maxN, data, null));
+		FHT kernelFHT = new FHT(new FloatProcessor(maxN, maxN, kdata, null));
+		fht.setShowProgress(false);
+		kernelFHT.setShowProgress(false);
+		fht.transform();
+		if (canceled || Thread.currentThread().isInterrupted()) return false;
+		kernelFHT.transform();
+		FHT result = fht.multiply(kernelFHT);
+		result.setShowProgress(false);
+		result.inverseTransform();
+		float[] data2 = (float[])result.getPixels();
+		for (int y=0; y<r.height; y++) {
+			int offset = (y+vc)*maxN + uc;
+			int offset2 = (r.y+y)*width + r.x;
+			for (int x=0; x<r.width; x++)
+				pixels[offset2+x] = (float)(data2[offset+x]*scale);
+		}
+		return !canceled;
+	}
+
+	/** Filters lines 'from' to 'to'-1, using several threads if there is
+		enough work. 'lineCost' is the number of multiplications per line.
+		The progress bar goes from 'progressStart' to 'progressStart+progressRange'.
+		Returns false if the operation is canceled or interrupted. */
+	private boolean filterLines(final LineFilter filter, final int from, final int to, long lineCost,
+	final double progressStart, final double progressRange, final boolean isMainThread) {
+		if (to<=from)
+			return !canceled;
+		final Thread thread = Thread.currentThread();
+		int numThreads = (int)Math.min(Math.min(Prefs.getThreads(), to-from), (to-from)*lineCost/16000+1);
+		final AtomicInteger nextLine = new AtomicInteger(from);
+		final AtomicLong lastTime = new AtomicLong(System.currentTimeMillis());
+		Callable<?>[] callables = new Callable<?>[numThreads];
+		for (int t=0; t<numThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				public Void call() {
+					while (!canceled && !thread.isInterrupted()) {
+						int y = nextLine.getAndIncrement();
+						if (y>=to) break;
+						long time = System.currentTimeMillis();
+						if (time-lastTime.get()>100) {
+							lastTime.set(time);
+							if (isMainThread) {
+								if (IJ.escapePressed()) {
+									canceled = true;
+									break;
+								}
+								showProgress(progressStart+progressRange*(y-from)/(to-from));
+							}
+						}
+						filter.filterLine(y);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoinInPool(callables);
+		return !canceled && !thread.isInterrupted();
+	}
+
+	private interface LineFilter {
+		void filterLine(int y);
+	}
 
 	/** Convolves the image <code>ip</code> with a kernel of width
 		<code>kw</code> and height <code>kh</code>. */
@@ -299,55 +483,56 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 
 	/** Convolves the image <code>ip</code> with a kernel of width
 		<code>kw</code> and height <code>kh</code>. */
-	public void convolveFloat1D(FloatProcessor ip, float[] kernel, int kw, int kh, double scale) {
-		int width = ip.getWidth();
-		int height = ip.getHeight();
+	public void convolveFloat1D(FloatProcessor ip, final float[] kernel, int kw, int kh, final double scale) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
 		Rectangle r = ip.getRoi();
-		int x1 = r.x;
+		final int x1 = r.x;
 		int y1 = r.y;
-		int x2 = x1 + r.width;
+		final int x2 = x1 + r.width;
 		int y2 = y1 + r.height;
-		int uc = kw/2;
-		int vc = kh/2;
-		float[] pixels = (float[])ip.getPixels();
-		float[] pixels2 = (float[])ip.getSnapshotPixels();
-		if (pixels2==null)
-			pixels2 = (float[])ip.getPixelsCopy();
-		boolean vertical = kw==1;
-
-		double sum;
-		int offset, i;
-		boolean edgePixel;
-		int xedge = width-uc;
-		int yedge = height-vc;
-		for(int y=y1; y<y2; y++) {
-			for(int x=x1; x<x2; x++) {
-				sum = 0.0;
-				i = 0;
-				if (vertical) {
-					edgePixel = y<vc || y>=yedge;
-					offset = x+(y-vc)*width;
-					for(int v=-vc; v<=vc; v++) {
-						if (edgePixel)
-							sum += getPixel(x+uc, y+v, pixels2, width, height)*kernel[i++];
-						else
-							sum += pixels2[offset+uc]*kernel[i++];
-						offset += width;
-					}
-				} else {
-					edgePixel = x<uc || x>=xedge;
-					offset = x+(y-vc)*width;
-					for(int u = -uc; u<=uc; u++) {
-						if (edgePixel)
-							sum += getPixel(x+u, y+vc, pixels2, width, height)*kernel[i++];
-						else
-							sum += pixels2[offset+u]*kernel[i++];
+		final int uc = kw/2;
+		final int vc = kh/2;
+		final float[] pixels = (float[])ip.getPixels();
+		float[] snapshot = (float[])ip.getSnapshotPixels();
+		final float[] pixels2 = snapshot!=null?snapshot:(float[])ip.getPixelsCopy();
+		final boolean vertical = kw==1;
+		final int xedge = width-uc;
+		final int yedge = height-vc;
+		LineFilter filter = new LineFilter() {
+			public void filterLine(int y) {
+				double sum;
+				int offset, i;
+				boolean edgePixel;
+				for(int x=x1; x<x2; x++) {
+					sum = 0.0;
+					i = 0;
+					if (vertical) {
+						edgePixel = y<vc || y>=yedge;
+						offset = x+(y-vc)*width;
+						for(int v=-vc; v<=vc; v++) {
+							if (edgePixel)
+								sum += getPixel(x+uc, y+v, pixels2, width, height)*kernel[i++];
+							else
+								sum += pixels2[offset+uc]*kernel[i++];
+							offset += width;
+						}
+					} else {
+						edgePixel = x<uc || x>=xedge;
+						offset = x+(y-vc)*width;
+						for(int u = -uc; u<=uc; u++) {
+							if (edgePixel)
+								sum += getPixel(x+u, y+vc, pixels2, width, height)*kernel[i++];
+							else
+								sum += pixels2[offset+u]*kernel[i++];
+						}
 					}
+					pixels[x+y*width] = (float)(sum*scale);
 				}
-				pixels[x+y*width] = (float)(sum*scale);
 			}
-    	}
-    }
+		};
+		filterLines(filter, y1, y2, (long)r.width*kernel.length, 0.0, 1.0, false);
+	}
 
 	public static double getScale(float[] kernel) {
 		double scale = 1.0;
@@ -359,7 +544,7 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		return scale;
 	}
 
-	private float getPixel(int x, int y, float[] pixels, int width, int height) {
+	private static float getPixel(int x, int y, float[] pixels, int width, int height) {
 		if (x<=0) x = 0;
 		if (x>=width) x = width-1;
 		if (y<=0) y = 0;
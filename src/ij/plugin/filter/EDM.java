@@ -3,6 +3,9 @@ import ij.*;
 import ij.plugin.*;
 import ij.process.*;
 import ij.gui.*;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This plugin implements the Euclidean Distance Map (EDM), Watershed,
@@ -32,19 +35,18 @@ import ij.gui.*;
  * "watershed" for watershed segmentation, "points" for ultimate eroded points and
  * "voronoi" for Voronoi segmentation of the background
  *
- * The EDM algorithm is similar to the 8SSEDT in
- *   F. Leymarie, M. D. Levine, in: CVGIP Image Understanding, vol. 55 (1992), pp 84-94
- *   http://dx.doi.org/10.1016/1049-9660(92)90008-Q
- *
- * The algorithm provides a fast approximation of the EDM, with the deviation from a
- * full calculation being between -0.09 and 0. The algorithm is exact for distances<13.
- * For d>=13, deviations from the true result can occur, but are very rare: typically
- * the fraction of pixels deviating from the exact result is in the 10^-5 range, with
- * most deviations between -0.03 and -0.04.
+ * The EDM is calculated exactly, with the separable algorithm of
+ *   A. Meijster, J.B.T.M. Roerdink, W.H. Hesselink, in: Mathematical Morphology
+ *   and its Applications to Image and Signal Processing (2000), pp 331-340.
+ * A first pass determines the distance to the nearest background pixel in the
+ * same column, a second pass in each row takes the lower envelope of the parabolas
+ * given by the squared column distances. The computing time is proportional to the
+ * number of pixels; both passes are split across threads on multiprocessor machines.
+ * makeFloatEDM(ImageStack, ...) does the same in 3D, with a third pass.
  *
  * Limitations:
- * Maximum image diagonal for EDM: 46340 pixels (sqrt(2^31)); if the particles are
- * dense enough it also works for width, height <=65534.
+ * In 3D, the squared distances are stored as float values between the passes; thus
+ * distances above 4096 pixels may deviate by a relative amount of up to 1e-7.
  *
  * Version 30-Apr-2008 Michael Schmid:  more accurate EDM algorithm,
  *                                      16-bit and float output possible,
@@ -93,7 +95,9 @@ public class EDM implements ExtendedPlugInFilter {
     //prefixes for titles of separate output images; for each processType:
     private static final String[] TITLE_PREFIX = new String[] {
             "EDM of ", null, "UEPs of ", "Voronoi of "};
-    private static final int NO_POINT = -1; //no nearest point in array of nearest points
+    private static final long NO_DISTANCE = Long.MAX_VALUE; //no background point in a line
+    private static final int LINEAR_BLOCK_SIZE = 256;   //pixels per block in a plane for the first EDM pass
+    private static final int PROGRESS_INTERVAL = 256;   //lines between progress bar updates
     private static final double MAXFINDER_TOLERANCE = 0.5; //reasonable values are 0.3 ... 0.8;
                                     //segmentation is more aggressive with smaller values
     /** Output type (BYTE_OVERWRITE, BYTE, SHORT or FLOAT) */
@@ -268,127 +272,211 @@ public class EDM implements ExtendedPlugInFilter {
      *                          Returns null if the thread is interrupted.
      */
     public FloatProcessor makeFloatEDM (ImageProcessor ip, int backgroundValue, boolean edgesAreBackground) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
         FloatProcessor fp = new FloatProcessor(width, height);
         byte[] bPixels = (byte[])ip.getPixels();
-        float[] fPixels = (float[])fp.getPixels();
-        final int progressInterval = 100;
-        int nProgressUpdates = height/progressInterval;  //how often the progress bar is updated when passing once through y range
-        double progressAddendum = (nProgressUpdates>0) ? 0.5/nProgressUpdates : 0;
-
-        for (int i=0; i<width*height; i++)
-            if (bPixels[i]!=backgroundValue) fPixels[i] = Float.MAX_VALUE;
-
-        int[][] pointBufs = new int[2][width];  //two buffers for two passes; low short contains x, high short y
-        int yDist = Integer.MAX_VALUE;          //this value is used only if edges are not background
-        // pass 1 & 2: increasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
-        }
+        final float[] fPixels = (float[])fp.getPixels();
+        byte[][] bRows = new byte[height][];
+        float[][] fRows = new float[height][];
+        int[] offsets = new int[height];
         for (int y=0; y<height; y++) {
-            if (edgesAreBackground) yDist = y+1; //distance to nearest background point (along y)
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
-            }
+            bRows[y] = bPixels;
+            fRows[y] = fPixels;
+            offsets[y] = y*width;
         }
-        //pass 3 & 4: decreasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
-        }
-        for (int y=height-1; y>=0; y--) {
-            if (edgesAreBackground) yDist = height-y;
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
+        // pass 1: distances along y
+        if (!linearPass(bRows, fRows, offsets, width, backgroundValue, edgesAreBackground, 0.5))
+            return null;
+        // pass 2: along x, for the distance in 2D
+        final boolean edges = edgesAreBackground;
+        boolean ok = forEachLine(height, width, 0.5, new LineOperation() {
+            public void run(int y, long[] f, int[] s, int[] t) {
+                edtLine(fPixels, y*width, 1, width, true, true, edges, f, s, t);
             }
-        }
-
-        fp.sqrt();
-        return fp;
+        });
+        return ok ? fp : null;
     } //public FloatProcessor makeFloatEDM
 
-    // Handle a line; two passes: left-to-right and right-to-left
-    private void edmLine(byte[] bPixels, float[] fPixels, int[][] pointBufs, int width,
-            int offset, int y, int backgroundValue, int yDist) {
-        int[] points = pointBufs[0];        // the buffer for the left-to-right pass
-        int pPrev = NO_POINT;
-        int pDiag = NO_POINT;               // point at (-/+1, -/+1) to current one (-1,-1 in the first pass)
-        int pNextDiag;
-        boolean edgesAreBackground = yDist != Integer.MAX_VALUE;
-        int distSqr = Integer.MAX_VALUE;    // this value is used only if edges are not background
-        for (int x=0; x<width; x++, offset++) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (x+1 < yDist) ? (x+1)*(x+1) : yDist*yDist; //distance from edge
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
-            }
-            pPrev = points[x];
-            pDiag = pNextDiag;
+    /**
+     * Creates the 3D Euclidian Distance Map of a stack of (binary) byte images.
+     * Pixels are assumed to be cubic, i.e., the same spacing in x, y and z.
+     * @param stack             The input stack, not modified; must be 8-bit.
+     * @param backgroundValue   Pixels in the input with this value are interpreted as background.
+     *                          Note: for pixel value 255, write either -1 or (byte)255.
+     * @param edgesAreBackground Whether out-of-volume voxels are considered background
+     * @return                  A 32-bit stack with the distances to the nearest background voxel.
+     *                          Returns null if the thread is interrupted.
+     */
+    public ImageStack makeFloatEDM (ImageStack stack, int backgroundValue, boolean edgesAreBackground) {
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+        final int depth = stack.getSize();
+        ImageStack edmStack = new ImageStack(width, height);
+        byte[][] bSlices = new byte[depth][];
+        final float[][] fSlices = new float[depth][];
+        for (int z=0; z<depth; z++) {
+            bSlices[z] = (byte[])stack.getPixels(z+1);
+            fSlices[z] = new float[width*height];
+            edmStack.addSlice(stack.getSliceLabel(z+1), fSlices[z]);
         }
-        offset--; //now points to the last pixel in the line
-        points = pointBufs[1];              // the buffer for the right-to-left pass. Low short contains x, high short y
-        pPrev = NO_POINT;
-        pDiag = NO_POINT;
-        for (int x=width-1; x>=0; x--, offset--) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (width-x < yDist) ? (width-x)*(width-x) : yDist*yDist;
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+        // pass 1: distances along z
+        if (!linearPass(bSlices, fSlices, new int[depth], width*height, backgroundValue, edgesAreBackground, 1./3.))
+            return null;
+        // pass 2: along y, giving squared distances in the yz planes
+        final boolean edges = edgesAreBackground;
+        boolean ok = forEachLine(depth*width, height, 1./3., new LineOperation() {
+            public void run(int line, long[] f, int[] s, int[] t) {
+                edtLine(fSlices[line/width], line%width, width, height, true, false, edges, f, s, t);
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
-        }
-    } //private void edmLine
+        });
+        // pass 3: along x, for the distance in 3D
+        ok = ok && forEachLine(depth*height, width, 1./3., new LineOperation() {
+            public void run(int line, long[] f, int[] s, int[] t) {
+                edtLine(fSlices[line/height], (line%height)*width, 1, width, false, true, edges, f, s, t);
+            }
+        });
+        return ok ? edmStack : null;
+    } //public ImageStack makeFloatEDM
 
-    // Calculates minimum distance^2 of x,y from the following three points:
-    //  - points[x] (nearest point found for previous line, same x)
-    //  - pPrev (nearest point found for same line, previous x), and
-    //  - pDiag (nearest point found for diagonal, i.e., previous line, previous x)
-    // Sets array element points[x] to the coordinates of the point having the minimum distance to x,y
-    // If the distSqr parameter is lower than the distance^2, then distSqr is used
-    // Returns to the minimum distance^2 obtained
-    private float minDist2 (int[] points, int pPrev, int pDiag, int x, int y, int distSqr) {
-        int p0 = points[x];              // the nearest background point for the same x in the previous line
-        int nearestPoint = p0;
-        if (p0 != NO_POINT) {
-            int x0 = p0& 0xffff; int y0 = (p0>>16)&0xffff;
-            int dist1Sqr = (x-x0)*(x-x0)+(y-y0)*(y-y0);
-            if (dist1Sqr < distSqr)
-                distSqr = dist1Sqr;
-        }
-        if (pDiag!=p0 && pDiag!=NO_POINT) {
-            int x1 = pDiag&0xffff; int y1 = (pDiag>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pDiag;
-                distSqr = dist1Sqr;
+    /** Distances to the nearest background pixel along the direction perpendicular
+     *  to the 'planes' (rows of a 2D image, or slices of a stack). Plane i starts
+     *  at offsets[i] of bPlanes[i] and fPlanes[i]. Points without any background
+     *  pixel in their line are set to Float.MAX_VALUE. The planes are processed
+     *  in blocks of adjacent pixels, which are distributed over the threads.
+     *  Returns false if interrupted. */
+    private boolean linearPass(final byte[][] bPlanes, final float[][] fPlanes, final int[] offsets,
+            final int planeSize, final int backgroundValue, final boolean edgesAreBackground, double progressShare) {
+        final int n = bPlanes.length;
+        final float edgeDist = edgesAreBackground ? 1f : Float.MAX_VALUE;
+        int nBlocks = (planeSize+LINEAR_BLOCK_SIZE-1)/LINEAR_BLOCK_SIZE;
+        return forEachLine(nBlocks, 0, progressShare, new LineOperation() {
+            public void run(int block, long[] f, int[] s, int[] t) {
+                int from = block*LINEAR_BLOCK_SIZE;
+                int to = Math.min(from+LINEAR_BLOCK_SIZE, planeSize);
+                for (int i=0; i<n; i++) {           //increasing i: distance to background at lower i
+                    byte[] bPixels = bPlanes[i];
+                    float[] fPixels = fPlanes[i];
+                    float[] fPrevious = i>0 ? fPlanes[i-1] : null;
+                    int offset = offsets[i], offsetPrevious = i>0 ? offsets[i-1] : 0;
+                    for (int p=from; p<to; p++) {
+                        if (bPixels[offset+p] == backgroundValue)
+                            fPixels[offset+p] = 0f;
+                        else                        //note that Float.MAX_VALUE+1f == Float.MAX_VALUE
+                            fPixels[offset+p] = i>0 ? fPrevious[offsetPrevious+p]+1f : edgeDist;
+                    }
+                }
+                for (int i=n-1; i>=0; i--) {        //decreasing i: background at higher i may be nearer
+                    float[] fPixels = fPlanes[i];
+                    float[] fNext = i<n-1 ? fPlanes[i+1] : null;
+                    int offset = offsets[i], offsetNext = i<n-1 ? offsets[i+1] : 0;
+                    for (int p=from; p<to; p++) {
+                        float v = i<n-1 ? fNext[offsetNext+p]+1f : edgeDist;
+                        if (fPixels[offset+p] > v) fPixels[offset+p] = v;
+                    }
+                }
+            }
+        });
+    }
+
+    /** The exact one-dimensional distance transform of a line of 'n' points
+     *  at 'offset' of 'pixels', with increment 'inc'. For each point u, finds the
+     *  minimum of (u-i)^2 + f(i) over all points i of the line, i.e., the lower
+     *  envelope of the parabolas with apices at (i, f(i)), following
+     *  A. Meijster, J.B.T.M. Roerdink, W.H. Hesselink, in: Mathematical Morphology
+     *  and its Applications to Image and Signal Processing (2000), pp 331-340.
+     *  f(i) is the pixel value, or its square if 'inputIsDistance'. The result is
+     *  the squared distance, or the distance if 'sqrt' is true. Float.MAX_VALUE
+     *  marks points without background in the input and the squared output; the
+     *  distance output is sqrt(Integer.MAX_VALUE) then, as in previous versions.
+     *  'f', 's' and 't' are buffers of at least 'n' elements. */
+    private static void edtLine(float[] pixels, int offset, int inc, int n, boolean inputIsDistance,
+            boolean sqrt, boolean edgesAreBackground, long[] f, int[] s, int[] t) {
+        int q = -1;                                 //index of the last parabola of the envelope
+        for (int u=0, p=offset; u<n; u++, p+=inc) {
+            float v = pixels[p];
+            if (v == Float.MAX_VALUE) {
+                f[u] = NO_DISTANCE;
+                continue;
+            }
+            long fu = inputIsDistance ? (long)v*(long)v : (long)v;
+            f[u] = fu;
+            while (q>=0 && sqr(t[q]-s[q]) + f[s[q]] > sqr(t[q]-u) + fu)
+                q--;                                //parabola s[q] is not in the envelope any more
+            if (q < 0) {
+                q = 0;
+                s[0] = u;
+                t[0] = 0;
+            } else {
+                int i = s[q];                       //first point where parabola u is lower
+                long w = 1 + Math.floorDiv(sqr(u) - sqr(i) + fu - f[i], 2L*(u-i));
+                if (w < n) {
+                    q++;
+                    s[q] = u;
+                    t[q] = (int)w;
+                }
             }
         }
-        if (pPrev!=pDiag && pPrev!=NO_POINT) {
-            int x1 = pPrev& 0xffff; int y1 = (pPrev>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pPrev;
-                distSqr = dist1Sqr;
+        for (int u=n-1, p=offset+(n-1)*inc; u>=0; u--, p-=inc) {
+            long d2 = NO_DISTANCE;
+            if (q >= 0) {
+                d2 = sqr(u-s[q]) + f[s[q]];
+                if (u == t[q]) q--;
             }
+            if (edgesAreBackground)
+                d2 = Math.min(d2, Math.min(sqr(u+1), sqr(n-u)));
+            if (sqrt)
+                pixels[p] = (float)Math.sqrt(d2 == NO_DISTANCE ? Integer.MAX_VALUE : d2);
+            else
+                pixels[p] = d2 == NO_DISTANCE ? Float.MAX_VALUE : (float)d2;
         }
-        points[x] = nearestPoint;
-        return (float)distSqr;
-    } //private float minDist2
+    }
+
+    private static long sqr(long x) {
+        return x*x;
+    }
+
+    /** Operation on one line (or block of lines) of an image; 'f', 's' and 't'
+     *  are buffers private to the thread. */
+    private interface LineOperation {
+        void run(int line, long[] f, int[] s, int[] t);
+    }
+
+    /** Runs the operation for lines 0 to nLines-1, distributed over the threads.
+     *  'length' is the size of the buffers, 'progressShare' the fraction of the
+     *  EDM calculation for the progress bar. Returns false if interrupted. */
+    private boolean forEachLine(final int nLines, final int length, final double progressShare, final LineOperation op) {
+        int numThreads = (int)Math.min(Math.min(Prefs.getThreads(), nLines),
+                (long)nLines*Math.max(length, LINEAR_BLOCK_SIZE)/50000 + 1); //fewer threads for a small task
+        final AtomicInteger nextLine = new AtomicInteger();
+        final AtomicInteger linesDone = new AtomicInteger();
+        Callable<?>[] callables = new Callable<?>[numThreads];
+        for (int t=0; t<numThreads; t++) {
+            final boolean showProgress = t==0;
+            callables[t] = new Callable<Void>() {
+                public Void call() {
+                    long[] f = new long[length];
+                    int[] s = new int[length];
+                    int[] t = new int[length];
+                    int reported = 0;
+                    for (int line=nextLine.getAndIncrement(); line<nLines; line=nextLine.getAndIncrement()) {
+                        if (Thread.currentThread().isInterrupted()) return null;
+                        op.run(line, f, s, t);
+                        int done = linesDone.incrementAndGet();
+                        if (showProgress && done-reported >= PROGRESS_INTERVAL) {
+                            addProgress(progressShare*(done-reported)/nLines);
+                            reported = done;
+                        }
+                    }
+                    if (showProgress)
+                        addProgress(progressShare*(nLines-reported)/nLines);
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoinInPool(callables);
+        return !Thread.currentThread().isInterrupted();
+    }
 
     // overwrite ip with floatEdm converted to bytes
     private void byteFromFloat(ImageProcessor ip, FloatProcessor floatEdm) {
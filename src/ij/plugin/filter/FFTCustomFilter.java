@@ -44,7 +44,7 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 		slice++;
 		FHT fht = newFHT(ip);
 		if (slice==1)
-			filter = resizeFilter(filter, fht.getWidth());
+			filter = resizeFilter(filter, fht.getWidth(), fht.getHeight());
 		((FHT)fht).transform();
 		customFilter(fht);		
 		doInverseTransform(fht, ip);
@@ -87,21 +87,20 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 		FHT fht;
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		int maxN = Math.max(width, height);
-		int size = 2;
-		while (size<1.5*maxN) size *= 2;		
-		rect.x = (int)Math.round((size-width)/2.0);
-		rect.y = (int)Math.round((size-height)/2.0);
+		int fhtWidth = FHT.getFastSize((int)Math.ceil(1.5*width));
+		int fhtHeight = FHT.getFastSize((int)Math.ceil(1.5*height));
+		rect.x = (int)Math.round((fhtWidth-width)/2.0);
+		rect.y = (int)Math.round((fhtHeight-height)/2.0);
 		rect.width = width;
 		rect.height = height;
 		FFTFilter fftFilter = new FFTFilter();
 		if (ip instanceof ColorProcessor) {
 			showStatus("Extracting brightness");
 			ImageProcessor ip2 = ((ColorProcessor)ip).getBrightness();
-			fht = new FHT(fftFilter.tileMirror(ip2, size, size, rect.x, rect.y));
+			fht = new FHT(fftFilter.tileMirror(ip2, fhtWidth, fhtHeight, rect.x, rect.y));
 			fht.rgb = (ColorProcessor)ip.duplicate(); // save so we can later update the brightness
 		} else
-			fht = new FHT(fftFilter.tileMirror(ip, size, size, rect.x, rect.y));
+			fht = new FHT(fftFilter.tileMirror(ip, fhtWidth, fhtHeight, rect.x, rect.y));
 		fht.originalWidth = originalWidth;
 		fht.originalHeight = originalHeight;
 		fht.originalBitDepth = imp.getBitDepth();
@@ -116,7 +115,6 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 	}
 		
 	void customFilter(FHT fht) {
-		int size = fht.getWidth();
 		showStatus("Filtering");
 		fht.swapQuadrants(filter);
 		float[] fhtPixels = (float[])fht.getPixels();
@@ -170,12 +168,16 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 	}
 	
 	ImageProcessor resizeFilter(ImageProcessor ip, int maxN) {
+		return resizeFilter(ip, maxN, maxN);
+	}
+
+	ImageProcessor resizeFilter(ImageProcessor ip, int fhtWidth, int fhtHeight) {
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		if (width==maxN && height==maxN)
+		if (width==fhtWidth && height==fhtHeight)
 			return ip;
-		showStatus("Scaling filter to "+ maxN + "x" + maxN);
-		return ip.resize(maxN, maxN);
+		showStatus("Scaling filter to "+ fhtWidth + "x" + fhtHeight);
+		return ip.resize(fhtWidth, fhtHeight);
 	}
 		
 }
@@ -65,39 +65,34 @@ public class FFTFilter implements  PlugInFilter, Measurements {
 			ip2 = ((ColorProcessor)ip2).getBrightness();
 		} 
 		Rectangle roiRect = ip2.getRoi();		
-		int maxN = Math.max(roiRect.width, roiRect.height);
 		double sharpness = (100.0 - toleranceDia) / 100.0;
 		boolean doScaling = doScalingDia;
 		boolean saturate = saturateDia;
 		
 		IJ.showProgress(1,20);
 
-		/* 	tile mirrored image to power of 2 size		
-			first determine smallest power 2 >= 1.5 * image width/height
+		/* 	tile mirrored image to a size that can be transformed efficiently:
+			the smallest even size >= 1.5 * image width/height with only prime factors 2, 3, 5, 7;
 		  	factor of 1.5 to avoid wrap-around effects of Fourier Trafo */
 
-		int i=2;
-		while(i<1.5 * maxN) i *= 2;		
+		int width = FHT.getFastSize((int)Math.ceil(1.5*roiRect.width));
+		int height = FHT.getFastSize((int)Math.ceil(1.5*roiRect.height));
         
-        // Calculate the inverse of the 1/e frequencies for large and small structures.
-        double filterLarge = 2.0*filterLargeDia / (double)i;
-        double filterSmall = 2.0*filterSmallDia / (double)i;
-        
-		// fit image into power of 2 size 
+		// fit image into padded size 
 		Rectangle fitRect = new Rectangle();
-		fitRect.x = (int) Math.round( (i - roiRect.width) / 2.0 );
-		fitRect.y = (int) Math.round( (i - roiRect.height) / 2.0 );
+		fitRect.x = (int) Math.round( (width - roiRect.width) / 2.0 );
+		fitRect.y = (int) Math.round( (height - roiRect.height) / 2.0 );
 		fitRect.width = roiRect.width;
 		fitRect.height = roiRect.height;
 		
-		// put image (ROI) into power 2 size image
+		// put image (ROI) into padded image
 		// mirroring to avoid wrap around effects
-		showStatus("Pad to "+i+"x"+i);
-		ip2 = tileMirror(ip2, i, i, fitRect.x, fitRect.y);
+		showStatus("Pad to "+width+"x"+height);
+		ip2 = tileMirror(ip2, width, height, fitRect.x, fitRect.y);
 		IJ.showProgress(2,20);
 		
 		// transform forward
-		showStatus(i+"x"+i+" forward transform");
+		showStatus(width+"x"+height+" forward transform");
 		FHT fht = new FHT(ip2);
 		fht.setShowProgress(false);
 		fht.transform();
@@ -106,7 +101,7 @@ public class FFTFilter implements  PlugInFilter, Measurements {
 
 		// filter out large and small structures
 		showStatus("Filter in frequency domain");
-		filterLargeSmall(fht, filterLarge, filterSmall, choiceIndex, sharpness);
+		filterLargeSmall(fht, filterLargeDia, filterSmallDia, choiceIndex, sharpness);
 		//new ImagePlus("filter",ip2.crop()).show();
 		IJ.showProgress(11,20);
 
@@ -214,196 +209,75 @@ public class FFTFilter implements  PlugInFilter, Measurements {
 	
 
 	/*
-	filterLarge: down to which size are large structures suppressed?
-	filterSmall: up to which size are small structures suppressed?
-	filterLarge and filterSmall are given as fraction of the image size 
-				in the original (untransformed) image.
+	filterLargeDia: down to which size (in pixels) are large structures suppressed?
+	filterSmallDia: up to which size (in pixels) are small structures suppressed?
 	stripesHorVert: filter out: 0) nothing more  1) horizontal  2) vertical stripes
 				(i.e. frequencies with x=0 / y=0)
-	scaleStripes: width of the stripe filter, same unit as filterLarge
+	scaleStripes: width of the stripe filter, in units of the frequency index
+	The frequency index j in a direction where the FHT has n pixels corresponds
+	to structures of size n/j, so the filter scales differ in x and y if the
+	FHT is not square.
 	*/
-	void filterLargeSmall(ImageProcessor ip, double filterLarge, double filterSmall, int stripesHorVert, double scaleStripes) {
+	void filterLargeSmall(ImageProcessor ip, double filterLargeDia, double filterSmallDia, int stripesHorVert, double scaleStripes) {
 		
-		int maxN = ip.getWidth();
+		int width = ip.getWidth();
+		int height = ip.getHeight();
 			
 		float[] fht = (float[])ip.getPixels();
-		float[] filter = new float[maxN*maxN];
-		for (int i=0; i<maxN*maxN; i++)
-			filter[i]=1f;		
+		float[] filter = new float[width*height];
 
-		int row;
-		int backrow;
-		float rowFactLarge;
-		float rowFactSmall;
-		
-		int col;
-		int backcol;
-		float factor;
-		float colFactLarge;
-		float colFactSmall;
-		
-		float factStripes;
-		
-		// calculate factor in exponent of Gaussian from filterLarge / filterSmall
+		// calculate factor in exponent of Gaussian from the inverse of the 1/e
+		// frequencies for large and small structures
 
-		double scaleLarge = filterLarge*filterLarge;
-		double scaleSmall = filterSmall*filterSmall;
+		double scaleLargeX = sqr(2.0*filterLargeDia/width);
+		double scaleSmallX = sqr(2.0*filterSmallDia/width);
+		double scaleLargeY = sqr(2.0*filterLargeDia/height);
+		double scaleSmallY = sqr(2.0*filterSmallDia/height);
 		scaleStripes = scaleStripes*scaleStripes;
-		//float FactStripes;
+
+		float[] colFactLarge = new float[width];
+		float[] colFactSmall = new float[width];
+		float[] colFactStripes = new float[width];
+		for (int col=0; col<width; col++) {
+			int k = Math.min(col, width-col);
+			colFactLarge[col] = (float) Math.exp(- (k*k) * scaleLargeX);
+			colFactSmall[col] = (float) Math.exp(- (k*k) * scaleSmallX);
+			colFactStripes[col] = 1 - (float) Math.exp(- (k*k) * scaleStripes);
+		}
 
 		// loop over rows
-		for (int j=1; j<maxN/2; j++) {
-			row = j * maxN;
-			backrow = (maxN-j)*maxN;
-			rowFactLarge = (float) Math.exp(-(j*j) * scaleLarge);
-			rowFactSmall = (float) Math.exp(-(j*j) * scaleSmall);
-			
+		for (int row=0; row<height; row++) {
+			int j = Math.min(row, height-row);
+			float rowFactLarge = (float) Math.exp(-(j*j) * scaleLargeY);
+			float rowFactSmall = (float) Math.exp(-(j*j) * scaleSmallY);
+			float rowFactStripes = 1 - (float) Math.exp(- (j*j) * scaleStripes);
+			int base = row*width;
 
 			// loop over columns
-			for (col=1; col<maxN/2; col++){
-				backcol = maxN-col;
-				colFactLarge = (float) Math.exp(- (col*col) * scaleLarge);
-				colFactSmall = (float) Math.exp(- (col*col) * scaleSmall);
-				factor = (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall;
-				switch (stripesHorVert) {
-					case 1: factor *= (1 - (float) Math.exp(- (col*col) * scaleStripes)); break;// hor stripes
-					case 2: factor *= (1 - (float) Math.exp(- (j*j) * scaleStripes)); // vert stripes
+			for (int col=0; col<width; col++) {
+				float factor = 1f; // (0,0) is the mean, which is kept
+				if (row>0 || col>0) {
+					factor = (1 - rowFactLarge*colFactLarge[col]) * rowFactSmall*colFactSmall[col];
+					switch (stripesHorVert) {
+						case 1: factor *= colFactStripes[col]; break; // hor stripes
+						case 2: factor *= rowFactStripes; // vert stripes
+					}
 				}
-				
-				fht[col+row] *= factor;
-				fht[col+backrow] *= factor;
-				fht[backcol+row] *= factor;
-				fht[backcol+backrow] *= factor;
-				filter[col+row] *= factor;
-				filter[col+backrow] *= factor;
-				filter[backcol+row] *= factor;
-				filter[backcol+backrow] *= factor;
-			}
-		}
-
-		//process meeting points (maxN/2,0) , (0,maxN/2), and (maxN/2,maxN/2)
-		int rowmid = maxN * (maxN/2);
-		rowFactLarge = (float) Math.exp(- (maxN/2)*(maxN/2) * scaleLarge);
-		rowFactSmall = (float) Math.exp(- (maxN/2)*(maxN/2) * scaleSmall);	
-		factStripes = (float) Math.exp(- (maxN/2)*(maxN/2) * scaleStripes);
-		
-		fht[maxN/2] *= (1 - rowFactLarge) * rowFactSmall; // (maxN/2,0)
-		fht[rowmid] *= (1 - rowFactLarge) * rowFactSmall; // (0,maxN/2)
-		fht[maxN/2 + rowmid] *= (1 - rowFactLarge*rowFactLarge) * rowFactSmall*rowFactSmall; // (maxN/2,maxN/2)
-		filter[maxN/2] *= (1 - rowFactLarge) * rowFactSmall; // (maxN/2,0)
-		filter[rowmid] *= (1 - rowFactLarge) * rowFactSmall; // (0,maxN/2)
-		filter[maxN/2 + rowmid] *= (1 - rowFactLarge*rowFactLarge) * rowFactSmall*rowFactSmall; // (maxN/2,maxN/2)
-
-		switch (stripesHorVert) {
-			case 1: fht[maxN/2] *= (1 - factStripes);
-					fht[rowmid] = 0;
-					fht[maxN/2 + rowmid] *= (1 - factStripes);
-					filter[maxN/2] *= (1 - factStripes);
-					filter[rowmid] = 0;
-					filter[maxN/2 + rowmid] *= (1 - factStripes);
-					break; // hor stripes
-			case 2: fht[maxN/2] = 0;
-					fht[rowmid] *=  (1 - factStripes);
-					fht[maxN/2 + rowmid] *= (1 - factStripes);
-					filter[maxN/2] = 0;
-					filter[rowmid] *=  (1 - factStripes);
-					filter[maxN/2 + rowmid] *= (1 - factStripes);
-					break; // vert stripes
-		}		
-		
-		//loop along row 0 and maxN/2	
-		rowFactLarge = (float) Math.exp(- (maxN/2)*(maxN/2) * scaleLarge);
-		rowFactSmall = (float) Math.exp(- (maxN/2)*(maxN/2) * scaleSmall);			
-		for (col=1; col<maxN/2; col++){
-			backcol = maxN-col;
-			colFactLarge = (float) Math.exp(- (col*col) * scaleLarge);
-			colFactSmall = (float) Math.exp(- (col*col) * scaleSmall);
-			
-			switch (stripesHorVert) {
-				case 0:
-					fht[col] *= (1 - colFactLarge) * colFactSmall;
-					fht[backcol] *= (1 - colFactLarge) * colFactSmall;
-					fht[col+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall;
-					fht[backcol+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall;
-					filter[col] *= (1 - colFactLarge) * colFactSmall;
-					filter[backcol] *= (1 - colFactLarge) * colFactSmall;
-					filter[col+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall;
-					filter[backcol+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall;	
-					break;			
-				case 1:
-					factStripes = (float) Math.exp(- (col*col) * scaleStripes);
-					fht[col] *= (1 - colFactLarge) * colFactSmall * (1 - factStripes);
-					fht[backcol] *= (1 - colFactLarge) * colFactSmall * (1 - factStripes);
-					fht[col+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall * (1 - factStripes);
-					fht[backcol+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall * (1 - factStripes);
-					filter[col] *= (1 - colFactLarge) * colFactSmall * (1 - factStripes);
-					filter[backcol] *= (1 - colFactLarge) * colFactSmall * (1 - factStripes);
-					filter[col+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall * (1 - factStripes);
-					filter[backcol+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall * (1 - factStripes);
-					break;
-				case 2:
-					factStripes = (float) Math.exp(- (maxN/2)*(maxN/2) * scaleStripes); 
-					fht[col] = 0;
-					fht[backcol] = 0;
-					fht[col+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall * (1 - factStripes);
-					fht[backcol+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall * (1 - factStripes);
-					filter[col] = 0;
-					filter[backcol] = 0;
-					filter[col+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall * (1 - factStripes);
-					filter[backcol+rowmid] *= (1 - colFactLarge*rowFactLarge) * colFactSmall*rowFactSmall * (1 - factStripes);
-			}
-		}
-		
-		// loop along column 0 and maxN/2
-		colFactLarge = (float) Math.exp(- (maxN/2)*(maxN/2) * scaleLarge);
-		colFactSmall = (float) Math.exp(- (maxN/2)*(maxN/2) * scaleSmall);
-		for (int j=1; j<maxN/2; j++) {
-			row = j * maxN;
-			backrow = (maxN-j)*maxN;
-			rowFactLarge = (float) Math.exp(- (j*j) * scaleLarge);
-			rowFactSmall = (float) Math.exp(- (j*j) * scaleSmall);
-
-			switch (stripesHorVert) {
-				case 0:
-					fht[row] *= (1 - rowFactLarge) * rowFactSmall;
-					fht[backrow] *= (1 - rowFactLarge) * rowFactSmall;
-					fht[row+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall;
-					fht[backrow+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall;
-					filter[row] *= (1 - rowFactLarge) * rowFactSmall;
-					filter[backrow] *= (1 - rowFactLarge) * rowFactSmall;
-					filter[row+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall;
-					filter[backrow+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall;
-					break;
-				case 1:
-					factStripes = (float) Math.exp(- (maxN/2)*(maxN/2) * scaleStripes);
-					fht[row] = 0;
-					fht[backrow] = 0;
-					fht[row+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall * (1 - factStripes);
-					fht[backrow+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall * (1 - factStripes);
-					filter[row] = 0;
-					filter[backrow] = 0;
-					filter[row+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall * (1 - factStripes);
-					filter[backrow+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall * (1 - factStripes);
-					break;
-				case 2:
-					factStripes = (float) Math.exp(- (j*j) * scaleStripes);
-					fht[row] *= (1 - rowFactLarge) * rowFactSmall * (1 - factStripes);
-					fht[backrow] *= (1 - rowFactLarge) * rowFactSmall * (1 - factStripes);
-					fht[row+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall * (1 - factStripes);
-					fht[backrow+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall * (1 - factStripes);
-					filter[row] *= (1 - rowFactLarge) * rowFactSmall * (1 - factStripes);
-					filter[backrow] *= (1 - rowFactLarge) * rowFactSmall * (1 - factStripes);
-					filter[row+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall * (1 - factStripes);
-					filter[backrow+maxN/2] *= (1 - rowFactLarge*colFactLarge) * rowFactSmall*colFactSmall * (1 - factStripes);	
+				fht[base+col] *= factor;
+				filter[base+col] = factor;
 			}
 		}
 		if (displayFilter && slice==1) {
-			FHT f = new FHT(new FloatProcessor(maxN, maxN, filter, null));
+			FHT f = new FHT(new FloatProcessor(width, height, filter, null));
 			f.swapQuadrants();
 			new ImagePlus("Filter", f).show();
 		}
 	}	
 
+	private static double sqr(double x) {
+		return x*x;
+	}
+
 	boolean showBandpassDialog(ImagePlus imp) {
 		if (imp.getCompositeMode()==IJ.COMPOSITE)
 			processStack = true;
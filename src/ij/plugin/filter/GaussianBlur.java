@@ -51,6 +51,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     private int nChannels = 1;        // The number of color channels
     private int pass;                        // Current pass
     private boolean noProgress;      // Do not show progress bar
+    private boolean multithreaded = true; // Whether blur1Direction may use more than one thread
     private boolean calledAsPlugin;
     
     /** Method to return types supported
@@ -270,7 +271,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         final float[] downscaleKernel = doDownscaling ? makeDownscaleKernel(reduceBy) : null;
         final float[] upscaleKernel = doDownscaling ? makeUpscaleKernel(reduceBy) : null;
 
-        int numThreads1 = Math.min(Prefs.getThreads(), lineTo-lineFrom);
+        int numThreads1 = multithreaded ? Math.min(Prefs.getThreads(), lineTo-lineFrom) : 1;
         int numThreads2 = (int)((lineTo - lineFrom)*(long)(writeTo - writeFrom)*gaussKernel[0].length/
                 (doDownscaling ? 8000 : 16000)) + 1; //use fewer threads if a small task
         final int numThreads = Math.min(numThreads1, numThreads2);
@@ -311,7 +312,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
                 } /*catch(Exception ex) {IJ.handleException(ex);} }*/
             };
         }
-        ThreadUtil.startAndJoin(callables);
+        ThreadUtil.startAndJoinInPool(callables);
             
         showProgress(1.0);
         pass++;
@@ -605,5 +606,12 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     public void showProgress(boolean showProgressBar) {
     	noProgress = !showProgressBar;
     }
+
+    /** Whether blur1Direction may split its work across threads (default true).
+     *  Callers that already process several images or image parts in parallel,
+     *  each with its own GaussianBlur, should set this to false. */
+    public void setMultithreaded(boolean multithreaded) {
+    	this.multithreaded = multithreaded;
+    }
     
 }
@@ -5,8 +5,11 @@ import ij.gui.*;
 import ij.measure.*;
 import ij.process.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This ImageJ plug-in filter finds the maxima (or minima) of an image.
  * It can create a mask where the local maxima of the current image are
@@ -39,6 +42,14 @@ import java.util.*;
  * version 13-Sep-2013 added the findMaxima() and findMinima() functions for arrays (Norbert Vischer)
  * version 20-Mar-2014 Watershed segmentation of EDM with tolerance>=1.0 does not kill fine particles
  * version 11-Mar-2019 adds "strict" option, "noise tolerance" renamed to "prominence"
+ *
+ * With the "Fast watershed segmentation" option (or setQueueWatershed(true)), the
+ * elimination of irrelevant maxima and the watershed segmentation use flooding with
+ * a hierarchical queue (one FIFO of pixel offsets per 8-bit level, the highest level
+ * is served first). This avoids the repeated passes over all pixels of a level and
+ * the list of all pixel coordinates sorted by value; only the flooding front is held
+ * in the queue. The segmentation lines may differ slightly from the default algorithm
+ * within plateaus.
  */
 
 public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
@@ -72,6 +83,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     private static boolean useMinThreshold;
     /** whether to find darkest points on light background */
     private static boolean lightBackground;
+    /** whether to use the hierarchical-queue watershed (dialog setting) */
+    private static boolean useQueueWatershed;
     private boolean   oldMacro = false;             // till 1.52m, "strict" was the same as "excludeOnEdges" and "prominence" was called "noise tolerance"
     private ImagePlus imp;                          // the ImagePlus of the setup call
     private int flags = DOES_ALL|NO_CHANGES|NO_UNDO;// the flags (see interfaces PlugInFilter & ExtendedPlugInFilter)
@@ -91,6 +104,7 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     /** directions to 8 neighboring pixels, clockwise: 0=North (-y), 1=NE, 2=East (+x), ... 7=NW */
     private int[]     dirOffset;                    // pixel offsets of neighbor pixels for direct addressing
     private Polygon   xyCoordinates;                // maxima found by findMaxima() POINT_SELECTION, LIST, COUNT
+    private boolean   queueWatershed;               // whether segmentation uses the hierarchical queue
     final static int[] DIR_X_OFFSET = new int[] {  0,  1,  1,  1,  0, -1, -1, -1 };
     final static int[] DIR_Y_OFFSET = new int[] { -1, -1,  0,  1,  1,  1,  0, -1 };
     /** the following constants are used to set bits corresponding to pixel types */
@@ -101,6 +115,7 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     final static byte EQUAL = (byte)16;             // marks contigous maximum points of equal level
     final static byte MAX_POINT = (byte)32;         // marks a single point standing for a maximum
     final static byte ELIMINATED = (byte)64;        // marks maxima that have been eliminated before watershed
+    final static byte QUEUED = (byte)1;             // marks points in the queue of the hierarchical-queue watershed
     /** type masks corresponding to the output types */
     final static byte[] outputTypeMasks = new byte[] {MAX_POINT, MAX_AREA, MAX_AREA};
     final static float SQRT2 = 1.4142135624f;
@@ -137,6 +152,7 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
             gd.addCheckbox("Above lower threshold", useMinThreshold);
         gd.addCheckbox("Light background", lightBackground);
         gd.addChoice("Output type:", outputTypeNames, outputTypeNames[dialogOutputType]);
+        gd.addCheckbox("Fast watershed segmentation", useQueueWatershed);
         gd.addPreviewCheckbox(pfr, "Preview point selection");
         gd.addMessage("    "); //space for number of maxima
         messageArea = (Label)gd.getMessage();
@@ -167,6 +183,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
             useMinThreshold = false;
         lightBackground = gd.getNextBoolean();
         dialogOutputType = gd.getNextChoiceIndex();
+        useQueueWatershed = gd.getNextBoolean();
+        queueWatershed = useQueueWatershed;
         boolean invertedLut = imp.isInvertedLut();
         if (useMinThreshold && ((invertedLut&&!lightBackground) || (!invertedLut&&lightBackground))) {
             if (!thresholdWarningShown)
@@ -186,6 +204,13 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         return (!gd.invalidNumber());
     } // public boolean DialogItemChanged
 
+    /** Whether segmentation (output type SEGMENTED) should use flooding with a
+     *  hierarchical queue instead of processing the image level by level.
+     *  This is faster and needs less memory for large images. Default is false. */
+    public void setQueueWatershed(boolean queueWatershed) {
+        this.queueWatershed = queueWatershed;
+    }
+
     /** Set his to the number of images to process (for the watershed progress bar only).
      *  Don't call or set nPasses to zero if no progress bar is desired. */
     public void setNPasses(int nPasses) {
@@ -525,10 +550,13 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
             // may have a negative slope). outIp has background 0, maximum areas 255
             outIp = make8bit(ip, typeP, isEDM, globalMin, globalMax, threshold);
             //if (IJ.debugMode) new ImagePlus("pixel types precleanup", typeP.duplicate()).show();
-            cleanupMaxima(outIp, typeP, maxPoints);     //eliminate all the small maxima (i.e. those outside MAX_AREA)
+            if (queueWatershed)
+                cleanupMaximaQueue(outIp, typeP, maxPoints);
+            else
+                cleanupMaxima(outIp, typeP, maxPoints); //eliminate all the small maxima (i.e. those outside MAX_AREA)
             //if (IJ.debugMode) new ImagePlus("pixel types postcleanup", typeP).show();
             //if (IJ.debugMode) new ImagePlus("pre-watershed", outIp.duplicate()).show();
-            if (!watershedSegment(outIp))               //do watershed segmentation
+            if (!(queueWatershed ? watershedSegmentQueue(outIp) : watershedSegment(outIp)))
                 return null;                            //if user-cancelled, return
             if (!isEDM) cleanupExtraLines(outIp);       //eliminate lines due to local minima (none in EDM)
             watershedPostProcess(outIp);                //levels to binary image
@@ -563,43 +591,32 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
      *                  is encoded in the upper 32 bits and the pixel offset in the lower 32 bit
      * Note: Do not use the positions of the points marked as MAXIMUM in typeP, they are invalid for images with a roi.
      */    
-    long[] getSortedMaxPoints(ImageProcessor ip, ByteProcessor typeP, boolean excludeEdgesNow,
-            boolean isEDM, float globalMin, float globalMax, double threshold) {
-        Rectangle roi = ip.getRoi();
-        byte[] types =  (byte[])typeP.getPixels();
-        int nMax = 0;  //counts local maxima
-        boolean checkThreshold = threshold!=ImageProcessor.NO_THRESHOLD;
-        Thread thread = Thread.currentThread();
+    long[] getSortedMaxPoints(final ImageProcessor ip, ByteProcessor typeP, final boolean excludeEdgesNow,
+            final boolean isEDM, final float globalMin, float globalMax, final double threshold) {
+        final Rectangle roi = ip.getRoi();
+        final byte[] types =  (byte[])typeP.getPixels();
+        final Thread thread = Thread.currentThread();
         //long t0 = System.currentTimeMillis();
-        for (int y=roi.y; y<roi.y+roi.height; y++) {         // find local maxima now
-            if (y%50==0 && thread.isInterrupted()) return null;
-            for (int x=roi.x, i=x+y*width; x<roi.x+roi.width; x++, i++) {      // for better performance with rois, restrict search to roi
-                float v = ip.getPixelValue(x,y);
-                float vTrue = isEDM ? trueEdmHeight(x,y,ip) : v;  // for EDMs, use interpolated ridge height
-                if (v==globalMin) continue;
-                if (excludeEdgesNow && (x==0 || x==width-1 || y==0 || y==height-1)) continue;
-                if (checkThreshold && v<threshold) continue;
-                boolean isMax = true;
-                /* check wheter we have a local maximum.
-                 Note: For an EDM, we need all maxima: those of the EDM-corrected values
-                 (needed by findMaxima) and those of the raw values (needed by cleanupMaxima) */
-                boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
-                for (int d=0; d<8; d++) {                         // compare with the 8 neighbor pixels
-                    if (isInner || isWithin(x, y, d)) {
-                        float vNeighbor = ip.getPixelValue(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d]);
-                        float vNeighborTrue = isEDM ? trueEdmHeight(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d], ip) : vNeighbor;
-                        if (vNeighbor > v && vNeighborTrue > vTrue) {
-                            isMax = false;
-                            break;
-                        }
+        // find local maxima now; the rows are distributed over the threads
+        int numThreads = Math.min(Prefs.getThreads(), (int)((long)roi.width*roi.height/20000 + 1));
+        final AtomicInteger nextRow = new AtomicInteger(roi.y);
+        final AtomicInteger nMaxTotal = new AtomicInteger();
+        Callable<?>[] callables = new Callable<?>[numThreads];
+        for (int t=0; t<numThreads; t++) {
+            callables[t] = new Callable<Void>() {
+                public Void call() {
+                    int nMax = 0;
+                    for (int y=nextRow.getAndIncrement(); y<roi.y+roi.height; y=nextRow.getAndIncrement()) {
+                        if (thread.isInterrupted()) break;  //the caller, not the pool thread, is interrupted by Esc
+                        nMax += markMaxima(ip, roi, types, y, excludeEdgesNow, isEDM, globalMin, threshold);
                     }
+                    nMaxTotal.addAndGet(nMax);
+                    return null;
                 }
-                if (isMax) {
-                    types[i] = MAXIMUM;
-                    nMax++;
-                }
-            } // for x
-        } // for y
+            };
+        }
+        ThreadUtil.startAndJoinInPool(callables);
+        int nMax = nMaxTotal.get();  //counts local maxima
         if (thread.isInterrupted()) return null;
         //long t1 = System.currentTimeMillis();IJ.log("markMax:"+(t1-t0));
         
@@ -620,6 +637,41 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         return maxPoints;
     } //getSortedMaxPoints
 
+    /** Marks the local maxima in row y of the roi as MAXIMUM in 'types', see getSortedMaxPoints.
+     *  Returns the number of maxima found. */
+    private int markMaxima(ImageProcessor ip, Rectangle roi, byte[] types, int y, boolean excludeEdgesNow,
+            boolean isEDM, float globalMin, double threshold) {
+        boolean checkThreshold = threshold!=ImageProcessor.NO_THRESHOLD;
+        int nMax = 0;
+        for (int x=roi.x, i=x+y*width; x<roi.x+roi.width; x++, i++) {      // for better performance with rois, restrict search to roi
+            float v = ip.getPixelValue(x,y);
+            float vTrue = isEDM ? trueEdmHeight(x,y,ip) : v;  // for EDMs, use interpolated ridge height
+            if (v==globalMin) continue;
+            if (excludeEdgesNow && (x==0 || x==width-1 || y==0 || y==height-1)) continue;
+            if (checkThreshold && v<threshold) continue;
+            boolean isMax = true;
+            /* check wheter we have a local maximum.
+             Note: For an EDM, we need all maxima: those of the EDM-corrected values
+             (needed by findMaxima) and those of the raw values (needed by cleanupMaxima) */
+            boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
+            for (int d=0; d<8; d++) {                         // compare with the 8 neighbor pixels
+                if (isInner || isWithin(x, y, d)) {
+                    float vNeighbor = ip.getPixelValue(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d]);
+                    float vNeighborTrue = isEDM ? trueEdmHeight(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d], ip) : vNeighbor;
+                    if (vNeighbor > v && vNeighborTrue > vTrue) {
+                        isMax = false;
+                        break;
+                    }
+                }
+            }
+            if (isMax) {
+                types[i] = MAXIMUM;
+                nMax++;
+            }
+        } // for x
+        return nMax;
+    } //markMaxima
+
    /** Check all maxima in list maxPoints, mark type of the points in typeP
     * @param ip             the image to be analyzed
     * @param typeP          8-bit image, here the point types are marked by type: MAX_POINT, etc.
@@ -960,6 +1012,78 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         } // for all maxima iMax
     } // void cleanupMaxima
 
+    /** Same as cleanupMaxima, but flooding down from each maximum with a hierarchical
+     * queue. Each point enters the queue at the lowest level on the best path from the
+     * maximum, i.e., the level where cleanupMaxima would list it. The first level where
+     * the flooded area touches a "true" maximum (or a not lower point of a previously
+     * eliminated maximum) is that of the saddle point. Thus, each point is handled once
+     * per maximum, not once per level.
+     */
+    void cleanupMaximaQueue(ByteProcessor outIp, ByteProcessor typeP, long[] maxPoints) {
+        byte[] pixels = (byte[])outIp.getPixels();
+        byte[] types = (byte[])typeP.getPixels();
+        int nMax = maxPoints.length;
+        LevelQueue queue = new LevelQueue();
+        int[] pList = new int[1024];                //points listed for the current maximum, in sequence of processing
+        int[] queuedList = new int[1024];           //all points entered into the queue (for resetting LISTED)
+        for (int iMax = nMax-1; iMax>=0; iMax--) {
+            int offset0 = (int)maxPoints[iMax];     //type cast gets lower 32 bits where pixel offset is encoded
+            if ((types[offset0]&(MAX_AREA|ELIMINATED))!=0) continue;
+            int level = pixels[offset0]&255;
+            queue.add(offset0, level);
+            types[offset0] |= LISTED;
+            queuedList[0] = offset0;
+            int nQueued = 1;
+            int listLen = 0;                        //number of points processed
+            int lastLen = 0;                        //number of points processed at levels above the current one
+            boolean saddleFound = false;
+            while (!queue.isEmpty()) {
+                int qLevel = queue.level();
+                if (qLevel < level) {               //all points above qLevel done
+                    level = qLevel;
+                    lastLen = listLen;
+                }
+                int offset = queue.poll();
+                if ((types[offset]&ELIMINATED)!=0) {
+                    saddleFound = true;             //a level not lower, but touching a "true" maximum
+                    break;
+                }
+                if (listLen == pList.length) pList = Arrays.copyOf(pList, 2*listLen);
+                pList[listLen++] = offset;
+                int x = offset % width;
+                int y = offset / width;
+                boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
+                for (int d=0; d<8; d++) {           //analyze all neighbors (in 8 directions)
+                    int offset2 = offset+dirOffset[d];
+                    if ((isInner || isWithin(x, y, d)) && (types[offset2]&LISTED)==0) {
+                        if ((types[offset2]&MAX_AREA)!=0) {
+                            saddleFound = true;     //we have reached a point touching a "true" maximum
+                            break;
+                        }
+                        queue.add(offset2, Math.min(pixels[offset2]&255, level));
+                        types[offset2] |= LISTED;
+                        if (nQueued == queuedList.length) queuedList = Arrays.copyOf(queuedList, 2*nQueued);
+                        queuedList[nQueued++] = offset2;
+                    }
+                } // for directions d
+                if (saddleFound) break;
+            } // while queue not empty
+            if (!saddleFound) {                     //nothing touched down to level 0
+                if (level > 0) lastLen = listLen;
+                level = 0;
+            }
+            if (lastLen == 0) lastLen = 1;          //the maximum itself is always set to the saddle level
+            queue.clear();
+            for (int i=0; i<nQueued; i++)           //reset attribute since we may come to this place again
+                types[queuedList[i]] &= ~LISTED;
+            for (int i=0; i<lastLen; i++) {         //for all points higher than the level of the saddle point
+                int offset = pList[i];
+                pixels[offset] = (byte)level;       //set pixel value to the level of the saddle point
+                types[offset] |= ELIMINATED;        //mark as processed: there can't be a local maximum in this area
+            }
+        } // for all maxima iMax
+    } // void cleanupMaximaQueue
+
     /** Delete extra structures form watershed of non-EDM images, e.g., foreground patches,
      *  single dots and lines ending somewhere within a segmented particle
      *  Needed for post-processing watershed-segmented images that can have local minima
@@ -1220,6 +1344,81 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         return true;
     } // boolean watershedSegment
 
+    /** Watershed segmentation like watershedSegment, but by flooding from the maxima
+     * with a hierarchical queue. Each point next to a particle enters the queue at its
+     * own level, or the level of the particle point it is reached from if that is lower.
+     * Points are taken from the queue highest level first, in the sequence they were
+     * entered within a level, and added to the particle (set to 255) unless the fateTable
+     * forbids it since the neighbors belong to more than one particle. A point not added
+     * is tried again whenever another neighbor is added to a particle.
+     * @param ip  The byteProcessor containing the image, with size given by the class variables width and height
+     * @return    false if canceled by the user (note: can be cancelled only if called by "run" with a known ImagePlus)
+     */
+    private boolean watershedSegmentQueue(ByteProcessor ip) {
+        byte[] pixels = (byte[])ip.getPixels();
+        byte[] states = new byte[width*height];     //QUEUED for points in the queue
+        int[] fateTable = makeFateTable();
+        LevelQueue queue = new LevelQueue();
+        int nPoints = 0;                            //number of points between value 1 and 254
+        for (int y=0, i=0; y<height; y++) {         //start with the neighbors of the maxima areas
+            for (int x=0; x<width; x++, i++) {
+                int v = pixels[i]&255;
+                if (v>0 && v<255)
+                    nPoints++;
+                else if (v==255) {
+                    boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
+                    for (int d=0; d<8; d++) {
+                        int offset2 = i+dirOffset[d];
+                        if ((isInner || isWithin(x, y, d)) && states[offset2]==0) {
+                            int v2 = pixels[offset2]&255;
+                            if (v2>0 && v2<255) {
+                                queue.add(offset2, v2);
+                                states[offset2] = QUEUED;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        IJ.showStatus("Segmenting (Esc to cancel)");
+        int nProcessed = 0;
+        while (!queue.isEmpty()) {
+            int level = queue.level();
+            int offset = queue.poll();
+            states[offset] = 0;
+            if ((++nProcessed&0xffff) == 0) {
+                addProgress(0x10000/(double)nPoints);
+                if (IJ.escapePressed()) {           // cancelled by the user
+                    IJ.beep();
+                    IJ.showProgress(1.0);
+                    return false;
+                }
+            }
+            int x = offset % width;
+            int y = offset / width;
+            boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
+            int index = 0;                          //neighborhood pixel occupation: index in fateTable
+            for (int d=0; d<8; d++)
+                if ((isInner || isWithin(x, y, d)) && pixels[offset+dirOffset[d]]==(byte)255)
+                    index |= 1<<d;
+            if (fateTable[index]==0)
+                continue;                           //would connect different particles (for now)
+            pixels[offset] = (byte)255;
+            for (int d=0; d<8; d++) {
+                int offset2 = offset+dirOffset[d];
+                if ((isInner || isWithin(x, y, d)) && states[offset2]==0) {
+                    int v2 = pixels[offset2]&255;
+                    if (v2>0 && v2<255) {
+                        queue.add(offset2, Math.min(v2, level));
+                        states[offset2] = QUEUED;
+                    }
+                }
+            }
+        }
+        addProgress((nProcessed&0xffff)/(double)Math.max(nPoints, 1));
+        return true;
+    } // boolean watershedSegmentQueue
+
 
     /** dilate the UEP on one level by one pixel in the direction specified by step, i.e., set pixels to 255
      * @param pass gives direction of dilation, see makeFateTable
@@ -1385,4 +1584,59 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         IJ.showProgress(progressDone/nPasses);
     }
 
+    /** A hierarchical queue of pixel offsets with priorities (levels) 0-255: there is
+     * one FIFO per level, and the highest level is served first. The FIFO arrays grow
+     * as needed and are reused, thus the memory is determined by the flooding front,
+     * not by the number of pixels of the image. */
+    private static class LevelQueue {
+        private int[][] fifos = new int[256][];
+        private int[] head = new int[256];
+        private int[] tail = new int[256];
+        private int top = -1;                       //highest level that may be non-empty
+
+        void add(int offset, int level) {
+            int[] fifo = fifos[level];
+            if (fifo == null)
+                fifo = fifos[level] = new int[64];
+            else if (tail[level] == fifo.length) {
+                int n = tail[level] - head[level];
+                if (head[level] >= fifo.length/2)   //enough space at the start: move the contents there
+                    System.arraycopy(fifo, head[level], fifo, 0, n);
+                else
+                    fifo = fifos[level] = Arrays.copyOfRange(fifo, head[level], head[level] + 2*fifo.length);
+                head[level] = 0;
+                tail[level] = n;
+            }
+            fifo[tail[level]++] = offset;
+            if (level > top) top = level;
+        }
+
+        boolean isEmpty() {
+            return level() < 0;
+        }
+
+        /** Returns the level of the next point, or -1 if the queue is empty */
+        int level() {
+            while (top >= 0 && head[top] == tail[top]) {
+                head[top] = 0;
+                tail[top] = 0;
+                top--;
+            }
+            return top;
+        }
+
+        /** Removes the next point from the queue and returns its offset.
+         *  Must not be called if the queue is empty. */
+        int poll() {
+            int level = level();
+            return fifos[level][head[level]++];
+        }
+
+        void clear() {
+            Arrays.fill(head, 0);
+            Arrays.fill(tail, 0);
+            top = -1;
+        }
+    }
+
 }
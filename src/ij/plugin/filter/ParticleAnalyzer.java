@@ -1,7 +1,10 @@
 package ij.plugin.filter;
 import java.awt.*;
 import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.*;
 import ij.*;
 import ij.gui.*;
 import ij.process.*;
@@ -13,6 +16,7 @@ import ij.plugin.Colors;
 import ij.plugin.LutLoader;
 import ij.macro.Interpreter;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 
 /** Implements ImageJ's Analyze Particles command.
 	<p>
@@ -26,8 +30,11 @@ import ij.util.Tools;
 			else
 				continue the scan
 	</pre>
+	When a stack is analyzed using more than one thread, the slices are scanned
+	concurrently and the particles found are then measured slice by slice, so
+	that the results are the same as with a single thread.
 */
-public class ParticleAnalyzer implements PlugInFilter, Measurements {
+public class ParticleAnalyzer implements PlugInFilter, Measurements, Cloneable {
 
 	/** Display results in the ImageJ console. */
 	public static final int SHOW_RESULTS = 1;
@@ -168,6 +175,11 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 	private int lineWidth = nextLineWidth;
 	private boolean noThreshold;
 	private boolean calledByPlugin;
+	private boolean parallelSlices;
+	private Future<?>[] sliceTasks;
+	private int nextSliceTask;
+	private ParticleAnalyzer sliceAnalyzer;
+	private ArrayList<Particle> particles;
 	private boolean hyperstack;
 	private static LUT glasbeyLut;
 
@@ -254,6 +266,8 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		int baseFlags = DOES_ALL+NO_CHANGES+NO_UNDO;
 		int flags = IJ.setupDialog(imp, baseFlags);
 		processStack = (flags&DOES_STACKS)!=0;
+		parallelSlices = processStack && imp.getStackSize()>1 && Prefs.getThreads()>1
+			&& imp.getType()!=ImagePlus.COLOR_RGB;
 		slice = 0;
 		saveRoi = imp.getRoi();
 		saveSlice = imp.getCurrentSlice();
@@ -587,29 +601,66 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 			}
 		}
 		minX=r.x; maxX=r.x+r.width; minY=r.y; maxY=r.y+r.height;
-		if (r.width<width || r.height<height || mask!=null) {
+		if (showChoice==ELLIPSES)
+			measurements |= ELLIPSE;
+		roiNeedsImage = (measurements&PERIMETER)!=0 || (measurements&SHAPE_DESCRIPTORS)!=0 || (measurements&FERET)!=0;
+		roiType = Wand.allPoints()?Roi.FREEROI:Roi.TRACED_ROI;
+		ArrayList<Particle> found = parallelSlices?getSliceParticles(imp, ip):null;
+		if (canceled) {
+			cancelSliceTasks();
+			return false;
+		}
+		if (found==null && (r.width<width || r.height<height || mask!=null)) {
 			if (!eraseOutsideRoi(ip, r, mask)) return false;
 		}
-		int offset;
-		double value;
-		int inc = Math.max(r.height/25, 1);
-		int mi = 0;
 		ImageWindow win = imp.getWindow();
 		if (win!=null)
 			win.running = true;
-		if (showChoice==ELLIPSES)
-			measurements |= ELLIPSE;
-		roiNeedsImage = (measurements&PERIMETER)!=0 || (measurements&SHAPE_DESCRIPTORS)!=0 || (measurements&FERET)!=0;
 		particleCount = 0;
-		wand = new Wand(ip);
-		pf = new PolygonFiller();
-		if (floodFill) {
-			ImageProcessor ipf = ip.duplicate();
-			ipf.setValue(fillColor);
-			ff = new FloodFiller(ipf);
+		if (found!=null) {
+			for (Particle p : found)
+				saveParticle(p.x, p.y, imp, p.stats, p.roi, p.mask);
+			if (win!=null)
+				canceled = !win.running;
+			if (canceled)
+				Macro.abort();
+		} else if (labelParticles())
+			analyzeLabeledParticles(imp, ip, win);
+		else {
+			wand = new Wand(ip);
+			pf = new PolygonFiller();
+			if (floodFill) {
+				ImageProcessor ipf = ip.duplicate();
+				ipf.setValue(fillColor);
+				ff = new FloodFiller(ipf);
+			}
+			scan(imp, ip, pixels, win);
 		}
-		roiType = Wand.allPoints()?Roi.FREEROI:Roi.TRACED_ROI;
-
+		if (canceled)
+			cancelSliceTasks();
+		if (showProgress)
+			IJ.showProgress(1.0);
+		if (showResults && showResultsTable && rt.size()>0)
+			rt.updateResults();
+		imp.deleteRoi();
+		ip.resetRoi();
+		ip.reset();
+		if (displaySummary)
+			updateSliceSummary();
+		if (addToManager && roiManager!=null)
+			roiManager.setEditMode(imp, true);
+		maxParticleCount = (particleCount > maxParticleCount) ? particleCount : maxParticleCount;
+		totalCount += particleCount;
+		if (!canceled)
+			showResults();
+		return true;
+	}
+	
+	/** Scans the image and analyzes the particles it contains, row by row. */
+	private void scan(ImagePlus imp, ImageProcessor ip, byte[] pixels, ImageWindow win) {
+		int offset;
+		double value;
+		int inc = Math.max(r.height/25, 1);
 		boolean done = false;
 		for (int y=r.y; y<(r.y+r.height); y++) {
 			offset = y*width;
@@ -625,6 +676,11 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 					done = level1==0.0&&level2==255.0&&imp.getBitDepth()==8;
 				}
 			}
+			if (particles!=null) {
+				if (Thread.currentThread().isInterrupted())
+					break;
+				continue;
+			}
 			if (showProgress && ((y%inc)==0))
 				IJ.showProgress((double)(y-r.y)/r.height);
 			if (win!=null)
@@ -634,24 +690,164 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 				break;
 			}
 		}
-		if (showProgress)
-			IJ.showProgress(1.0);
-		if (showResults && showResultsTable && rt.size()>0)
-			rt.updateResults();
-		imp.deleteRoi();
+	}
+
+	/** Returns true if the particles are the 8-connected areas of thresholded
+		pixels ("Include holes" not checked), so that they can be found by
+		labeling the image rather than by tracing and filling them one by one. */
+	private boolean labelParticles() {
+		return floodFill && wandMode==Wand.LEGACY_MODE && !(excludeEdgeParticles&&exclusionRoi!=null)
+			&& !(fillColor>=level1 && fillColor<=level2);
+	}
+
+	/** Finds the particles with a ParticleLabeler and analyzes them in scan
+		order. Outlines are only traced if they are needed. */
+	private void analyzeLabeledParticles(ImagePlus imp, ImageProcessor ip, ImageWindow win) {
+		ParticleLabeler labeler = new ParticleLabeler(ip);
+		ip.setRoi(r);
+		int count = labeler.label(level1, level2, false);
 		ip.resetRoi();
-		ip.reset();
-		if (displaySummary)
-			updateSliceSummary();
-		if (addToManager && roiManager!=null)
-			roiManager.setEditMode(imp, true);
-		maxParticleCount = (particleCount > maxParticleCount) ? particleCount : maxParticleCount;
-		totalCount += particleCount;
-		if (!canceled)
-			showResults();
-		return true;
+		ImageProcessor ip2 = redirectIP!=null?redirectIP:ip;
+		boolean needsRoi = roiNeedsImage || addToManager || showChoice!=NOTHING || showOverlay || compositeRois
+			|| minCircularity>0.0 || maxCircularity!=1.0 || getClass()!=ParticleAnalyzer.class;
+		int inc = Math.max(count/25, 1);
+		for (int label=1; label<=count; label++) {
+			Rectangle bounds = labeler.getBounds(label);
+			ImageProcessor mask = labeler.getMask(label);
+			ip2.setMask(mask);
+			ip2.setRoi(bounds);
+			ImageStatistics stats = getStatistics(ip2, measurements, calibration);
+			boolean include = !(excludeEdgeParticles && (bounds.x==minX||bounds.y==minY
+				||bounds.x+bounds.width==maxX||bounds.y+bounds.height==maxY));
+			Roi roi = needsRoi?labeler.getRoi(label):null;
+			if (!needsRoi || roi!=null)
+				addParticle(labeler.getXStart(label), labeler.getYStart(label), imp, stats, roi, mask, include);
+			if ((label%inc)!=0)
+				continue;
+			if (particles!=null) {
+				if (Thread.currentThread().isInterrupted())
+					break;
+				continue;
+			}
+			if (showProgress)
+				IJ.showProgress((double)label/count);
+			if (win!=null)
+				canceled = !win.running;
+			if (canceled) {
+				Macro.abort();
+				break;
+			}
+		}
+		ip2.resetRoi();
 	}
-	
+
+	/** Returns the particles of the current slice, found in the background,
+		or null if they have to be found by the calling thread. Up to two
+		slices per thread are scanned ahead of the slice being measured.
+		The slices are read by the calling thread; only the scan runs in
+		the background. */
+	private ArrayList<Particle> getSliceParticles(final ImagePlus imp, ImageProcessor ip) {
+		ImageStack stack = imp.getStack();
+		int n = stack.getSize();
+		if (slice==1) {
+			sliceTasks = new Future<?>[n];
+			nextSliceTask = 0;
+			sliceAnalyzer = copy();
+		}
+		if (sliceTasks==null || sliceAnalyzer==null || slice<1 || slice>n)
+			return null;
+		ImageStack redirectStack = redirectImp!=null&&redirectImp.getStackSize()==n?redirectImp.getStack():null;
+		final double t1 = ip.getMinThreshold();
+		final double t2 = ip.getMaxThreshold();
+		int ahead = 2*Prefs.getThreads();
+		while (nextSliceTask<n && nextSliceTask<slice+ahead) {
+			final int index = ++nextSliceTask;
+			final ImageProcessor ip1 = stack.getProcessor(index).duplicate();
+			ImageProcessor ip2 = redirectStack!=null?redirectStack.getProcessor(index):null;
+			if (ip2==null && redirectIP!=null)
+				ip2 = redirectIP.duplicate();
+			final ImageProcessor redirectIP2 = ip2;
+			sliceTasks[index-1] = ThreadUtil.submit(new Callable<ParticleAnalyzer>() {
+				public ParticleAnalyzer call() {
+					ParticleAnalyzer pa = sliceAnalyzer.copy();
+					if (pa==null || !pa.findParticles(imp, ip1, redirectIP2, t1, t2))
+						return null;
+					return pa;
+				}
+			});
+		}
+		Future<?> task = sliceTasks[slice-1];
+		sliceTasks[slice-1] = null;
+		ParticleAnalyzer pa = null;
+		try {
+			pa = (ParticleAnalyzer)task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (CancellationException e) {
+		} catch (ExecutionException e) {
+			IJ.handleException(e.getCause());
+			canceled = true;
+		}
+		// the threshold may have changed since this slice was scanned
+		if (pa==null || pa.level1!=level1 || pa.level2!=level2 || pa.fillColor!=fillColor)
+			return null;
+		return pa.particles;
+	}
+
+	/** Finds the particles in one slice without measuring them, using this
+		copy of the analyzer and processors not shared with other threads.
+		The threshold levels are set from 't1' and 't2' as in analyze(). */
+	private boolean findParticles(ImagePlus imp, ImageProcessor ip, ImageProcessor redirectIP, double t1, double t2) {
+		this.redirectIP = redirectIP;
+		particles = new ArrayList<Particle>();
+		if (t1!=ImageProcessor.NO_THRESHOLD) {
+			level1 = t1;
+			level2 = t2;
+			if (!setFillColor())
+				return false;
+			ip.setThreshold(level1, level2, ImageProcessor.NO_LUT_UPDATE);
+		}
+		if (exclusionRoi!=null)
+			exclusionRoi = (Roi)exclusionRoi.clone();
+		ip.setRoi(r);
+		ip.setMask(mask);
+		if (r.width<width || r.height<height || mask!=null) {
+			if (!eraseOutsideRoi(ip, r, mask)) return false;
+		}
+		if (labelParticles())
+			analyzeLabeledParticles(imp, ip, null);
+		else {
+			wand = new Wand(ip);
+			pf = new PolygonFiller();
+			if (floodFill) {
+				ImageProcessor ipf = ip.duplicate();
+				ipf.setValue(fillColor);
+				ff = new FloodFiller(ipf);
+			}
+			byte[] pixels = ip instanceof ByteProcessor?(byte[])ip.getPixels():null;
+			scan(imp, ip, pixels, null);
+		}
+		return !Thread.currentThread().isInterrupted();
+	}
+
+	private void cancelSliceTasks() {
+		if (sliceTasks==null)
+			return;
+		for (int i=0; i<sliceTasks.length; i++) {
+			if (sliceTasks[i]!=null)
+				sliceTasks[i].cancel(true);
+		}
+		sliceTasks = null;
+	}
+
+	private ParticleAnalyzer copy() {
+		try {
+			return (ParticleAnalyzer)clone();
+		} catch (CloneNotSupportedException e) {
+			return null;
+		}
+	}
+
 	void updateSliceSummary() {
 		int slices = imp.getStackSize();
 		if (slices==1) {
@@ -766,7 +962,8 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 					replaceColor = level2+1.0;
 					int maxColor = imageType==BYTE?255:65535;
 					if (replaceColor>maxColor || replaceColor==fillColor) {
-						IJ.error("Particle Analyzer", "Unable to remove edge particles");
+						if (particles==null)
+							IJ.error("Particle Analyzer", "Unable to remove edge particles");
 						return false;
 					}
 				}
@@ -836,19 +1033,7 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		} else {
 			level1 = t1;
 			level2 = t2;
-			if (imageType==BYTE) {
-				if (level1>0)
-					fillColor = 0;
-				else if (level2<255)
-					fillColor = 255;
-			} else if (imageType==SHORT) {
-				if (level1>0)
-					fillColor = 0;
-				else if (level2<65535)
-					fillColor = 65535;
-			} else if (imageType==FLOAT)
-					fillColor = -Float.MAX_VALUE;
-			else
+			if (!setFillColor())
 				return false;
 		}
 		imageType2 = imageType;
@@ -864,13 +1049,38 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		}
 		return true;
 	}
+
+	/** Sets the value used to fill particles that have been analyzed,
+		given the threshold levels. */
+	private boolean setFillColor() {
+		if (imageType==BYTE) {
+			if (level1>0)
+				fillColor = 0;
+			else if (level2<255)
+				fillColor = 255;
+		} else if (imageType==SHORT) {
+			if (level1>0)
+				fillColor = 0;
+			else if (level2<65535)
+				fillColor = 65535;
+		} else if (imageType==FLOAT)
+				fillColor = -Float.MAX_VALUE;
+		else
+			return false;
+		return true;
+	}
 		
 	void analyzeParticle(int x, int y, ImagePlus imp, ImageProcessor ip) {
 		ImageProcessor ip2 = redirectIP!=null?redirectIP:ip;
 		wand.autoOutline(x, y, level1, level2, wandMode);
 		if (wand.npoints==0)
 			{IJ.log("wand error: "+x+" "+y); return;}
-		Roi roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, roiType);
+		int[] xpoints=wand.xpoints, ypoints=wand.ypoints;
+		if (particles!=null) { // the wand reuses its arrays
+			xpoints = Arrays.copyOf(xpoints, wand.npoints);
+			ypoints = Arrays.copyOf(ypoints, wand.npoints);
+		}
+		Roi roi = new PolygonRoi(xpoints, ypoints, wand.npoints, roiType);
 		Rectangle r = roi.getBounds();
 		if (r.width>1 && r.height>1) {
 			PolygonRoi proi = (PolygonRoi)roi;
@@ -888,12 +1098,12 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 			if (exclusionRoi!=null && include) {
 				// Exclude particle if any point along boundary is not contained in roi.
 				Rectangle bounds = roi.getBounds();
-				int x1=bounds.x+wand.xpoints[wand.npoints-1];
-				int y1=bounds.y+wand.ypoints[wand.npoints-1];
+				int x1=bounds.x+xpoints[wand.npoints-1];
+				int y1=bounds.y+ypoints[wand.npoints-1];
 				int x2, y2;
 				for (int i=0; i<wand.npoints; i++) {
-					x2=bounds.x+wand.xpoints[i];
-					y2=bounds.y+wand.ypoints[i];
+					x2=bounds.x+xpoints[i];
+					y2=bounds.y+ypoints[i];
 					if (!exclusionRoi.contains(x2, y2))
 						{include = false; break;}
 					if ((x1==x2 && ip.getPixel(x1,y1-1)==fillColor) || (y1==y2 && ip.getPixel(x1-1,y1)==fillColor))
@@ -903,6 +1113,14 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 			}
 		}
 		ImageProcessor mask = ip2.getMask();
+		addParticle(x, y, imp, stats, roi, mask, include);
+		ip.setRoi(r);
+		ip.fill(mask);
+	}
+
+	/** Applies the circularity and size limits to a particle and saves it,
+		or keeps it for later if the particle was found in the background. */
+	private void addParticle(int x, int y, ImagePlus imp, ImageStatistics stats, Roi roi, ImageProcessor mask, boolean include) {
 		if (compositeRois && floodFill && mask!=null) {
 			mask.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
 			Roi roi2 = new ThresholdToSelection().convert(mask);
@@ -918,22 +1136,28 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 			if (circularity<minCircularity || circularity>maxCircularity) include = false;
 		}
 		if (stats.pixelCount>=minSize && stats.pixelCount<=maxSize && include) {
-			particleCount++;
-			if (roiNeedsImage)
-				roi.setImage(imp);
-			stats.xstart=x; stats.ystart=y;
-			saveResults(stats, roi);
-			if (addToManager)
-				addToRoiManager(roi, mask, particleCount);
-			int saveShowChoice = showChoice;
-			if (showOverlay && showChoice==NOTHING)
-				showChoice = OVERLAY_OUTLINES;
-			if (showChoice!=NOTHING)
-				drawParticle(drawIP, roi, stats, mask);
-			showChoice = saveShowChoice;
+			if (particles!=null)
+				particles.add(new Particle(x, y, stats, roi, mask));
+			else
+				saveParticle(x, y, imp, stats, roi, mask);
 		}
-		ip.setRoi(r);
-		ip.fill(mask);
+	}
+
+	/** Measures, records and draws a particle that has been included. */
+	private void saveParticle(int x, int y, ImagePlus imp, ImageStatistics stats, Roi roi, ImageProcessor mask) {
+		particleCount++;
+		if (roiNeedsImage)
+			roi.setImage(imp);
+		stats.xstart=x; stats.ystart=y;
+		saveResults(stats, roi);
+		if (addToManager)
+			addToRoiManager(roi, mask, particleCount);
+		int saveShowChoice = showChoice;
+		if (showOverlay && showChoice==NOTHING)
+			showChoice = OVERLAY_OUTLINES;
+		if (showChoice!=NOTHING)
+			drawParticle(drawIP, roi, stats, mask);
+		showChoice = saveShowChoice;
 	}
 
 	ImageStatistics getStatistics(ImageProcessor ip, int mOptions, Calibration cal) {
@@ -1227,4 +1451,20 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		prefs.put(OPTIONS, Integer.toString(staticOptions));
 	}
 
+	/** A particle found by a background thread, waiting to be measured. */
+	private static class Particle {
+		int x, y;
+		ImageStatistics stats;
+		Roi roi;
+		ImageProcessor mask;
+
+		Particle(int x, int y, ImageStatistics stats, Roi roi, ImageProcessor mask) {
+			this.x = x;
+			this.y = y;
+			this.stats = stats;
+			this.roi = roi;
+			this.mask = mask;
+		}
+	}
+
 }
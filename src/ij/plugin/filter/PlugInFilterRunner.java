@@ -8,6 +8,9 @@ import ij.measure.Calibration;
 import ij.macro.Interpreter;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import ij.util.ThreadUtil;
 
 public class PlugInFilterRunner implements Runnable, DialogListener {
 	private String command;					// the command, can be but need not be the name of the PlugInFilter
@@ -27,6 +30,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 	private Object snapshotPixels;		// the snapshot to show we have one and for undo in case of parallel actions intervening
 	private Hashtable<Thread, int[]> slicesForThread;		// gives first&last slice that a given thread should process
 	private Hashtable<Thread, ImageProcessor> roisForThread;// gives ROI that a given thread should process
+	private Future<?>[] roiFutures;			// the background tasks processing the ROIs
 	Hashtable sliceForThread = new Hashtable(); // here the stack slice currently processed is stored.
 	private int nPasses;						// the number of calls to the run(ip) method of the filter
 	private int pass;						// passes done so far
@@ -136,26 +140,18 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 					if (threads>1) slicesForThread = new Hashtable<Thread, int[]>(threads-1);
 				}
 				int startSlice = 1;
-				for (int i=1; i<threads; i++) {				// setup the background threads
+				Callable<?>[] callables = new Callable<?>[threads-1];
+				for (int i=1; i<threads; i++) {				// setup the background tasks
 					int endSlice = (slicesToDo*i)/threads;
 					if (processedAsPreview!=0 && processedAsPreview<=endSlice) endSlice++;
-					Thread bgThread = new Thread(this, command+" "+startSlice+"-"+endSlice);
-					slicesForThread.put(bgThread, new int[] {startSlice, endSlice});
-					bgThread.start();
-					//IJ.log("Stack: Thread for slices "+startSlice+"-"+endSlice+" started");
+					callables[i-1] = backgroundTask(slicesForThread, new int[] {startSlice, endSlice});
+					//IJ.log("Stack: Task for slices "+startSlice+"-"+endSlice+" submitted");
 					startSlice = endSlice+1;
 				}
+				Future<?>[] futures = ThreadUtil.submit(callables);
 				//IJ.log("Stack: Slices "+startSlice+"-"+slices+" by main thread");
 				processStack(startSlice, slices);			// the current thread does the rest
-				if (slicesForThread != null) {
-					while (slicesForThread.size()>0) {	  // for all other threads:
-						Thread theThread = (Thread)slicesForThread.keys().nextElement();
-						try {
-							theThread.join();				// wait until thread has finished
-						} catch (InterruptedException e) {}
-						slicesForThread.remove(theThread);	// and remove it from the list.
-					}
-				}
+				ThreadUtil.joinAll(futures);				// wait until all tasks have finished
 			}
 		} // end processing:
 		if ((flags&PlugInFilter.FINAL_PROCESSING)!=0 && !IJ.escapePressed())
@@ -324,33 +320,23 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		if (threads>roi.height) threads = roi.height;
 		if (threads>1) roisForThread = new Hashtable<Thread, ImageProcessor>(threads-1);
 		int y1 = roi.y;
+		Callable<?>[] callables = new Callable<?>[Math.max(threads-1, 0)];
 		for (int i=1; i<threads; i++) {
 			int y2 = roi.y+(roi.height*i)/threads-1;
-			Thread bgThread = new Thread(this, command+" "+y1+"-"+y2);
 			Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, y2-y1+1);
-			roisForThread.put(bgThread, duplicateProcessor(ip, roi2));
-			bgThread.start();
+			callables[i-1] = backgroundTask(roisForThread, duplicateProcessor(ip, roi2));
 			if (IJ.debugMode)
-				IJ.log("  starting thread: "+y1+"-"+y2);
+				IJ.log("  submitting task: "+y1+"-"+y2);
 			y1 = y2+1;
 		}
+		roiFutures = ThreadUtil.submit(callables);
 		if (IJ.debugMode)
 			IJ.log("  main thread "+y1+"-"+(roi.y+roi.height));
 		Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, roi.y+roi.height-y1);
 		((PlugInFilter)theFilter).run(duplicateProcessor(ip, roi2)); 	// current thread does the rest
 		pass++;
-		if (roisForThread != null) {
-			for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();) {
-				Thread theThread = en.nextElement();
-				try {
-					theThread.join();		// wait until thread has finished
-				} catch (InterruptedException e) { // if preview cancelled:
-					interruptRoiThreads(roisForThread); //interrupt all threads and join
-					Thread.currentThread().interrupt(); //restore 'interrupted' state
-					break;
-				}
-			}
-		}
+		ThreadUtil.joinAll(roiFutures);	// wait until all tasks have finished; if preview cancelled, interrupt them
+		roiFutures = null;
 		roisForThread = null;
 		ip.setMask(mask);  // restore ROI
 		ip.setRoi(roi);
@@ -362,15 +348,30 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		return ip2;
 	}
 
-	/** interrupt threads processing the rois of an image and wait till they have finished */
-	void interruptRoiThreads(Hashtable<Thread, ImageProcessor> roisForThread) {
-		if (roisForThread==null) return;	//class variable may become null in other thread
-		for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();)
-			((Thread)en.nextElement()).interrupt(); //interrupt all threads
-		for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();)
-			try {
-				((Thread)en.nextElement()).join();
-			} catch (Exception e){}
+	/** Returns a task for the thread pool that calls run() with the slice range or
+	 *	ROI 'value' assigned to the pool thread that executes it. */
+	private <V> Callable<Void> backgroundTask(final Hashtable<Thread, V> table, final V value) {
+		return new Callable<Void>() {
+			final public Void call() {
+				Thread thread = Thread.currentThread();
+				table.put(thread, value);
+				try {
+					PlugInFilterRunner.this.run();
+				} finally {
+					table.remove(thread);
+				}
+				return null;
+			}
+		};
+	}
+
+	/** interrupt the tasks processing the rois of an image and wait till they have finished */
+	void interruptRoiThreads() {
+		Future<?>[] futures = roiFutures;		//class variable may become null in other thread
+		if (futures==null) return;
+		for (int i=0; i<futures.length; i++)
+			futures[i].cancel(true);	//interrupt all tasks
+		ThreadUtil.joinAll(futures);
 	}
 
 	/** test whether an ImagePlus can be processed based on the flags specified
@@ -562,8 +563,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		synchronized (this) {
 			previewThread.interrupt();		//ask for premature finishing (interrupt first -> no keepPreview)
 			bgPreviewOn = false;				//tell a possible background thread to terminate when it has finished
-			if (roisForThread!=null)
-				interruptRoiThreads(roisForThread);
+			interruptRoiThreads();
 		}
 		waitForPreviewDone();
 		imp.setOverlay(originalOverlay);
@@ -27,6 +27,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	public static final int BRIGHT_OUTLIERS = 0, DARK_OUTLIERS = 1;
 	private static final String[] outlierStrings = {"Bright","Dark"};
 	private static int HIGHEST_FILTER = TOP_HAT;
+	// Kernel radii from where the median of 8-bit (and RGB) and 16-bit images is calculated from a sliding histogram
+	private static final int MIN_HISTOGRAM_RADIUS_8BIT = 2, MIN_HISTOGRAM_RADIUS_16BIT = 4;
 	// Filter parameters
 	private int filterType;
 	private double radius;
@@ -375,7 +377,9 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	// maximum, leave the maximum unchanged. Otherwise, determine the maximum inside the area.
 	// For outliers, calculate the median only if the pixel deviates by more than the threshold
 	// from any pixel in the area. Therfore min or max is calculated; this is a much faster
-	// operation than the median.
+	// operation than the median. For the median of integer data (8-bit, 16-bit, RGB) with larger
+	// kernels, a histogram of the kernel area is updated with the values entering and leaving
+	// the area when moving along the line, see filterLineWithHistogram.
 	private void doFiltering(ImageProcessor ip, int[] lineRadii, float[] cache, int cacheWidth, int cacheHeight,
 			int filterType, float minMaxOutliersSign, float threshold, int colorChannel,
 			AtomicIntegerArray yForThread, int threadNumber, AtomicInteger nextY) {
@@ -403,14 +407,21 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		boolean sumFilter = filterType == MEAN || filterType == VARIANCE;
 		boolean medianFilter = filterType == MEDIAN || filterType == OUTLIERS;
 		double[] sums = sumFilter ? new double[2] : null;
-		float[] medianBuf1 = (medianFilter||filterType==REMOVE_NAN) ? new float[kNPoints] : null;
-		float[] medianBuf2 = (medianFilter||filterType==REMOVE_NAN) ? new float[kNPoints] : null;
 
 		boolean smallKernel = kRadius < 2;
 
 		Object pixels = ip.getPixels();
 		boolean isFloat = pixels instanceof float[];
 		float maxValue = isFloat ? Float.NaN : (float)ip.maxValue();
+
+		// for large kernels, the median of integer data is taken from a sliding histogram
+		boolean histogramMedian = filterType == MEDIAN && !isFloat &&
+				kRadius >= (maxValue > 255 ? MIN_HISTOGRAM_RADIUS_16BIT : MIN_HISTOGRAM_RADIUS_8BIT);
+		int histogramShift = maxValue > 255 ? 8 : 4;
+		int[] histogram = histogramMedian ? new int[(int)maxValue+1] : null;
+		int[] coarseHistogram = histogramMedian ? new int[((int)maxValue>>histogramShift)+1] : null;
+		float[] medianBuf1 = ((medianFilter&&!histogramMedian)||filterType==REMOVE_NAN) ? new float[kNPoints] : null;
+		float[] medianBuf2 = ((medianFilter&&!histogramMedian)||filterType==REMOVE_NAN) ? new float[kNPoints] : null;
 		float[] values = isFloat ? (float[])pixels : new float[roi.width];
 
 		int numThreads = yForThread.length();
@@ -500,9 +511,13 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			}
 
 			int cacheLineP = cacheWidth * (y % cacheHeight) + kRadius;	//points to pixel (roi.x, y)
-			filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,	// F I L T E R
-					sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
-					smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
+			if (histogramMedian)														// F I L T E R
+				filterLineWithHistogram(values, roi.width, cache, cachePointers, kNPoints,
+						histogram, coarseHistogram, histogramShift);
+			else
+				filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,
+						sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
+						smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
 			if (!isFloat)		//Float images: data are written already during 'filterLine'
 				writeLineToPixels(values, pixels, roi.x+y*width, roi.width, colorChannel);	// W R I T E
 			//IJ.log("thread "+threadNumber+" @y="+y+" line done");
@@ -590,6 +605,62 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			} // for x
 		}
 
+	/** Median filter of a line of integer data (8-bit, 16-bit or a channel of RGB) using a histogram
+	 *	of the kernel area. When moving to the next pixel, only the values leaving and entering the
+	 *	kernel area are removed from and added to the histogram, so the time per pixel grows with
+	 *	the kernel height, not with the kernel area. The median is found by moving from the previous
+	 *	one; empty blocks of (1<<shift) histogram bins are skipped with the help of 'coarseHist'.
+	 *	Both histograms must be empty when calling this method and are empty when it returns. */
+	private static void filterLineWithHistogram(float[] values, int length, float[] cache, int[] kernel,
+			int kNPoints, int[] hist, int[] coarseHist, int shift) {
+		int half = kNPoints/2;
+		for (int kk=0; kk<kernel.length; kk++) {			// histogram of the kernel area at x=0
+			for (int p=kernel[kk++]; p<=kernel[kk]; p++) {
+				int v = (int)cache[p];
+				hist[v]++;
+				coarseHist[v>>shift]++;
+			}
+		}
+		int blockMask = (1<<shift) - 1;
+		int median = 0;
+		int nBelow = 0;										// number of values < median
+		for (int x=0; x<length; x++) {
+			if (x > 0) {
+				for (int kk=0; kk<kernel.length; kk+=2) {
+					int v = (int)cache[kernel[kk]+(x-1)];	// this value is not in the kernel area any more
+					hist[v]--;
+					coarseHist[v>>shift]--;
+					if (v < median) nBelow--;
+					v = (int)cache[kernel[kk+1]+x];			// this value comes into the kernel area
+					hist[v]++;
+					coarseHist[v>>shift]++;
+					if (v < median) nBelow++;
+				}
+			}
+			while (nBelow > half) {							// median is lower
+				median--;
+				if (coarseHist[median>>shift] == 0)
+					median &= ~blockMask;
+				nBelow -= hist[median];
+			}
+			while (nBelow + hist[median] <= half) {			// median is higher
+				nBelow += hist[median];
+				median++;
+				if ((median&blockMask) == 0)
+					while (coarseHist[median>>shift] == 0)
+						median += blockMask + 1;
+			}
+			values[x] = median;
+		}
+		for (int kk=0; kk<kernel.length; kk++) {			// clear the histograms for the next line
+			for (int p=kernel[kk++]+length-1; p<=kernel[kk]+length-1; p++) {
+				int v = (int)cache[p];
+				hist[v]--;
+				coarseHist[v>>shift]--;
+			}
+		}
+	}
+
 	/** Read a line into the cache (including padding in x).
 	 *	If y>=height, instead of reading new data, it duplicates the line y=height-1.
 	 *	If y==0, it also creates the data for y<0, as far as necessary, thus filling the cache with
@@ -0,0 +1,351 @@
+package ij.process;
+import java.util.HashMap;
+
+/** A complex discrete Fourier transform of any length, used by the FHT
+	class for sizes that are not a power of 2. Lengths whose prime factors
+	are not larger than MAX_RADIX are transformed with a mixed-radix
+	Stockham algorithm, which needs no reordering of the data. Other
+	lengths are transformed with Bluestein's algorithm, as a convolution
+	computed with transforms of a power-of-2 length. The tables of a
+	given length are computed once and cached; an instance may be used by
+	several threads at the same time.
+*/
+final class DFT {
+	private static final int MAX_RADIX = 31;
+	private static final int MAX_CACHED = 32;
+	private static HashMap<Integer,DFT> cache = new HashMap<Integer,DFT>();
+
+	private int n;
+	// mixed radix: radix, twiddle factors and DFT matrix of each stage
+	private int[] radix;
+	private double[][] twiddleRe, twiddleIm;
+	private double[][] matrixRe, matrixIm;
+	// Bluestein: chirp, transform of the convolution kernel and the power-of-2 DFT
+	private double[] chirpRe, chirpIm, kernelRe, kernelIm;
+	private DFT pow2;
+	private ThreadLocal<double[][]> buffers;
+
+	/** Returns the transform of the specified length. */
+	static DFT getDFT(int n) {
+		synchronized(cache) {
+			DFT dft = cache.get(n);
+			if (dft==null) {
+				dft = new DFT(n);
+				if (cache.size()>=MAX_CACHED)
+					cache.clear();
+				cache.put(n, dft);
+			}
+			return dft;
+		}
+	}
+
+	private DFT(int n) {
+		if (n<1)
+			throw new IllegalArgumentException("Invalid length: "+n);
+		this.n = n;
+		int[] factors = factorize(n);
+		if (factors!=null)
+			makeTables(factors);
+		else
+			makeBluesteinTables();
+		final int bufferSize = pow2!=null?pow2.n:n;
+		final int count = pow2!=null?4:2;
+		buffers = new ThreadLocal<double[][]>() {
+			protected double[][] initialValue() {
+				double[][] b = new double[count][];
+				for (int i=0; i<count; i++)
+					b[i] = new double[bufferSize];
+				return b;
+			}
+		};
+	}
+
+	/** Returns the factors of 'n', with factors of 4 first, or null if
+		'n' has a prime factor larger than MAX_RADIX. */
+	private static int[] factorize(int n) {
+		int[] factors = new int[32];
+		int count = 0;
+		while (n%4==0) {
+			factors[count++] = 4;
+			n /= 4;
+		}
+		for (int p=2; p<=MAX_RADIX && n>1; p++) {
+			while (n%p==0) {
+				factors[count++] = p;
+				n /= p;
+			}
+		}
+		if (n>1)
+			return null;
+		int[] f = new int[count];
+		System.arraycopy(factors, 0, f, 0, count);
+		return f;
+	}
+
+	private void makeTables(int[] factors) {
+		int stages = factors.length;
+		radix = factors;
+		twiddleRe = new double[stages][];
+		twiddleIm = new double[stages][];
+		matrixRe = new double[stages][];
+		matrixIm = new double[stages][];
+		int length = n;
+		for (int stage=0; stage<stages; stage++) {
+			int r = radix[stage];
+			int m = length/r;
+			double[] wr = new double[m*(r-1)];
+			double[] wi = new double[m*(r-1)];
+			for (int p=0, i=0; p<m; p++) {
+				for (int k=1; k<r; k++, i++) {
+					double angle = -2.0*Math.PI*((long)p*k%length)/length;
+					wr[i] = Math.cos(angle);
+					wi[i] = Math.sin(angle);
+				}
+			}
+			twiddleRe[stage] = wr;
+			twiddleIm[stage] = wi;
+			if (r>5) {
+				double[] mr = new double[r*r];
+				double[] mi = new double[r*r];
+				for (int k=0; k<r; k++) {
+					for (int j=0; j<r; j++) {
+						double angle = -2.0*Math.PI*(j*k%r)/r;
+						mr[k*r+j] = Math.cos(angle);
+						mi[k*r+j] = Math.sin(angle);
+					}
+				}
+				matrixRe[stage] = mr;
+				matrixIm[stage] = mi;
+			}
+			length = m;
+		}
+	}
+
+	private void makeBluesteinTables() {
+		int m = 2;
+		while (m<2*n-1)
+			m *= 2;
+		pow2 = getDFT(m);
+		chirpRe = new double[n];
+		chirpIm = new double[n];
+		kernelRe = new double[m];
+		kernelIm = new double[m];
+		for (int k=0; k<n; k++) {
+			double angle = -Math.PI*((long)k*k%(2L*n))/n;
+			chirpRe[k] = Math.cos(angle);
+			chirpIm[k] = Math.sin(angle);
+			kernelRe[k] = chirpRe[k];
+			kernelIm[k] = -chirpIm[k];
+			if (k>0) {
+				kernelRe[m-k] = chirpRe[k];
+				kernelIm[m-k] = -chirpIm[k];
+			}
+		}
+		pow2.transform(kernelRe, kernelIm);
+	}
+
+	/** Returns the length of this transform. */
+	int getLength() {
+		return n;
+	}
+
+	/** Replaces 're' and 'im' by their forward discrete Fourier transform,
+		without normalization. */
+	void transform(double[] re, double[] im) {
+		double[][] b = buffers.get();
+		if (pow2!=null)
+			bluestein(re, im, b);
+		else
+			stockham(re, im, b[0], b[1]);
+	}
+
+	private void stockham(double[] re, double[] im, double[] re2, double[] im2) {
+		double[] xr=re, xi=im, yr=re2, yi=im2;
+		int length = n;
+		int s = 1;
+		for (int stage=0; stage<radix.length; stage++) {
+			int r = radix[stage];
+			int m = length/r;
+			double[] wr = twiddleRe[stage];
+			double[] wi = twiddleIm[stage];
+			switch (r) {
+				case 2: radix2(xr, xi, yr, yi, m, s, wr, wi); break;
+				case 3: radix3(xr, xi, yr, yi, m, s, wr, wi); break;
+				case 4: radix4(xr, xi, yr, yi, m, s, wr, wi); break;
+				case 5: radix5(xr, xi, yr, yi, m, s, wr, wi); break;
+				default: radixN(xr, xi, yr, yi, r, m, s, wr, wi, matrixRe[stage], matrixIm[stage]);
+			}
+			double[] t = xr; xr = yr; yr = t;
+			t = xi; xi = yi; yi = t;
+			length = m;
+			s *= r;
+		}
+		if (xr!=re) {
+			System.arraycopy(xr, 0, re, 0, n);
+			System.arraycopy(xi, 0, im, 0, n);
+		}
+	}
+
+	// Each stage splits sequences of length r*m, stored with stride s, into r
+	// sequences of length m: y[q+s*(r*p+k)] = w^(p*k) * sum_j x[q+s*(p+j*m)]*exp(-2*pi*i*j*k/r)
+
+	private static void radix2(double[] xr, double[] xi, double[] yr, double[] yi, int m, int s, double[] wr, double[] wi) {
+		for (int p=0; p<m; p++) {
+			double w1r=wr[p], w1i=wi[p];
+			for (int q=0; q<s; q++) {
+				int i0 = q+s*p, i1 = i0+s*m;
+				double ar=xr[i0], ai=xi[i0], br=xr[i1], bi=xi[i1];
+				int o = q+s*2*p;
+				yr[o] = ar+br;
+				yi[o] = ai+bi;
+				double dr=ar-br, di=ai-bi;
+				yr[o+s] = dr*w1r-di*w1i;
+				yi[o+s] = dr*w1i+di*w1r;
+			}
+		}
+	}
+
+	private static final double SIN60 = Math.sqrt(0.75);
+
+	private static void radix3(double[] xr, double[] xi, double[] yr, double[] yi, int m, int s, double[] wr, double[] wi) {
+		for (int p=0; p<m; p++) {
+			double w1r=wr[2*p], w1i=wi[2*p], w2r=wr[2*p+1], w2i=wi[2*p+1];
+			for (int q=0; q<s; q++) {
+				int i0 = q+s*p, i1 = i0+s*m, i2 = i1+s*m;
+				double a0r=xr[i0], a0i=xi[i0];
+				double sr=xr[i1]+xr[i2], si=xi[i1]+xi[i2];
+				double dr=(xr[i1]-xr[i2])*SIN60, di=(xi[i1]-xi[i2])*SIN60;
+				double cr=a0r-0.5*sr, ci=a0i-0.5*si;
+				int o = q+s*3*p;
+				yr[o] = a0r+sr;
+				yi[o] = a0i+si;
+				double b1r=cr+di, b1i=ci-dr;
+				double b2r=cr-di, b2i=ci+dr;
+				yr[o+s] = b1r*w1r-b1i*w1i;
+				yi[o+s] = b1r*w1i+b1i*w1r;
+				yr[o+2*s] = b2r*w2r-b2i*w2i;
+				yi[o+2*s] = b2r*w2i+b2i*w2r;
+			}
+		}
+	}
+
+	private static void radix4(double[] xr, double[] xi, double[] yr, double[] yi, int m, int s, double[] wr, double[] wi) {
+		for (int p=0; p<m; p++) {
+			double w1r=wr[3*p], w1i=wi[3*p], w2r=wr[3*p+1], w2i=wi[3*p+1], w3r=wr[3*p+2], w3i=wi[3*p+2];
+			for (int q=0; q<s; q++) {
+				int i0 = q+s*p, i1 = i0+s*m, i2 = i1+s*m, i3 = i2+s*m;
+				double s02r=xr[i0]+xr[i2], s02i=xi[i0]+xi[i2];
+				double d02r=xr[i0]-xr[i2], d02i=xi[i0]-xi[i2];
+				double s13r=xr[i1]+xr[i3], s13i=xi[i1]+xi[i3];
+				double d13r=xr[i1]-xr[i3], d13i=xi[i1]-xi[i3];
+				int o = q+s*4*p;
+				yr[o] = s02r+s13r;
+				yi[o] = s02i+s13i;
+				double b1r=d02r+d13i, b1i=d02i-d13r; // a0 - i*a1 - a2 + i*a3
+				double b2r=s02r-s13r, b2i=s02i-s13i;
+				double b3r=d02r-d13i, b3i=d02i+d13r;
+				yr[o+s] = b1r*w1r-b1i*w1i;
+				yi[o+s] = b1r*w1i+b1i*w1r;
+				yr[o+2*s] = b2r*w2r-b2i*w2i;
+				yi[o+2*s] = b2r*w2i+b2i*w2r;
+				yr[o+3*s] = b3r*w3r-b3i*w3i;
+				yi[o+3*s] = b3r*w3i+b3i*w3r;
+			}
+		}
+	}
+
+	private static final double C1 = Math.cos(2*Math.PI/5), C2 = Math.cos(4*Math.PI/5);
+	private static final double S1 = Math.sin(2*Math.PI/5), S2 = Math.sin(4*Math.PI/5);
+
+	private static void radix5(double[] xr, double[] xi, double[] yr, double[] yi, int m, int s, double[] wr, double[] wi) {
+		for (int p=0; p<m; p++) {
+			int t = 4*p;
+			for (int q=0; q<s; q++) {
+				int i0 = q+s*p, i1 = i0+s*m, i2 = i1+s*m, i3 = i2+s*m, i4 = i3+s*m;
+				double a0r=xr[i0], a0i=xi[i0];
+				double t1r=xr[i1]+xr[i4], t1i=xi[i1]+xi[i4];
+				double t2r=xr[i2]+xr[i3], t2i=xi[i2]+xi[i3];
+				double t3r=xr[i1]-xr[i4], t3i=xi[i1]-xi[i4];
+				double t4r=xr[i2]-xr[i3], t4i=xi[i2]-xi[i3];
+				double c1r=a0r+C1*t1r+C2*t2r, c1i=a0i+C1*t1i+C2*t2i;
+				double c2r=a0r+C2*t1r+C1*t2r, c2i=a0i+C2*t1i+C1*t2i;
+				double d1r=S1*t3r+S2*t4r, d1i=S1*t3i+S2*t4i;
+				double d2r=S2*t3r-S1*t4r, d2i=S2*t3i-S1*t4i;
+				int o = q+s*5*p;
+				yr[o] = a0r+t1r+t2r;
+				yi[o] = a0i+t1i+t2i;
+				// b1,b4 = c1 -/+ i*d1, b2,b3 = c2 -/+ i*d2
+				double br=c1r+d1i, bi=c1i-d1r;
+				yr[o+s] = br*wr[t]-bi*wi[t];
+				yi[o+s] = br*wi[t]+bi*wr[t];
+				br=c2r+d2i; bi=c2i-d2r;
+				yr[o+2*s] = br*wr[t+1]-bi*wi[t+1];
+				yi[o+2*s] = br*wi[t+1]+bi*wr[t+1];
+				br=c2r-d2i; bi=c2i+d2r;
+				yr[o+3*s] = br*wr[t+2]-bi*wi[t+2];
+				yi[o+3*s] = br*wi[t+2]+bi*wr[t+2];
+				br=c1r-d1i; bi=c1i+d1r;
+				yr[o+4*s] = br*wr[t+3]-bi*wi[t+3];
+				yi[o+4*s] = br*wi[t+3]+bi*wr[t+3];
+			}
+		}
+	}
+
+	private static void radixN(double[] xr, double[] xi, double[] yr, double[] yi, int r, int m, int s,
+	double[] wr, double[] wi, double[] mr, double[] mi) {
+		double[] ar = new double[r];
+		double[] ai = new double[r];
+		for (int p=0; p<m; p++) {
+			for (int q=0; q<s; q++) {
+				for (int j=0; j<r; j++) {
+					ar[j] = xr[q+s*(p+j*m)];
+					ai[j] = xi[q+s*(p+j*m)];
+				}
+				int o = q+s*r*p;
+				for (int k=0; k<r; k++) {
+					double br=0.0, bi=0.0;
+					for (int j=0, jk=k*r; j<r; j++, jk++) {
+						br += ar[j]*mr[jk]-ai[j]*mi[jk];
+						bi += ar[j]*mi[jk]+ai[j]*mr[jk];
+					}
+					if (k>0) {
+						int t = p*(r-1)+k-1;
+						double tr = br*wr[t]-bi*wi[t];
+						bi = br*wi[t]+bi*wr[t];
+						br = tr;
+					}
+					yr[o+s*k] = br;
+					yi[o+s*k] = bi;
+				}
+			}
+		}
+	}
+
+	private void bluestein(double[] re, double[] im, double[][] b) {
+		int m = pow2.n;
+		double[] ar = b[0], ai = b[1];
+		for (int k=0; k<n; k++) {
+			ar[k] = re[k]*chirpRe[k]-im[k]*chirpIm[k];
+			ai[k] = re[k]*chirpIm[k]+im[k]*chirpRe[k];
+		}
+		for (int k=n; k<m; k++)
+			ar[k] = ai[k] = 0.0;
+		pow2.stockham(ar, ai, b[2], b[3]);
+		// multiply by the kernel transform, then inverse transform as the
+		// conjugate of the forward transform of the conjugate
+		for (int k=0; k<m; k++) {
+			double r = ar[k]*kernelRe[k]-ai[k]*kernelIm[k];
+			double i = ar[k]*kernelIm[k]+ai[k]*kernelRe[k];
+			ar[k] = r;
+			ai[k] = -i;
+		}
+		pow2.stockham(ar, ai, b[2], b[3]);
+		double scale = 1.0/m;
+		for (int k=0; k<n; k++) {
+			double r = ar[k]*scale, i = -ai[k]*scale;
+			re[k] = r*chirpRe[k]-i*chirpIm[k];
+			im[k] = r*chirpIm[k]+i*chirpRe[k];
+		}
+	}
+
+}
@@ -2,7 +2,11 @@ package ij.process;
 import ij.*;
 import ij.plugin.FFT;
 import ij.plugin.ContrastEnhancer;
+import ij.util.ThreadUtil;
 import java.awt.image.ColorModel; 
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 This class contains a Java implementation of the Fast Hartley
@@ -18,8 +22,11 @@ public class FHT extends FloatProcessor {
 	private float[] C;
 	private float[] S;
 	private int[] bitrev;
-	private float[] tempArr;
 	private boolean showProgress;
+	private boolean multithreaded = true;
+	private static final int LINE_BLOCK = 16;
+	private static final int MAX_CACHED_TABLES = 16;
+	private static HashMap<Integer,Object[]> tableCache = new HashMap<Integer,Object[]>();
 
 	
 	/** Used by the FFT class. */
@@ -62,13 +69,15 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Performs a forward transform, converting this image into the frequency domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+		Square images with a width that is a power of 2 are transformed fastest; 
+		other sizes, including rectangular ones, are transformed with a mixed-radix 
+		transform, which is fast if the width and height only have small prime factors 
+		(see getFastSize). */
 	public void transform() {
 		transform(false);
 	}
 
-	/** Performs an inverse transform, converting this image into the space domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+	/** Performs an inverse transform, converting this image into the space domain. */
 	public void inverseTransform() {
 		transform(true);
 	}
@@ -157,7 +166,8 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Performs an optimized 1D Fast Hartley Transform (FHT) of an array.
-	 *  Array size must be a power of 2.
+	 *  Arrays with a size that is not a power of 2 are transformed with a slower
+	 *  mixed-radix transform.
 	 *  Note that all amplitudes in the output 'x' are multiplied by the array length.
 	 *  Therefore, to get the power spectrum, for 1 <=i < N/2, use
 	 *  ps[i] = (x[i]*x[i]+x[maxN-i]*x[maxN-i])/(maxN*maxN), where maxN is the array length.
@@ -169,43 +179,65 @@ public class FHT extends FloatProcessor {
 	 */
 	public void transform1D(float[] x) {
 		int n = x.length;
-		if (S==null || n!=maxN) {
-			if (!isPowerOf2(n))
-				throw new IllegalArgumentException("Not power of 2 length: "+n);
-			initializeTables(n);
+		if (!isPowerOf2(n)) {
+			transform1DAnySize(x, false);
+			return;
 		}
+		if (S==null || bitrev.length!=n)
+			initializeTables(n);
 		dfht3(x, 0, false, n);
 	}
 
     /** Performs an inverse 1D Fast Hartley Transform (FHT) of an array */
 	public void inverseTransform1D(float[] fht) {
 		int n = fht.length;
-		if (S==null || n!=maxN) {
-			if (!isPowerOf2(n))
-				throw new IllegalArgumentException("Not power of 2 length: "+n);
-			initializeTables(n);
+		if (!isPowerOf2(n)) {
+			transform1DAnySize(fht, true);
+			return;
 		}
+		if (S==null || bitrev.length!=n)
+			initializeTables(n);
 		dfht3(fht, 0, true, n);
 	}
 
 	void transform(boolean inverse) {
-		if (!powerOf2Size())
-			throw new  IllegalArgumentException("Image not power of 2 size or not square: "+width+"x"+height);
 		setShowProgress(true);
+		doTransform(inverse);
+	}
+
+	private void doTransform(boolean inverse) {
+		if (!powerOf2Size()) {
+			transformAnySize(inverse);
+			isFrequencyDomain = !inverse;
+			return;
+		}
 		maxN = width;
-		if (S==null)
+		if (S==null || bitrev.length!=maxN)
 			initializeTables(maxN);
 		float[] fht = (float[])getPixels();
 	 	rc2DFHT(fht, inverse, maxN);
 		isFrequencyDomain = !inverse;
 	}
 	
+	/** Sets up the sin/cos and bit-reverse tables for size 'maxN'. The tables
+		are shared by all FHTs of the same size. */
 	void initializeTables(int maxN) {
 	    if (maxN>0x40000000)
 	        throw new  IllegalArgumentException("Too large for FHT:  "+maxN+" >2^30");
-		makeSinCosTables(maxN);
-		makeBitReverseTable(maxN);
-		tempArr = new float[maxN];
+		synchronized(tableCache) {
+			Object[] tables = tableCache.get(maxN);
+			if (tables==null) {
+				makeSinCosTables(maxN);
+				makeBitReverseTable(maxN);
+				if (tableCache.size()>=MAX_CACHED_TABLES)
+					tableCache.clear();
+				tableCache.put(maxN, new Object[] {C, S, bitrev});
+			} else {
+				C = (float[])tables[0];
+				S = (float[])tables[1];
+				bitrev = (int[])tables[2];
+			}
+		}
 	}
 
 	void makeSinCosTables(int maxN) {
@@ -228,40 +260,187 @@ public class FHT extends FloatProcessor {
 			bitrev[i] = bitRevX(i, nLog2);
 	}
 
-	/** Performs a 2D FHT (Fast Hartley Transform). */
-	public void rc2DFHT(float[] x, boolean inverse, int maxN) {
-		if (S==null) initializeTables(maxN);
-		for (int row=0; row<maxN; row++)
-			dfht3(x, row*maxN, inverse, maxN);		
+	/** Performs a 2D FHT (Fast Hartley Transform). The rows, and then the
+		columns, are transformed in parallel. */
+	public void rc2DFHT(final float[] x, final boolean inverse, final int maxN) {
+		if (S==null || bitrev.length!=maxN) initializeTables(maxN);
+		LineOperation rowTransform = new LineOperation() {
+			public void run(int row) {
+				dfht3(x, row*maxN, inverse, maxN);
+			}
+		};
+		long rowCost = maxN*(long)log2(maxN);
+		forEachLine(rowTransform, 0, maxN, rowCost);
 		progress(0.4);
 		transposeR(x, maxN);
 		progress(0.5);
-		for (int row=0; row<maxN; row++)		
-			dfht3(x, row*maxN, inverse, maxN);
+		forEachLine(rowTransform, 0, maxN, rowCost);
 		progress(0.7);
 		transposeR(x, maxN);
 		progress(0.8);
+		bracewell(x, maxN, maxN);
+		progress(0.95);
+	}
+
+	/** Calculates the actual 2D Hartley transform from the result of the
+		1D transforms of all rows and columns. */
+	private void bracewell(final float[] x, final int w, final int h) {
+		forEachLine(new LineOperation() {
+			public void run(int row) {
+				int mRow = (h - row) % h;
+				int mCol;
+				float A,B,C,D,E;
+				for (int col=0; col<=w/2; col++) {
+					mCol = (w - col) % w;
+					A = x[row * w + col];	//  see Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86
+					B = x[mRow * w + col];
+					C = x[row * w + mCol];
+					D = x[mRow * w + mCol];
+					E = ((A + D) - (B + C)) / 2;
+					x[row * w + col] = A - E;
+					x[mRow * w + col] = B + E;
+					x[row * w + mCol] = C + E;
+					x[mRow * w + mCol] = D - E;
+				}
+			}
+		}, 0, h/2+1, w);
+	}
+
+	/** An operation on one line (or block of lines) of an image; the
+		operations on different lines must be independent. */
+	private interface LineOperation {
+		void run(int line);
+	}
 
-		int mRow, mCol;
-		float A,B,C,D,E;
-		for (int row=0; row<=maxN/2; row++) { // Now calculate actual Hartley transform
-			for (int col=0; col<=maxN/2; col++) {
-				mRow = (maxN - row) % maxN;
-				mCol = (maxN - col)  % maxN;
-				A = x[row * maxN + col];	//  see Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86
-				B = x[mRow * maxN + col];
-				C = x[row * maxN + mCol];
-				D = x[mRow * maxN + mCol];
-				E = ((A + D) - (B + C)) / 2;
-				x[row * maxN + col] = A - E;
-				x[mRow * maxN + col] = B + E;
-				x[row * maxN + mCol] = C + E;
-				x[mRow * maxN + mCol] = D - E;
+	/** Runs the operation for lines 'from' to 'to'-1, in parallel if the FHT is
+		multithreaded and the work is large enough. 'lineCost' is the approximate
+		number of operations per line. */
+	private void forEachLine(final LineOperation operation, int from, final int to, long lineCost) {
+		int numThreads = multithreaded ? (int)Math.min(Math.min(Prefs.getThreads(), to-from), (to-from)*lineCost/16000+1) : 1;
+		if (numThreads<=1) {
+			for (int line=from; line<to; line++)
+				operation.run(line);
+			return;
+		}
+		final AtomicInteger nextLine = new AtomicInteger(from);
+		Callable<?>[] callables = new Callable<?>[numThreads];
+		for (int t=0; t<numThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				public Void call() {
+					for (int line=nextLine.getAndIncrement(); line<to; line=nextLine.getAndIncrement())
+						operation.run(line);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoinInPool(callables);
+	}
+	
+	/** Performs a 2D FHT of an image of any size. The rows and the columns are
+		transformed, two at a time, as the real and imaginary parts of a complex
+		sequence, followed by the same final step as in rc2DFHT. */
+	private void transformAnySize(boolean inverse) {
+		final int w = width, h = height;
+		final float[] x = (float[])getPixels();
+		final DFT rowDFT = DFT.getDFT(w);
+		forEachLine(new LineOperation() {
+			public void run(int block) {
+				double[] re = new double[w];
+				double[] im = new double[w];
+				int rowEnd = Math.min(h, (block+1)*LINE_BLOCK);
+				for (int row=block*LINE_BLOCK; row<rowEnd; row+=2) {
+					int base1 = row*w;
+					int base2 = row+1<rowEnd?base1+w:-1;
+					for (int col=0; col<w; col++) {
+						re[col] = x[base1+col];
+						im[col] = base2>=0?x[base2+col]:0.0;
+					}
+					hartleyPair(rowDFT, re, im);
+					for (int col=0; col<w; col++) {
+						x[base1+col] = (float)re[col];
+						if (base2>=0) x[base2+col] = (float)im[col];
+					}
+				}
+			}
+		}, 0, (h+LINE_BLOCK-1)/LINE_BLOCK, LINE_BLOCK*8L*w);
+		progress(0.4);
+		// columns are copied in blocks, so that each row is read sequentially
+		final DFT columnDFT = DFT.getDFT(h);
+		forEachLine(new LineOperation() {
+			public void run(int block) {
+				int col0 = block*LINE_BLOCK;
+				int n = Math.min(LINE_BLOCK, w-col0);
+				double[][] columns = new double[n+(n&1)][h];
+				for (int row=0; row<h; row++) {
+					int base = row*w + col0;
+					for (int c=0; c<n; c++)
+						columns[c][row] = x[base+c];
+				}
+				for (int c=0; c<n; c+=2)
+					hartleyPair(columnDFT, columns[c], columns[c+1]);
+				for (int row=0; row<h; row++) {
+					int base = row*w + col0;
+					for (int c=0; c<n; c++)
+						x[base+c] = (float)columns[c][row];
+				}
 			}
+		}, 0, (w+LINE_BLOCK-1)/LINE_BLOCK, LINE_BLOCK*8L*h);
+		progress(0.8);
+		bracewell(x, w, h);
+		if (inverse) {
+			float scale = (float)(1.0/((double)w*h));
+			for (int i=0; i<x.length; i++)
+				x[i] *= scale;
 		}
 		progress(0.95);
 	}
-	
+
+	/** 1D FHT of an array with a length that is not a power of 2. */
+	private void transform1DAnySize(float[] x, boolean inverse) {
+		int n = x.length;
+		double[] re = new double[n];
+		double[] im = new double[n];
+		for (int i=0; i<n; i++)
+			re[i] = x[i];
+		hartleyPair(DFT.getDFT(n), re, im);
+		double scale = inverse?1.0/n:1.0;
+		for (int i=0; i<n; i++)
+			x[i] = (float)(re[i]*scale);
+	}
+
+	/** Replaces the real sequences 're' and 'im' by their (unnormalized) Hartley
+		transforms, using a single complex transform. The Hartley transform is the
+		real part minus the imaginary part of the Fourier transform. */
+	private static void hartleyPair(DFT dft, double[] re, double[] im) {
+		int n = dft.getLength();
+		dft.transform(re, im);
+		for (int k=0; k<=n/2; k++) {
+			int nk = (n - k) % n;
+			double a=re[k], b=im[k], c=re[nk], d=im[nk];
+			re[k] = 0.5*((a+c) - (b-d));
+			im[k] = 0.5*((b+d) + (a-c));
+			re[nk] = 0.5*((c+a) - (d-b));
+			im[nk] = 0.5*((d+b) + (c-a));
+		}
+	}
+
+	/** Returns the smallest even size, not less than 'n', that only has prime
+		factors 2, 3, 5 and 7. Images of such sizes are transformed efficiently,
+		and the quadrants of their transforms can be swapped. */
+	public static int getFastSize(int n) {
+		int size = Math.max(2, n+(n&1));
+		while (!isFastSize(size))
+			size += 2;
+		return size;
+	}
+
+	private static boolean isFastSize(int n) {
+		for (int p=2; p<=7; p++)
+			while (n%p==0)
+				n /= p;
+		return n==1;
+	}
+
 	void progress(double percent) {
 		if (showProgress)
 			IJ.showProgress(percent);
@@ -349,19 +528,17 @@ public class FHT extends FloatProcessor {
 		}
 	}
 
-	void transposeR (float[] x, int maxN) {
-		int   r, c;
-		float  rTemp;
-
-		for (r=0; r<maxN; r++)  {
-			for (c=r; c<maxN; c++) {
-				if (r != c)  {
+	void transposeR (final float[] x, final int maxN) {
+		forEachLine(new LineOperation() {
+			public void run(int r) {
+				float rTemp;
+				for (int c=r+1; c<maxN; c++) {
 					rTemp = x[r*maxN + c];
 					x[r*maxN + c] = x[c*maxN + r];
 					x[c*maxN + r] = rTemp;
 				}
 			}
-		}
+		}, 0, maxN, maxN);
 	}
 	
 	int log2 (int x) {
@@ -376,11 +553,17 @@ public class FHT extends FloatProcessor {
 		return ((x & (1<<bit)) != 0);
 	}
 
+	/** Reorders the data in bit-reversed order, in place, so that several
+		threads can transform different parts of an array. */
 	void BitRevRArr (float[] x, int base, int bitlen, int maxN) {
-		for (int i=0; i<maxN; i++)
-			tempArr[i] = x[base+bitrev[i]];
-		for (int i=0; i<maxN; i++)
-			x[base+i] = tempArr[i];
+		for (int i=0; i<maxN; i++) {
+			int j = bitrev[i];
+			if (j>i) {
+				float t = x[base+i];
+				x[base+i] = x[base+j];
+				x[base+j] = t;
+			}
+		}
 	}
 
 	private int bitRevX (int  x, int bitlen) {
@@ -405,14 +588,15 @@ public class FHT extends FloatProcessor {
 		float  r, scale;
 		float min = Float.MAX_VALUE;
   		float max = Float.MIN_VALUE;
-   		float[] fps = new float[maxN*maxN];
- 		byte[] ps = new byte[maxN*maxN];
+  		int w = width, h = height;
+   		float[] fps = new float[w*h];
+ 		byte[] ps = new byte[w*h];
 		float[] fht = (float[])getPixels();
 
-  		for (int row=0; row<maxN; row++) {
-			fht2ps(row, maxN, fht, fps);
-			base = row * maxN;
-			for (int col=0; col<maxN; col++) {
+  		for (int row=0; row<h; row++) {
+			fht2ps(row, w, h, fht, fps);
+			base = row * w;
+			for (int col=0; col<w; col++) {
 				r = fps[base+col];
 				if (r<min)
 					min = r;
@@ -428,9 +612,9 @@ public class FHT extends FloatProcessor {
 		scale = (float)(253.999/(max-min));
 		
 		//long t0 = System.currentTimeMillis();
-		for (int row=0; row<maxN; row++) {
-			base = row*maxN;
-			for (int col=0; col<maxN; col++) {
+		for (int row=0; row<h; row++) {
+			base = row*w;
+			for (int col=0; col<w; col++) {
 				r = fps[base+col];
 				r = ((float)Math.log(r)-min)*scale;
 				if (Float.isNaN(r) || r<0)
@@ -440,7 +624,7 @@ public class FHT extends FloatProcessor {
 		}
 		//long t1 = System.currentTimeMillis();
 		//IJ.log(""+(t1-t0));
-		ImageProcessor ip = new ByteProcessor(maxN, maxN, ps);
+		ImageProcessor ip = new ByteProcessor(w, h, ps);
 		swapQuadrants(ip);
 		return ip;
 	}
@@ -449,19 +633,19 @@ public class FHT extends FloatProcessor {
 	public FloatProcessor getRawPowerSpectrum() {
 		if (!isFrequencyDomain)
 			throw new  IllegalArgumentException("Frequency domain image required");
-   		float[] fps = new float[maxN*maxN];
+   		float[] fps = new float[width*height];
 		float[] fht = (float[])getPixels();
-  		for (int row=0; row<maxN; row++)
-			fht2ps(row, maxN, fht, fps);
-		return new FloatProcessor(maxN, maxN, fps);
+  		for (int row=0; row<height; row++)
+			fht2ps(row, width, height, fht, fps);
+		return new FloatProcessor(width, height, fps);
 	}
 
 	/** Power Spectrum of one row from 2D Hartley Transform. */
- 	private void fht2ps(int row, int maxN, float[] fht, float[] ps) {
- 		int base = row*maxN;
+ 	private void fht2ps(int row, int w, int h, float[] fht, float[] ps) {
+ 		int base = row*w;
 		int l;
-		for (int c=0; c<maxN; c++) {
-			l = ((maxN-row)%maxN) * maxN + (maxN-c)%maxN;
+		for (int c=0; c<w; c++) {
+			l = ((h-row)%h) * w + (w-c)%w;
 			ps[base+c] = (sqr(fht[base+c]) + sqr(fht[l]))/2f;
  		}
 	}
@@ -473,15 +657,16 @@ public class FHT extends FloatProcessor {
 		if (!isFrequencyDomain)
 			throw new  IllegalArgumentException("Frequency domain image required");
 		float[] fht = (float[])getPixels();
-		float[] re = new float[maxN*maxN];
-		float[] im = new float[maxN*maxN];
-		for (int i=0; i<maxN; i++) {
-			FHTreal(i, maxN, fht, re);
-			FHTimag(i, maxN, fht, im);
+		int w = width, h = height;
+		float[] re = new float[w*h];
+		float[] im = new float[w*h];
+		for (int i=0; i<h; i++) {
+			FHTreal(i, w, h, fht, re);
+			FHTimag(i, w, h, fht, im);
 		}
-		swapQuadrants(new FloatProcessor(maxN, maxN, re));
-		swapQuadrants(new FloatProcessor(maxN, maxN, im));
-		ImageStack stack = new ImageStack(maxN, maxN);
+		swapQuadrants(new FloatProcessor(w, h, re));
+		swapQuadrants(new FloatProcessor(w, h, im));
+		ImageStack stack = new ImageStack(w, h);
 		stack.addSlice("Real", re);
 		stack.addSlice("Imaginary", im);
 		return stack;
@@ -490,11 +675,11 @@ public class FHT extends FloatProcessor {
 	/**	 FFT real value of one row from 2D Hartley Transform.
 	*	Author: Joachim Wesner
 	*/
-      void FHTreal(int row, int maxN, float[] fht, float[] real) {
-            int base = row*maxN;
-            int offs = ((maxN-row)%maxN) * maxN;
-            for (int c=0; c<maxN; c++) {
-                  real[base+c] = (fht[base+c] + fht[offs+((maxN-c)%maxN)])*0.5f;
+      void FHTreal(int row, int w, int h, float[] fht, float[] real) {
+            int base = row*w;
+            int offs = ((h-row)%h) * w;
+            for (int c=0; c<w; c++) {
+                  real[base+c] = (fht[base+c] + fht[offs+((w-c)%w)])*0.5f;
             }
       }
 
@@ -502,30 +687,38 @@ public class FHT extends FloatProcessor {
 	/** FFT imag value of one row from 2D Hartley Transform.
 	*	Author: Joachim Wesner
 	*/
-      void FHTimag(int row, int maxN, float[] fht, float[] imag) {
-            int base = row*maxN;
-            int offs = ((maxN-row)%maxN) * maxN;
-            for (int c=0; c<maxN; c++) {
-                  imag[base+c] = (-fht[base+c] + fht[offs+((maxN-c)%maxN)])*0.5f;
+      void FHTimag(int row, int w, int h, float[] fht, float[] imag) {
+            int base = row*w;
+            int offs = ((h-row)%h) * w;
+            for (int c=0; c<w; c++) {
+                  imag[base+c] = (-fht[base+c] + fht[offs+((w-c)%w)])*0.5f;
             }
       }
 
 	ImageProcessor calculateAmplitude(float[] fht, int maxN) {
-   		float[] amp = new float[maxN*maxN];
-   		for (int row=0; row<maxN; row++) {
-			amplitude(row, maxN, fht, amp);
+		return calculateAmplitude(fht, maxN, maxN);
+	}
+
+	ImageProcessor calculateAmplitude(float[] fht, int w, int h) {
+   		float[] amp = new float[w*h];
+   		for (int row=0; row<h; row++) {
+			amplitude(row, w, h, fht, amp);
 		}
-		ImageProcessor ip = new FloatProcessor(maxN, maxN, amp, null);
+		ImageProcessor ip = new FloatProcessor(w, h, amp, null);
 		swapQuadrants(ip);
 		return ip;
 	}
 
 	/** Amplitude of one row from 2D Hartley Transform. */
  	void amplitude(int row, int maxN, float[] fht, float[] amplitude) {
- 		int base = row*maxN;
+ 		amplitude(row, maxN, maxN, fht, amplitude);
+ 	}
+
+ 	void amplitude(int row, int w, int h, float[] fht, float[] amplitude) {
+ 		int base = row*w;
 		int l;
-		for (int c=0; c<maxN; c++) {
-			l = ((maxN-row)%maxN) * maxN + (maxN-c)%maxN;
+		for (int c=0; c<w; c++) {
+			l = ((h-row)%h) * w + (w-c)%w;
 			amplitude[base+c] = (float)Math.sqrt(sqr(fht[base+c]) + sqr(fht[l]));
  		}
 	}
@@ -582,20 +775,22 @@ public class FHT extends FloatProcessor {
 		double h2e, h2o;
 		float[] h1 = (float[])getPixels();
 		float[] h2 = (float[])fht.getPixels();
-		float[] tmp = new float[maxN*maxN];
-		for (int r =0; r<maxN; r++) {
-			rowMod = (maxN - r) % maxN;
-			for (int c=0; c<maxN; c++) {
-				colMod = (maxN - c) % maxN;
-				h2e = (h2[r * maxN + c] + h2[rowMod * maxN + colMod]) / 2;
-				h2o = (h2[r * maxN + c] - h2[rowMod * maxN + colMod]) / 2;
+		int w = width, h = height;
+		checkSize(fht);
+		float[] tmp = new float[w*h];
+		for (int r =0; r<h; r++) {
+			rowMod = (h - r) % h;
+			for (int c=0; c<w; c++) {
+				colMod = (w - c) % w;
+				h2e = (h2[r * w + c] + h2[rowMod * w + colMod]) / 2;
+				h2o = (h2[r * w + c] - h2[rowMod * w + colMod]) / 2;
 				if (conjugate) 
-					tmp[r * maxN + c] = (float)(h1[r * maxN + c] * h2e - h1[rowMod * maxN + colMod] * h2o);
+					tmp[r * w + c] = (float)(h1[r * w + c] * h2e - h1[rowMod * w + colMod] * h2o);
 				else
-					tmp[r * maxN + c] = (float)(h1[r * maxN + c] * h2e + h1[rowMod * maxN + colMod] * h2o);
+					tmp[r * w + c] = (float)(h1[r * w + c] * h2e + h1[rowMod * w + colMod] * h2o);
 			}
 		}
-		FHT fht2 =  new FHT(new FloatProcessor(maxN, maxN, tmp, null));
+		FHT fht2 =  new FHT(new FloatProcessor(w, h, tmp, null));
 		fht2.isFrequencyDomain = true;
 		return fht2;
 	}
@@ -609,25 +804,32 @@ public class FHT extends FloatProcessor {
 		double mag, h2e, h2o;
 		float[] h1 = (float[])getPixels();
 		float[] h2 = (float[])fht.getPixels();
-		float[] out = new float[maxN*maxN];
-		for (int r=0; r<maxN; r++) {
-			rowMod = (maxN - r) % maxN;
-			for (int c=0; c<maxN; c++) {
-				colMod = (maxN - c) % maxN;
-				mag =h2[r*maxN+c] * h2[r*maxN+c] + h2[rowMod*maxN+colMod] * h2[rowMod*maxN+colMod];
+		int w = width, h = height;
+		checkSize(fht);
+		float[] out = new float[w*h];
+		for (int r=0; r<h; r++) {
+			rowMod = (h - r) % h;
+			for (int c=0; c<w; c++) {
+				colMod = (w - c) % w;
+				mag =h2[r*w+c] * h2[r*w+c] + h2[rowMod*w+colMod] * h2[rowMod*w+colMod];
 				if (mag<1e-20)
 					mag = 1e-20;
-				h2e = (h2[r*maxN+c] + h2[rowMod*maxN+colMod]);
-				h2o = (h2[r*maxN+c] - h2[rowMod*maxN+colMod]);
-				double tmp = (h1[r*maxN+c] * h2e - h1[rowMod*maxN+colMod] * h2o);
-				out[r*maxN+c] = (float)(tmp/mag);
+				h2e = (h2[r*w+c] + h2[rowMod*w+colMod]);
+				h2o = (h2[r*w+c] - h2[rowMod*w+colMod]);
+				double tmp = (h1[r*w+c] * h2e - h1[rowMod*w+colMod] * h2o);
+				out[r*w+c] = (float)(tmp/mag);
 			}
 		}
-		FHT fht2 = new FHT(new FloatProcessor(maxN, maxN, out, null));
+		FHT fht2 = new FHT(new FloatProcessor(w, h, out, null));
 		fht2.isFrequencyDomain = true;
 		return fht2;
 	}
 			
+	private void checkSize(FHT fht) {
+		if (fht.getWidth()!=width || fht.getHeight()!=height)
+			throw new IllegalArgumentException("FHT size mismatch: "+width+"x"+height+" and "+fht.getWidth()+"x"+fht.getHeight());
+	}
+
 	/** Enables/disables display of the progress bar during transforms. */
 	public void setShowProgress(boolean showProgress) {
 		this.showProgress = showProgress;
@@ -648,6 +850,62 @@ public class FHT extends FloatProcessor {
 		return fht;
 	}
 		
+	/** Converts the slices of a stack to FHTs and transforms them into the
+		frequency domain, in parallel. */
+	public static FHT[] transform(ImageStack stack) {
+		FHT[] fhts = new FHT[stack.size()];
+		for (int i=0; i<fhts.length; i++)
+			fhts[i] = new FHT(stack.getProcessor(i+1));
+		transform(fhts, false);
+		return fhts;
+	}
+
+	/** Transforms the FHTs back into the space domain and returns the
+		results as a 32-bit stack. The FHTs must have the same size. */
+	public static ImageStack inverseTransform(FHT[] fhts) {
+		transform(fhts, true);
+		ImageStack stack = new ImageStack(fhts[0].getWidth(), fhts[0].getHeight());
+		for (int i=0; i<fhts.length; i++)
+			stack.addSlice(null, fhts[i]);
+		return stack;
+	}
+
+	/** Performs forward transforms (or inverse transforms if 'inverse' is true)
+		of several FHTs. With at least as many FHTs as threads, each thread
+		transforms whole images; otherwise the images are transformed one after
+		the other, with the rows and columns of each image split across threads. */
+	public static void transform(final FHT[] fhts, final boolean inverse) {
+		final int n = fhts.length;
+		int numThreads = Prefs.getThreads();
+		if (numThreads<=1 || n<numThreads) {
+			for (int i=0; i<n; i++) {
+				fhts[i].doTransform(inverse);
+				IJ.showProgress(i+1, n);
+			}
+			return;
+		}
+		final Thread thread = Thread.currentThread();
+		final AtomicInteger nextImage = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Callable<?>[] callables = new Callable<?>[numThreads];
+		for (int t=0; t<numThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				public Void call() {
+					for (int i=nextImage.getAndIncrement(); i<n && !thread.isInterrupted(); i=nextImage.getAndIncrement()) {
+						FHT fht = fhts[i];
+						boolean multithreaded = fht.multithreaded;
+						fht.multithreaded = false;
+						fht.doTransform(inverse);
+						fht.multithreaded = multithreaded;
+						IJ.showProgress(done.incrementAndGet(), n);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoinInPool(callables);
+	}
+
 	public static boolean isPowerOf2(int n) {
 		int i=2;
 		while(i<n) i *= 2;
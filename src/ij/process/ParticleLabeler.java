@@ -0,0 +1,242 @@
+package ij.process;
+import ij.gui.*;
+import java.awt.Rectangle;
+
+
+/**	This class does connected-component labeling of the pixels within a
+	threshold range and is used by the particle analyzer. Provisional
+	labels are assigned and merged with a union-find table in a first pass
+	over the image; the second pass replaces them by the final labels, which
+	are numbered in the order the particles are met when scanning the image
+	line by line, and collects the pixel count, bounding box, centroid and
+	min, max and mean pixel value of each particle. Particle outlines are
+	only traced when requested with getRoi().
+*/
+public class ParticleLabeler {
+	ImageProcessor ip;
+	int width, height;
+	int[] labels;
+	int[] parent;
+	int count;
+	int[] pixelCount, xstart, ystart, xmin, ymin, xmax, ymax;
+	double[] xsum, ysum, sum, min, max;
+
+	public ParticleLabeler(ImageProcessor ip) {
+		this.ip = ip;
+		width = ip.getWidth();
+		height = ip.getHeight();
+	}
+
+	/** Labels the particles of pixels with values from 'lower' to 'upper'
+		within the rectangular ROI of the image, using 4-connected or
+		8-connected neighbors, and returns the number of particles. */
+	public int label(double lower, double upper, boolean fourConnected) {
+		Rectangle r = ip.getRoi();
+		labels = new int[width*height];
+		parent = new int[256];
+		int n = 0;
+		int xend = r.x+r.width, yend = r.y+r.height;
+		for (int y=r.y; y<yend; y++) {
+			int i = y*width + r.x;
+			for (int x=r.x; x<xend; x++, i++) {
+				float v = ip.getf(i);
+				if (!(v>=lower && v<=upper))
+					continue;
+				int west = x>r.x?labels[i-1]:0;
+				int label = y>r.y?labels[i-width]:0;
+				if (!fourConnected && label==0 && y>r.y) {
+					int northWest = x>r.x?labels[i-width-1]:0;
+					int northEast = x<xend-1?labels[i-width+1]:0;
+					if (northWest!=0)
+						label = northWest;
+					if (northEast!=0)
+						label = label!=0?union(label, northEast):northEast;
+				}
+				if (west!=0)
+					label = label!=0?union(label, west):west;
+				if (label==0) {
+					if (++n==parent.length) {
+						int[] parent2 = new int[n*2];
+						System.arraycopy(parent, 0, parent2, 0, n);
+						parent = parent2;
+					}
+					parent[n] = n;
+					label = n;
+				}
+				labels[i] = label;
+			}
+		}
+		// the root of each set is its lowest label, i.e., the particle's first pixel
+		int[] finalLabels = new int[n+1];
+		count = 0;
+		for (int i=1; i<=n; i++)
+			finalLabels[i] = parent[i]==i?++count:finalLabels[find(i)];
+		parent = null;
+		allocateArrays(count);
+		for (int y=r.y; y<yend; y++) {
+			int i = y*width + r.x;
+			for (int x=r.x; x<xend; x++, i++) {
+				if (labels[i]==0)
+					continue;
+				int label = finalLabels[labels[i]];
+				labels[i] = label;
+				double v = ip.getf(i);
+				if (pixelCount[label]++==0) {
+					xstart[label] = xmin[label] = xmax[label] = x;
+					ystart[label] = ymin[label] = ymax[label] = y;
+					min[label] = max[label] = v;
+				} else {
+					if (x<xmin[label]) xmin[label] = x;
+					if (x>xmax[label]) xmax[label] = x;
+					ymax[label] = y;
+					if (v<min[label]) min[label] = v;
+					if (v>max[label]) max[label] = v;
+				}
+				xsum[label] += x;
+				ysum[label] += y;
+				sum[label] += v;
+			}
+		}
+		return count;
+	}
+
+	/** Merges the sets containing labels 'a' and 'b' and returns the root. */
+	private int union(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a<b) {
+			parent[b] = a;
+			return a;
+		} else {
+			parent[a] = b;
+			return b;
+		}
+	}
+
+	private int find(int a) {
+		while (parent[a]!=a) {
+			parent[a] = parent[parent[a]];
+			a = parent[a];
+		}
+		return a;
+	}
+
+	private void allocateArrays(int n) {
+		n++;
+		pixelCount = new int[n];
+		xstart = new int[n]; ystart = new int[n];
+		xmin = new int[n]; ymin = new int[n];
+		xmax = new int[n]; ymax = new int[n];
+		xsum = new double[n]; ysum = new double[n];
+		sum = new double[n]; min = new double[n]; max = new double[n];
+	}
+
+	/** Returns the number of particles found by label(). */
+	public int getCount() {
+		return count;
+	}
+
+	/** Returns the label of each pixel, 0 for the background and 1 to
+		getCount() for the particles. */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/** Returns the labels as a 16-bit image, or as a 32-bit image if there
+		are more than 65535 particles. */
+	public ImageProcessor getLabelImage() {
+		ImageProcessor ip2;
+		if (count<=65535) {
+			short[] pixels = new short[width*height];
+			for (int i=0; i<pixels.length; i++)
+				pixels[i] = (short)labels[i];
+			ip2 = new ShortProcessor(width, height, pixels, null);
+		} else {
+			float[] pixels = new float[width*height];
+			for (int i=0; i<pixels.length; i++)
+				pixels[i] = labels[i];
+			ip2 = new FloatProcessor(width, height, pixels, null);
+		}
+		ip2.resetMinAndMax();
+		return ip2;
+	}
+
+	/** Returns the number of pixels of the particle with the given label. */
+	public int getPixelCount(int label) {
+		return pixelCount[label];
+	}
+
+	/** Returns the bounding rectangle of a particle. */
+	public Rectangle getBounds(int label) {
+		return new Rectangle(xmin[label], ymin[label], xmax[label]-xmin[label]+1, ymax[label]-ymin[label]+1);
+	}
+
+	/** Returns the x coordinate of the first pixel of a particle in scan order. */
+	public int getXStart(int label) {
+		return xstart[label];
+	}
+
+	/** Returns the y coordinate of the first pixel of a particle in scan order. */
+	public int getYStart(int label) {
+		return ystart[label];
+	}
+
+	/** Returns the uncalibrated x centroid of a particle. */
+	public double getXCentroid(int label) {
+		return xsum[label]/pixelCount[label]+0.5;
+	}
+
+	/** Returns the uncalibrated y centroid of a particle. */
+	public double getYCentroid(int label) {
+		return ysum[label]/pixelCount[label]+0.5;
+	}
+
+	/** Returns the lowest raw pixel value of a particle. */
+	public double getMin(int label) {
+		return min[label];
+	}
+
+	/** Returns the highest raw pixel value of a particle. */
+	public double getMax(int label) {
+		return max[label];
+	}
+
+	/** Returns the mean raw pixel value of a particle. */
+	public double getMean(int label) {
+		return sum[label]/pixelCount[label];
+	}
+
+	/** Returns a mask of a particle, with the size of its bounding
+		rectangle and 255 for the pixels of the particle. */
+	public ImageProcessor getMask(int label) {
+		Rectangle r = getBounds(label);
+		byte[] pixels = new byte[r.width*r.height];
+		for (int y=0; y<r.height; y++) {
+			int i = (r.y+y)*width + r.x;
+			int mi = y*r.width;
+			for (int x=0; x<r.width; x++) {
+				if (labels[i++]==label)
+					pixels[mi] = (byte)255;
+				mi++;
+			}
+		}
+		return new ByteProcessor(r.width, r.height, pixels, null);
+	}
+
+	/** Traces the outline of a particle, starting at its first pixel. */
+	public Roi getRoi(int label) {
+		Rectangle r = getBounds(label);
+		ImageProcessor mask = getMask(label);
+		Wand wand = new Wand(mask);
+		wand.autoOutline(xstart[label]-r.x, ystart[label]-r.y, 255.0, 255.0, Wand.LEGACY_MODE);
+		if (wand.npoints==0)
+			return null;
+		for (int i=0; i<wand.npoints; i++) {
+			wand.xpoints[i] += r.x;
+			wand.ypoints[i] += r.y;
+		}
+		int type = Wand.allPoints()?Roi.FREEROI:Roi.TRACED_ROI;
+		return new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, type);
+	}
+
+}
@@ -0,0 +1,500 @@
+package ij.process;
+import ij.*;
+import ij.measure.*;
+import ij.util.Tools;
+
+
+/**	This class does 3D connected-component labeling of the voxels of a
+	stack within a threshold range, using 6, 18 or 26-connected neighbors.
+	Like the ParticleLabeler, it merges provisional labels with a union-find
+	table, but label() only keeps the labels of two slices in memory: the
+	voxel count, bounding box, centroid and intensity statistics of the
+	objects are accumulated while the stack is read slice by slice, and
+	an object is set aside as soon as it does not touch the current slice,
+	so that stacks larger than the available memory (virtual stacks) can be
+	analyzed. Objects are numbered in the order they are met when scanning
+	the stack. A stack of labels is only created if requested with
+	getLabelStack().
+*/
+public class StackLabeler {
+	ImageStack stack;
+	int width, height, depth;
+	int connectivity;
+	double lower, upper;
+	int[] parent;
+	int[] renumber;
+	int count;
+	Stats work;     // statistics of the labels of the previous and current slice
+	Stats objects;  // statistics of the objects, by label
+
+	/** Creates a StackLabeler for the given stack, where 'connectivity' is
+		6 (voxels sharing a face), 18 (sharing a face or an edge) or 26
+		(sharing a face, an edge or a corner). */
+	public StackLabeler(ImageStack stack, int connectivity) {
+		if (connectivity!=6 && connectivity!=18 && connectivity!=26)
+			throw new IllegalArgumentException("Connectivity must be 6, 18 or 26: "+connectivity);
+		this.stack = stack;
+		this.connectivity = connectivity;
+		width = stack.getWidth();
+		height = stack.getHeight();
+		depth = stack.getSize();
+	}
+
+	/** Labels the objects formed by the voxels with values from 'lower'
+		to 'upper' and returns the number of objects. */
+	public int label(double lower, double upper) {
+		this.lower = lower;
+		this.upper = upper;
+		int size = width*height;
+		int[] previous = new int[size];
+		int[] current = new int[size];
+		parent = new int[256];
+		renumber = new int[256];
+		work = new Stats(256);
+		Stats found = new Stats(256); // objects in the order they are complete
+		int active = 0; // the labels of the previous slice are 1..active
+		for (int z=0; z<depth; z++) {
+			ImageProcessor ip = stack.getProcessor(z+1);
+			int n = active;
+			for (int y=0, i=0; y<height; y++) {
+				for (int x=0; x<width; x++, i++) {
+					float v = ip.getf(i);
+					if (!(v>=lower && v<=upper)) {
+						current[i] = 0;
+						continue;
+					}
+					int label = getNeighborLabel(current, previous, x, y, z, i);
+					if (label==0) {
+						if (++n==parent.length) {
+							parent = grow(parent, n*2);
+							work.grow(n*2);
+						}
+						parent[n] = n;
+						label = n;
+					}
+					current[i] = label;
+					work.add(label, x, y, z, v, (long)z*size+i);
+				}
+			}
+			active = finishSlice(current, n, found);
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+			IJ.showProgress(z+1, depth);
+		}
+		finishSlice(null, active, found);
+		parent = null;
+		renumber = null;
+		work = null;
+		// number the objects by their first voxel
+		count = found.n;
+		double[] first = new double[count];
+		for (int i=0; i<count; i++)
+			first[i] = found.first[i+1];
+		int[] order = Tools.rank(first);
+		objects = new Stats(count+1);
+		for (int i=0; i<count; i++)
+			objects.copy(found, order[i]+1, i+1);
+		return count;
+	}
+
+	/** Returns the label of voxel 'i' given by its neighbors that have
+		already been scanned, joining their labels, or 0 if there are none. */
+	private int getNeighborLabel(int[] current, int[] previous, int x, int y, int z, int i) {
+		int label = 0;
+		if (x>0)
+			label = current[i-1];
+		if (y>0)
+			label = join(label, current[i-width]);
+		if (connectivity>6 && y>0) {
+			if (x>0)
+				label = join(label, current[i-width-1]);
+			if (x<width-1)
+				label = join(label, current[i-width+1]);
+		}
+		if (z>0)
+			label = joinPrevious(label, previous, x, y, i);
+		return label;
+	}
+
+	/** Called after scanning a slice with labels 1..n. Adds the statistics
+		of all labels to those of their roots. Objects that do not touch the
+		current slice are complete and are added to 'found'; the others are
+		renumbered 1..m, also in 'current'. Returns m. If 'current' is null,
+		all objects are complete. */
+	private int finishSlice(int[] current, int n, Stats found) {
+		if (renumber.length<=n)
+			renumber = new int[parent.length];
+		for (int i=1; i<=n; i++) {
+			int root = find(i);
+			if (root!=i)
+				work.merge(i, root);
+			renumber[i] = 0;
+		}
+		if (current!=null) {
+			for (int i=0; i<current.length; i++) {
+				if (current[i]!=0)
+					renumber[find(current[i])] = -1;
+			}
+		}
+		int m = 0;
+		for (int i=1; i<=n; i++) {
+			if (parent[i]!=i)
+				continue;
+			if (renumber[i]<0) {
+				renumber[i] = ++m;
+				if (m<i) {
+					work.copy(work, i, m);
+					work.voxels[i] = 0;
+				}
+			} else {
+				found.grow(found.n+2);
+				found.copy(work, i, ++found.n);
+				work.voxels[i] = 0;
+			}
+		}
+		if (current!=null) {
+			for (int i=0; i<current.length; i++) {
+				if (current[i]!=0)
+					current[i] = renumber[find(current[i])];
+			}
+		}
+		for (int i=1; i<=m; i++)
+			parent[i] = i;
+		return m;
+	}
+
+	/** Scans the stack, assigning provisional labels in scan order to the
+		voxels within the threshold range, with a union-find table for the
+		whole stack. Returns the number of provisional labels. If 'labels'
+		is not null, stores the labels finalLabels[label] of the voxels in
+		'labels' instead. */
+	private int scan(ImageStack labels, int[] finalLabels) {
+		int size = width*height;
+		int[] previous = new int[size];
+		int[] current = new int[size];
+		int n = 0;
+		for (int z=0; z<depth; z++) {
+			ImageProcessor ip = stack.getProcessor(z+1);
+			ImageProcessor lp = labels!=null?labels.getProcessor(z+1):null;
+			for (int y=0, i=0; y<height; y++) {
+				for (int x=0; x<width; x++, i++) {
+					float v = ip.getf(i);
+					if (!(v>=lower && v<=upper)) {
+						current[i] = 0;
+						continue;
+					}
+					int label = lp!=null?getNeighbor(current, previous, x, y, z, i):getNeighborLabel(current, previous, x, y, z, i);
+					if (label==0) {
+						label = ++n;
+						if (lp==null) {
+							if (n==parent.length)
+								parent = grow(parent, n*2);
+							parent[n] = n;
+						}
+					}
+					current[i] = label;
+					if (lp!=null)
+						lp.setf(i, finalLabels[label]);
+				}
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+			IJ.showProgress(z+1, depth);
+		}
+		return n;
+	}
+
+	/** Returns the label of any neighbor of voxel 'i' that has already been
+		scanned, or 0 if there is none. All these neighbors belong to the same
+		object; used when writing the labels, so no labels are joined. */
+	private int getNeighbor(int[] current, int[] previous, int x, int y, int z, int i) {
+		int label = 0;
+		if (x>0)
+			label = current[i-1];
+		if (label==0 && y>0) {
+			label = current[i-width];
+			if (label==0 && connectivity>6) {
+				if (x>0) label = current[i-width-1];
+				if (label==0 && x<width-1) label = current[i-width+1];
+			}
+		}
+		if (label==0 && z>0) {
+			label = previous[i];
+			if (label==0 && connectivity>6) {
+				for (int dy=-1; dy<=1 && label==0; dy++) {
+					if (y+dy<0 || y+dy>=height)
+						continue;
+					for (int dx=-1; dx<=1 && label==0; dx++) {
+						if (x+dx<0 || x+dx>=width || (dx!=0&&dy!=0&&connectivity==18))
+							continue;
+						label = previous[i+dy*width+dx];
+					}
+				}
+			}
+		}
+		return label;
+	}
+
+	/** Joins 'label' with the neighbors of voxel (x,y) in the previous slice. */
+	private int joinPrevious(int label, int[] previous, int x, int y, int i) {
+		label = join(label, previous[i]);
+		if (connectivity==6)
+			return label;
+		if (x>0) label = join(label, previous[i-1]);
+		if (x<width-1) label = join(label, previous[i+1]);
+		if (y>0) label = join(label, previous[i-width]);
+		if (y<height-1) label = join(label, previous[i+width]);
+		if (connectivity==26) {
+			if (y>0) {
+				if (x>0) label = join(label, previous[i-width-1]);
+				if (x<width-1) label = join(label, previous[i-width+1]);
+			}
+			if (y<height-1) {
+				if (x>0) label = join(label, previous[i+width-1]);
+				if (x<width-1) label = join(label, previous[i+width+1]);
+			}
+		}
+		return label;
+	}
+
+	private int join(int label, int neighbor) {
+		if (neighbor==0 || neighbor==label)
+			return label;
+		if (label==0)
+			return neighbor;
+		int a = find(label);
+		int b = find(neighbor);
+		if (a<b) {
+			parent[b] = a;
+			return a;
+		} else {
+			parent[a] = b;
+			return b;
+		}
+	}
+
+	private int find(int a) {
+		while (parent[a]!=a) {
+			parent[a] = parent[parent[a]];
+			a = parent[a];
+		}
+		return a;
+	}
+
+	private static int[] grow(int[] a, int n) {
+		int[] a2 = new int[n];
+		System.arraycopy(a, 0, a2, 0, Math.min(a.length, n));
+		return a2;
+	}
+
+	/** The voxel count, bounding box, sums and range of the voxel values,
+		and first voxel of labels or objects. */
+	static class Stats {
+		int n;  // number of objects in use, for the list of complete objects
+		long[] voxels, first;
+		int[] xmin, ymin, zmin, xmax, ymax, zmax;
+		double[] xsum, ysum, zsum, sum, sum2, min, max;
+
+		Stats(int size) {
+			voxels = new long[size]; first = new long[size];
+			xmin = new int[size]; ymin = new int[size]; zmin = new int[size];
+			xmax = new int[size]; ymax = new int[size]; zmax = new int[size];
+			xsum = new double[size]; ysum = new double[size]; zsum = new double[size];
+			sum = new double[size]; sum2 = new double[size];
+			min = new double[size]; max = new double[size];
+		}
+
+		/** Adds voxel (x,y,z) with value 'v', at index 'index' in scan order. */
+		void add(int label, int x, int y, int z, double v, long index) {
+			if (voxels[label]++==0) {
+				xmin[label] = xmax[label] = x;
+				ymin[label] = ymax[label] = y;
+				zmin[label] = zmax[label] = z;
+				min[label] = max[label] = v;
+				first[label] = index;
+				xsum[label] = ysum[label] = zsum[label] = sum[label] = sum2[label] = 0.0;
+			} else {
+				if (x<xmin[label]) xmin[label] = x;
+				if (x>xmax[label]) xmax[label] = x;
+				if (y<ymin[label]) ymin[label] = y;
+				if (y>ymax[label]) ymax[label] = y;
+				zmax[label] = z;
+				if (v<min[label]) min[label] = v;
+				if (v>max[label]) max[label] = v;
+			}
+			xsum[label] += x;
+			ysum[label] += y;
+			zsum[label] += z;
+			sum[label] += v;
+			sum2[label] += v*v;
+		}
+
+		/** Adds the statistics of label 'a' to those of label 'b'. */
+		void merge(int a, int b) {
+			if (voxels[a]==0)
+				return;
+			if (voxels[b]==0)
+				copy(this, a, b);
+			else {
+				voxels[b] += voxels[a];
+				first[b] = Math.min(first[b], first[a]);
+				xmin[b] = Math.min(xmin[b], xmin[a]); xmax[b] = Math.max(xmax[b], xmax[a]);
+				ymin[b] = Math.min(ymin[b], ymin[a]); ymax[b] = Math.max(ymax[b], ymax[a]);
+				zmin[b] = Math.min(zmin[b], zmin[a]); zmax[b] = Math.max(zmax[b], zmax[a]);
+				xsum[b] += xsum[a]; ysum[b] += ysum[a]; zsum[b] += zsum[a];
+				sum[b] += sum[a]; sum2[b] += sum2[a];
+				min[b] = Math.min(min[b], min[a]); max[b] = Math.max(max[b], max[a]);
+			}
+			voxels[a] = 0;
+		}
+
+		/** Copies the statistics of label 'a' of 'src' to label 'b'. */
+		void copy(Stats src, int a, int b) {
+			voxels[b] = src.voxels[a]; first[b] = src.first[a];
+			xmin[b] = src.xmin[a]; xmax[b] = src.xmax[a];
+			ymin[b] = src.ymin[a]; ymax[b] = src.ymax[a];
+			zmin[b] = src.zmin[a]; zmax[b] = src.zmax[a];
+			xsum[b] = src.xsum[a]; ysum[b] = src.ysum[a]; zsum[b] = src.zsum[a];
+			sum[b] = src.sum[a]; sum2[b] = src.sum2[a];
+			min[b] = src.min[a]; max[b] = src.max[a];
+		}
+
+		/** Makes room for at least 'size' labels. */
+		void grow(int size) {
+			if (size<=voxels.length)
+				return;
+			size = Math.max(size, voxels.length*2);
+			voxels = grow(voxels, size); first = grow(first, size);
+			xmin = StackLabeler.grow(xmin, size); ymin = StackLabeler.grow(ymin, size); zmin = StackLabeler.grow(zmin, size);
+			xmax = StackLabeler.grow(xmax, size); ymax = StackLabeler.grow(ymax, size); zmax = StackLabeler.grow(zmax, size);
+			xsum = grow(xsum, size); ysum = grow(ysum, size); zsum = grow(zsum, size);
+			sum = grow(sum, size); sum2 = grow(sum2, size);
+			min = grow(min, size); max = grow(max, size);
+		}
+
+		private static long[] grow(long[] a, int n) {
+			long[] a2 = new long[n];
+			System.arraycopy(a, 0, a2, 0, a.length);
+			return a2;
+		}
+
+		private static double[] grow(double[] a, int n) {
+			double[] a2 = new double[n];
+			System.arraycopy(a, 0, a2, 0, a.length);
+			return a2;
+		}
+	}
+
+	/** Returns the number of objects found by label(). */
+	public int getCount() {
+		return count;
+	}
+
+	/** Returns a stack with the labels of the objects, 16-bit if
+		there are less than 65536 objects, otherwise 32-bit. The stack is
+		created by scanning the input stack twice, the first time to build
+		a union-find table with an int for each provisional label. */
+	public ImageStack getLabelStack() {
+		if (objects==null)
+			throw new IllegalStateException("label() has not been called");
+		parent = new int[256];
+		int n = scan(null, null);
+		// roots are the lowest labels of their sets (the first voxel of an
+		// object) and parent[i]<=i, so the table is flattened in one pass
+		// and the roots are numbered in the order of label()
+		for (int i=1; i<=n; i++)
+			parent[i] = parent[parent[i]];
+		int nObjects = 0;
+		for (int i=1; i<=n; i++)
+			parent[i] = parent[i]==i?++nObjects:parent[parent[i]];
+		ImageStack labels = new ImageStack(width, height);
+		for (int z=0; z<depth; z++)
+			labels.addSlice(null, count<=65535?new ShortProcessor(width,height):new FloatProcessor(width,height));
+		scan(labels, parent);
+		parent = null;
+		return labels;
+	}
+
+	/** Returns the number of voxels of the object with the given label. */
+	public long getVoxelCount(int label) {
+		return objects.voxels[label];
+	}
+
+	/** Returns the bounding box of an object as {x, y, z, width, height, depth},
+		where z is the index of the first slice, starting at 0. */
+	public int[] getBounds(int label) {
+		return new int[] {objects.xmin[label], objects.ymin[label], objects.zmin[label],
+			objects.xmax[label]-objects.xmin[label]+1, objects.ymax[label]-objects.ymin[label]+1, objects.zmax[label]-objects.zmin[label]+1};
+	}
+
+	/** Returns the uncalibrated x centroid of an object. */
+	public double getXCentroid(int label) {
+		return objects.xsum[label]/objects.voxels[label]+0.5;
+	}
+
+	/** Returns the uncalibrated y centroid of an object. */
+	public double getYCentroid(int label) {
+		return objects.ysum[label]/objects.voxels[label]+0.5;
+	}
+
+	/** Returns the z centroid of an object as a slice index starting at 0. */
+	public double getZCentroid(int label) {
+		return objects.zsum[label]/objects.voxels[label];
+	}
+
+	/** Returns the lowest raw voxel value of an object. */
+	public double getMin(int label) {
+		return objects.min[label];
+	}
+
+	/** Returns the highest raw voxel value of an object. */
+	public double getMax(int label) {
+		return objects.max[label];
+	}
+
+	/** Returns the mean raw voxel value of an object. */
+	public double getMean(int label) {
+		return objects.sum[label]/objects.voxels[label];
+	}
+
+	/** Returns the standard deviation of the raw voxel values of an object. */
+	public double getStdDev(int label) {
+		long n = objects.voxels[label];
+		if (n<2)
+			return 0.0;
+		double stdDev = (n*objects.sum2[label]-objects.sum[label]*objects.sum[label])/n/(n-1.0);
+		return stdDev>0.0?Math.sqrt(stdDev):0.0;
+	}
+
+	/** Returns a table with the volume, centroid, bounding box and
+		intensity statistics of the objects. Sizes and positions are
+		calibrated with 'cal', intensities are raw values. */
+	public ResultsTable getResultsTable(Calibration cal) {
+		if (cal==null)
+			cal = new Calibration();
+		ResultsTable rt = new ResultsTable();
+		double voxelVolume = cal.pixelWidth*cal.pixelHeight*cal.pixelDepth;
+		for (int label=1; label<=count; label++) {
+			rt.incrementCounter();
+			rt.addValue("Volume", objects.voxels[label]*voxelVolume);
+			rt.addValue("Voxels", objects.voxels[label]);
+			rt.addValue("Mean", getMean(label));
+			rt.addValue("StdDev", getStdDev(label));
+			rt.addValue("Min", objects.min[label]);
+			rt.addValue("Max", objects.max[label]);
+			rt.addValue("X", cal.getX(getXCentroid(label)));
+			rt.addValue("Y", cal.getY(getYCentroid(label), height));
+			rt.addValue("Z", cal.getZ(getZCentroid(label)));
+			rt.addValue("BX", cal.getX(objects.xmin[label]));
+			rt.addValue("BY", cal.getY(objects.ymin[label], height));
+			rt.addValue("BZ", cal.getZ(objects.zmin[label]));
+			rt.addValue("Width", (objects.xmax[label]-objects.xmin[label]+1)*cal.pixelWidth);
+			rt.addValue("Height", (objects.ymax[label]-objects.ymin[label]+1)*cal.pixelHeight);
+			rt.addValue("Depth", (objects.zmax[label]-objects.zmin[label]+1)*cal.pixelDepth);
+		}
+		return rt;
+	}
+
+}
@@ -3,10 +3,22 @@ import ij.*;
 import ij.gui.*;
 import ij.measure.*;
 import ij.plugin.filter.Analyzer;
+import ij.util.ThreadUtil;
 import java.awt.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/** Statistics, including the histogram, of a stack. */
+/** Statistics, including the histogram, of a stack. The slices of stacks
+	in memory are processed in parallel. Plugins can cache the histograms
+	of the slices with setHistogramCaching(), so that calculating the
+	statistics of the same stack again only reads the slices that have changed.
+*/
 public class StackStatistics extends ImageStatistics {
+	private static final int FINGERPRINT_SAMPLES = 1024;
+	private static Map<ImageStack,HistogramCache> caches = new WeakHashMap<ImageStack,HistogramCache>();
+	private HistogramCache cache;
+	private int currentSlice;
 	
 	/** Creates a StackStatistics object from a stack, using 256 
 		histogram bins and the entire stack pixel value range. */
@@ -40,33 +52,19 @@ public class StackStatistics extends ImageStatistics {
     	nBins = bins;
     	histMin = histogramMin;
     	histMax = histogramMax;
-        ImageStack stack = imp.getStack();
+        final ImageStack stack = imp.getStack();
         int size = stack.size();
         ip.setRoi(imp.getRoi());
-        byte[] mask = ip.getMaskArray();
-        float[] cTable = imp.getCalibration().getCTable();
-        longHistogram = new long[nBins];
-        double v;
-        double sum = 0;
-        double sum2 = 0;
-        int width, height;
-        int rx, ry, rw, rh;
+        final byte[] mask = ip.getMaskArray();
+        final float[] cTable = imp.getCalibration().getCTable();
         double pw, ph;
         
-        width = ip.getWidth();
-        height = ip.getHeight();
+        final int width = ip.getWidth();
         Rectangle roi = ip.getRoi();
-        if (roi != null) {
-            rx = roi.x;
-            ry = roi.y;
-            rw = roi.width;
-            rh = roi.height;
-        } else {
-            rx = 0;
-            ry = 0;
-            rw = width;
-            rh = height;
-        }
+        final int rx = roi.x;
+        final int ry = roi.y;
+        final int rw = roi.width;
+        final int rh = roi.height;
         
         pw = 1.0;
         ph = 1.0;
@@ -75,32 +73,47 @@ public class StackStatistics extends ImageStatistics {
         roiWidth = rw*pw;
         roiHeight = rh*ph;
         boolean fixedRange = histMin!=0 || histMax!=0.0;
+        final double minT = minThreshold;
+        final double maxT = maxThreshold;
+        startCaching(imp, new Params(0, new Rectangle(roi), mask, minThreshold, maxThreshold, cTable));
         
         // calculate min and max
-		double roiMin = Double.MAX_VALUE;
-		double roiMax = -Double.MAX_VALUE;
-		for (int slice=1; slice<=size; slice++) {
-			IJ.showStatus("Calculating stack histogram...");
-			IJ.showProgress(slice/2, size);
-			ip = stack.getProcessor(slice);
-			//ip.setCalibrationTable(cTable);
-			for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-				int i = y * width + rx;
-				int mi = my * rw;
-				for (int x=rx; x<(rx+rw); x++) {
-					if (mask==null || mask[mi++]!=0) {
-						v = ip.getPixelValue(x,y);
-						if (v>=minThreshold && v<=maxThreshold) {
-							if (v<roiMin)
-								roiMin = v;
-							if (v>roiMax)
-								roiMax = v;
+		IJ.showStatus("Calculating stack histogram...");
+		final SliceHistogram[] slices = new SliceHistogram[size];
+		forEachSlice(stack, 0, new SliceOperation() {
+			public void run(int slice, long[] hist) {
+				SliceHistogram h = getCachedSlice(stack, slice);
+				if (h==null) {
+					h = new SliceHistogram();
+					ImageProcessor ip = stack.getProcessor(slice);
+					double v;
+					for (int y=ry, my=0; y<(ry+rh); y++, my++) {
+						int mi = my * rw;
+						for (int x=rx; x<(rx+rw); x++) {
+							if (mask==null || mask[mi++]!=0) {
+								v = ip.getPixelValue(x,y);
+								if (v>=minT && v<=maxT) {
+									if (v<h.min)
+										h.min = v;
+									if (v>h.max)
+										h.max = v;
+								}
+							}
 						}
 					}
-					i++;
+					cacheSlice(stack, slice, h);
 				}
+				slices[slice-1] = h;
 			}
-		 }
+		});
+		double roiMin = Double.MAX_VALUE;
+		double roiMax = -Double.MAX_VALUE;
+		for (int i=0; i<size; i++) {
+			if (slices[i].min<roiMin)
+				roiMin = slices[i].min;
+			if (slices[i].max>roiMax)
+				roiMax = slices[i].max;
+		}
 		min = roiMin;
 		max = roiMax;
 		if (fixedRange) {
@@ -112,34 +125,51 @@ public class StackStatistics extends ImageStatistics {
 		}
        
         // Generate histogram
-        double scale = nBins/( histMax-histMin);
-        pixelCount = 0;
-        int index;
-        boolean first = true;
-        for (int slice=1; slice<=size; slice++) {
-            IJ.showProgress(size/2+slice/2, size);
-            ip = stack.getProcessor(slice);
-            ip.setCalibrationTable(cTable);
-            for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-                int i = y * width + rx;
-                int mi = my * rw;
-                for (int x=rx; x<(rx+rw); x++) {
-                    if (mask==null || mask[mi++]!=0) {
-                        v = ip.getPixelValue(x,y);
-						if (v>=minThreshold && v<=maxThreshold && v>=histMin && v<=histMax) {
-							longPixelCount++;
-							sum += v;
-							sum2 += v*v;
-							index = (int)(scale*(v-histMin));
-							if (index>=nBins)
-								index = nBins-1;
-							longHistogram[index]++;
+        final double scale = nBins/( histMax-histMin);
+        final double hMin = histMin, hMax = histMax;
+        final int nb = nBins;
+        longHistogram = forEachSlice(stack, nBins, new SliceOperation() {
+			public void run(int slice, long[] hist) {
+				SliceHistogram h = slices[slice-1];
+				BinnedHistogram b = h.binned;
+				if (b==null || b.counts.length!=nb || b.histMin!=hMin || b.histMax!=hMax) {
+					b = new BinnedHistogram(nb, hMin, hMax);
+					ImageProcessor ip = stack.getProcessor(slice);
+					ip.setCalibrationTable(cTable);
+					double v;
+					int index;
+					for (int y=ry, my=0; y<(ry+rh); y++, my++) {
+						int mi = my * rw;
+						for (int x=rx; x<(rx+rw); x++) {
+							if (mask==null || mask[mi++]!=0) {
+								v = ip.getPixelValue(x,y);
+								if (v>=minT && v<=maxT && v>=hMin && v<=hMax) {
+									b.count++;
+									b.sum += v;
+									b.sum2 += v*v;
+									index = (int)(scale*(v-hMin));
+									if (index>=nb)
+										index = nb-1;
+									b.counts[index]++;
+								}
+							}
 						}
-                    }
-                    i++;
-                }
-            }
-        }
+					}
+					h.binned = b;
+				}
+				for (int i=0; i<nb; i++)
+					hist[i] += b.counts[i];
+			}
+		});
+		// add the sums in slice order, so the result does not depend on the threads
+        double sum = 0;
+        double sum2 = 0;
+		for (int i=0; i<size; i++) {
+			BinnedHistogram b = slices[i].binned;
+			longPixelCount += b.count;
+			sum += b.sum;
+			sum2 += b.sum2;
+		}
         pixelCount = (int)longPixelCount;
         area = longPixelCount*pw*ph;
         mean = sum/longPixelCount;
@@ -167,18 +197,7 @@ public class StackStatistics extends ImageStatistics {
 			minThreshold = (int)ip.getMinThreshold();
 			maxThreshold = (int)ip.getMaxThreshold();
 		}
-		ImageStack stack = imp.getStack();
-		Roi roi = imp.getRoi();
-		longHistogram = new long[256];
-		int n = stack.size();
-		for (int slice=1; slice<=n; slice++) {
-			IJ.showProgress(slice, n);
-			ip = stack.getProcessor(slice);
-			if (roi!=null) ip.setRoi(roi);
-			int[] hist = ip.getHistogram();
-			for (int i=0; i<256; i++)
-				longHistogram[i] += hist[i];
-		}
+		longHistogram = sumHistograms(imp, 256);
 		pw=1.0; ph=1.0;
 		getRawStatistics(longHistogram, minThreshold, maxThreshold);
 		getRawMinAndMax(longHistogram, minThreshold, maxThreshold);
@@ -188,6 +207,42 @@ public class StackStatistics extends ImageStatistics {
 		IJ.showProgress(1.0);
 	}
 	
+	/** Returns the sum of the histograms of the slices of the stack of 'imp',
+		restricted to its selection. */
+	private long[] sumHistograms(ImagePlus imp, int histSize) {
+		final ImageStack stack = imp.getStack();
+		Roi roi = imp.getRoi();
+		Rectangle r = null;
+		ImageProcessor mask = null;
+		if (roi!=null) {
+			// clip the selection once, so the slices can share the mask
+			ImageProcessor ip = new ByteProcessor(stack.getWidth(), stack.getHeight());
+			ip.setRoi(roi);
+			r = ip.getRoi();
+			mask = ip.getMask();
+		}
+		final Rectangle bounds = r;
+		final ImageProcessor roiMask = mask;
+		startCaching(imp, new Params(histSize, bounds, mask!=null?(byte[])mask.getPixels():null, 0.0, 0.0, null));
+		return forEachSlice(stack, histSize, new SliceOperation() {
+			public void run(int slice, long[] hist) {
+				SliceHistogram h = getCachedSlice(stack, slice);
+				if (h==null) {
+					ImageProcessor ip = stack.getProcessor(slice);
+					if (bounds!=null) {
+						ip.setMask(roiMask);
+						ip.setRoi(bounds);
+					}
+					h = new SliceHistogram(ip.getHistogram());
+					cacheSlice(stack, slice, h);
+				}
+				int[] counts = h.counts;
+				for (int i=0, offset=h.offset; i<counts.length; i++)
+					hist[offset+i] += counts[i];
+			}
+		});
+	}
+
 	private void copyHistogram(int nbins) {
 		histogram = new int[nbins];
 		for (int i=0; i<nbins; i++) {
@@ -249,19 +304,7 @@ public class StackStatistics extends ImageStatistics {
 			minThreshold = (int)ip.getMinThreshold();
 			maxThreshold = (int)ip.getMaxThreshold();
 		}
-		ImageStack stack = imp.getStack();
-		Roi roi = imp.getRoi();
-		long[] hist16 = new long[65536];
-		int n = stack.size();
-		for (int slice=1; slice<=n; slice++) {
-			IJ.showProgress(slice, n);
-			IJ.showStatus(slice+"/"+n);
-			ip = stack.getProcessor(slice);
-			if (roi!=null) ip.setRoi(roi);
-			int[] hist = ip.getHistogram();
-			for (int i=0; i<65536; i++)
-				hist16[i] += hist[i];
-		}
+		long[] hist16 = sumHistograms(imp, 65536);
 		pw=1.0; ph=1.0;
 		getRaw16BitMinAndMax(hist16, minThreshold, maxThreshold);
 		get16BitStatistics(hist16, (int)min, (int)max);
@@ -355,5 +398,232 @@ public class StackStatistics extends ImageStatistics {
 		return cal!=null?cal.getCValue(i):i;
 	}
 
-   
+	/** Enables or disables caching of the histograms of the slices of 'stack'.
+		Caching is never enabled by ImageJ itself; it is meant for plugins
+		that calculate the statistics of a stack repeatedly while only
+		changing the current slice or replacing pixel arrays.
+		With caching enabled, the statistics of the stack are calculated
+		from the cached histograms of all the slices except the current one,
+		as long as the selection, the threshold and the histogram range stay
+		the same. A cached slice is calculated again if its pixel array has
+		been replaced, but changes of its pixels are only detected if they
+		affect a small sample of them. The caller must therefore call
+		clearHistogramCache() after modifying slices other than the current
+		one in place. The slices of virtual stacks are not cached.
+	*/
+	public static void setHistogramCaching(ImageStack stack, boolean cacheHistograms) {
+		synchronized (caches) {
+			if (!cacheHistograms)
+				caches.remove(stack);
+			else if (caches.get(stack)==null)
+				caches.put(stack, new HistogramCache());
+		}
+	}
+
+	/** Discards the cached histograms of the slices of 'stack'. Caching
+		stays enabled if it was. */
+	public static void clearHistogramCache(ImageStack stack) {
+		HistogramCache cache;
+		synchronized (caches) {
+			cache = caches.get(stack);
+		}
+		if (cache!=null) {
+			synchronized (cache) {
+				cache.clear();
+			}
+		}
+	}
+
+	private interface SliceOperation {
+		/** Processes a slice, adding its histogram to 'hist'. */
+		void run(int slice, long[] hist);
+	}
+
+	/** Runs 'operation' for all slices of the stack, in parallel unless the
+		stack is virtual, and returns the sum of the histograms, of length
+		'histSize', of the threads. */
+	private long[] forEachSlice(ImageStack stack, int histSize, final SliceOperation operation) {
+		final int n = stack.size();
+		int nThreads = stack.isVirtual()?1:Math.min(Prefs.getThreads(), n);
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final long[][] hists = new long[Math.max(nThreads,1)][histSize];
+		Callable<?>[] callables = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final int thread = t;
+			callables[t] = new Callable<Void>() {
+				public Void call() {
+					for (int slice=nextSlice.getAndIncrement(); slice<=n; slice=nextSlice.getAndIncrement()) {
+						operation.run(slice, hists[thread]);
+						if (thread==0)
+							IJ.showProgress(Math.min(nextSlice.get(),n), n);
+					}
+					return null;
+				}
+			};
+		}
+		if (nThreads==1) {
+			try {
+				callables[0].call();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		} else
+			ThreadUtil.startAndJoinInPool(callables);
+		long[] sum = hists[0];
+		for (int t=1; t<nThreads; t++)
+			for (int i=0; i<histSize; i++)
+				sum[i] += hists[t][i];
+		return sum;
+	}
+
+	/** Looks up the cache of the stack of 'imp' and discards its contents
+		if they were calculated with other parameters. */
+	private void startCaching(ImagePlus imp, Params params) {
+		ImageStack stack = imp.getStack();
+		synchronized (caches) {
+			cache = caches.get(stack);
+		}
+		if (cache==null)
+			return;
+		if (stack.isVirtual()) {
+			cache = null;
+			return;
+		}
+		currentSlice = imp.getCurrentSlice();
+		synchronized (cache) {
+			if (!params.equals(cache.params))
+				cache.clear();
+			cache.params = params;
+		}
+	}
+
+	/** Returns the cached histogram of a slice, or null if there is none or
+		the slice may have changed. The current slice is never taken from
+		the cache. */
+	private SliceHistogram getCachedSlice(ImageStack stack, int slice) {
+		if (cache==null || slice==currentSlice)
+			return null;
+		Object pixels = stack.getPixels(slice);
+		SliceHistogram h;
+		synchronized (cache) {
+			h = cache.slices.get(pixels);
+		}
+		return h!=null && h.fingerprint==fingerprint(pixels)?h:null;
+	}
+
+	private void cacheSlice(ImageStack stack, int slice, SliceHistogram h) {
+		if (cache==null)
+			return;
+		Object pixels = stack.getPixels(slice);
+		h.fingerprint = fingerprint(pixels);
+		synchronized (cache) {
+			cache.slices.put(pixels, h);
+		}
+	}
+
+	/** Returns a hash of evenly spaced pixels, used to detect changes
+		of cached slices. */
+	private static long fingerprint(Object pixels) {
+		long hash = 0L;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int i=0, step=Math.max(p.length/FINGERPRINT_SAMPLES,1); i<p.length; i+=step)
+				hash = hash*31 + p[i];
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int i=0, step=Math.max(p.length/FINGERPRINT_SAMPLES,1); i<p.length; i+=step)
+				hash = hash*31 + p[i];
+		} else if (pixels instanceof float[]) {
+			float[] p = (float[])pixels;
+			for (int i=0, step=Math.max(p.length/FINGERPRINT_SAMPLES,1); i<p.length; i+=step)
+				hash = hash*31 + Float.floatToIntBits(p[i]);
+		} else if (pixels instanceof int[]) {
+			int[] p = (int[])pixels;
+			for (int i=0, step=Math.max(p.length/FINGERPRINT_SAMPLES,1); i<p.length; i+=step)
+				hash = hash*31 + p[i];
+		}
+		return hash;
+	}
+
+	/** The cached histograms of the slices of a stack, looked up by pixel array. */
+	private static class HistogramCache {
+		Params params;
+		Map<Object,SliceHistogram> slices = new WeakHashMap<Object,SliceHistogram>();
+
+		void clear() {
+			params = null;
+			slices.clear();
+		}
+	}
+
+	/** The parameters, other than the slice, the cached histograms depend on. */
+	private static class Params {
+		int kind;
+		Rectangle bounds;
+		byte[] mask;
+		double minThreshold, maxThreshold;
+		float[] cTable;
+
+		Params(int kind, Rectangle bounds, byte[] mask, double minThreshold, double maxThreshold, float[] cTable) {
+			this.kind = kind;
+			this.bounds = bounds;
+			this.mask = mask;
+			this.minThreshold = minThreshold;
+			this.maxThreshold = maxThreshold;
+			this.cTable = cTable;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Params))
+				return false;
+			Params p = (Params)obj;
+			return kind==p.kind && (bounds==null?p.bounds==null:bounds.equals(p.bounds))
+				&& Arrays.equals(mask, p.mask) && minThreshold==p.minThreshold
+				&& maxThreshold==p.maxThreshold && Arrays.equals(cTable, p.cTable);
+		}
+
+		public int hashCode() {
+			return kind;
+		}
+	}
+
+	/** Data of a slice: its histogram, stored from the first to the last
+		non-empty bin, or, for 32-bit and calibrated images, the range of
+		its values and its binned histogram. */
+	private static class SliceHistogram {
+		long fingerprint;
+		int[] counts;
+		int offset;
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		volatile BinnedHistogram binned;
+
+		SliceHistogram() {
+		}
+
+		SliceHistogram(int[] hist) {
+			int first = 0;
+			while (first<hist.length-1 && hist[first]==0)
+				first++;
+			int last = hist.length-1;
+			while (last>first && hist[last]==0)
+				last--;
+			offset = first;
+			counts = Arrays.copyOfRange(hist, first, last+1);
+		}
+	}
+
+	private static class BinnedHistogram {
+		int[] counts;
+		double histMin, histMax;
+		long count;
+		double sum, sum2;
+
+		BinnedHistogram(int nBins, double histMin, double histMax) {
+			counts = new int[nBins];
+			this.histMin = histMin;
+			this.histMax = histMax;
+		}
+	}
+
 }
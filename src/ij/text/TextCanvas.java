@@ -60,27 +60,32 @@ class TextCanvas extends Canvas {
 		}
 		tp.iFirstRow=j;
 		y=tp.iRowHeight+1;
-		for (;y<iHeight && j<tp.iRowCount; j++,y+=tp.iRowHeight) {
-			int x=-tp.iX;
-			for (int i=0;i<tp.iColCount;i++) {
-				if (i>=tp.iColWidth.length) break;
-				int w = tp.iColWidth[i];
-				Color b=Color.white,t=Color.black;
-				if (j>=tp.selStart && j<=tp.selEnd) {
-					int w2 = w;
-					if (tp.iColCount==1)
-						w2 = iWidth;
-					b=Color.black;
-					t=Color.white;
-					gImage.setColor(b);
-					gImage.fillRect(x,y,w2-1,tp.iRowHeight);
+		tp.setRowCaching(true);
+		try {
+			for (;y<iHeight && j<tp.iRowCount; j++,y+=tp.iRowHeight) {
+				int x=-tp.iX;
+				for (int i=0;i<tp.iColCount;i++) {
+					if (i>=tp.iColWidth.length) break;
+					int w = tp.iColWidth[i];
+					Color b=Color.white,t=Color.black;
+					if (j>=tp.selStart && j<=tp.selEnd) {
+						int w2 = w;
+						if (tp.iColCount==1)
+							w2 = iWidth;
+						b=Color.black;
+						t=Color.white;
+						gImage.setColor(b);
+						gImage.fillRect(x,y,w2-1,tp.iRowHeight);
+					}
+					gImage.setColor(t);
+					char[] chars = getChars(i,j);
+					if (chars!=null)
+						gImage.drawChars(chars,0,chars.length,x+2,y+tp.iRowHeight-5);
+					x+=w;
 				}
-				gImage.setColor(t);
-				char[] chars = getChars(i,j);
-				if (chars!=null)
-					gImage.drawChars(chars,0,chars.length,x+2,y+tp.iRowHeight-5);
-				x+=w;
 			}
+		} finally {
+			tp.setRowCaching(false);
 		}
 		if (iImage!=null)
 			g.drawImage(iImage,0,0,null);
@@ -127,9 +132,7 @@ class TextCanvas extends Canvas {
 	synchronized char[] getChars(int column, int row) {
 		if (tp==null || tp.vData==null)
 			return null;
-		if (row>=tp.vData.size())
-			return null;
-		char[] chars = row<tp.vData.size()?(char[])(tp.vData.elementAt(row)):null;
+		char[] chars = tp.getRowChars(row);
 		if (chars==null || chars.length==0)
 			return null;
 		
@@ -186,6 +189,13 @@ class TextCanvas extends Canvas {
 			if (chars!=null)
 				w = Math.max(w,fMetrics.charsWidth(chars,0,chars.length));
 		}
+		// estimate the width of long tables from evenly spaced rows
+		int step = (tp.iRowCount-maxRows)/maxRows;
+		for (int row=maxRows+step; step>0 && row<tp.iRowCount; row+=step) {
+			char[] chars = getChars(column,row);
+			if (chars!=null)
+				w = Math.max(w,fMetrics.charsWidth(chars,0,chars.length));
+		}
 		//System.out.println("calcAutoWidth: "+column+"  "+tp.iRowCount);
 		char[] chars = tp.iRowCount>0?getChars(column, tp.iRowCount-1):null;
 		if (chars!=null)
@@ -58,6 +58,12 @@ public class TextPanel extends Panel implements AdjustmentListener,
     Menu fileMenu, editMenu;
     boolean menusExtended;
     boolean saveAsCSV;
+    // table whose rows are formatted when drawn instead of being stored in vData
+    ResultsTable model;
+    private Thread rowCacheThread; // the thread drawing the rows, if it keeps the last one
+    private int cachedRow = -1;
+    private char[] cachedChars;
+    private StringBuilder rowBuffer;
 
 
 	/** Constructs a new TextPanel. */
@@ -181,8 +187,10 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		if (vData==null)
 			setColumnHeadings("");
 		char[] chars = text.toCharArray();
-		vData.addElement(chars);
-		iRowCount++;
+		if (!appendTableRow(text)) {
+			vData.addElement(chars);
+			iRowCount++;
+		}
 		if (isShowing()) {
 			if (iColCount==1 && tc.fMetrics!=null) {
 				iColWidth[0] = Math.max(iColWidth[0], tc.fMetrics.charsWidth(chars,0,chars.length));
@@ -223,13 +231,97 @@ public class TextPanel extends Panel implements AdjustmentListener,
 
 	/** Adds a single line to the end of this TextPanel without updating the display. */
 	public void appendWithoutUpdate(String data) {
-		if (vData!=null) {
+		if (vData!=null && !appendTableRow(data)) {
 			char[] chars = data.toCharArray();
 			vData.addElement(chars);
 			iRowCount++;
 		}
 	}
 
+	/** Displays the rows of a ResultsTable without copying them. Only the
+		visible rows are formatted, from the current values in the table,
+		when they are drawn. The column headings must have been set with
+		setColumnHeadings(). Lines added later are stored as text, except
+		for a row just added to the table, which is drawn from the table. */
+	public synchronized void displayTable(ResultsTable rt) {
+		if (vData==null)
+			setColumnHeadings(rt.getColumnHeadings());
+		vData.removeAllElements();
+		model = rt;
+		cachedRow = -1;
+		iRowCount = rt.size();
+		updateDisplay();
+	}
+
+	/** Returns 'true' if 'data' is the row that follows the displayed
+		rows of the table, which is then displayed. Otherwise, converts
+		the displayed rows to text so that 'data' can be appended. */
+	private synchronized boolean appendTableRow(String data) {
+		if (model==null)
+			return false;
+		if (iRowCount==model.size()-1 && data.equals(new String(getRowChars(iRowCount, true)))) {
+			iRowCount++;
+			return true;
+		}
+		copyRows();
+		return false;
+	}
+
+	/** Replaces the table rows with their text, stored in vData. */
+	synchronized void copyRows() {
+		if (model==null)
+			return;
+		Vector<char[]> v = new Vector<char[]>(iRowCount);
+		for (int i=0; i<iRowCount; i++)
+			v.addElement(getRowChars(i));
+		vData = v;
+		model = null;
+		cachedRow = -1;
+	}
+
+	/** Returns the characters of a line, without a copy. In table mode,
+		the row is formatted from the current values of the table; only
+		the thread drawing the rows reuses the last row it formatted. */
+	synchronized char[] getRowChars(int row) {
+		return getRowChars(row, false);
+	}
+
+	private char[] getRowChars(int row, boolean ignoreCount) {
+		if (model==null)
+			return vData!=null&&row>=0&&row<vData.size()?(char[])vData.elementAt(row):null;
+		if (row<0 || (row>=iRowCount&&!ignoreCount))
+			return null;
+		boolean caching = rowCacheThread==Thread.currentThread();
+		if (caching && row==cachedRow)
+			return cachedChars;
+		char[] chars;
+		synchronized (model) {
+			if (row<model.size()) {
+				if (rowBuffer==null)
+					rowBuffer = new StringBuilder(200);
+				rowBuffer.setLength(0);
+				model.appendRowAsString(rowBuffer, row);
+				chars = new char[rowBuffer.length()];
+				rowBuffer.getChars(0, chars.length, chars, 0);
+			} else
+				chars = new char[0]; // rows deleted from the table since displayTable()
+		}
+		if (caching) {
+			cachedRow = row;
+			cachedChars = chars;
+		}
+		return chars;
+	}
+
+	/** With 'cache' true, getRowChars() keeps the last row formatted
+		for the current thread, which draws the rows one column at a time.
+		The row is discarded when called with 'cache' false. */
+	synchronized void setRowCaching(boolean cache) {
+		rowCacheThread = cache?Thread.currentThread():null;
+		cachedRow = -1;
+		cachedChars = null;
+	}
+
 	public void updateDisplay() {
 		iY=iRowHeight*(iRowCount+1);
 		adjustVScroll();
@@ -304,7 +396,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		boolean doubleClick = System.currentTimeMillis()-mouseDownTime<=DOUBLE_CLICK_THRESHOLD;
 		mouseDownTime = System.currentTimeMillis();
 		if (doubleClick) {
-			char[] chars = (char[])(vData.elementAt(selStart));
+			char[] chars = getRowChars(selStart);
 			String s = new String(chars);
 			if (overlayList) {
 				String owner = title.substring(20, title.length());
@@ -564,7 +656,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 			return;
 		boolean found = false;
 		for (int i=first; i<iRowCount; i++) {
-			String line = new String((char[])(vData.elementAt(i)));
+			String line = new String(getRowChars(i));
 			if (line.contains(s)) {
 				setSelection(i, i);
 				found = true;
@@ -665,7 +757,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
      	int r=(y/iRowHeight)-1+iFirstRow;
      	int lineWidth = iGridWidth;
 		if (iColCount==1 && tc.fMetrics!=null && r>=0 && r<iRowCount) {
-			char[] chars = (char[])vData.elementAt(r);
+			char[] chars = getRowChars(r);
 			lineWidth = Math.max(tc.fMetrics.charsWidth(chars,0,chars.length), iGridWidth);
 		}
       	if (r>=0 && r<iRowCount && x<lineWidth) {
@@ -736,7 +828,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 			sb.append('\n');
 		}
 		for (int i=selStart; i<=selEnd; i++) {
-			char[] chars = (char[])(vData.elementAt(i));
+			char[] chars = getRowChars(i);
 			String s = new String(chars);
 			if (s.endsWith("\t"))
 				s = s.substring(0, s.length()-1);
@@ -809,8 +901,11 @@ public class TextPanel extends Panel implements AdjustmentListener,
 			}
 		}
 		int first=selStart, last=selEnd, rows=iRowCount;
+		if (model!=null && !(rt==model && iRowCount==rt.size()))
+			copyRows();
 		if (selStart==0 && selEnd==(iRowCount-1)) {
 			vData.removeAllElements();
+			model = null;
 			iRowCount = 0;
 			if (rt!=null) {
 				if (IJ.isResultsWindow() && IJ.getTextPanel()==this) {
@@ -824,7 +919,8 @@ public class TextPanel extends Panel implements AdjustmentListener,
 			boolean atEnd = rowCount-selEnd<8;
 			int count = selEnd-selStart+1;
 			for (int i=0; i<count; i++) {
-				vData.removeElementAt(selStart);
+				if (model==null)
+					vData.removeElementAt(selStart);
 				iRowCount--;
 			}
 			if (rt!=null && rowCount==rt.size()) {
@@ -849,6 +945,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 	public synchronized void clear() {
 		if (vData==null) return;
 		vData.removeAllElements();
+		model = null;
 		iRowCount = 0;
 		selStart=-1; selEnd=-1; selOrigin=-1; selLine=-1;
 		adjustVScroll();
@@ -943,7 +1040,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 			pw.println(labels2);
 		}
 		for (int i=0; i<iRowCount; i++) {
-			char[] chars = (char[])(vData.elementAt(i));
+			char[] chars = getRowChars(i);
 			String s = new String(chars);
 			if (s.endsWith("\t"))
 				s = s.substring(0, s.length()-1);
@@ -1036,7 +1133,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		}
 		for (int i=0; i<iRowCount; i++) {
 			if (vData==null) break;
-			char[] chars = (char[])(vData.elementAt(i));
+			char[] chars = getRowChars(i);
 			sb.append(chars);
 			sb.append('\n');
 		}
@@ -1058,7 +1155,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 	public String getLine(int index) {
 		if (index<0 || index>=iRowCount)
 			throw new IllegalArgumentException("index out of range: "+index);
-		return new String((char[])(vData.elementAt(index)));
+		return new String(getRowChars(index));
 	}
 
 	/** Replaces the contents of the specified line, where 'index'
@@ -1068,6 +1165,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		if (index<0 || index>=iRowCount)
 			throw new IllegalArgumentException("index out of range: "+index);
 		if (vData!=null) {
+			copyRows();
 			vData.setElementAt(s.toCharArray(), index);
 			tc.repaint();
 		}
@@ -1153,6 +1251,8 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		if (vData!=null)
 			vData.removeAllElements();
 		vData = null;
+		model = null;
+		cachedRow = -1;
 	}
 	
 	private void sort() {
@@ -45,6 +45,13 @@ public class ThreadUtil {
 	 * overhead of creating threads, and is therefore faster if each thread has
 	 * only a short task to perform */
 
+	/** The forkJoinPool is the shared, work-stealing pool used by startAndJoinInPool
+	 *  and submit for ImageJ's multithreaded filters. It has one thread per processor;
+	 *  a pool thread that waits in joinAll() for other tasks is temporarily replaced by
+	 *  a spare thread, so that nested parallel operations (e.g. filtering the slices of
+	 *  a stack in parallel, each slice with a multithreaded filter) cannot deadlock. */
+	public static final ForkJoinPool forkJoinPool = new ForkJoinPool(getNbCpus());
+
 	/** The threadPoolExecutor holds at least as many threads for parallel execution as the number of
 	 *  processors; additional threads are added as required. These additional threads will be
 	 *  terminated if idle for 120 seconds. */
@@ -74,31 +81,82 @@ public class ThreadUtil {
 	 *  return results, the get() methods of these Futures may be used to get the results.
 	 */
 	public static Future[] startAndJoin(Callable[] callables) {
-		if (callables.length == 1) {	//special case: call in current thread and create a Future
-			Object callResult = null;
-			try {
-				callResult = callables[0].call();
-			} catch (Exception e) {
-				ij.IJ.handleException(e);
-			}
-			final Object result = callResult;
-			Future[] futures = new Future[] {
-				new Future() {
-					public boolean cancel(boolean mayInterruptIfRunning) {return false;}
-					public Object get() {return result;}
-					public Object get(long timeout, TimeUnit unit) {return result;}
-					public boolean isCancelled() {return false;}
-					public boolean isDone() {return true;}
-				}	
-			};
-			return futures;
-		} else {
+		if (callables.length == 1)	//special case: call in current thread and create a Future
+			return callInCurrentThread(callables[0]);
+		else {
 			Future[] futures = start(callables);
 			joinAll(futures);
 			return futures;
 		}
 	}
 
+	/** Starts all callables for parallel execution in the shared forkJoinPool
+	 *  and waits until each of them has finished. In contrast to
+	 *  startAndJoin(Callable[]), no threads are created, but the callables
+	 *  must be independent: if there are more callables than processors,
+	 *  some of them may only start when others have finished.
+	 *  The callables run in pool threads; cancelling a callable interrupts
+	 *  the pool thread while it runs that callable.
+	 *  As with startAndJoin(Callable[]), the callables are cancelled and
+	 *  interrupted if the current thread is interrupted, and the 'interrupted'
+	 *  status of the current thread is preserved. If the array size is 1,
+	 *  the <code>call()</code> method is executed in the current thread.
+	 *  @return Array of the <code>java.util.concurrent.Future</code>s,
+	 *  corresponding to the callables.
+	 */
+	public static Future<?>[] startAndJoinInPool(Callable<?>[] callables) {
+		if (callables.length == 1)
+			return callInCurrentThread(callables[0]);
+		else {
+			Future<?>[] futures = submit(callables);
+			joinAll(futures);
+			return futures;
+		}
+	}
+
+	private static Future<?>[] callInCurrentThread(Callable<?> callable) {
+		Object callResult = null;
+		try {
+			callResult = callable.call();
+		} catch (Exception e) {
+			ij.IJ.handleException(e);
+		}
+		final Object result = callResult;
+		Future<?>[] futures = new Future<?>[] {
+			new Future<Object>() {
+				public boolean cancel(boolean mayInterruptIfRunning) {return false;}
+				public Object get() {return result;}
+				public Object get(long timeout, TimeUnit unit) {return result;}
+				public boolean isCancelled() {return false;}
+				public boolean isDone() {return true;}
+			}	
+		};
+		return futures;
+	}
+
+	/** Submits all callables for parallel execution by the forkJoinPool
+	 *  without waiting for the results. Use joinAll(Future[]) to wait for
+	 *  completion. Cancelling a Future with <code>cancel(true)</code> interrupts
+	 *  its callable if it is running, as with the ThreadPoolExecutor.
+	 *  @param callables Array of independent tasks; these might be
+	 *  <code>Callable<Void></code> if no return value is needed.
+	 *  @return Array of the <code>java.util.concurrent.Future</code>s,
+	 *  corresponding to the callables.
+	 */
+	public static Future<?>[] submit(Callable<?>[] callables) {
+		Future<?>[] futures = new Future<?>[callables.length];
+		for (int i=0; i<callables.length; i++)
+			futures[i] = submit(callables[i]);
+		return futures;
+	}
+
+	/** Submits a callable for execution by the forkJoinPool. */
+	public static <T> Future<T> submit(Callable<T> callable) {
+		PoolTask<T> task = new PoolTask<T>(callable);
+		forkJoinPool.execute(task);
+		return task;
+	}
+
 	/** Starts all callables for parallel execution (using a ThreadPoolExecutor)
 	 *  without waiting for the results.
 	 *  @param callables Array of tasks; these might be <code>Callable<Void></code>
@@ -130,6 +188,7 @@ public class ThreadUtil {
 		for (int i=0; i<futures.length; i++) {
 			Future f = futures[i];
 			try {
+				awaitDone(f);
 				f.get();
 			} catch (InterruptedException e) {
 				interrupted = true;
@@ -146,4 +205,40 @@ public class ThreadUtil {
 			threadPoolExecutor.purge();
 		}
 	}
+
+	/** Waits for a Future; in a thread of the forkJoinPool, the pool may
+	 *  activate a spare thread while this thread is blocked. */
+	private static void awaitDone(final Future<?> f) throws InterruptedException {
+		if (f.isDone() || !(Thread.currentThread() instanceof ForkJoinWorkerThread))
+			return;
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+			public boolean block() throws InterruptedException {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+				} catch (CancellationException e) {}
+				return true;
+			}
+			public boolean isReleasable() {
+				return f.isDone();
+			}
+		});
+	}
+
+	/** A task of the forkJoinPool that can be cancelled by interrupting the
+	 *  pool thread that runs it. The interrupt does not remain set once the
+	 *  task has finished, so it cannot affect the next task of that thread. */
+	private static class PoolTask<V> extends FutureTask<V> {
+		PoolTask(Callable<V> callable) {
+			super(callable);
+		}
+
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				Thread.interrupted();
+			}
+		}
+	}
 }